@@ -64,12 +64,11 @@
 
 package javajs.img;
 
+import javajs.util.AU;
 import javajs.util.CU;
-import javajs.util.Lst;
 import javajs.util.M3;
 import javajs.util.P3;
 
-import java.util.Hashtable;
 import java.util.Map;
 import java.io.IOException;
 
@@ -89,7 +88,10 @@ import java.io.IOException;
  * 
  * -- much simplified interface with ImageEncoder
  * 
- * -- uses simple Hashtable with Integer() to catalog colors
+ * -- catalogs colors in a primitive open-addressed table (ColorTable) that
+ * also caches each color's L*a*b value and nearest palette index
+ * 
+ * -- CAPTURE ... FIXED reuses the first frame's palette for all frames
  * 
  * -- allows progressive production of animated GIF via Jmol CAPTURE command
  * 
@@ -208,177 +210,113 @@ public class GifEncoder extends ImageEncoder {
   //////////////  256-color quantization  //////////////
 
   /**
-   * a color point in normalized L*a*b space with a flag indicating whether it
-   * is the background color
-   */
-  private class ColorItem extends P3 {
-    protected boolean isBackground;
-
-    ColorItem(int rgb, boolean isBackground) {
-      this.isBackground = isBackground;
-      setT(toLABnorm(rgb));
-    }
-  }
-
-  /**
-   * A list of normalized L*a*b points with an index and a center and volume
+   * All colors seen so far, in an open-addressed table keyed by ARGB, with
+   * their normalized L*a*b values and, once it is known, the index of the
+   * nearest palette color. Slot 0 is always the background color.
    * 
+   * With CAPTURE ... FIXED, this table and the palette are kept in params, so
+   * later frames skip quantization and most of their colors (including those
+   * produced by dithering) are already indexed.
    */
-  private class ColorCell extends Lst<P3> {
-
-    protected int index;
-    protected P3 center;
-
-    private float volume;
-
-    ColorCell(int index) {
-      this.index = index;
+  private class ColorTable {
+
+    protected int n;
+    protected int[] rgbs;
+    protected float[] labs; // three per slot
+    protected int[] indexes; // nearest palette index, or -1
+    protected boolean[] isPaletteColor; // exact match; no dithering error
+
+    private int[] hash; // slot + 1, or 0 for empty
+    private int mask;
+
+    protected P3[] palette;
+    protected float[] centers; // normalized L*a*b, three per palette color
+    protected int nPalette;
+
+    ColorTable() {
+      hash = new int[2048];
+      mask = 2047;
+      rgbs = new int[1024];
+      labs = new float[3072];
+      indexes = new int[1024];
+      isPaletteColor = new boolean[1024];
+      getSlot(backgroundColor);
     }
 
     /**
-     * @param doVisualize
-     *        debugging only
-     * @return volume in normalized L*a*b space
+     * @param rgb
+     * @return slot for this color, adding it if necessary
      */
-    public float getVolume(boolean doVisualize) {
-      if (volume != 0)
-        return volume;
-      if (size() < 2)
-        return -1;
-      //if (true)
-      //return lst.size();
-      //float d;
-      float maxx = -Integer.MAX_VALUE;
-      float minx = Integer.MAX_VALUE;
-      float maxy = -Integer.MAX_VALUE;
-      float miny = Integer.MAX_VALUE;
-      float maxz = -Integer.MAX_VALUE;
-      float minz = Integer.MAX_VALUE;
-      int n = size();
-      for (int i = n; --i >= 0;) {
-        P3 xyz = get(i);
-        if (xyz.x < minx)
-          minx = xyz.x;
-        if (xyz.y < miny)
-          miny = xyz.y;
-        if (xyz.z < minz)
-          minz = xyz.z;
-        if (xyz.x > maxx)
-          maxx = xyz.x;
-        if (xyz.y > maxy)
-          maxy = xyz.y;
-        if (xyz.z > maxz)
-          maxz = xyz.z;
+    protected int getSlot(int rgb) {
+      int h = hashRGB(rgb) & mask;
+      int s;
+      while ((s = hash[h]) != 0) {
+        if (rgbs[--s] == rgb)
+          return s;
+        h = (h + 1) & mask;
+      }
+      if (n == rgbs.length) {
+        grow();
+        return getSlot(rgb);
       }
-      float dx = (maxx - minx);
-      float dy = (maxy - miny);
-      float dz = (maxz - minz);
-      // Jmol visualization only
-      //      if (doVisualize) {
-      //        P3 ptRGB = toRGB(center);
-      //        drawPt(index, -size(), ptRGB);
-      //        //for (int i = n; --i >= 0;)
-      //        //drawPt(index, i, toRGB(get(i)));
-      //        P3 pt0 = toRGB(P3.new3(Math.max(minx, 0), Math.max(miny, 0),
-      //            Math.max(minz, 0)));
-      //        P3 pt1 = toRGB(P3.new3(Math.min(maxx, 100), Math.min(maxy, 100),
-      //            Math.min(maxz, 100)));
-      //        rgbToXyz(pt0, pt0);
-      //        xyzToLab(pt0, pt0);
-      //        rgbToXyz(pt1, pt1);
-      //        xyzToLab(pt1, pt1);
-      //        System.out.println("boundbox corners " + pt0 + " " + pt1);
-      //        System.out.println("draw d" + index + " boundbox color " + ptRGB
-      //            + " mesh nofill");
-      //      }
-      return volume = dx * dx + dy * dy + dz * dz;
+      s = n++;
+      hash[h] = n;
+      rgbs[s] = rgb;
+      indexes[s] = -1;
+      P3 lab = toLABnorm(rgb);
+      labs[s * 3] = lab.x;
+      labs[s * 3 + 1] = lab.y;
+      labs[s * 3 + 2] = lab.z;
+      return s;
     }
 
-    //    // Jmol visualization only
-    //      private void drawPt(int index, int i, P3 rgb) {
-    //        boolean isMain = (i < 0);
-    //      P3 lab = rgbToXyz(rgb, null);
-    //      xyzToLab(lab, lab);
-    //      System.out.println("draw d" + index + (isMain ? "_" : "_" + i) + " width "
-    //          + (isMain ? 1.0 : 0.2) + " " + lab
-    //          + " color " + rgb + (isMain ? " '" + -i + "'" : ""));
-    //      }
+    private void grow() {
+      int len = n * 2;
+      rgbs = AU.arrayCopyI(rgbs, len);
+      labs = AU.arrayCopyF(labs, len * 3);
+      indexes = AU.arrayCopyI(indexes, len);
+      isPaletteColor = AU.arrayCopyBool(isPaletteColor, len);
+      hash = new int[len * 2];
+      mask = len * 2 - 1;
+      for (int s = 0; s < n; s++) {
+        int rgb = rgbs[s];
+        int h = hashRGB(rgb) & mask;
+        while (hash[h] != 0)
+          h = (h + 1) & mask;
+        hash[h] = s + 1;
+      }
+    }
 
-    /**
-     * Set the average normalized L*a*b value for this cell and return its RGB point
-     * 
-     * @return RGB point
-     * 
-     */
-    protected P3 setColor() {
-      int count = size();
-      center = new P3();
-      for (int i = count; --i >= 0;)
-        center.add(get(i));
-      center.scale(1f / count);
-      // Jmol visualization only
-      //volume = 0;
-      //getVolume(true); 
-      return toRGB(center);
+    private int hashRGB(int rgb) {
+      // product < 2^53, so the same in JavaScript
+      int h = (rgb & 0xFFFFFF) * 0x9E3779;
+      return h ^ (h >>> 15);
     }
 
     /**
-     * use median_cut algorithm to split the cell, creating a doubly linked
-     * list.
-     * 
-     * Paul Heckbert, MIT thesis COLOR IMAGE QUANTIZATION FOR FRAME BUFFER
-     * DISPLAY https://www.cs.cmu.edu/~ph/ciq_thesis
-     * 
-     * except, as in GIMP, we use center (not median) here.
+     * Find the palette color nearest this slot's color, skipping the
+     * background.
      * 
-     * @param cells
-     * @return true if split
+     * @param s
+     * @return palette index
      */
-    protected boolean splitCell(Lst<ColorCell> cells) {
-      int n = size();
-      if (n < 2)
-        return false;
-      int newIndex = cells.size();
-      ColorCell newCell = new ColorCell(newIndex);
-      cells.addLast(newCell);
-      float[][] ranges = new float[3][3];
-      for (int ic = 0; ic < 3; ic++) {
-        float low = Float.MAX_VALUE;
-        float high = -Float.MAX_VALUE;
-        for (int i = n; --i >= 0;) {
-          P3 lab = get(i);
-          float v = (ic == 0 ? lab.x : ic == 1 ? lab.y : lab.z);
-          if (low > v)
-            low = v;
-          if (high < v)
-            high = v;
+    protected int getNearest(int s) {
+      int index = indexes[s];
+      if (index >= 0)
+        return index;
+      float l = labs[s * 3], a = labs[s * 3 + 1], b = labs[s * 3 + 2];
+      float maxerr = Float.MAX_VALUE;
+      for (int i = nPalette; --i >= 1;) {
+        float dl = l - centers[i * 3];
+        float da = a - centers[i * 3 + 1];
+        float db = b - centers[i * 3 + 2];
+        float d = dl * dl + da * da + db * db;
+        if (d < maxerr) {
+          maxerr = d;
+          index = i;
         }
-        ranges[0][ic] = low;
-        ranges[1][ic] = high;
-        ranges[2][ic] = high - low;
-      }
-      float[] r = ranges[2];
-      int mode = (r[0] >= r[1] ? (r[0] >= r[2] ? 0 : 2) : r[1] >= r[2] ? 1 : 2);
-      float val = ranges[0][mode] + ranges[2][mode] / 2;
-      volume = 0; // recalculate volume if needed
-      switch (mode) {
-      case 0:
-        for (int i = n; --i >= 0;)
-          if (get(i).x >= val)
-            newCell.addLast(remove(i));
-        break;
-      case 1:
-        for (int i = n; --i >= 0;)
-          if (get(i).y >= val)
-            newCell.addLast(remove(i));
-        break;
-      case 2:
-        for (int i = size(); --i >= 0;)
-          if (get(i).z >= val)
-            newCell.addLast(remove(i));
-        break;
       }
-      return true;
+      return indexes[s] = index;
     }
   }
 
@@ -388,45 +326,38 @@ public class GifEncoder extends ImageEncoder {
    * 
    */
   private void createPalette() {
+    boolean isFixed = (capturing && Boolean.TRUE == params
+        .get("captureFixedPalette"));
+    ColorTable colors = (isFixed ? (ColorTable) params.get("captureColorTable")
+        : null);
+    if (colors == null) {
+
+      // catalog all pixel colors
+
+      colors = new ColorTable();
+      boolean haveBackground = false;
+      for (int i = 0, n = pixels.length; i < n; i++)
+        if (pixels[i] == backgroundColor)
+          haveBackground = true;
+        else
+          colors.getSlot(pixels[i]);
+      System.out.println("GIF total image colors: "
+          + (colors.n - (haveBackground ? 0 : 1)));
 
-    // catalog all pixel colors
-
-    Lst<ColorItem> tempColors = new Lst<ColorItem>();
-    Map<Integer, ColorItem> ciHash = new Hashtable<Integer, ColorItem>();
-    for (int i = 0, n = pixels.length; i < n; i++) {
-      int rgb = pixels[i];
-      Integer key = Integer.valueOf(rgb);
-      ColorItem item = ciHash.get(key);
-      if (item == null) {
-        item = new ColorItem(rgb, rgb == backgroundColor);
-        ciHash.put(key, item);
-        tempColors.addLast(item);
-      }
-    }
-    int nColors = tempColors.size();
-    System.out.println("GIF total image colors: " + nColors);
-    ciHash = null;
-
-    // create a set of <= 256 color cells
-
-    Lst<ColorCell> cells = quantizeColors(tempColors);
-    nColors = cells.size();
-    System.out.println("GIF final color count: " + nColors);
-
-    // generate the palette and map each cell's rgb color to itself
+      // create a set of <= 256 color cells
 
-    Map<Integer, ColorCell> colorMap = new Hashtable<Integer, ColorCell>();
-    bitsPerPixel = (nColors <= 2 ? 1 : nColors <= 4 ? 2 : nColors <= 16 ? 4 : 8);
-    palette = new P3[1 << bitsPerPixel];
-    for (int i = 0; i < nColors; i++) {
-      ColorCell c = cells.get(i);
-      colorMap.put(
-          Integer.valueOf(CU.colorPtToFFRGB(palette[i] = c.setColor())), c);
+      quantizeColors(colors);
+      System.out.println("GIF final color count: " + colors.nPalette);
+      if (isFixed)
+        params.put("captureColorTable", colors);
     }
+    int nColors = colors.nPalette;
+    bitsPerPixel = (nColors <= 2 ? 1 : nColors <= 4 ? 2 : nColors <= 16 ? 4 : 8);
+    palette = colors.palette;
 
     // index all pixels to a pallete color
 
-    pixels = indexPixels(cells, colorMap);
+    pixels = indexPixels(colors);
   }
 
   /**
@@ -435,47 +366,151 @@ public class GifEncoder extends ImageEncoder {
    * and all others. Keep splitting cells while there are fewer than 256 and
    * some with multiple colors in them.
    * 
+   * The cells are contiguous ranges of one array of color slots, so splitting a
+   * cell (a k-d tree split at the center of its longest L*a*b extent) is just
+   * an in-place partition of its range.
+   * 
    * It is possible that we will end up with fewer than 256 colors.
    * 
-   * @param tempColors
-   * @return final list of colors
+   * @param colors
    */
-  private Lst<ColorCell> quantizeColors(Lst<ColorItem> tempColors) {
-    int n = tempColors.size();
-    Lst<ColorCell> cells = new Lst<ColorCell>();
-    ColorCell cc = new ColorCell(0);
-    cc.addLast(new ColorItem(backgroundColor, true));
-    cells.addLast(cc);
-    cc = new ColorCell(1);
-    if (n > 256)
-      cells.addLast(cc);
-    for (int i = 0; i < n; i++) {
-      ColorItem c = tempColors.get(i);
-      if (c.isBackground)
-        continue;
-      cc.addLast(c);
-      if (n <= 256) {
-        cells.addLast(cc);
-        cc = new ColorCell(cells.size());
-      }
-    }
-    tempColors.clear();
-    if (n > 256)
-      while ((n = cells.size()) < 256) {
+  private void quantizeColors(ColorTable colors) {
+    int n = colors.n;
+    float[] labs = colors.labs;
+    int[] slots = new int[n];
+    for (int i = 1; i < n; i++)
+      slots[i] = i;
+    int[] starts = new int[256];
+    int[] ends = new int[256];
+    float[] volumes = new float[256];
+    ends[0] = 1; // background
+    int nCells = 1;
+    if (n > 256) {
+      starts[1] = 1;
+      ends[1] = n;
+      volumes[1] = getVolume(labs, slots, 1, n);
+      nCells = 2;
+      while (nCells < 256) {
         float maxVol = 0;
-        ColorCell maxCell = null;
-        for (int i = n; --i >= 1;) {
-          ColorCell c = cells.get(i);
-          float v = c.getVolume(false);
-          if (v > maxVol) {
-            maxVol = v;
-            maxCell = c;
+        int c = -1;
+        for (int i = nCells; --i >= 1;) {
+          if (volumes[i] > maxVol) {
+            maxVol = volumes[i];
+            c = i;
           }
         }
-        if (maxCell == null || !maxCell.splitCell(cells))
+        if (c < 0)
           break;
+        int mid = splitCell(labs, slots, starts[c], ends[c]);
+        starts[nCells] = mid;
+        ends[nCells] = ends[c];
+        ends[c] = mid;
+        volumes[c] = getVolume(labs, slots, starts[c], mid);
+        volumes[nCells] = getVolume(labs, slots, mid, ends[nCells]);
+        nCells++;
+      }
+    } else {
+      for (; nCells < n; nCells++) {
+        starts[nCells] = nCells;
+        ends[nCells] = nCells + 1;
+      }
+    }
+
+    // set the average normalized L*a*b value for each cell and its RGB color
+
+    colors.nPalette = nCells;
+    colors.palette = new P3[nCells <= 2 ? 2 : nCells <= 4 ? 4
+        : nCells <= 16 ? 16 : 256];
+    float[] centers = colors.centers = new float[nCells * 3];
+    P3 center = new P3();
+    for (int c = 0; c < nCells; c++) {
+      center.set(0, 0, 0);
+      for (int i = starts[c]; i < ends[c]; i++) {
+        int pt = slots[i] * 3;
+        center.x += labs[pt];
+        center.y += labs[pt + 1];
+        center.z += labs[pt + 2];
+      }
+      center.scale(1f / (ends[c] - starts[c]));
+      centers[c * 3] = center.x;
+      centers[c * 3 + 1] = center.y;
+      centers[c * 3 + 2] = center.z;
+      colors.palette[c] = toRGB(center);
+    }
+
+    // map each cell's rgb color to itself
+
+    for (int c = 1; c < nCells; c++) {
+      int s = colors.getSlot(CU.colorPtToFFRGB(colors.palette[c]));
+      colors.indexes[s] = c;
+      colors.isPaletteColor[s] = true;
+    }
+  }
+
+  /**
+   * @param labs
+   * @param slots
+   * @param i0
+   * @param i1
+   * @return squared diagonal of the cell's bounding box in normalized L*a*b
+   *         space, or -1 for a single color
+   */
+  private static float getVolume(float[] labs, int[] slots, int i0, int i1) {
+    if (i1 - i0 < 2)
+      return -1;
+    float[] ranges = getRanges(labs, slots, i0, i1);
+    float dx = ranges[3] - ranges[0];
+    float dy = ranges[4] - ranges[1];
+    float dz = ranges[5] - ranges[2];
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private static float[] getRanges(float[] labs, int[] slots, int i0, int i1) {
+    float[] ranges = new float[] { Float.MAX_VALUE, Float.MAX_VALUE,
+        Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+    for (int i = i0; i < i1; i++) {
+      int pt = slots[i] * 3;
+      for (int ic = 0; ic < 3; ic++) {
+        float v = labs[pt + ic];
+        if (v < ranges[ic])
+          ranges[ic] = v;
+        if (v > ranges[ic + 3])
+          ranges[ic + 3] = v;
       }
-    return cells;
+    }
+    return ranges;
+  }
+
+  /**
+   * Use the median_cut algorithm to split the cell.
+   * 
+   * Paul Heckbert, MIT thesis COLOR IMAGE QUANTIZATION FOR FRAME BUFFER
+   * DISPLAY https://www.cs.cmu.edu/~ph/ciq_thesis
+   * 
+   * except, as in GIMP, we use center (not median) here.
+   * 
+   * @param labs
+   * @param slots
+   * @param i0
+   * @param i1
+   * @return start of the upper half, which becomes the new cell
+   */
+  private static int splitCell(float[] labs, int[] slots, int i0, int i1) {
+    float[] ranges = getRanges(labs, slots, i0, i1);
+    float rx = ranges[3] - ranges[0];
+    float ry = ranges[4] - ranges[1];
+    float rz = ranges[5] - ranges[2];
+    int mode = (rx >= ry ? (rx >= rz ? 0 : 2) : ry >= rz ? 1 : 2);
+    float val = ranges[mode] + (ranges[mode + 3] - ranges[mode]) / 2;
+    int mid = i1;
+    for (int i = i1; --i >= i0;) {
+      if (labs[slots[i] * 3 + mode] >= val) {
+        int s = slots[i];
+        slots[i] = slots[--mid];
+        slots[mid] = s;
+      }
+    }
+    return mid;
   }
 
   /**
@@ -487,15 +522,12 @@ public class GifEncoder extends ImageEncoder {
    * spreading out the error over four leading pixels. Limits error to +/- 75
    * percent in normalized L*a*b space.
    * 
-   * @param cells
-   *        quantized color cells
-   * @param colorMap
-   *        map of quantized rgb to its cell
+   * @param colors
+   *        quantized colors
    * @return array of color indexes, one for each pixel
    * 
    */
-  private int[] indexPixels(Lst<ColorCell> cells,
-                            Map<Integer, ColorCell> colorMap) {
+  private int[] indexPixels(ColorTable colors) {
     // We need a strip only width+2 wide to process all the errors.
     // Errors are added to the next pixel and the next row's pixels 
     // only through p + width + 1:
@@ -507,90 +539,72 @@ public class GifEncoder extends ImageEncoder {
     // this strip.
     //
     int w2 = width + 2;
-    P3[] errors = new P3[w2];
+    float[] errors = new float[w2 * 3];
+    boolean[] haveError = new boolean[w2];
     // We should replace, not overwrite, pixels 
     // as this may be the raw canvas.buf32.
     int[] newPixels = new int[pixels.length];
-    P3 err = new P3();
-    P3 lab;
-    int rgb;
-    Map<Integer, ColorCell> nearestCell = new Hashtable<Integer, ColorCell>();
-    for (int i = 0, p = 0; i < height; ++i) {
+    float[] err = new float[3];
+    for (int i = 0, p = 0, pe = 0; i < height; ++i) {
       boolean notLastRow = (i != height - 1);
-      for (int j = 0; j < width; ++j, p++) {
+      for (int j = 0; j < width; ++j, p++, pe = (pe == w2 - 1 ? 0 : pe + 1)) {
         if (pixels[p] == backgroundColor) {
           // leave as 0
           continue;
         }
-        P3 pe = errors[p % w2];
-        if (pe == null || pe.x == Float.MAX_VALUE) {
-          lab = null;
-          rgb = pixels[p];
-        } else {
-          lab = toLABnorm(pixels[p]);
-          err = pe;
+        int s = colors.getSlot(pixels[p]);
+        if (haveError[pe]) {
+          haveError[pe] = false;
           // important not to round the clamp here -- full floating precision
-          err.x = clamp(err.x, -75, 75);
-          err.y = clamp(err.y, -75, 75);
-          err.z = clamp(err.z, -75, 75);
-          lab.add(err);
-          rgb = CU.colorPtToFFRGB(toRGB(lab));
+          float[] labs = colors.labs;
+          int pt = pe * 3;
+          s = colors.getSlot(labToRGB(
+              labs[s * 3] + clamp(errors[pt], -75, 75),
+              labs[s * 3 + 1] + clamp(errors[pt + 1], -75, 75),
+              labs[s * 3 + 2] + clamp(errors[pt + 2], -75, 75)));
         }
-        Integer key = Integer.valueOf(rgb);
-        ColorCell cell = colorMap.get(key);
-        if (cell == null) {
-          // critical to generate normalized L*a*b from RGB here for nearestCell mapping.
-          // otherwise future RGB keys may match the wrong cell
-          lab = toLABnorm(rgb);
-          cell = nearestCell.get(key);
-          if (cell == null) {
-            // find nearest cell
-            float maxerr = Float.MAX_VALUE;
-            // skip 0 0 0
-            for (int ib = cells.size(); --ib >= 1;) {
-              ColorCell c = cells.get(ib);
-              err.sub2(lab, c.center);
-              float d = err.lengthSquared();
-              if (d < maxerr) {
-                maxerr = d;
-                cell = c;
-              }
-            }
-            nearestCell.put(key, cell);
-          }
-          if (floydSteinberg) {
-            // dither
-            err.sub2(lab, cell.center);
-            boolean notLastCol = (j < width - 1);
+        int index = colors.getNearest(s);
+        if (floydSteinberg && !colors.isPaletteColor[s]) {
+          // dither
+          float[] labs = colors.labs;
+          float[] centers = colors.centers;
+          for (int k = 0; k < 3; k++)
+            err[k] = labs[s * 3 + k] - centers[index * 3 + k];
+          boolean notLastCol = (j < width - 1);
+          if (notLastCol)
+            addError(err, 7, errors, haveError, p + 1, pe + 1, w2);
+          if (notLastRow) {
+            if (j > 0)
+              addError(err, 3, errors, haveError, p + width - 1, pe + width
+                  - 1, w2);
+            addError(err, 5, errors, haveError, p + width, pe + width, w2);
             if (notLastCol)
-              addError(err, 7, errors, p + 1, w2);
-            if (notLastRow) {
-              if (j > 0)
-                addError(err, 3, errors, p + width - 1, w2);
-              addError(err, 5, errors, p + width, w2);
-              if (notLastCol)
-                addError(err, 1, errors, p + width + 1, w2);
-            }
+              addError(err, 1, errors, haveError, p + width + 1, pe + width
+                  + 1, w2);
           }
-          err.x = Float.MAX_VALUE; // used; flag for resetting to 0
         }
-        newPixels[p] = cell.index;
+        newPixels[p] = index;
       }
     }
     return newPixels;
   }
 
-  private void addError(P3 err, int f, P3[] errors, int p, int w2) {
+  private void addError(float[] err, int f, float[] errors,
+                        boolean[] haveError, int p, int pe, int w2) {
     // GIMP will allow changing the background color.
     if (pixels[p] == backgroundColor)
       return;
-    p %= w2;
-    P3 errp = errors[p];
-    if (errp == null)
-      errp = errors[p] = new P3();
-    else if (errp.x == Float.MAX_VALUE) // reuse
-      errp.set(0, 0, 0);
-    errp.scaleAdd2(f / 16f, err, errp);
+    // p modulo w2
+    p = (pe >= w2 ? pe - w2 : pe);
+    if (!haveError[p]) {
+      haveError[p] = true;
+      errors[p * 3] = errors[p * 3 + 1] = errors[p * 3 + 2] = 0;
+    }
+    float s = f / 16f;
+    p *= 3;
+    errors[p] += err[0] * s;
+    errors[p + 1] += err[1] * s;
+    errors[p + 2] += err[2] * s;
   }
 
   ///////////////////////// CIE L*a*b / XYZ / sRGB conversion methods /////////
@@ -598,8 +612,10 @@ public class GifEncoder extends ImageEncoder {
   // these could be static, but that just makes for more JavaScript code
 
   protected P3 toLABnorm(int rgb) {
-    P3 lab = CU.colorPtFromInt(rgb, null);
-    rgbToXyz(lab, lab);
+    // same as rgbToXyz(CU.colorPtFromInt(rgb, null), null)
+    P3 lab = P3.new3(linearRGB[(rgb >> 16) & 0xFF],
+        linearRGB[(rgb >> 8) & 0xFF], linearRGB[rgb & 0xFF]);
+    rgb2xyz.rotate(lab);
     xyzToLab(lab, lab);
     // normalize to 0-100
     lab.y = (lab.y + 86.185f) / (98.254f + 86.185f) * 100f;
@@ -616,15 +632,85 @@ public class GifEncoder extends ImageEncoder {
     return xyzToRgb(xyz, xyz);
   }
 
+  /**
+   * The same as CU.colorPtToFFRGB(toRGB(lab)) but without the pow() calls.
+   * This is called for nearly every pixel when dithering.
+   * 
+   * @param l
+   * @param a
+   * @param b
+   * @return ARGB
+   */
+  private int labToRGB(float l, float a, float b) {
+    float y = (l + 16) / 116;
+    float x = (a / 100f * (98.254f + 86.185f) - 86.185f) / 500 + y;
+    float z = y - (b / 100f * (94.482f + 107.863f) - 107.863f) / 200;
+    x = fxyz(x) * 0.950429f;
+    y = fxyz(y);
+    z = fxyz(z) * 1.0889f;
+    M3 m = xyz2rgb;
+    return 0xFF000000 | (toByte(m.m00 * x + m.m01 * y + m.m02 * z) << 16)
+        | (toByte(m.m10 * x + m.m11 * y + m.m12 * z) << 8)
+        | toByte(m.m20 * x + m.m21 * y + m.m22 * z);
+  }
+
+  /**
+   * @param x
+   *        linear RGB, 0-1
+   * @return clamped, rounded sRGB byte
+   */
+  private static int toByte(float x) {
+    if (x <= 0)
+      return 0;
+    if (x >= 1)
+      return 255;
+    int b = srgbStarts[(int) (x * 4096)];
+    while (b < 255 && x >= srgbLimits[b])
+      b++;
+    return b;
+  }
+
   private static M3 xyz2rgb;
   private static M3 rgb2xyz;
 
+  /**
+   * sxyz(i) for each sRGB byte
+   */
+  private static float[] linearRGB = new float[256];
+
+  /**
+   * srgbLimits[i] is the linear value at which srgb(x) rounds up to i + 1
+   */
+  private static float[] srgbLimits = new float[255];
+
+  /**
+   * srgbStarts[i] is the sRGB byte for linear value i/4096, from which toByte
+   * need step up at most a few limits
+   */
+  private static int[] srgbStarts = new int[4096];
+
   static {
     rgb2xyz = M3.newA9(new float[] { 0.4124f, 0.3576f, 0.1805f, 0.2126f,
         0.7152f, 0.0722f, 0.0193f, 0.1192f, 0.9505f });
 
     xyz2rgb = M3.newA9(new float[] { 3.2406f, -1.5372f, -0.4986f, -0.9689f,
         1.8758f, 0.0415f, 0.0557f, -0.2040f, 1.0570f });
+
+    for (int i = 0; i < 256; i++) {
+      double x = i / 255.0;
+      linearRGB[i] = (float) (x <= 0.04045 ? x / 12.92 : Math.pow(
+          ((x + 0.055) / 1.055), 2.4)) * 100;
+      if (i < 255) {
+        x = (i + 0.5) / 255;
+        srgbLimits[i] = (float) (x <= 0.0031308 * 12.92 ? x / 12.92 : Math
+            .pow((x + 0.055) / 1.055, 2.4));
+      }
+    }
+    for (int i = 0, b = 0; i < 4096; i++) {
+      while (b < 255 && i / 4096f >= srgbLimits[b])
+        b++;
+      srgbStarts[i] = b;
+    }
   }
 
   public P3 rgbToXyz(P3 rgb, P3 xyz) {
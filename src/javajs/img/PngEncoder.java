@@ -24,6 +24,8 @@
 package javajs.img;
 
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.Adler32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.io.ByteArrayOutputStream;
@@ -44,6 +46,9 @@ import java.io.IOException;
  * 
  * -- option to use pre-created PNGJ image data (3/19/14; Jmol 14.1.12)
  * 
+ * -- per-row filtering (params.pngFilter; default FILTER_ADAPTIVE for
+ * quality 3-9) and, given params.pngExecutor, parallel deflation of row blocks
+ * 
  * -- PNGJ format:
  * 
  * // IHDR chunk 
@@ -88,7 +93,10 @@ public class PngEncoder extends CRCEncoder {
   public static final int FILTER_NONE = 0;
   public static final int FILTER_SUB = 1;
   public static final int FILTER_UP = 2;
-  public static final int FILTER_LAST = 2;
+  public static final int FILTER_AVERAGE = 3;
+  public static final int FILTER_PAETH = 4;
+  public static final int FILTER_LAST = 4;
+  public static final int FILTER_ADAPTIVE = 5;
   
   private static final int PT_FIRST_TAG = 37;
 
@@ -103,6 +111,8 @@ public class PngEncoder extends CRCEncoder {
   private String appPrefix;
   private String comment;
   private byte[] bytes;
+  private Executor executor;
+  private int nThreads;
 
   
   public PngEncoder() {
@@ -117,8 +127,16 @@ public class PngEncoder extends CRCEncoder {
     if (quality > 9)
       quality = 9;
     encodeAlpha = false;
-    filter = FILTER_NONE;
     compressionLevel = quality;
+    // adaptive filtering costs time but gives ~10% smaller files, so by
+    // default only when a higher compression level has been requested
+    Integer f = (Integer) params.get("pngFilter");
+    filter = (f != null && f.intValue() >= FILTER_NONE
+        && f.intValue() <= FILTER_ADAPTIVE ? f.intValue()
+        : compressionLevel <= 2 ? FILTER_NONE : FILTER_ADAPTIVE);
+    executor = (Executor) params.get("pngExecutor");
+    Integer n = (Integer) params.get("pngThreads");
+    nThreads = (n == null ? 1 : n.intValue());
     transparentColor = (Integer) params.get("transparentColor");
     comment = (String) params.get("comment");
     type = (params.get("type") + "0000").substring(0, 4);
@@ -295,19 +313,24 @@ public class PngEncoder extends CRCEncoder {
     writeCRC();
   }
 
-  private byte[] scanLines; // the scan lines to be compressed
+  private byte[] scanLines; // the filtered scan lines to be compressed
   private int byteWidth; // width * bytesPerPixel
+  private int scanWidth; // byteWidth + 1 for the filter byte
 
-  //private int hdrPos, dataPos, endPos;
-  //private byte[] priorRow;
-  //private byte[] leftBytes;
-
+  /**
+   * minimum bytes per parallel deflate block; well over the 32K window each
+   * block takes from the one before it as its dictionary
+   */
+  private static final int MIN_BLOCK_BYTES = 1 << 17;
 
   /**
-   * Write the image data into the pngBytes array. This will write one or more
-   * PNG "IDAT" chunks. In order to conserve memory, this method grabs as many
-   * rows as will fit into 32K bytes, or the whole image; whichever is less.
+   * Write the image data into the pngBytes array as a single "IDAT" chunk.
    * 
+   * All rows are filtered first (see filterRows). Then, if an executor is
+   * available, contiguous blocks of rows are deflated concurrently, as pigz
+   * does: each block is primed with the 32K of data preceding it and ended
+   * with a sync flush, so that the raw deflate streams simply concatenate
+   * into one zlib stream.
    * 
    * @return true if no errors; false if error grabbing pixels
    */
@@ -315,87 +338,45 @@ public class PngEncoder extends CRCEncoder {
 
     bytesPerPixel = (encodeAlpha ? 4 : 3);
     byteWidth = width * bytesPerPixel;
-
-    int scanWidth = byteWidth + 1; // the added 1 is for the filter byte
-
-    //boolean doFilter = (filter != FILTER_NONE);
-
-    int rowsLeft = height; // number of rows remaining to write
-    //int startRow = 0; // starting row to process this time through
-    int nRows; // how many rows to grab at a time
-
-    int scanPos; // where we are in the scan lines
-
-    Deflater deflater = new Deflater(compressionLevel);
-    ByteArrayOutputStream outBytes = new ByteArrayOutputStream(1024);
-
-    DeflaterOutputStream compBytes = new DeflaterOutputStream(outBytes,
-        deflater);
-
-    int pt = 0; // overall image byte pointer
+    scanWidth = byteWidth + 1; // the added 1 is for the filter byte
+    scanLines = new byte[scanWidth * height];
     
     // Jmol note: The entire image has been stored in pixels[] already
-    
+
+    int nBlocks = (executor == null || compressionLevel == 0 ? 1 : Math.min(
+        nThreads, scanLines.length / MIN_BLOCK_BYTES));
     try {
-      while (rowsLeft > 0) {
-        nRows = Math.max(1, Math.min(32767 / scanWidth, rowsLeft));
-        scanLines = new byte[scanWidth * nRows];
-        //        if (doFilter)
-        //          switch (filter) {
-        //          case FILTER_SUB:
-        //            leftBytes = new byte[16];
-        //            break;
-        //          case FILTER_UP:
-        //            priorRow = new byte[scanWidth - 1];
-        //            break;
-        //          }
-        int nPixels = width * nRows;
-        scanPos = 0;
-        //startPos = 1;
-        for (int i = 0; i < nPixels; i++, pt++) {
-          if (i % width == 0) {
-            scanLines[scanPos++] = (byte) filter;
-            //startPos = scanPos;
-          }
-          scanLines[scanPos++] = (byte) ((pixels[pt] >> 16) & 0xff);
-          scanLines[scanPos++] = (byte) ((pixels[pt] >> 8) & 0xff);
-          scanLines[scanPos++] = (byte) ((pixels[pt]) & 0xff);
-          if (encodeAlpha) {
-            scanLines[scanPos++] = (byte) ((pixels[pt] >> 24) & 0xff);
-          }
-          //          if (doFilter && i % width == width - 1) {
-          //            switch (filter) {
-          //            case FILTER_SUB:
-          //              filterSub();
-          //              break;
-          //            case FILTER_UP:
-          //              filterUp();
-          //              break;
-          //            }
-          //          }
+      byte[] compressedLines = null;
+      if (nBlocks > 1) {
+        try {
+          compressedLines = deflateBlocks(nBlocks);
+        } catch (NoSuchMethodError e) {
+          // no Deflater.deflate(..., SYNC_FLUSH) before Java 7; deflate as
+          // one block
         }
-
-        /*
-         * Write these lines to the output area
-         */
-        compBytes.write(scanLines, 0, scanPos);
-
-        //startRow += nRows;
-        rowsLeft -= nRows;
       }
-      compBytes.close();
+      if (compressedLines == null) {
+        filterRows(0, height);
+        Deflater deflater = new Deflater(compressionLevel);
+        ByteArrayOutputStream outBytes = new ByteArrayOutputStream(1024);
+        DeflaterOutputStream compBytes = new DeflaterOutputStream(outBytes,
+            deflater);
+        compBytes.write(scanLines, 0, scanLines.length);
+        compBytes.close();
+        deflater.end();
+        compressedLines = outBytes.toByteArray();
+      }
+      scanLines = null;
 
       /*
        * Write the compressed bytes
        */
-      byte[] compressedLines = outBytes.toByteArray();
       writeInt4(compressedLines.length);
       startPos = bytePos;
       writeString("IDAT");
       writeBytes(compressedLines);
       writeCRC();
       writeEnd();
-      deflater.finish();
       return true;
     } catch (IOException e) {
       System.err.println(e.toString());
@@ -403,6 +384,270 @@ public class PngEncoder extends CRCEncoder {
     }
   }
 
+  /**
+   * Filter and deflate nBlocks row blocks on the executor and assemble them,
+   * with a zlib header and Adler-32 trailer, into one zlib stream.
+   * 
+   * @param nBlocks
+   * @return zlib data
+   */
+  private byte[] deflateBlocks(final int nBlocks) {
+    final byte[][] blocks = new byte[nBlocks][];
+    final int[] rows = new int[nBlocks + 1];
+    for (int i = 0; i <= nBlocks; i++)
+      rows[i] = (int) ((long) height * i / nBlocks);
+    // filtering first, so that each block's dictionary is ready
+    runBlocks(nBlocks, new BlockTask() {
+      @Override
+      public void run(int i) {
+        filterRows(rows[i], rows[i + 1]);
+      }
+    });
+    runBlocks(nBlocks, new BlockTask() {
+      @Override
+      public void run(int i) {
+        blocks[i] = deflateBlock(rows[i] * scanWidth, rows[i + 1] * scanWidth,
+            i == nBlocks - 1);
+      }
+    });
+    ByteArrayOutputStream outBytes = new ByteArrayOutputStream(1024);
+    // zlib header: deflate with a 32K window; FLEVEL from compressionLevel
+    int flg = (compressionLevel < 2 ? 0 : compressionLevel < 6 ? 1
+        : compressionLevel == 6 ? 2 : 3) << 6;
+    flg += 31 - ((0x78 << 8) + flg) % 31;
+    outBytes.write(0x78);
+    outBytes.write(flg);
+    for (int i = 0; i < nBlocks; i++)
+      outBytes.write(blocks[i], 0, blocks[i].length);
+    Adler32 adler = new Adler32();
+    adler.update(scanLines, 0, scanLines.length);
+    byte[] int4 = new byte[4];
+    getInt4((int) adler.getValue(), int4);
+    outBytes.write(int4, 0, 4);
+    return outBytes.toByteArray();
+  }
+
+  /**
+   * @param i0
+   * @param i1
+   * @param isLast
+   * @return raw deflate data for scanLines[i0, i1), ending in a sync flush
+   *         unless this is the last block
+   */
+  protected byte[] deflateBlock(int i0, int i1, boolean isLast) {
+    Deflater deflater = new Deflater(compressionLevel, true);
+    if (i0 > 0) {
+      int n = Math.min(i0, 32768);
+      deflater.setDictionary(scanLines, i0 - n, n);
+    }
+    deflater.setInput(scanLines, i0, i1 - i0);
+    ByteArrayOutputStream outBytes = new ByteArrayOutputStream((i1 - i0) / 4);
+    byte[] buf = new byte[32768];
+    int n;
+    if (isLast) {
+      deflater.finish();
+      while (!deflater.finished()) {
+        n = deflater.deflate(buf);
+        outBytes.write(buf, 0, n);
+      }
+    } else {
+      do {
+        n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+        outBytes.write(buf, 0, n);
+      } while (n == buf.length);
+    }
+    deflater.end();
+    return outBytes.toByteArray();
+  }
+
+  private abstract class BlockTask {
+    public abstract void run(int i);
+  }
+
+  private int blocksLeft;
+  private Throwable blockError;
+
+  /**
+   * Run task for blocks 0 through nBlocks - 1 on the executor, with block 0
+   * on this thread, and wait for all of them. The first exception or error
+   * thrown by any block is rethrown here.
+   * 
+   * @param nBlocks
+   * @param task
+   */
+  private void runBlocks(int nBlocks, final BlockTask task) {
+    blocksLeft = nBlocks;
+    blockError = null;
+    Runnable[] runnables = new Runnable[nBlocks];
+    for (int i = 0; i < nBlocks; i++) {
+      final int iBlock = i;
+      runnables[i] = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run(iBlock);
+          } catch (Throwable e) {
+            synchronized (PngEncoder.this) {
+              if (blockError == null)
+                blockError = e;
+            }
+          } finally {
+            synchronized (PngEncoder.this) {
+              blocksLeft--;
+              PngEncoder.this.notifyAll();
+            }
+          }
+        }
+      };
+    }
+    for (int i = 1; i < nBlocks; i++)
+      executor.execute(runnables[i]);
+    runnables[0].run();
+    synchronized (this) {
+      while (blocksLeft > 0)
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // keep waiting; the blocks cannot be abandoned
+        }
+    }
+    if (blockError instanceof RuntimeException)
+      throw (RuntimeException) blockError;
+    if (blockError instanceof Error)
+      throw (Error) blockError;
+  }
+
+  /**
+   * Fill scanLines for rows r0 through r1 - 1, each with its filter type byte
+   * followed by the filtered bytes. With FILTER_ADAPTIVE, each row gets the
+   * filter with the smallest sum of absolute (signed) differences, the
+   * heuristic recommended by the PNG specification.
+   * 
+   * @param r0
+   * @param r1
+   */
+  protected void filterRows(int r0, int r1) {
+    byte[] prior = new byte[byteWidth];
+    byte[] row = new byte[byteWidth];
+    byte[][] trials = (filter == FILTER_ADAPTIVE ? new byte[FILTER_LAST + 1][byteWidth]
+        : null);
+    if (r0 > 0)
+      getRowBytes(r0 - 1, prior);
+    for (int r = r0; r < r1; r++) {
+      getRowBytes(r, row);
+      int pt = r * scanWidth;
+      int type = filter;
+      if (type == FILTER_ADAPTIVE) {
+        int min = Integer.MAX_VALUE;
+        for (int f = FILTER_NONE; f <= FILTER_LAST; f++) {
+          int sum = filterRow(f, row, prior, trials[f], 0, min);
+          if (sum < min) {
+            min = sum;
+            type = f;
+          }
+        }
+        System.arraycopy(type == FILTER_NONE ? row : trials[type], 0,
+            scanLines, pt + 1, byteWidth);
+      } else {
+        filterRow(type, row, prior, scanLines, pt + 1, Integer.MAX_VALUE);
+      }
+      scanLines[pt] = (byte) type;
+      byte[] b = prior;
+      prior = row;
+      row = b;
+    }
+  }
+
+  private void getRowBytes(int r, byte[] row) {
+    for (int i = 0, pt = r * width, n = 0; i < width; i++, pt++) {
+      int p = pixels[pt];
+      row[n++] = (byte) ((p >> 16) & 0xff);
+      row[n++] = (byte) ((p >> 8) & 0xff);
+      row[n++] = (byte) (p & 0xff);
+      if (encodeAlpha)
+        row[n++] = (byte) ((p >> 24) & 0xff);
+    }
+  }
+
+  /**
+   * Apply one filter to a row.
+   * 
+   * @param type
+   * @param row
+   * @param prior
+   *        all zero for the first row
+   * @param out
+   * @param pt
+   *        starting point in out
+   * @param max
+   *        stop once the sum reaches this; the row is then incomplete
+   * @return sum of the absolute values of the filtered bytes, taken as signed
+   */
+  private int filterRow(int type, byte[] row, byte[] prior, byte[] out,
+                        int pt, int max) {
+    int bpp = bytesPerPixel;
+    int n = byteWidth;
+    int sum = 0;
+    int d;
+    switch (type) {
+    case FILTER_NONE:
+      if (out == scanLines)
+        System.arraycopy(row, 0, out, pt, n);
+      for (int i = 0; i < n && sum < max; i++)
+        sum += ((d = row[i]) < 0 ? -d : d);
+      break;
+    case FILTER_SUB:
+      for (int i = 0; i < bpp; i++)
+        sum += ((out[pt + i] = row[i]) < 0 ? -row[i] : row[i]);
+      for (int i = bpp; i < n && sum < max; i++) {
+        out[pt + i] = (byte) (d = (byte) (row[i] - row[i - bpp]));
+        sum += (d < 0 ? -d : d);
+      }
+      break;
+    case FILTER_UP:
+      for (int i = 0; i < n && sum < max; i++) {
+        out[pt + i] = (byte) (d = (byte) (row[i] - prior[i]));
+        sum += (d < 0 ? -d : d);
+      }
+      break;
+    case FILTER_AVERAGE:
+      for (int i = 0; i < bpp; i++) {
+        out[pt + i] = (byte) (d = (byte) (row[i] - ((prior[i] & 0xff) >> 1)));
+        sum += (d < 0 ? -d : d);
+      }
+      for (int i = bpp; i < n && sum < max; i++) {
+        out[pt + i] = (byte) (d = (byte) (row[i] - (((row[i - bpp] & 0xff) + (prior[i] & 0xff)) >> 1)));
+        sum += (d < 0 ? -d : d);
+      }
+      break;
+    case FILTER_PAETH:
+      // with a = c = 0, Paeth is just Up
+      for (int i = 0; i < bpp; i++) {
+        out[pt + i] = (byte) (d = (byte) (row[i] - prior[i]));
+        sum += (d < 0 ? -d : d);
+      }
+      for (int i = bpp; i < n && sum < max; i++) {
+        int a = row[i - bpp] & 0xff;
+        int b = prior[i] & 0xff;
+        int c = prior[i - bpp] & 0xff;
+        int pa = b - c;
+        int pb = a - c;
+        int pc = pa + pb;
+        if (pa < 0)
+          pa = -pa;
+        if (pb < 0)
+          pb = -pb;
+        if (pc < 0)
+          pc = -pc;
+        out[pt + i] = (byte) (d = (byte) (row[i] - (pa <= pb && pa <= pc ? a
+            : pb <= pc ? b : c)));
+        sum += (d < 0 ? -d : d);
+      }
+      break;
+    }
+    return sum;
+  }
+
   /**
    * Write a PNG "IEND" chunk into the pngBytes array.
    */
@@ -413,41 +658,4 @@ public class PngEncoder extends CRCEncoder {
     writeCRC();
   }
 
-  ///**
-  //* Perform "sub" filtering on the given row.
-  //* Uses temporary array leftBytes to store the original values
-  //* of the previous pixels.  The array is 16 bytes long, which
-  //* will easily hold two-byte samples plus two-byte alpha.
-  //*
-  //*/
-  //private void filterSub() {
-  // int offset = bytesPerPixel;
-  // int actualStart = startPos + offset;
-  // int leftInsert = offset;
-  // int leftExtract = 0;
-  // //byte current_byte;
-  //
-  // for (int i = actualStart; i < startPos + byteWidth; i++) {
-  //   leftBytes[leftInsert] = scanLines[i];
-  //   scanLines[i] = (byte) ((scanLines[i] - leftBytes[leftExtract]) % 256);
-  //   leftInsert = (leftInsert + 1) % 0x0f;
-  //   leftExtract = (leftExtract + 1) % 0x0f;
-  // }
-  //}
-  //
-  ///**
-  //* Perform "up" filtering on the given row. Side effect: refills the prior row
-  //* with current row
-  //* 
-  //*/
-  //private void filterUp() {
-  // int nBytes = width * bytesPerPixel;
-  // for (int i = 0; i < nBytes; i++) {
-  //   int pt = startPos + i;
-  //   byte b = scanLines[pt];
-  //   scanLines[pt] = (byte) ((scanLines[pt] - priorRow[i]) % 256);
-  //   priorRow[i] = b;
-  // }
-  //}
-
 }
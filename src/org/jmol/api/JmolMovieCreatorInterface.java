@@ -5,19 +5,38 @@ import org.jmol.viewer.Viewer;
 public interface JmolMovieCreatorInterface {
 
   // implemented by org.jmol.image.AviCreator.java
-  // status: not useful yet, 9/2008
+  // used by CAPTURE "xxx.avi"
   
   /**
-   * create a movie from a set of image files 
-   * @param vwr 
-   * @param files 
-   * @param width 
-   * @param height 
-   * @param fps 
-   * @param fileName 
+   * start a movie; nothing is written until the first frame is added
+   * 
+   * @param vwr
+   * @param fileName
+   *        local file name
+   * @param fps
+   * @param quality
+   *        JPEG quality, or -1 for default
    * @return null if no error, errorMsg if an error occurs
+   */
+  abstract public String startMovie(Viewer vwr, String fileName, int fps,
+                                    int quality);
+
+  /**
+   * add a frame; pixels must not be reused by the caller
+   * 
+   * @param pixels
+   *        ARGB
+   * @param width
+   * @param height
+   * @return progress message or "ERROR: ..."
+   */
+  abstract public String addFrame(int[] pixels, int width, int height);
+
+  /**
+   * finish or cancel the movie
    * 
+   * @param isCancel
+   * @return summary message or "ERROR: ..."
    */
-  abstract public String createMovie(Viewer vwr, String[] files, int width,
-                                     int height, int fps, String fileName);
+  abstract public String endMovie(boolean isCancel);
 }
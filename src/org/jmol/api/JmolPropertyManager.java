@@ -37,6 +37,10 @@ public interface JmolPropertyManager {
 
   String getPdbAtomData(BS bs, OC out, boolean asPQR, boolean doTransform, boolean allTrajectories);
 
+  String writeInfo(OC out, String infoType, Object paramInfo, String fields, boolean asJSON);
+
+  String getAtomColumns(BS bs, String fields, OC out);
+
   String getPdbData(int modelIndex, String type, BS bsA, Object[] parameters,
                     OC oc, boolean addStructure);
 
@@ -17,6 +17,15 @@ public interface JmolRepaintManager {
 
   boolean repaintIfReady(String why);
 
+  /**
+   * Request a repaint for a change to overlays (hover, pending measurement)
+   * only, so that the saved 3D layer can be reused.
+   * 
+   * @param why
+   * @return true if a repaint was requested
+   */
+  boolean repaintOverlaysIfReady(String why);
+
   void pushHoldRepaint(String why);
 
   void repaintDone();
@@ -25,6 +34,18 @@ public interface JmolRepaintManager {
 
   void clear(int iShape);
 
+  /**
+   * Called at the start of each frame, before atoms are transformed.
+   * 
+   * @param gdata
+   * @param modelSet
+   * @param isStill
+   *        no motion, animation, spin, vibration, navigation, or stereo
+   * @return true if the saved 3D layer will be used, so that atoms need not be
+   *         transformed again
+   */
+  boolean checkLayer(GData gdata, ModelSet modelSet, boolean isStill);
+
   void render(GData gdata, ModelSet modelSet, boolean isFirstPass, int[] navMinMax);
 
   String renderExport(GData gdata, ModelSet modelSet, Map<String, Object> params);
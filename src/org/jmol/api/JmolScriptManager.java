@@ -2,6 +2,8 @@ package org.jmol.api;
 
 
 
+import java.util.Map;
+
 import org.jmol.java.BS;
 import org.jmol.modelset.Atom;
 
@@ -28,6 +30,10 @@ public interface JmolScriptManager {
 
   void queueThreadFinished(int pt);
 
+  void setQueueWait(Lst<Object> scriptItem);
+
+  Map<String, Object> getQueueWaitInfo();
+
   Lst<Object> getScriptItem(boolean b, boolean startedByCommandThread);
 
   String evalStringQuietSync(String strScript, boolean isQuiet,
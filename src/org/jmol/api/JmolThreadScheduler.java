@@ -0,0 +1,28 @@
+package org.jmol.api;
+
+import java.util.Map;
+
+/**
+ * Runs the steps of JmolThreads started with the useScheduler option (Java
+ * only); see org.jmol.thread.ThreadScheduler.
+ */
+public interface JmolThreadScheduler {
+
+  void execute(Runnable r);
+
+  /**
+   * @param r
+   * @param millis
+   * @return the pending step, for cancel()
+   */
+  Object schedule(Runnable r, int millis);
+
+  /**
+   * @param pending
+   * @return true if the step had not yet been started
+   */
+  boolean cancel(Object pending);
+
+  Map<String, Object> getInfo();
+
+}
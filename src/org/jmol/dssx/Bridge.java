@@ -25,7 +25,7 @@
 
 package org.jmol.dssx;
 
-import java.util.Map;
+import javajs.util.Lst;
 
 import org.jmol.modelset.Atom;
 import org.jmol.util.Escape;
@@ -40,34 +40,27 @@ class Bridge {
   Atom a, b;
   int[][] ladder;
   boolean isAntiparallel;
+  Bridge next; // next bridge with the same a, in DSSP.bridgesByAtom
   
-  Bridge(Atom a, Atom b, Map<int[][], Boolean> htLadders) {
+  Bridge(Atom a, Atom b, Lst<int[][]> ladders) {
     this.a = a;
     this.b = b;
     ladder = new int[2][2];
     ladder[0][0] = ladder[0][1] = Math.min(a.i, b.i);
     ladder[1][0] = ladder[1][1] = Math.max(a.i, b.i);
-    addLadder(htLadders);
+    ladders.addLast(ladder);
   }
   
-  boolean addBridge(Bridge bridge,  Map<int[][], Boolean> htLadders) {
+  boolean addBridge(Bridge bridge) {
     if (bridge.isAntiparallel != isAntiparallel
         || !canAdd(bridge) || !bridge.canAdd(this))
       return false;
     extendLadder(bridge.ladder[0][0], bridge.ladder[1][0]);
     extendLadder(bridge.ladder[0][1], bridge.ladder[1][1]);
     bridge.ladder = ladder;
-    if (bridge.ladder != ladder) {
-      htLadders.remove(bridge.ladder);
-      addLadder(htLadders);
-    }
     return true;
   }
 
-  private void addLadder(Map<int[][], Boolean> htLadders) {
-    htLadders.put(ladder, (isAntiparallel ? Boolean.TRUE : Boolean.FALSE));
-  }
-
   private boolean canAdd(Bridge bridge) {
     int index1 = bridge.a.i;
     int index2 = bridge.b.i;
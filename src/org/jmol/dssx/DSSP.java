@@ -38,18 +38,17 @@ import org.jmol.modelsetbio.Monomer;
 import org.jmol.util.C;
 import org.jmol.util.Escape;
 import org.jmol.util.Edge;
+import org.jmol.thread.ParallelLoop;
 import org.jmol.util.Logger;
 import org.jmol.viewer.Viewer;
 
 //import javajs.util.List;
 import javajs.util.AU;
 import javajs.util.Lst;
+import javajs.util.P3;
 import javajs.util.PT;
 import javajs.util.SB;
-
-import java.util.Hashtable;
-
-import java.util.Map;
+import javajs.util.V3;
 
 public class DSSP implements DSSPInterface {
 
@@ -206,11 +205,18 @@ public class DSSP implements DSSPInterface {
   private char[][] labels;
   private BS bsBad;
   private int bioPolymerCount;
-  private Map<String, Bridge> htBridges;
-  private Map<int[][], Boolean> htLadders;
+  private Bridge[] bridgesByAtom;
+  private Lst<int[][]> ladders;
   private Lst<Bridge> bridgesA;
   private Lst<Bridge> bridgesP;
 
+  // incremental mode: what the H-bond array was last calculated from
+
+  private BioPolymer[] lastPolymers;
+  private float[][] lastBackbones;
+  private int[][][][] lastMin;
+  private boolean lastIgnoreHydrogens;
+
   /**
    * 
    * @param objBioPolymers
@@ -321,8 +327,8 @@ public class DSSP implements DSSPInterface {
 
     bridgesA = new Lst<Bridge>();
     bridgesP = new Lst<Bridge>();
-    htBridges = new Hashtable<String, Bridge>();
-    htLadders = new Hashtable<int[][], Boolean>();
+    bridgesByAtom = new Bridge[m.ms.at.length];
+    ladders = new Lst<int[][]>();
     getBridges(min);
 
     // Step 3: Find the ladders and bulges, mark them as "E", and add the sheet structures.
@@ -379,36 +385,337 @@ public class DSSP implements DSSPInterface {
   private int[][][][] getDualHydrogenBondArray() {
 
     // The min[][][][] array:  min[iPolymer][i][[hb1],[hb2]]
-    //   where i is the index of the NH end of the bond, 
+    //   where i is the index of the NH end of the bond,
     //   and [hb1] and [hb2] are [iPolymer2,i2,iEnergy]
     //   and i2 is the index of the C=O end of the bond
     //   if iEnergy is < -500 and -1 - (that number) if iEnergy is >= -500
 
-    //   This part is the same as the Rasmol hydrogen bond calculation
+    //   This is the same as the Rasmol hydrogen bond calculation in
+    //   AminoPolymer.calcRasmolHydrogenBonds, but acceptors are found using
+    //   a grid of C-alpha positions rather than checking all pairs of residues,
+    //   and donors are processed in parallel.
     //
+    //   If nothing but the positions of some polymers has changed since the
+    //   last call (a trajectory or a minimization, for example), only the
+    //   donor rows that could have been affected are recalculated.
 
-    int[][][][] min = AU.newInt4(bioPolymerCount);
+    float[][] backbones = new float[bioPolymerCount][];
+    for (int i = 0; i < bioPolymerCount; i++)
+      if (bioPolymers[i] instanceof AminoPolymer)
+        backbones[i] = getBackbone((AminoPolymer) bioPolymers[i]);
+
+    int[][][][] min = lastMin;
+    BS bsMoved = new BS();
+    if (min == null || !isSamePolymers()) {
+      min = AU.newInt4(bioPolymerCount);
+      for (int i = 0; i < bioPolymerCount; i++)
+        if (backbones[i] != null) {
+          min[i] = new int[bioPolymers[i].monomerCount][2][3];
+          bsMoved.set(i);
+        }
+    } else {
+      for (int i = 0; i < bioPolymerCount; i++)
+        if (backbones[i] != null
+            && !isSameBackbone(backbones[i], lastBackbones[i]))
+          bsMoved.set(i);
+    }
+    lastPolymers = bioPolymers;
+    lastBackbones = backbones;
+    lastIgnoreHydrogens = dsspIgnoreHydrogens;
+    lastMin = null;
+    if (bsMoved.isEmpty()) {
+      lastMin = min;
+      return min;
+    }
+
+    // donors: rows to (re)calculate; a row of an unmoved polymer only needs to
+    // see moved acceptors, unless one of its current H bonds is to a moved polymer
+
+    int nAcceptors = 0;
+    int nDonors = 0;
+    for (int i = 0; i < bioPolymerCount; i++)
+      if (backbones[i] != null)
+        nAcceptors += bioPolymers[i].monomerCount;
+    final int[] donorPolymer = new int[nAcceptors];
+    final int[] donorIndex = new int[nAcceptors];
+    final boolean[] donorIsPartial = new boolean[nAcceptors];
     for (int i = 0; i < bioPolymerCount; i++) {
-      if (!(bioPolymers[i] instanceof AminoPolymer))
+      float[] bb = backbones[i];
+      if (bb == null)
         continue;
-      int n = bioPolymers[i].monomerCount;
-      min[i] = new int[n][2][3];
-      for (int j = 0; j < n; ++j) {
-        min[i][j][0][1] = min[i][j][1][1] = Integer.MIN_VALUE;
-        min[i][j][0][2] = min[i][j][1][2] = 0;
+      boolean isMoved = bsMoved.get(i);
+      for (int j = 0, n = bioPolymers[i].monomerCount; j < n; j++) {
+        int[][] m = min[i][j];
+        if (isMoved) {
+          m[0][0] = m[1][0] = 0;
+          m[0][1] = m[1][1] = Integer.MIN_VALUE;
+          m[0][2] = m[1][2] = 0;
+        }
+        if (Float.isNaN(bb[j * 18]))
+          continue;
+        donorPolymer[nDonors] = i;
+        donorIndex[nDonors] = j;
+        donorIsPartial[nDonors] = !isMoved
+            && !(m[0][2] != 0 && bsMoved.get(m[0][0]))
+            && !(m[1][2] != 0 && bsMoved.get(m[1][0]));
+        if (!donorIsPartial[nDonors] && !isMoved) {
+          m[0][0] = m[1][0] = 0;
+          m[0][1] = m[1][1] = Integer.MIN_VALUE;
+          m[0][2] = m[1][2] = 0;
+        }
+        nDonors++;
       }
     }
 
-    for (int i = 0; i < bioPolymerCount; i++)
-      if (min[i] != null)
-        for (int j = 0; j < bioPolymerCount; j++)
-          if (min[j] != null)
-            bioPolymers[i].calcRasmolHydrogenBonds(bioPolymers[j], null, null,
-                null, 2, min[i], false, dsspIgnoreHydrogens);
+    // acceptors: hashed grid of C-alpha positions
+
+    final int[] acceptorPolymer = new int[nAcceptors];
+    final int[] acceptorIndex = new int[nAcceptors];
+    nAcceptors = 0;
+    for (int i = 0; i < bioPolymerCount; i++) {
+      float[] bb = backbones[i];
+      if (bb != null)
+        for (int j = 0, n = bioPolymers[i].monomerCount; j < n; j++)
+          if (!Float.isNaN(bb[j * 18 + 9])) {
+            acceptorPolymer[nAcceptors] = i;
+            acceptorIndex[nAcceptors++] = j;
+          }
+    }
+    int nCells = 16;
+    while (nCells < nAcceptors)
+      nCells <<= 1;
+    final int mask = nCells - 1;
+    final int[] gridHead = new int[nCells];
+    final int[] gridNext = new int[nAcceptors];
+    for (int i = nCells; --i >= 0;)
+      gridHead[i] = -1;
+    for (int i = nAcceptors; --i >= 0;) {
+      int pt = acceptorIndex[i] * 18 + 9;
+      float[] bb = backbones[acceptorPolymer[i]];
+      int h = hashCell(getCell(bb[pt]), getCell(bb[pt + 1]), getCell(bb[pt + 2]))
+          & mask;
+      gridNext[i] = gridHead[h];
+      gridHead[h] = i;
+    }
+
+    final float[][] bbs = backbones;
+    final int[][][][] min0 = min;
+    final BS bsMoved0 = bsMoved;
+    int nChunks = ParallelLoop.getChunkCount(vwr(), nDonors, 256);
+    new ParallelLoop() {
+      @Override
+      protected void runChunk(int iChunk, int i0, int i1) {
+        int[] visited = new int[27];
+        for (int d = i0; d < i1; d++) {
+          int p = donorPolymer[d];
+          int k = donorIndex[d];
+          boolean isPartial = donorIsPartial[d];
+          float[] bbD = bbs[p];
+          int ptD = k * 18;
+          int[][] m = min0[p][k];
+          int nVisited = 0;
+          int cx = getCell(bbD[ptD]);
+          int cy = getCell(bbD[ptD + 1]);
+          int cz = getCell(bbD[ptD + 2]);
+          for (int dx = -1; dx <= 1; dx++)
+            for (int dy = -1; dy <= 1; dy++)
+              for (int dz = -1; dz <= 1; dz++) {
+                int h = hashCell(cx + dx, cy + dy, cz + dz) & mask;
+                boolean isDone = false;
+                for (int v = nVisited; --v >= 0 && !isDone;)
+                  isDone = (visited[v] == h);
+                if (isDone)
+                  continue;
+                visited[nVisited++] = h;
+                for (int a = gridHead[h]; a >= 0; a = gridNext[a]) {
+                  int pA = acceptorPolymer[a];
+                  int kA = acceptorIndex[a];
+                  if (pA == p && (kA == k || kA + 1 == k) || isPartial
+                      && !bsMoved0.get(pA))
+                    continue;
+                  float[] bbA = bbs[pA];
+                  int ptA = kA * 18 + 9;
+                  if (dist2(bbD, ptD, bbA, ptA) >= maxHbondAlphaDistance2)
+                    continue;
+                  addHbondCandidate(m, pA, kA,
+                      getHbondEnergy(bbD, ptD, bbA, ptA));
+                }
+              }
+        }
+      }
+    }.run(vwr(), nDonors, nChunks);
 
+    if (Logger.debugging)
+      Logger.debug("DSSP H bonds recalculated for " + nDonors
+          + " donors; moved polymers: " + bsMoved);
+    lastMin = min;
     return min;
   }
 
+  private Viewer vwr() {
+    return bioPolymers[0].model.ms.vwr;
+  }
+
+  private boolean isSamePolymers() {
+    if (lastPolymers == null || lastPolymers.length < bioPolymerCount
+        || lastIgnoreHydrogens != dsspIgnoreHydrogens
+        || lastBackbones.length != bioPolymerCount)
+      return false;
+    for (int i = 0; i < bioPolymerCount; i++)
+      if (lastPolymers[i] != bioPolymers[i]
+          || lastBackbones[i] != null
+          && lastBackbones[i].length != bioPolymers[i].monomerCount * 18)
+        return false;
+    return true;
+  }
+
+  private static boolean isSameBackbone(float[] a, float[] b) {
+    if (b == null || a.length != b.length)
+      return false;
+    for (int i = a.length; --i >= 0;)
+      if (a[i] != b[i] && !(Float.isNaN(a[i]) && Float.isNaN(b[i])))
+        return false;
+    return true;
+  }
+
+  /**
+   * Get the coordinates needed for the H-bond energy of each residue: 18
+   * floats per residue, [CA N H] as a donor and [CA O C] as an acceptor; NaN
+   * if the residue cannot be a donor or an acceptor.
+   *
+   * @param ap
+   * @return backbone coordinates
+   */
+  private float[] getBackbone(AminoPolymer ap) {
+    int n = ap.monomerCount;
+    float[] bb = new float[n * 18];
+    P3 pt = new P3();
+    V3 vNH = new V3();
+    for (int i = 0, ipt = 0; i < n; i++, ipt += 18) {
+      AminoMonomer am = (AminoMonomer) ap.monomers[i];
+      Atom o = am.getCarbonylOxygenAtom();
+      // for DSSP, we knock out all groups having no carbonyl oxygen as donors
+      if (i > 0 && am.getNHPoint(pt, vNH, false, dsspIgnoreHydrogens)
+          && o != null) {
+        setXYZ(bb, ipt, am.getLeadAtom());
+        setXYZ(bb, ipt + 3, am.getNitrogenAtom());
+        setXYZ(bb, ipt + 6, pt);
+      } else {
+        bb[ipt] = Float.NaN;
+      }
+      if (o != null) {
+        setXYZ(bb, ipt + 9, am.getLeadAtom());
+        setXYZ(bb, ipt + 12, o);
+        setXYZ(bb, ipt + 15, am.getCarbonylCarbonAtom());
+      } else {
+        bb[ipt + 9] = Float.NaN;
+      }
+    }
+    return bb;
+  }
+
+  private static void setXYZ(float[] a, int pt, P3 p) {
+    a[pt] = p.x;
+    a[pt + 1] = p.y;
+    a[pt + 2] = p.z;
+  }
+
+  // from AminoPolymer; the grid cell is just a bit larger than the cutoff
+  private final static float maxHbondAlphaDistance2 = 9 * 9;
+  private final static float minimumHbondDistance2 = 0.5f * 0.5f;
+  private final static float gridSize = 9.5f;
+
+  private static int getCell(float x) {
+    return (int) Math.floor(x / gridSize);
+  }
+
+  private static int hashCell(int ix, int iy, int iz) {
+    return ix * 73856093 ^ iy * 19349663 ^ iz * 83492791;
+  }
+
+  /**
+   * Same as T3.distanceSquared
+   *
+   * @param a
+   * @param i
+   * @param b
+   * @param j
+   * @return distance squared
+   */
+  private static float dist2(float[] a, int i, float[] b, int j) {
+    double dx = a[i] - b[j];
+    double dy = a[i + 1] - b[j + 1];
+    double dz = a[i + 2] - b[j + 2];
+    return (float) (dx * dx + dy * dy + dz * dz);
+  }
+
+  /**
+   * Same as AminoPolymer.calcHbondEnergy without distance checks
+   *
+   * @param d
+   *        donor [CA N H] at ptD
+   * @param ptD
+   * @param a
+   *        acceptor [CA O C] at ptA
+   * @param ptA
+   * @return energy in cal/mol or 0 (none)
+   */
+  private static int getHbondEnergy(float[] d, int ptD, float[] a, int ptA) {
+    float distON2 = dist2(a, ptA + 3, d, ptD + 3);
+    if (distON2 < minimumHbondDistance2)
+      return 0;
+    float distOH2 = dist2(a, ptA + 3, d, ptD + 6);
+    if (distOH2 < minimumHbondDistance2)
+      return 0;
+    float distCH2 = dist2(a, ptA + 6, d, ptD + 6);
+    if (distCH2 < minimumHbondDistance2)
+      return 0;
+    float distCN2 = dist2(a, ptA + 6, d, ptD + 3);
+    if (distCN2 < minimumHbondDistance2)
+      return 0;
+    int energy = HBond.getEnergy(Math.sqrt(distOH2), Math.sqrt(distCH2),
+        Math.sqrt(distCN2), Math.sqrt(distON2));
+    return (energy < -9900 ? 0 : energy);
+  }
+
+  /**
+   * Keep the two lowest energies for a donor. Candidates may arrive in any
+   * order, so ties go to the one the all-pairs scan of
+   * AminoPolymer.calcRasmolHydrogenBonds would have seen first: lower polymer
+   * index, then higher residue index.
+   *
+   * @param min
+   *        [hb1, hb2] for this donor
+   * @param p
+   * @param i
+   * @param energy
+   */
+  static void addHbondCandidate(int[][] min, int p, int i, int energy) {
+    if (energy >= 0)
+      return;
+    int[] m;
+    if (isBefore(energy, p, i, min[0])) {
+      m = min[1];
+      min[1] = min[0];
+      min[0] = m;
+    } else if (isBefore(energy, p, i, min[1])) {
+      m = min[1];
+    } else {
+      return;
+    }
+    m[0] = p;
+    m[1] = (energy < -500 ? i : -1 - i);
+    m[2] = energy;
+  }
+
+  private static boolean isBefore(int energy, int p, int i, int[] m) {
+    if (m[2] == 0 || energy != m[2])
+      return (energy < m[2]);
+    if (p != m[0])
+      return (p < m[0]);
+    return (i > (m[1] >= 0 ? m[1] : -1 - m[1]));
+  }
+
   /**
    * (p. 2581):
    * 
@@ -427,12 +734,16 @@ public class DSSP implements DSSPInterface {
    * @param min
    */
   private void getBridges(int[][][][] min) {
-    // ooooooh! It IS possible to have 3 bridges to the same residue. (3A5F) 
-    // 
+    // ooooooh! It IS possible to have 3 bridges to the same residue. (3A5F)
+    //
+    // Every bridge needs an H bond from residue a or a + 1 to residue b or
+    // b - 1, so only those b are checked rather than all residue pairs.
+    //
     Atom[] atoms = bioPolymers[0].model.ms.at;
     Bridge bridge = null;
 
-    Map<String, Boolean> htTemp = new Hashtable<String, Boolean>();
+    BS[] bsHBonds = new BS[] { new BS(), new BS() };
+    int[] candidates = new int[16];
     for (int p1 = 0; p1 < min.length; p1++)
       if (bioPolymers[p1] instanceof AminoPolymer) {
         AminoPolymer ap1 = ((AminoPolymer) bioPolymers[p1]);
@@ -441,73 +752,130 @@ public class DSSP implements DSSPInterface {
           int ia = ap1.monomers[a].leadAtomIndex;
           if (bsBad.get(ia))
             continue;
-          for (int p2 = p1; p2 < min.length; p2++)
-            if (bioPolymers[p2] instanceof AminoPolymer)
-              for (int b = (p1 == p2 ? a + 3 : 1); b < min[p2].length - 1; b++) {
-                AminoPolymer ap2 = (AminoPolymer) bioPolymers[p2];
-                int ib = ap2.monomers[b].leadAtomIndex;
-                if (bsBad.get(ib))
-                  continue;
-                if ((bridge = getBridge(min, p1, a, p2, b, bridgesP, atoms[ia],
-                    atoms[ib], ap1, ap2, htTemp, false)) != null) {
-                } else if ((bridge = getBridge(min, p1, a, p2, b, bridgesA,
-                    atoms[ia], atoms[ib], ap1, ap2, htTemp, true)) != null) {
-                  bridge.isAntiparallel = true;
-                } else {
-                  continue;
-                }
-                if (Logger.debugging)
-                  Logger.debug("Bridge found " + bridge);
-                //setDone(bsDone1, bsDone2, ia);
-                //setDone(bsDone1, bsDone2, ib);
-                done[p1].set(a);
-                done[p2].set(b);
-                htBridges.put(ia + "-" + ib, bridge);
-              }
+          int nCandidates = getBridgeCandidates(min, p1, a, candidates);
+          for (int c = 0; c < nCandidates; c++) {
+            int p2 = candidates[c * 2];
+            int b = candidates[c * 2 + 1];
+            AminoPolymer ap2 = (AminoPolymer) bioPolymers[p2];
+            int ib = ap2.monomers[b].leadAtomIndex;
+            if (bsBad.get(ib))
+              continue;
+            if ((bridge = getBridge(min, p1, a, p2, b, bridgesP, atoms[ia],
+                atoms[ib], ap1, ap2, bsHBonds, false)) != null) {
+            } else if ((bridge = getBridge(min, p1, a, p2, b, bridgesA,
+                atoms[ia], atoms[ib], ap1, ap2, bsHBonds, true)) != null) {
+              bridge.isAntiparallel = true;
+            } else {
+              continue;
+            }
+            if (Logger.debugging)
+              Logger.debug("Bridge found " + bridge);
+            done[p1].set(a);
+            done[p2].set(b);
+            bridge.next = bridgesByAtom[ia];
+            bridgesByAtom[ia] = bridge;
+          }
         }
       }
   }
 
+  /**
+   * Collect the [p2, b] that could form a bridge with residue a of polymer p1,
+   * in the order the original all-pairs loop visited them.
+   *
+   * @param min
+   * @param p1
+   * @param a
+   * @param candidates
+   *        filled with p2, b pairs
+   * @return number of candidates
+   */
+  private int getBridgeCandidates(int[][][][] min, int p1, int a,
+                                  int[] candidates) {
+    int n = 0;
+    for (int r = a; r <= a + 1; r++)
+      for (int s = 0; s < 2; s++) {
+        int[] hb = min[p1][r][s];
+        if (hb[1] >= 0)
+          for (int b = hb[1]; b <= hb[1] + 1; b++)
+            n = addBridgeCandidate(min, p1, a, hb[0], b, candidates, n);
+      }
+    return n;
+  }
+
+  private static int addBridgeCandidate(int[][][][] min, int p1, int a,
+                                        int p2, int b, int[] candidates, int n) {
+    if (p2 < p1 || min[p2] == null || b < (p1 == p2 ? a + 3 : 1)
+        || b >= min[p2].length - 1)
+      return n;
+    int i = n;
+    while (i > 0
+        && (candidates[i * 2 - 2] > p2 || candidates[i * 2 - 2] == p2
+            && candidates[i * 2 - 1] > b))
+      i--;
+    if (i > 0 && candidates[i * 2 - 2] == p2 && candidates[i * 2 - 1] == b)
+      return n;
+    for (int j = n; j > i; j--) {
+      candidates[j * 2] = candidates[j * 2 - 2];
+      candidates[j * 2 + 1] = candidates[j * 2 - 1];
+    }
+    candidates[i * 2] = p2;
+    candidates[i * 2 + 1] = b;
+    return n + 1;
+  }
+
   private int[][] sheetOffsets = { new int[] { 0, -1, 1, 0, 1, 0, 0, -1 },
       new int[] { 0, 0, 0, 0, 1, -1, 1, -1 } };
 
   private Bridge getBridge(int[][][][] min, int p1, int a, int p2, int b,
                              Lst<Bridge> bridges, Atom atom1, Atom atom2,
                              AminoPolymer ap1, AminoPolymer ap2,
-                             Map<String, Boolean> htTemp,
-                             boolean isAntiparallel) {
+                             BS[] bsHBonds, boolean isAntiparallel) {
 
-    int[] b1 = null, b2 = null;
+    int s1 = -1, s2 = -1;
     int ipt = 0;
     int[] offsets = (isAntiparallel ? sheetOffsets[1] : sheetOffsets[0]);
-    if ((b1 = isHbonded(a + offsets[0], b + offsets[1], p1, p2, min)) != null
-        && (b2 = isHbonded(b + offsets[2], a + offsets[3], p2, p1, min)) != null
-        || (b1 = isHbonded(a + offsets[ipt = 4], b + offsets[5], p1, p2, min)) != null
-        && (b2 = isHbonded(b + offsets[6], a + offsets[7], p2, p1, min)) != null) {
-      Bridge bridge = new Bridge(atom1, atom2, htLadders);
+    if ((s1 = isHbonded(a + offsets[0], b + offsets[1], p1, p2, min)) >= 0
+        && (s2 = isHbonded(b + offsets[2], a + offsets[3], p2, p1, min)) >= 0
+        || (s1 = isHbonded(a + offsets[ipt = 4], b + offsets[5], p1, p2, min)) >= 0
+        && (s2 = isHbonded(b + offsets[6], a + offsets[7], p2, p1, min)) >= 0) {
+      Bridge bridge = new Bridge(atom1, atom2, ladders);
       bridges.addLast(bridge);
       if (vHBonds != null) {
         int type = (isAntiparallel ? Edge.BOND_H_MINUS_3
             : Edge.BOND_H_PLUS_2);
-        addHbond(ap1.monomers[a + offsets[ipt]], ap2.monomers[b
-            + offsets[++ipt]], b1[2], type, htTemp);
-        addHbond(ap2.monomers[b + offsets[++ipt]], ap1.monomers[a
-            + offsets[++ipt]], b2[2], type, htTemp);
+        int d1 = a + offsets[ipt];
+        int a1 = b + offsets[++ipt];
+        addHbond(ap1.monomers[d1], ap2.monomers[a1], min[p1][d1][s1][2], type,
+            bsHBonds[s1]);
+        int d2 = b + offsets[++ipt];
+        int a2 = a + offsets[++ipt];
+        addHbond(ap2.monomers[d2], ap1.monomers[a2], min[p2][d2][s2][2], type,
+            bsHBonds[s2]);
       }
       return bridge;
     }
     return null;
   }
 
+  /**
+   * @param donor
+   * @param acceptor
+   * @param iEnergy
+   * @param type
+   * @param bsDone
+   *        nitrogen atoms already given their bond from this slot of the
+   *        H-bond array, or null to skip that check
+   */
   private void addHbond(Monomer donor, Monomer acceptor, int iEnergy, int type,
-                        Map<String, Boolean> htTemp) {
+                        BS bsDone) {
     Atom nitrogen = ((AminoMonomer) donor).getNitrogenAtom();
     Atom oxygen = ((AminoMonomer) acceptor).getCarbonylOxygenAtom();
-    if (htTemp != null) {
-      String key = nitrogen.i + " " + oxygen.i;
-      if (htTemp.containsKey(key))
+    if (bsDone != null) {
+      // a donor's slot identifies its acceptor, so this is one N/O pair
+      if (bsDone.get(nitrogen.i))
         return;
-      htTemp.put(key, Boolean.TRUE);
+      bsDone.set(nitrogen.i);
     }
     vHBonds.addLast(new HBond(nitrogen, oxygen, type, (short) 1, C.INHERIT_ALL,
         iEnergy / 1000f));
@@ -530,7 +898,8 @@ public class DSSP implements DSSPInterface {
 
     BS bsEEE = new BS();
     BS bsB = new BS();
-    for (int[][] ladder : htLadders.keySet()) {
+    for (int i = ladders.size(); --i >= 0;) {
+      int[][] ladder = ladders.get(i);
       if (ladder[0][0] == ladder[0][1] && ladder[1][0] == ladder[1][1]) {
         bsB.set(ladder[0][0]);
         bsB.set(ladder[1][0]);
@@ -612,9 +981,18 @@ public class DSSP implements DSSPInterface {
    */
   private boolean checkBridge(Bridge bridge,
                               boolean isAntiparallel, int n1, int n2) {
-    Bridge b = htBridges.get(bridge.a.getOffsetResidueAtom("\0", n1) + "-"
-        + bridge.b.getOffsetResidueAtom("\0", n2));
-    return (b != null && bridge.addBridge(b, htLadders));
+    Bridge b = getBridgeAt(bridge.a.getOffsetResidueAtom("\0", n1),
+        bridge.b.getOffsetResidueAtom("\0", n2));
+    return (b != null && bridge.addBridge(b));
+  }
+
+  private Bridge getBridgeAt(int ia, int ib) {
+    if (ia < 0 || ib < 0)
+      return null;
+    for (Bridge b = bridgesByAtom[ia]; b != null; b = b.next)
+      if (b.b.i == ib)
+        return b;
+    return null;
   }
 
   private void checkBulge(Bridge bridge, 
@@ -693,19 +1071,27 @@ public class DSSP implements DSSPInterface {
     return sb.toString().replace('\0', '.');
   }
 
-  private int[] isHbonded(int indexDonor, int indexAcceptor, int pDonor,
-                          int pAcceptor, int[][][][] min) {
+  /**
+   * @param indexDonor
+   * @param indexAcceptor
+   * @param pDonor
+   * @param pAcceptor
+   * @param min
+   * @return slot (0 or 1) of the donor's entry in min holding this H bond, or
+   *         -1 if there is none
+   */
+  private int isHbonded(int indexDonor, int indexAcceptor, int pDonor,
+                        int pAcceptor, int[][][][] min) {
     if (indexDonor < 0 || indexAcceptor < 0)
-      return null;
+      return -1;
     int[][][] min1 = min[pDonor];
     int[][][] min2 = min[pAcceptor];
     if (indexDonor >= min1.length || indexAcceptor >= min2.length)
-      return null;
+      return -1;
     return (min1[indexDonor][0][0] == pAcceptor
-        && min1[indexDonor][0][1] == indexAcceptor ? min1[indexDonor][0]
+        && min1[indexDonor][0][1] == indexAcceptor ? 0
         : min1[indexDonor][1][0] == pAcceptor
-            && min1[indexDonor][1][1] == indexAcceptor ? min1[indexDonor][1]
-            : null);
+            && min1[indexDonor][1][1] == indexAcceptor ? 1 : -1);
   }
 
 /**
@@ -0,0 +1,423 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2011  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ *  02110-1301, USA.
+ */
+
+package org.jmol.g3d;
+
+import org.jmol.script.T;
+import org.jmol.thread.ParallelLoop;
+import org.jmol.util.Logger;
+import org.jmol.viewer.Viewer;
+
+/**
+ * Screen-space ambient occlusion, applied to the opaque pixels after pass 1
+ * (SET ambientOcclusion n, a percent strength; 0 is off).
+ *
+ * Each pixel is compared with pairs of samples on opposite sides of it,
+ * within SET ambientOcclusionRadius (Angstroms) in the Z buffer. A pair that
+ * together lies in front of the pixel means the pixel is in a crease or
+ * under something, and the pixel is darkened by how far in front and how
+ * steeply, fading to nothing for samples more than two radii in front. A
+ * flat or tilted surface, the convex face of a sphere, and the background
+ * give nothing. SET ambientOcclusionSamples sets the number of samples; their
+ * pattern turns from pixel to pixel over a 4x4 tile.
+ *
+ * The occlusion is found at window resolution or coarser, from the nearest Z
+ * of each block of pixels (2x2 with antialiasDisplay), and applied to the
+ * pixels of the block that are not well behind that; the others, along
+ * silhouettes, take the value of the neighboring block nearest them in Z.
+ * Occlusion is soft, so a
+ * large radius is handled with larger blocks, up to 4x4 window pixels, to keep
+ * the samples within MAX_CELL_RADIUS blocks, which is what keeps the time
+ * down for large images.
+ *
+ * Bands of rows run on the Viewer's executor as for BufferPass.
+ *
+ */
+class AmbientOcclusion extends ParallelLoop {
+
+  private final static int NPATTERNS = 16;
+  private final static int MAX_CELL_RADIUS = 24;
+  private final static int ZLOW = 0;
+  private final static int OCCLUDE = 1;
+  private final static int BLUR = 2;
+  private final static int APPLY = 3;
+  private final static int DARKEN = 4;
+
+  private Viewer vwr;
+  private int mode;
+
+  private int[] pbuf, zbuf, zlow, ao;
+  private int width, height, bufferWidth, bufferHeight, dzMax;
+  private int cellShift, zShift;
+  private int nPairs;
+  private int[] dxy;
+  private float[] invDist;
+  private float zRange, strength;
+
+  /**
+   * nearest Z of each block, when blocks are used; released with the buffers
+   */
+  int[] zbufLow;
+
+  /**
+   * per-block brightness, 0 to 256, followed by the packed sums and counts of
+   * each block's row of four, after which the first half is replaced by the
+   * averaged brightness; released with the buffers
+   */
+  int[] aobuf;
+
+  AmbientOcclusion(Viewer vwr) {
+    this.vwr = vwr;
+  }
+
+  /**
+   * @param pbuf
+   * @param zbuf
+   * @param bufferWidth
+   * @param bufferHeight
+   * @param isAntialiased
+   *        buffer is twice the window in each direction
+   * @param radius
+   *        in window pixels
+   * @param nSamples
+   * @param percent
+   */
+  void occlude(int[] pbuf, int[] zbuf, int bufferWidth, int bufferHeight,
+               boolean isAntialiased, float radius, int nSamples, int percent) {
+    if (radius < 1)
+      radius = 1;
+    zShift = cellShift = (isAntialiased ? 1 : 0);
+    float cellRadius = radius;
+    for (int i = 0; i < 2 && cellRadius > MAX_CELL_RADIUS; i++) {
+      cellShift++;
+      cellRadius /= 2;
+    }
+    int cellSize = 1 << cellShift;
+    width = (bufferWidth + cellSize - 1) >> cellShift;
+    height = (bufferHeight + cellSize - 1) >> cellShift;
+    this.bufferWidth = bufferWidth;
+    this.bufferHeight = bufferHeight;
+    this.pbuf = pbuf;
+    this.zbuf = zbuf;
+    zRange = radius * 2;
+    strength = Math.min(percent, 200) / 100f;
+    setSamples(Math.max(1, nSamples >> 1), cellRadius,
+        1 << (cellShift - zShift));
+    boolean logTime = vwr.getBoolean(T.showtiming);
+    String msg = (logTime ? "ambient occlusion " + width + "x" + height
+        + " blocks radius " + Math.round(radius) + " samples " + (nPairs * 2)
+        : null);
+    Logger.startTimer(msg);
+    int n = width * height;
+    int nBands = Math.min(
+        getChunkCount(vwr, n, BufferPass.MIN_BAND_PIXELS >> 2), height);
+    if (cellShift > 0) {
+      if (zbufLow == null || zbufLow.length < n)
+        zbufLow = new int[n];
+      zlow = zbufLow;
+      mode = ZLOW;
+      run(vwr, height, nBands);
+    } else {
+      zlow = zbuf;
+    }
+    if (aobuf == null || aobuf.length < n * 2)
+      aobuf = new int[n * 2];
+    ao = aobuf;
+    dzMax = (int) zRange >> 2;
+    mode = OCCLUDE;
+    run(vwr, height, nBands);
+    mode = BLUR;
+    run(vwr, height, nBands);
+    mode = APPLY;
+    run(vwr, height, nBands);
+    if (cellShift > 0) {
+      mode = DARKEN;
+      run(vwr, height, nBands);
+    }
+    if (logTime)
+      Logger.checkTimer(msg, false);
+    this.pbuf = this.zbuf = zlow = ao = null;
+  }
+
+  /**
+   * Sample pairs for each pattern: half-circle directions, each pattern turned
+   * a different sixteenth of the spacing, at radii spread through (radius/4,
+   * radius] in a different order for each pattern. Distances for the slope
+   * are in window pixels, as is Z.
+   *
+   * @param nPairs
+   * @param radius
+   *        in blocks
+   * @param blockSize
+   *        in window pixels
+   */
+  private void setSamples(int nPairs, float radius, int blockSize) {
+    this.nPairs = nPairs;
+    dxy = new int[NPATTERNS * nPairs * 2];
+    invDist = new float[NPATTERNS * nPairs];
+    for (int p = 0, pt = 0; p < NPATTERNS; p++) {
+      // bit-reversed order spreads neighboring patterns apart
+      int rev = ((p & 1) << 3) | ((p & 2) << 1) | ((p & 4) >> 1)
+          | ((p & 8) >> 3);
+      for (int k = 0; k < nPairs; k++, pt++) {
+        double a = Math.PI * (k + (rev + 0.5) / NPATTERNS) / nPairs;
+        double f = (k * 0.618034 + (((p * 11) & 15) + 0.5) / NPATTERNS) % 1;
+        float r = (float) (radius * (0.25 + 0.75 * f));
+        int dx = (int) Math.round(r * Math.cos(a));
+        int dy = (int) Math.round(r * Math.sin(a));
+        if (dx == 0 && dy == 0)
+          dx = 1;
+        dxy[pt * 2] = dx;
+        dxy[pt * 2 + 1] = dy;
+        invDist[pt] = (float) (1 / Math.sqrt(dx * dx + dy * dy) / blockSize);
+      }
+    }
+  }
+
+  @Override
+  protected void runChunk(int iChunk, int i0, int i1) {
+    switch (mode) {
+    case ZLOW:
+      getZLow(i0, i1);
+      break;
+    case OCCLUDE:
+      occludeRows(i0, i1);
+      break;
+    case BLUR:
+      blurRows(i0, i1);
+      break;
+    case APPLY:
+      applyRows(i0, i1);
+      break;
+    case DARKEN:
+      darkenBlocks(i0, i1);
+      break;
+    }
+  }
+
+  /**
+   * Nearest Z of each block, in window units as for the antialiasing Z
+   * downsample.
+   *
+   * @param i0
+   * @param i1
+   */
+  private void getZLow(int i0, int i1) {
+    int bw = bufferWidth;
+    int cs = cellShift;
+    for (int y = i0, offset = i0 * width; y < i1; y++) {
+      int by0 = y << cs;
+      int by1 = Math.min(by0 + (1 << cs), bufferHeight);
+      for (int x = 0; x < width; x++, offset++) {
+        int bx0 = x << cs;
+        int bx1 = Math.min(bx0 + (1 << cs), bw);
+        int z = Integer.MAX_VALUE;
+        for (int by = by0; by < by1; by++)
+          for (int pt = by * bw + bx0, pt1 = by * bw + bx1; pt < pt1; pt++)
+            if (zbuf[pt] < z)
+              z = zbuf[pt];
+        zlow[offset] = (z == Integer.MAX_VALUE ? z : z >> zShift);
+      }
+    }
+  }
+
+  private void occludeRows(int i0, int i1) {
+    int w = width;
+    int h = height;
+    int np = nPairs;
+    float zr = zRange;
+    float izr = 1 / zr;
+    float scale = strength / np;
+    for (int y = i0; y < i1; y++) {
+      int offset = y * w;
+      for (int x = 0; x < w; x++, offset++) {
+        int z0 = zlow[offset];
+        if (z0 == Integer.MAX_VALUE) {
+          ao[offset] = 256;
+          continue;
+        }
+        int pt = (((y & 3) << 2) | (x & 3)) * np;
+        float occ = 0;
+        for (int k = 0; k < np; k++, pt++) {
+          int dx = dxy[pt << 1];
+          int dy = dxy[(pt << 1) + 1];
+          int x1 = x + dx, y1 = y + dy, x2 = x - dx, y2 = y - dy;
+          if (x1 < 0 || x1 >= w || x2 < 0 || x2 >= w || y1 < 0 || y1 >= h
+              || y2 < 0 || y2 >= h)
+            continue;
+          int z1 = zlow[offset + dy * w + dx];
+          int z2 = zlow[offset - dy * w - dx];
+          if (z1 == Integer.MAX_VALUE || z2 == Integer.MAX_VALUE)
+            continue;
+          int d1 = z0 - z1;
+          int d2 = z0 - z2;
+          int d = d1 + d2;
+          if (d <= 0)
+            continue;
+          float fade = 1 - Math.max(d1, d2) * izr;
+          if (fade <= 0)
+            continue;
+          float o = d * 0.5f * invDist[pt];
+          occ += (o > 1 ? fade : o * fade);
+        }
+        ao[offset] = 256 - (int) (Math.min(occ * scale, 1) * 256);
+      }
+    }
+  }
+
+  /**
+   * First half of averaging each pixel's brightness over the 4x4 block around
+   * it, which has one of each sample pattern: the sum and count along the row,
+   * skipping pixels too far in front or behind.
+   *
+   * @param i0
+   * @param i1
+   */
+  private void blurRows(int i0, int i1) {
+    int w = width;
+    int n = w * height;
+    for (int y = i0; y < i1; y++) {
+      int offset = y * w;
+      int xlast = offset + w;
+      for (int x = 0; x < w; x++, offset++) {
+        int z0 = zlow[offset];
+        if (z0 == Integer.MAX_VALUE)
+          continue;
+        int sum = 0, count = 0;
+        for (int pt = Math.max(offset - 1, y * w), pt1 = Math.min(offset + 3,
+            xlast); pt < pt1; pt++) {
+          int dz = zlow[pt] - z0;
+          if (dz <= dzMax && dz >= -dzMax) {
+            sum += ao[pt];
+            count++;
+          }
+        }
+        ao[n + offset] = (sum << 3) | count;
+      }
+    }
+  }
+
+  /**
+   * Second half of the average, down the column; darken now if not using
+   * blocks.
+   *
+   * @param i0
+   * @param i1
+   */
+  private void applyRows(int i0, int i1) {
+    int w = width;
+    int h = height;
+    int nw = w * h;
+    for (int y = i0; y < i1; y++) {
+      int offset = y * w;
+      int ya = Math.max(y - 1, 0);
+      int yb = Math.min(y + 3, h);
+      for (int x = 0; x < w; x++, offset++) {
+        int z0 = zlow[offset];
+        if (z0 == Integer.MAX_VALUE)
+          continue;
+        int sum = 0, n = 0;
+        for (int y1 = ya, pt = ya * w + x; y1 < yb; y1++, pt += w) {
+          int dz = zlow[pt] - z0;
+          if (dz <= dzMax && dz >= -dzMax) {
+            int s = ao[nw + pt];
+            sum += s >> 3;
+            n += s & 7;
+          }
+        }
+        int f = sum / n;
+        if (cellShift > 0)
+          ao[offset] = f;
+        else if (f < 256)
+          darken(offset, f);
+      }
+    }
+  }
+
+  private void darkenBlocks(int i0, int i1) {
+    int w = width;
+    int h = height;
+    int cs = cellShift;
+    int bw = bufferWidth;
+    for (int y = i0; y < i1; y++) {
+      int offset = y * w;
+      int by0 = y << cs;
+      int by1 = Math.min(by0 + (1 << cs), bufferHeight);
+      for (int x = 0; x < w; x++, offset++) {
+        int z0 = zlow[offset];
+        if (z0 == Integer.MAX_VALUE)
+          continue;
+        int f = ao[offset];
+        int zMax = z0 + dzMax;
+        int bx0 = x << cs;
+        int bx1 = Math.min(bx0 + (1 << cs), bw);
+        for (int by = by0; by < by1; by++)
+          for (int pt = by * bw + bx0, pt1 = pt + bx1 - bx0; pt < pt1; pt++) {
+            int z = zbuf[pt];
+            if (z == Integer.MAX_VALUE)
+              continue;
+            int f1 = ((z >>= zShift) <= zMax ? f : getNearestBlock(x, y, z));
+            if (f1 < 256)
+              darken(pt, f1);
+          }
+      }
+    }
+  }
+
+  /**
+   * @param x
+   * @param y
+   * @param z
+   *        window units
+   * @return brightness of the block next to (x, y) nearest in Z to z
+   */
+  private int getNearestBlock(int x, int y, int z) {
+    int f = 256;
+    int dzMin = Integer.MAX_VALUE;
+    for (int y1 = Math.max(y - 1, 0), y2 = Math.min(y + 2, height); y1 < y2; y1++)
+      for (int x1 = Math.max(x - 1, 0), x2 = Math.min(x + 2, width); x1 < x2; x1++) {
+        int pt = y1 * width + x1;
+        int z1 = zlow[pt];
+        if (z1 == Integer.MAX_VALUE)
+          continue;
+        int dz = Math.abs(z - z1);
+        if (dz < dzMin) {
+          dzMin = dz;
+          f = ao[pt];
+        }
+      }
+    return f;
+  }
+
+  private void darken(int offset, int f) {
+    int argb = pbuf[offset];
+    if (argb == 0 || zbuf[offset] == Integer.MAX_VALUE)
+      return;
+    pbuf[offset] = (argb & 0xFF000000)
+        | ((((argb & 0xFF00FF) * f) >> 8) & 0xFF00FF)
+        | ((((argb & 0xFF00) * f) >> 8) & 0xFF00);
+  }
+
+}
@@ -0,0 +1,331 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2011  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ *  02110-1301, USA.
+ */
+
+package org.jmol.g3d;
+
+import org.jmol.c.STER;
+import org.jmol.script.T;
+import org.jmol.thread.ParallelLoop;
+import org.jmol.util.Logger;
+import org.jmol.viewer.Viewer;
+
+/**
+ * Whole-buffer pixel passes of Graphics3D -- the antialiasing downsample of
+ * pixels and Z, the merge of the translucent buffer, and the anaglyph channel
+ * passes -- split into bands of rows that run on the Viewer's executor.
+ *
+ * A pass is only split when each band would have at least MIN_BAND_PIXELS
+ * pixels, so small windows (and JavaScript) run it as a single band on the
+ * rendering thread. The downsample is done in place when it is a single band;
+ * split, the bands write to a scratch buffer that is then copied back, since
+ * a band's output rows would overwrite the input rows of an earlier band.
+ *
+ * With SET showTiming TRUE, each pass is timed and logged along with its
+ * number of bands.
+ *
+ */
+class BufferPass extends ParallelLoop {
+
+  /**
+   * pixels per band below which threads are not worth it
+   */
+  final static int MIN_BAND_PIXELS = 1 << 17;
+
+  private final static int DOWNSAMPLE = 0;
+  private final static int DOWNSAMPLE_Z = 1;
+  private final static int MERGE = 2;
+  private final static int SNAPSHOT = 3;
+  private final static int ANAGLYPH = 4;
+
+  private final static String[] passNames = { "antialias downsample",
+      "antialias Z downsample", "translucent merge", "anaglyph snapshot",
+      "anaglyph" };
+
+  private Viewer vwr;
+  private int mode;
+
+  private int[] pbuf, zbuf, dst;
+  private int width, bgcheck;
+  private int[] pbufT;
+  private int bgcolor;
+  private byte[] channelBytes;
+  private STER stereoMode;
+  private int[] stereoColors;
+
+  /**
+   * band output for a split downsample; released with the buffers
+   */
+  int[] scratch;
+
+  BufferPass(Viewer vwr) {
+    this.vwr = vwr;
+  }
+
+  /**
+   * Reduce the 2x-by-2x antialiasing buffer to the window in place; optionally
+   * also the Z buffer, after the pixels, since the Z pass checks for
+   * background pixels.
+   *
+   * @param pbuf
+   * @param zbuf
+   *        or null to leave Z alone
+   * @param width
+   *        window width
+   * @param height
+   *        window height
+   * @param bgcheck
+   *        background color adjusted as in downsampleFullSceneAntialiasing
+   */
+  void downsample(int[] pbuf, int[] zbuf, int width, int height, int bgcheck) {
+    int n = width * height;
+    int nBands = Math.min(getChunkCount(vwr, n, MIN_BAND_PIXELS), height);
+    this.pbuf = pbuf;
+    this.width = width;
+    dst = (nBands > 1 ? getScratch(n) : pbuf);
+    this.bgcheck = bgcheck;
+    runPass(DOWNSAMPLE, height, nBands);
+    if (dst != pbuf)
+      System.arraycopy(dst, 0, pbuf, 0, n);
+    if (zbuf != null) {
+      this.zbuf = zbuf;
+      dst = (nBands > 1 ? dst : zbuf);
+      runPass(DOWNSAMPLE_Z, height, nBands);
+      if (dst != zbuf)
+        System.arraycopy(dst, 0, zbuf, 0, n);
+    }
+    this.pbuf = this.zbuf = dst = null;
+  }
+
+  /**
+   * Blend the translucent pass into the opaque buffer.
+   *
+   * @param pbuf
+   * @param pbufT
+   * @param bgcolor
+   */
+  void merge(int[] pbuf, int[] pbufT, int bgcolor) {
+    this.pbuf = pbuf;
+    this.pbufT = pbufT;
+    this.bgcolor = bgcolor;
+    int n = pbufT.length;
+    runPass(MERGE, n, getChunkCount(vwr, n, MIN_BAND_PIXELS));
+    this.pbuf = this.pbufT = null;
+  }
+
+  /**
+   * Save the blue channel of the first (left-eye) image.
+   *
+   * @param pbuf
+   * @param channelBytes
+   * @param n
+   */
+  void snapshot(int[] pbuf, byte[] channelBytes, int n) {
+    this.pbuf = pbuf;
+    this.channelBytes = channelBytes;
+    runPass(SNAPSHOT, n, getChunkCount(vwr, n, MIN_BAND_PIXELS));
+    this.pbuf = null;
+    this.channelBytes = null;
+  }
+
+  /**
+   * Combine the saved channel with the second image.
+   *
+   * @param pbuf
+   * @param channelBytes
+   * @param n
+   * @param stereoMode
+   * @param stereoColors
+   */
+  void applyAnaglyph(int[] pbuf, byte[] channelBytes, int n, STER stereoMode,
+                     int[] stereoColors) {
+    this.pbuf = pbuf;
+    this.channelBytes = channelBytes;
+    this.stereoMode = stereoMode;
+    this.stereoColors = stereoColors;
+    runPass(ANAGLYPH, n, getChunkCount(vwr, n, MIN_BAND_PIXELS));
+    this.pbuf = null;
+    this.channelBytes = null;
+    this.stereoColors = null;
+  }
+
+  private int[] getScratch(int n) {
+    if (scratch == null || scratch.length < n)
+      scratch = new int[n];
+    return scratch;
+  }
+
+  private void runPass(int mode, int n, int nBands) {
+    this.mode = mode;
+    String msg = (vwr.getBoolean(T.showtiming) ? passNames[mode] + " ("
+        + nBands + (nBands == 1 ? " band)" : " bands)") : null);
+    Logger.startTimer(msg);
+    run(vwr, n, nBands);
+    if (msg != null)
+      Logger.checkTimer(msg, false);
+  }
+
+  @Override
+  protected void runChunk(int iChunk, int i0, int i1) {
+    switch (mode) {
+    case DOWNSAMPLE:
+      downsampleRows(pbuf, dst, width, i0, i1, bgcheck);
+      break;
+    case DOWNSAMPLE_Z:
+      downsampleRowsZ(pbuf, zbuf, dst, width, i0, i1, bgcheck);
+      break;
+    case MERGE:
+      for (int i = i1; --i >= i0;)
+        pbuf[i] = Graphics3D.mergeBufferPixel(pbuf[i], pbufT[i], bgcolor);
+      break;
+    case SNAPSHOT:
+      for (int i = i1; --i >= i0;)
+        channelBytes[i] = (byte) pbuf[i];
+      break;
+    case ANAGLYPH:
+      anaglyphRange(pbuf, channelBytes, i0, i1, stereoMode, stereoColors);
+      break;
+    }
+  }
+
+  /**
+   * Downsample rows i0 through i1 - 1 of the window from rows 2 * i0 through 2
+   * * i1 - 1 of the double-width buffer pbuf into dst, which may be pbuf
+   * itself when all rows are done in order.
+   *
+   * @param pbuf
+   * @param dst
+   * @param width
+   * @param i0
+   * @param i1
+   * @param bgcheck
+   */
+  static void downsampleRows(int[] pbuf, int[] dst, int width, int i0, int i1,
+                             int bgcheck) {
+    int width4 = width << 1;
+    if (bgcheck != 0) {
+      bgcheck &= 0xFFFFFF;
+      for (int i = (i1 * width) << 2, i4 = (i0 * width) << 2; --i >= i4;)
+        if (pbuf[i] == 0)
+          pbuf[i] = bgcheck;
+    }
+    int bg0 = ((bgcheck >> 2) & 0x3F3F3F3F) << 2;
+    bg0 += (bg0 & 0xC0C0C0C0) >> 6;
+
+    int offset1 = i0 * width;
+    int offset4 = offset1 << 2;
+    for (int i = i1 - i0; --i >= 0; offset4 += width4)
+      for (int j = width; --j >= 0; ++offset1) {
+
+        /* more precise, but of no benefit:
+
+        int a = pbuf[offset4];
+        int b = pbuf[offset4++ + width4];
+        int c = pbuf[offset4];
+        int d = pbuf[offset4++ + width4];
+        int argb = ((((a & 0x0f0f0f) + (b & 0x0f0f0f)
+           + (c & 0x0f0f0f) + (d & 0x0f0f0f)) >> 2) & 0x0f0f0f)
+           + ( ((a & 0xF0F0F0) + (b & 0xF0F0F0)
+           +   (c & 0xF0F0F0) + (d & 0xF0F0F0)
+                ) >> 2);
+        */
+
+        int argb = ((pbuf[offset4] >> 2) & 0x3F3F3F3F)
+            + ((pbuf[offset4++ + width4] >> 2) & 0x3F3F3F3F)
+            + ((pbuf[offset4] >> 2) & 0x3F3F3F3F)
+            + ((pbuf[offset4++ + width4] >> 2) & 0x3F3F3F3F);
+        argb += (argb & 0xC0C0C0C0) >> 6;
+        if (argb == bg0)
+          argb = bgcheck;
+
+        /**
+         * I don't know why this is necessary.
+         *
+         * @j2sNative
+         *
+         *            dst[offset1] = argb & 0x00FFFFFF | 0xFF000000;
+         */
+        {
+          dst[offset1] = argb & 0x00FFFFFF;
+        }
+      }
+  }
+
+  private static void downsampleRowsZ(int[] pbuf, int[] zbuf, int[] dst,
+                                      int width, int i0, int i1, int bgcheck) {
+    int width4 = width << 1;
+    //we will add the alpha mask later
+    int offset1 = i0 * width;
+    int offset4 = offset1 << 2;
+    for (int i = i1 - i0; --i >= 0; offset4 += width4)
+      for (int j = width; --j >= 0; ++offset1, ++offset4) {
+        int z = Math.min(zbuf[offset4], zbuf[offset4 + width4]);
+        z = Math.min(z, zbuf[++offset4]);
+        z = Math.min(z, zbuf[offset4 + width4]);
+        if (z != Integer.MAX_VALUE)
+          z >>= 1;
+        dst[offset1] = (pbuf[offset1] == bgcheck ? Integer.MAX_VALUE : z);
+      }
+  }
+
+  private static void anaglyphRange(int[] pbuf, byte[] channelBytes, int i0,
+                                    int i1, STER stereoMode, int[] stereoColors) {
+    switch (stereoMode) {
+    case REDCYAN:
+      for (int i = i1; --i >= i0;) {
+        int blue = channelBytes[i] & 0x000000FF;
+        int cyan = (blue << 8) | blue;
+        pbuf[i] = pbuf[i] & 0xFFFF0000 | cyan;
+      }
+      break;
+    case CUSTOM:
+      //best if complementary, but they do not have to be
+      int color1 = stereoColors[0];
+      int color2 = stereoColors[1] & 0x00FFFFFF;
+      for (int i = i1; --i >= i0;) {
+        int a = channelBytes[i] & 0x000000FF;
+        a = (a | ((a | (a << 8)) << 8)) & color2;
+        pbuf[i] = (pbuf[i] & color1) | a;
+      }
+      break;
+    case REDBLUE:
+      for (int i = i1; --i >= i0;) {
+        int blue = channelBytes[i] & 0x000000FF;
+        pbuf[i] = (pbuf[i] & 0xFFFF0000) | blue;
+      }
+      break;
+    case REDGREEN:
+      for (int i = i1; --i >= i0;) {
+        int green = (channelBytes[i] & 0x000000FF) << 8;
+        pbuf[i] = (pbuf[i] & 0xFFFF0000) | green;
+      }
+      break;
+    case DTI:
+    case DOUBLE:
+    case NONE:
+      break;
+    }
+  }
+
+}
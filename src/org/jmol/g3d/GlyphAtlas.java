@@ -0,0 +1,189 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2011  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ *  02110-1301, USA.
+ */
+
+package org.jmol.g3d;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import javajs.awt.Font;
+import javajs.util.SB;
+
+/**
+ * The glyphs of one font, rasterized once into a shared grey-scale mask, from
+ * which TextRenderer composes the pixel map of a new string instead of having
+ * the platform draw and read back every distinct label.
+ *
+ * A glyph's cell is its advance plus pad pixels on each side, so overhanging
+ * glyphs are not clipped, and the cells of neighboring glyphs are combined the
+ * way the platform draws one glyph over another. All glyphs a string needs
+ * that are not yet in the mask are rasterized with a single platform call,
+ * separated by spaces. Only characters below MAX_CHAR (Latin, Greek,
+ * Cyrillic) are composed; other scripts may need shaping, so their strings
+ * are still rasterized whole.
+ *
+ */
+final class GlyphAtlas {
+
+  final static int MAX_CHAR = 0x0590;
+
+  /**
+   * all atlases are dropped when their masks together grow past this
+   */
+  private final static int MAX_ATLAS_BYTES = 1 << 22;
+
+  private final static Map<Font, GlyphAtlas> htAtlas = new Hashtable<Font, GlyphAtlas>();
+  private static int atlasBytes;
+
+  /**
+   * glyphs rasterized since the last report
+   */
+  static int glyphsAdded;
+
+  private final Font font;
+  private final int height, ascent, pad;
+
+  /**
+   * offset + 1 of each glyph's cell in mask; 0 if not rasterized yet
+   */
+  private final int[] offsets = new int[MAX_CHAR];
+  private final int[] advances = new int[MAX_CHAR];
+  private byte[] mask = new byte[256];
+  private int maskLength;
+
+  private GlyphAtlas(Font font) {
+    this.font = font;
+    height = font.getHeight();
+    ascent = font.getAscent();
+    pad = font.stringWidth(" ");
+  }
+
+  static GlyphAtlas getAtlas(Font font) {
+    GlyphAtlas atlas = htAtlas.get(font);
+    if (atlas == null) {
+      if (atlasBytes > MAX_ATLAS_BYTES)
+        clear();
+      htAtlas.put(font, atlas = new GlyphAtlas(font));
+    }
+    return atlas;
+  }
+
+  static void clear() {
+    htAtlas.clear();
+    atlasBytes = 0;
+  }
+
+  static boolean canCompose(String text) {
+    for (int i = text.length(); --i >= 0;) {
+      char ch = text.charAt(i);
+      if (ch < ' ' || ch >= MAX_CHAR)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param text
+   * @param width
+   *        the string width of text
+   * @param g3d
+   * @return grey-scale map of text, width by the font height, or null if the
+   *         platform did not rasterize the glyphs
+   */
+  byte[] compose(String text, int width, Graphics3D g3d) {
+    if (!addGlyphs(text, g3d))
+      return null;
+    byte[] map = new byte[width * height];
+    for (int i = 0, n = text.length(), x = 0; i < n; i++) {
+      char ch = text.charAt(i);
+      int cellWidth = advances[ch] + pad + pad;
+      int x0 = x - pad;
+      int j0 = Math.max(0, -x0);
+      int j1 = Math.min(cellWidth, width - x0);
+      for (int row = 0, pt0 = offsets[ch] - 1; row < height; row++, pt0 += cellWidth)
+        for (int j = j0, off = row * width + x0 + j0; j < j1; j++, off++) {
+          int a = mask[pt0 + j] & 0xFF;
+          if (a != 0) {
+            int b = map[off] & 0xFF;
+            map[off] = (byte) (b == 0 ? a : a + b - a * b / 255);
+          }
+        }
+      x += advances[ch];
+    }
+    return map;
+  }
+
+  private boolean addGlyphs(String text, Graphics3D g3d) {
+    String chars = "";
+    for (int i = 0, n = text.length(); i < n; i++) {
+      char ch = text.charAt(i);
+      if (offsets[ch] == 0 && chars.indexOf(ch) < 0)
+        chars += ch;
+    }
+    int nChars = chars.length();
+    if (nChars == 0)
+      return true;
+    // " a  b  c ": each glyph at least two pads from the next
+    SB sb = new SB();
+    int[] xs = new int[nChars];
+    for (int i = 0; i < nChars; i++) {
+      sb.append(i == 0 ? " " : "  ");
+      xs[i] = font.stringWidth(sb.toString());
+      sb.appendC(chars.charAt(i));
+    }
+    String s = sb.append(" ").toString();
+    int w = font.stringWidth(s);
+    int[] pixels = g3d.apiPlatform.getTextPixels(s, font, g3d.platform
+        .getGraphicsForTextOrImage(w, height), g3d.platform.offscreenImage, w,
+        height, ascent);
+    if (pixels == null)
+      return false;
+    for (int i = 0; i < nChars; i++) {
+      char ch = chars.charAt(i);
+      int advance = font.stringWidth(chars.substring(i, i + 1));
+      int cellWidth = advance + pad + pad;
+      int n = cellWidth * height;
+      if (maskLength + n > mask.length) {
+        byte[] m = new byte[Math.max(maskLength + n, mask.length << 1)];
+        System.arraycopy(mask, 0, m, 0, maskLength);
+        atlasBytes += m.length - mask.length;
+        mask = m;
+      }
+      int x0 = xs[i] - pad;
+      for (int row = 0, pt = maskLength; row < height; row++)
+        for (int j = 0; j < cellWidth; j++, pt++) {
+          int x = x0 + j;
+          if (x >= 0 && x < w)
+            mask[pt] = (byte) pixels[row * w + x];
+        }
+      offsets[ch] = maskLength + 1;
+      advances[ch] = advance;
+      maskLength += n;
+      glyphsAdded++;
+    }
+    return true;
+  }
+
+}
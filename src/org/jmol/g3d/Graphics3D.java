@@ -224,6 +224,12 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
   private TextString[] strings = null;
   private int stringCount;
 
+  /**
+   * the saved layer: pixels, Z, and pending strings
+   */
+  private int[] layerPbuf, layerZbuf;
+  private TextString[] layerStrings;
+
   @Override
   public void clear() {
     stringCount = 0;
@@ -242,6 +248,8 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
   }
 
   private byte[] anaglyphChannelBytes;
+  private BufferPass bufferPass;
+  private AmbientOcclusion occluder;
 
   private boolean twoPass = false;
 
@@ -263,7 +271,6 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
   private PixelatorShaded pixelShaded;
 
   protected int zMargin;
-  private int[] aobuf;
 
   void setZMargin(int dz) {
     zMargin = dz;
@@ -372,7 +379,6 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
           isImageWrite);
       pbuf = platform.pBuffer;
       zbuf = platform.zBuffer;
-      aobuf = null;
       pixel0.setBuf();
       if (pixelT0 != null)
         pixelT0.setBuf();
@@ -400,7 +406,11 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
     zbuf = null;
     pbufT = null;
     zbufT = null;
-    aobuf = null;
+    if (bufferPass != null)
+      bufferPass.scratch = null;
+    if (occluder != null)
+      occluder.zbufLow = occluder.aobuf = null;
+    clearLayer();
     platform.releaseBuffers();
     line3d.clearLineCache();
   }
@@ -418,6 +428,7 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
       zbufT = platform.zBufferT;
     }
     antialias2 = antialiasTranslucent;
+    occludePixels();
     if (antialiasThisFrame && !antialias2)
       downsampleFullSceneAntialiasing(true);
     platform.clearTBuffer();
@@ -435,31 +446,67 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
     if (!currentlyRendering)
       return;
     if (pbuf != null) {
+      if (!isPass2)
+        occludePixels();
       if (isPass2 && pbufT != null)
-        for (int offset = pbufT.length; --offset >= 0;)
-          pbuf[offset] = mergeBufferPixel(pbuf[offset], pbufT[offset], bgcolor);
+        getBufferPass().merge(pbuf, pbufT, bgcolor);
       
       if (pixel == pixelShaded && pixelShaded.zShadePower == 0)
         pixelShaded.showZBuffer();
-      
 
-      //      if (ambientOcclusion != 0) {
-      //        if (aobuf == null)
-      //          aobuf = new int[pbuf.length];
-      //        else
-      //          for (int offset = pbuf.length; --offset >= 0;)
-      //            aobuf[offset] = 0;
-      //        shader
-      //            .occludePixels(pbuf, zbuf, aobuf, width, height, ambientOcclusion);
-      //      }
+      zTiles = (saveZTiles && !antialiasThisFrame ? getZTiles() : null);
       if (antialiasThisFrame)
         downsampleFullSceneAntialiasing(false);
     }
+    if (vwr.getBoolean(T.showtiming)) {
+      sphere3d.logSpriteCache();
+      TextRenderer.logCache();
+    }
     platform.setBackgroundColor(bgcolor);
     platform.notifyEndOfRendering();
     currentlyRendering = isPass2 = false;
   }
 
+  /**
+   * The farthest opaque z of each tile of the window, for culling in the next
+   * frame; translucent pixels do not write zbuf.
+   * 
+   * @return tiles, row by row, zTilesWidth per row
+   */
+  private int[] getZTiles() {
+    int tw = zTilesWidth = ((width - 1) >> ZTILE_SHIFT) + 1;
+    int n = tw * (((height - 1) >> ZTILE_SHIFT) + 1);
+    int[] tiles = (zTiles != null && zTiles.length == n ? zTiles : new int[n]);
+    for (int i = n; --i >= 0;)
+      tiles[i] = 0;
+    int[] zb = zbuf;
+    for (int y = 0, offset = 0; y < height; y++) {
+      int row = (y >> ZTILE_SHIFT) * tw;
+      for (int x = 0; x < width; x++, offset++) {
+        int z = zb[offset];
+        int pt = row + (x >> ZTILE_SHIFT);
+        if (z > tiles[pt])
+          tiles[pt] = z;
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Ambient occlusion of the opaque pixels, before any translucent ones are
+   * drawn.
+   */
+  private void occludePixels() {
+    if (ambientOcclusion == 0)
+      return;
+    if (occluder == null)
+      occluder = new AmbientOcclusion(vwr);
+    occluder.occlude(pbuf, zbuf, width, height, antialiasThisFrame,
+        ambientOcclusionRadius * vwr.getScalePixelsPerAngstrom(false),
+        ambientOcclusionSamples,
+        ambientOcclusion);
+  }
+
   public static int mergeBufferPixel(int argbA, int argbB,
                                       int bgcolor) {
     if (argbB == 0 || argbA == argbB)
@@ -531,33 +578,11 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
   public void applyAnaglygh(STER stereoMode, int[] stereoColors) {
     switch (stereoMode) {
     case REDCYAN:
-      for (int i = anaglyphLength; --i >= 0;) {
-        int blue = anaglyphChannelBytes[i] & 0x000000FF;
-        int cyan = (blue << 8) | blue;
-        pbuf[i] = pbuf[i] & 0xFFFF0000 | cyan;
-      }
-      break;
     case CUSTOM:
-      //best if complementary, but they do not have to be
-      int color1 = stereoColors[0];
-      int color2 = stereoColors[1] & 0x00FFFFFF;
-      for (int i = anaglyphLength; --i >= 0;) {
-        int a = anaglyphChannelBytes[i] & 0x000000FF;
-        a = (a | ((a | (a << 8)) << 8)) & color2;
-        pbuf[i] = (pbuf[i] & color1) | a;
-      }
-      break;
     case REDBLUE:
-      for (int i = anaglyphLength; --i >= 0;) {
-        int blue = anaglyphChannelBytes[i] & 0x000000FF;
-        pbuf[i] = (pbuf[i] & 0xFFFF0000) | blue;
-      }
-      break;
     case REDGREEN:
-      for (int i = anaglyphLength; --i >= 0;) {
-        int green = (anaglyphChannelBytes[i] & 0x000000FF) << 8;
-        pbuf[i] = (pbuf[i] & 0xFFFF0000) | green;
-      }
+      getBufferPass().applyAnaglyph(pbuf, anaglyphChannelBytes,
+          anaglyphLength, stereoMode, stereoColors);
       break;
     case DTI:
     case DOUBLE:
@@ -574,8 +599,11 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
     if (anaglyphChannelBytes == null
         || anaglyphChannelBytes.length != anaglyphLength)
       anaglyphChannelBytes = new byte[anaglyphLength];
-    for (int i = anaglyphLength; --i >= 0;)
-      anaglyphChannelBytes[i] = (byte) pbuf[i];
+    getBufferPass().snapshot(pbuf, anaglyphChannelBytes, anaglyphLength);
+  }
+
+  private BufferPass getBufferPass() {
+    return (bufferPass == null ? bufferPass = new BufferPass(vwr) : bufferPass);
   }
 
   @Override
@@ -617,78 +645,16 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
     int bgcheck = bgcolor;
     if (downsampleZBuffer)
       bgcheck += ((bgcheck & 0xFF) == 0xFF ? -1 : 1);
-    downsample2d(pbuf, windowWidth, windowHeight, bgcheck);
+    getBufferPass().downsample(pbuf, downsampleZBuffer ? zbuf : null,
+        windowWidth, windowHeight, bgcheck);
     if (downsampleZBuffer) {
-      downsample2dZ(pbuf, zbuf, windowWidth, windowHeight, bgcheck);
       antialiasThisFrame = false;
       setWidthHeight(false);
     }
   }
 
   public static void downsample2d(int[] pbuf, int width, int height, int bgcheck) {
-    int width4 = width << 1;
-    if (bgcheck != 0) {
-      bgcheck &= 0xFFFFFF;
-      for (int i = pbuf.length; --i >= 0;)
-        if (pbuf[i] == 0)
-          pbuf[i] = bgcheck;
-    }
-    int bg0 = ((bgcheck >> 2) & 0x3F3F3F3F) << 2;
-    bg0 += (bg0 & 0xC0C0C0C0) >> 6;
-
-    int offset1 = 0;
-    int offset4 = 0;
-    for (int i = height; --i >= 0; offset4 += width4)
-      for (int j = width; --j >= 0; ++offset1) {
-
-        /* more precise, but of no benefit:
-
-        int a = pbuf[offset4];
-        int b = pbuf[offset4++ + width4];
-        int c = pbuf[offset4];
-        int d = pbuf[offset4++ + width4];
-        int argb = ((((a & 0x0f0f0f) + (b & 0x0f0f0f)
-           + (c & 0x0f0f0f) + (d & 0x0f0f0f)) >> 2) & 0x0f0f0f)
-           + ( ((a & 0xF0F0F0) + (b & 0xF0F0F0) 
-           +   (c & 0xF0F0F0) + (d & 0xF0F0F0)
-                ) >> 2);
-        */
-
-        int argb = ((pbuf[offset4] >> 2) & 0x3F3F3F3F)
-            + ((pbuf[offset4++ + width4] >> 2) & 0x3F3F3F3F)
-            + ((pbuf[offset4] >> 2) & 0x3F3F3F3F)
-            + ((pbuf[offset4++ + width4] >> 2) & 0x3F3F3F3F);
-        argb += (argb & 0xC0C0C0C0) >> 6;
-        if (argb == bg0)
-          argb = bgcheck;
-
-        /**
-         * I don't know why this is necessary.
-         * 
-         * @j2sNative
-         * 
-         *            pbuf[offset1] = argb & 0x00FFFFFF | 0xFF000000;
-         */
-        {
-          pbuf[offset1] = argb & 0x00FFFFFF;
-        }
-      }
-  }
-
-  private static void downsample2dZ(int[] pbuf, int[] zbuf, int width,
-                                    int height, int bgcheck) {
-    int width4 = width << 1;
-    //we will add the alpha mask later
-    int offset1 = 0, offset4 = 0;
-    for (int i = height; --i >= 0; offset4 += width4)
-      for (int j = width; --j >= 0; ++offset1, ++offset4) {
-        int z = Math.min(zbuf[offset4], zbuf[offset4 + width4]);
-        z = Math.min(z, zbuf[++offset4]);
-        z = Math.min(z, zbuf[offset4 + width4]);
-        if (z != Integer.MAX_VALUE)
-          z >>= 1;
-        zbuf[offset1] = (pbuf[offset1] == bgcheck ? Integer.MAX_VALUE : z);
-      }
+    BufferPass.downsampleRows(pbuf, pbuf, width, 0, height, bgcheck);
   }
 
   public boolean hasContent() {
@@ -1099,6 +1065,46 @@ final public class Graphics3D extends GData implements JmolRendererInterface {
 
   }
 
+  @Override
+  public boolean saveLayer() {
+    if (pbuf == null || isPass2)
+      return false;
+    int n = pbuf.length;
+    if (layerPbuf == null || layerPbuf.length != n) {
+      layerPbuf = new int[n];
+      layerZbuf = new int[n];
+    }
+    System.arraycopy(pbuf, 0, layerPbuf, 0, n);
+    System.arraycopy(zbuf, 0, layerZbuf, 0, n);
+    // same length, so that sorting gives the same order
+    layerStrings = (strings == null ? null : new TextString[strings.length]);
+    for (int i = stringCount; --i >= 0;)
+      layerStrings[i] = strings[i];
+    return true;
+  }
+
+  @Override
+  public boolean restoreLayer() {
+    if (layerPbuf == null || pbuf == null || isPass2
+        || layerPbuf.length != pbuf.length)
+      return false;
+    int n = pbuf.length;
+    System.arraycopy(layerPbuf, 0, pbuf, 0, n);
+    System.arraycopy(layerZbuf, 0, zbuf, 0, n);
+    strings = (layerStrings == null ? null : new TextString[layerStrings.length]);
+    stringCount = 0;
+    if (strings != null)
+      for (int i = 0, n1 = strings.length; i < n1 && layerStrings[i] != null; i++)
+        strings[stringCount++] = layerStrings[i];
+    return true;
+  }
+
+  @Override
+  public void clearLayer() {
+    layerPbuf = layerZbuf = null;
+    layerStrings = null;
+  }
+
   public static Comparator<TextString> sort;
 
   @Override
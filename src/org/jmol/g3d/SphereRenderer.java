@@ -26,10 +26,12 @@ package org.jmol.g3d;
 
 //import javax.vecmath.Vector4f;  !NO -- requires Vector4d in applet
 
+import javajs.util.AU;
 import javajs.util.M3;
 import javajs.util.M4;
 import javajs.util.P3;
 
+import org.jmol.util.Logger;
 import org.jmol.util.Shader;
 
 
@@ -81,6 +83,25 @@ public class SphereRenderer {
   private int slab;
   private int offsetPbufBeginLine;
 
+  /**
+   * Spheres too large for Shader.sphereShapeCache that are not clipped are
+   * drawn from sprites kept in Shader.sphereSpriteCache by diameter. Like
+   * sphereShapeCache, a sprite is one quadrant: for each row out from the
+   * center, its length and then each of its pixels as the z offset (8 bits)
+   * and the shade indexes of the four mirror-image pixels (6 bits each). A
+   * sprite holds shade indexes rather than ARGB, so one sprite serves every
+   * color. A sprite is made the second time
+   * its diameter is drawn, up to MAX_SPRITE_DIAMETER, since the very largest
+   * spheres are few and mostly clipped. Past MAX_SPRITE_PIXELS in all, the
+   * least recently used sprites are dropped. Changes in lighting drop them
+   * all, with sphereShapeCache.
+   */
+  private final static int MAX_SPRITE_DIAMETER = 511; // radius 255
+  private final static int MAX_SPRITE_PIXELS = 1 << 22;
+  private int[] spriteUse;
+  private int spriteClock, spritePixels, spriteCount;
+  private int spriteHits, spriteMisses, spriteEvictions;
+
   void render(int[] shades, int diameter, int x, int y,
               int z, M3 mat, double[] coef, M4 mDeriv,
               int selectedOctant, P3[] octantPoints) {
@@ -129,6 +150,18 @@ public class SphereRenderer {
       }
     }
     
+    if (mat == null && diameter > Shader.maxSphereCache
+        && diameter <= MAX_SPRITE_DIAMETER) {
+      radius = diameter / 2;
+      int[] sprite;
+      if (x - radius >= 0 && x + radius < width && y - radius >= 0
+          && y + radius < height && z - radius >= slab && z <= depth
+          && (sprite = getSprite(diameter)) != null) {
+        renderSprite(sprite, radius, z, shades);
+        zbuf = null;
+        return;
+      }
+    }
     if (mat != null || diameter > Shader.maxSphereCache) {
       renderQuadrant(-1, -1, x, y, z, diameter, shades);
       renderQuadrant(-1, 1, x, y, z, diameter, shades);
@@ -236,6 +269,121 @@ public class SphereRenderer {
       } while (--nLines > 0);
   }
 
+  /**
+   * Same pixels, depths and shades as the four unclipped quadrants.
+   *
+   * @param sprite
+   * @param radius
+   * @param z
+   * @param shades
+   */
+  private void renderSprite(int[] sprite, int radius, int z, int[] shades) {
+    int[] zb = zbuf;
+    int w = width;
+    int zMin = z - radius;
+    Pixelator p = g3d.pixel;
+    int offsetSouth = offsetPbufBeginLine;
+    int offsetNorth = offsetSouth;
+    for (int n = radius + 1, pt = 0; --n >= 0; offsetSouth += w, offsetNorth -= w) {
+      for (int j = sprite[pt++], offsetE = 0; --j >= 0; offsetE++) {
+        int packed = sprite[pt++];
+        int zPixel = z - (packed & 0xFF);
+        int offset = offsetSouth + offsetE;
+        if (zb[offset] > zMin && zPixel < zb[offset])
+          p.addPixel(offset, zPixel, shades[(packed >> 8) & 0x3F]);
+        offset = offsetSouth - offsetE;
+        if (zb[offset] > zMin && zPixel < zb[offset])
+          p.addPixel(offset, zPixel, shades[(packed >> 14) & 0x3F]);
+        offset = offsetNorth + offsetE;
+        if (zb[offset] > zMin && zPixel < zb[offset])
+          p.addPixel(offset, zPixel, shades[(packed >> 20) & 0x3F]);
+        offset = offsetNorth - offsetE;
+        if (zb[offset] > zMin && zPixel < zb[offset])
+          p.addPixel(offset, zPixel, shades[packed >>> 26]);
+      }
+    }
+  }
+
+  private int[] getSprite(int diameter) {
+    int[][] cache = shader.sphereSpriteCache;
+    if (cache == null) {
+      cache = shader.sphereSpriteCache = AU.newInt2(MAX_SPRITE_DIAMETER + 1);
+      spriteUse = new int[MAX_SPRITE_DIAMETER + 1];
+      spritePixels = spriteCount = 0;
+    }
+    boolean isNew = (spriteUse[diameter] == 0);
+    spriteUse[diameter] = ++spriteClock;
+    int[] sprite = cache[diameter];
+    if (sprite != null) {
+      spriteHits++;
+      return sprite;
+    }
+    spriteMisses++;
+    if (isNew)
+      return null;
+    sprite = cache[diameter] = newSprite(diameter);
+    spritePixels += sprite.length;
+    spriteCount++;
+    while (spritePixels > MAX_SPRITE_PIXELS && spriteCount > 1) {
+      int oldest = -1;
+      for (int i = cache.length; --i >= 0;)
+        if (cache[i] != null && i != diameter
+            && (oldest < 0 || spriteUse[i] < spriteUse[oldest]))
+          oldest = i;
+      spritePixels -= cache[oldest].length;
+      spriteCount--;
+      cache[oldest] = null;
+      spriteEvictions++;
+    }
+    return sprite;
+  }
+
+  private int[] newSprite(int diameter) {
+    int radius = diameter / 2;
+    int r2 = radius * radius;
+    int dDivisor = radius * 2 + 1;
+    byte[] indexes = shader.sphereShadeIndexes;
+    int[] rowLengths = new int[radius + 1];
+    int n = 0;
+    for (int i = 0; i <= radius; i++) {
+      int s2 = r2 - i * i;
+      int len = (int) Math.sqrt(s2);
+      while (len * len > s2)
+        len--;
+      while ((len + 1) * (len + 1) <= s2)
+        len++;
+      n += (rowLengths[i] = len + 1) + 1;
+    }
+    int[] sprite = new int[n];
+    for (int i = 0, pt = 0; i <= radius; i++) {
+      int s2 = r2 - i * i;
+      int ys = ((radius + i) << 8) / dDivisor << 8;
+      int yn = ((radius - i) << 8) / dDivisor << 8;
+      sprite[pt++] = rowLengths[i];
+      for (int j = 0; j < rowLengths[i]; j++) {
+        int xe = ((radius + j) << 8) / dDivisor;
+        int xw = ((radius - j) << 8) / dDivisor;
+        sprite[pt++] = (int) Math.sqrt(s2 - j * j)
+            | (indexes[ys + xe] << 8) | (indexes[ys + xw] << 14)
+            | (indexes[yn + xe] << 20) | (indexes[yn + xw] << 26);
+      }
+    }
+    return sprite;
+  }
+
+  /**
+   * For SHOW TIMING: sprite use since the last report.
+   */
+  void logSpriteCache() {
+    if (spriteHits + spriteMisses == 0)
+      return;
+    Logger.info("sphere sprites: " + spriteHits + " hits, " + spriteMisses
+        + " misses (" + (spriteHits * 100 / (spriteHits + spriteMisses))
+        + "% hit), " + spriteEvictions + " dropped, " + spriteCount
+        + " cached with " + spritePixels + " pixels");
+    spriteHits = spriteMisses = spriteEvictions = 0;
+  }
+
   private final static int SHADE_SLAB_CLIPPED = Shader.SHADE_INDEX_NORMAL - 5;
 
   private void renderSphereClipped(int[] sphereShape, int x, int y, int z, int diameter, int[] shades) {
@@ -24,10 +24,14 @@
 
 package org.jmol.g3d;
 
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.jmol.api.JmolRendererInterface;
+import org.jmol.util.Logger;
 
 import javajs.awt.Font;
 import javajs.util.CU;
@@ -40,6 +44,12 @@ import javajs.util.CU;
  * uses java fonts by rendering into an offscreen buffer.
  * strings are rasterized, and 4-bit translucency is stored as byte[] tmap.
  *<p>
+ * The map of a new string is composed from the font's GlyphAtlas when it can
+ * be, so the platform draws each glyph of a font only once. Maps are cached by
+ * font and string; when the cache holds more than MAX_CACHE_BYTES, the least
+ * recently used strings are dropped. SHOW TIMING reports the cache use of each
+ * frame.
+ *<p>
  *
  * @author Miguel, miguel@jmol.org
  * @author Bob Hanson, hansonr@stolaf.edu
@@ -73,11 +83,71 @@ class TextRenderer {
   private final static Map<Font, Map<String, TextRenderer>> htFont3d = new Hashtable<Font, Map<String, TextRenderer>>();
   private final static Map<Font, Map<String, TextRenderer>> htFont3dAntialias = new Hashtable<Font, Map<String, TextRenderer>>();
 
+  private final static int MAX_CACHE_BYTES = 1 << 23;
+
+  private int lastUsed;
+  private static int clock, cacheBytes, cacheCount;
+  private static int hits, misses, composed, evictions;
+
   synchronized static void clearFontCache() {
     if (working)
       return;
     htFont3d.clear();
     htFont3dAntialias.clear();
+    GlyphAtlas.clear();
+    cacheBytes = cacheCount = 0;
+  }
+
+  /**
+   * For SHOW TIMING: text map use since the last report.
+   */
+  synchronized static void logCache() {
+    if (hits + misses == 0)
+      return;
+    Logger.info("text maps: " + hits + " hits, " + misses + " misses ("
+        + (hits * 100 / (hits + misses)) + "% hit), " + composed
+        + " composed from " + GlyphAtlas.glyphsAdded + " new glyphs, "
+        + evictions + " dropped, " + cacheCount + " cached with " + cacheBytes
+        + " bytes");
+    hits = misses = composed = evictions = GlyphAtlas.glyphsAdded = 0;
+  }
+
+  /**
+   * Drop the least recently used maps of both caches until they hold at most
+   * three quarters of MAX_CACHE_BYTES.
+   */
+  private static void trimCache() {
+    int[] used = new int[cacheCount];
+    int n = 0;
+    for (int pass = 0; pass < 2; pass++)
+      for (Map<String, TextRenderer> h : (pass == 0 ? htFont3d
+          : htFont3dAntialias).values())
+        for (TextRenderer t : h.values())
+          if (n < used.length)
+            used[n++] = t.lastUsed;
+    Arrays.sort(used, 0, n);
+    // approximate: assume maps of average size
+    int nDrop = n - (int) ((long) n * (MAX_CACHE_BYTES * 3L / 4) / cacheBytes);
+    if (nDrop <= 0)
+      return;
+    int cutoff = used[Math.min(nDrop, n) - 1];
+    for (int pass = 0; pass < 2; pass++)
+      for (Iterator<Map<String, TextRenderer>> e = (pass == 0 ? htFont3d
+          : htFont3dAntialias).values().iterator(); e.hasNext();) {
+        Map<String, TextRenderer> h = e.next();
+        for (Iterator<Entry<String, TextRenderer>> e2 = h.entrySet().iterator(); e2
+            .hasNext();) {
+          TextRenderer t = e2.next().getValue();
+          if (t.lastUsed <= cutoff) {
+            e2.remove();
+            cacheBytes -= t.size;
+            cacheCount--;
+            evictions++;
+          }
+        }
+        if (h.isEmpty())
+          e.remove();
+      }
   }
 
   static int plot(int x, int y, int z, int argb, int bgargb,
@@ -225,13 +295,21 @@ class TextRenderer {
     }
     text3d.isInvalid = (text3d.width == 0 || x + text3d.width <= 0
         || x >= g3d.width || y + text3d.height <= 0 || y >= g3d.height);
-    if (text3d.isInvalid)
-      return text3d;
-    if (newFont)
-      ht.put(font3d, htForThisFont);
-    if (newText) {
-      text3d.setTranslucency(text, font3d, g3d);
-      htForThisFont.put(text, text3d);
+    if (!text3d.isInvalid) {
+      if (newFont)
+        ht.put(font3d, htForThisFont);
+      text3d.lastUsed = ++clock;
+      if (newText) {
+        misses++;
+        text3d.setTranslucency(text, font3d, g3d);
+        htForThisFont.put(text, text3d);
+        cacheBytes += text3d.size;
+        cacheCount++;
+        if (cacheBytes > MAX_CACHE_BYTES)
+          trimCache();
+      } else {
+        hits++;
+      }
     }
     TextRenderer.working = false;
     return text3d;
@@ -245,6 +323,18 @@ class TextRenderer {
    * @param g3d
    */
   private void setTranslucency(String text, Font font3d, Graphics3D g3d) {
+    byte[] map = (GlyphAtlas.canCompose(text) ? GlyphAtlas.getAtlas(font3d)
+        .compose(text, mapWidth, g3d) : null);
+    if (map != null) {
+      composed++;
+      tmap = new byte[size];
+      for (int i = size; --i >= 0;) {
+        int p = map[i] & 0xFF;
+        if (p != 0)
+          tmap[i] = translucency[p >> 5];
+      }
+      return;
+    }
     int[] pixels = g3d.apiPlatform.getTextPixels(text, font3d, g3d.platform
         .getGraphicsForTextOrImage(mapWidth, height),
         g3d.platform.offscreenImage, mapWidth, height, ascent);
@@ -33,6 +33,7 @@ import javajs.util.M3;
 import javajs.util.P3;
 import javajs.util.V3;
 import org.jmol.viewer.JC;
+import org.jmol.viewer.Viewer;
 
 import org.jmol.api.AtomIndexIterator;
 import org.jmol.api.JmolEnvCalc;
@@ -41,6 +42,7 @@ import org.jmol.atomdata.AtomDataServer;
 import org.jmol.atomdata.RadiusData;
 import org.jmol.atomdata.RadiusData.EnumType;
 import org.jmol.java.BS;
+import org.jmol.thread.ParallelLoop;
 
 /* ***************************************************************
  * 
@@ -138,7 +140,6 @@ import org.jmol.java.BS;
 public final class EnvelopeCalculation implements JmolEnvCalc {
 
   private BS geodesicMap;
-  private BS mapT;
 
   //Viewer vwr;
   private short[] mads;
@@ -164,7 +165,6 @@ public final class EnvelopeCalculation implements JmolEnvCalc {
     this.mads = mads;
     geodesicCount = Geodesic.getVertexCount(JC.ENV_CALC_MAX_LEVEL);
     geodesicMap = BS.newN(geodesicCount);
-    mapT = BS.newN(geodesicCount);
     EMPTY_SET = BSUtil.emptySet;
     return this;
   }
@@ -330,18 +330,68 @@ public final class EnvelopeCalculation implements JmolEnvCalc {
         modelZeroBased, false);
     //true ==> only atom index > this atom accepted
     checkNewDotsArray(); // possible that atoms have been added
+    int n = 0;
+    int[] list = new int[isAll ? ac : bsSelected.cardinality()];
     int i0 = (isAll ? ac - 1 : bsSelected.nextSetBit(0));
     for (int i = i0; i >= 0; i = (isAll ? i - 1 : bsSelected.nextSetBit(i + 1)))
-      if (bsIgnore == null || !bsIgnore.get(i)) {
-        setAtomI(i);
-        getNeighbors(iter);
-        calcConvexMap(isSurface);
-      }
+      if (bsIgnore == null || !bsIgnore.get(i))
+        list[n++] = i;
+    calcConvexMaps(iter, list, n, isSurface);
     iter.release();
     currentPoints = null;
     setDotsConvexMax();
   }
 
+  /**
+   * atoms per block: the neighbors of a block of atoms are found on this
+   * thread, since atom iterators share the model set's spatial index; then
+   * the convex maps of the block are calculated in parallel chunks, each with
+   * its own geodesic scratch maps.
+   */
+  private final static int BLOCK_ATOMS = 1 << 14;
+  private final static int MIN_ATOMS_PER_CHUNK = 256;
+
+  private void calcConvexMaps(AtomIndexIterator iter, final int[] list,
+                              int n, final boolean isSurface) {
+    Viewer v = (Viewer) vwr;
+    final int[] starts = new int[Math.min(n, BLOCK_ATOMS) + 1];
+    int[] nb = new int[16];
+    final ConvexMapper[] mappers = new ConvexMapper[ParallelLoop
+        .getChunkCount(v, Math.min(n, BLOCK_ATOMS), MIN_ATOMS_PER_CHUNK)];
+    for (int b0 = 0; b0 < n; b0 += BLOCK_ATOMS) {
+      final int b = b0;
+      int nBlock = Math.min(n - b0, BLOCK_ATOMS);
+      int nNeighbors = 0;
+      for (int k = 0; k < nBlock; k++) {
+        setAtomI(list[b0 + k]);
+        getNeighbors(iter);
+        starts[k] = nNeighbors;
+        if (nNeighbors + neighborCount > nb.length)
+          nb = AU.arrayCopyI(nb, Math.max(nb.length << 1, nNeighbors
+              + neighborCount));
+        for (int j = 0; j < neighborCount; j++)
+          nb[nNeighbors++] = neighborIndices[j];
+      }
+      starts[nBlock] = nNeighbors;
+      final int[] neighbors = nb;
+      new ParallelLoop() {
+        @Override
+        protected void runChunk(int iChunk, int i0, int i1) {
+          ConvexMapper m = mappers[iChunk];
+          if (m == null)
+            m = mappers[iChunk] = new ConvexMapper();
+          for (int k = i0; k < i1; k++)
+            m.calcConvexMap(list[b + k], neighbors, starts[k], starts[k + 1],
+                isSurface);
+        }
+      }.run(v, nBlock, Math.min(mappers.length, ParallelLoop.getChunkCount(v,
+          nBlock, MIN_ATOMS_PER_CHUNK)));
+    }
+    for (int i = mappers.length; --i >= 0;)
+      if (mappers[i] != null)
+        bsSurface.or(mappers[i].bsSurface);
+  }
+
   public float getRadius(int atomIndex) {
     return atomData.atomRadius[atomIndex];
   }
@@ -409,145 +459,173 @@ public final class EnvelopeCalculation implements JmolEnvCalc {
   private int indexI;
   private P3 centerI;
   private float radiusI;
-  private float radiiIP2;
-  private final P3 pointT = new P3();
 
   private void setAtomI(int indexI) {
     this.indexI = indexI;
     centerI = atomData.xyz[indexI];
     radiusI = atomData.atomRadius[indexI];
-    radiiIP2 = radiusI + radiusP;
-    radiiIP2 *= radiiIP2;
   }
 
-  private void calcConvexMap(boolean isSurface) {
-    calcConvexBits();
-    BS map;
-    if (geodesicMap.isEmpty())
-      map = EMPTY_SET;
-    else {
-      bsSurface.set(indexI);
-      if (isSurface) {
-        addIncompleteFaces(geodesicMap);
-        addIncompleteFaces(geodesicMap);
+  private static int[] power4 = { 1, 4, 16, 64, 256 };
+
+  /**
+   * The convex map of one atom at a time, given its neighbors, with its own
+   * geodesic scratch maps; the surface atoms it finds are collected in
+   * bsSurface.
+   */
+  private class ConvexMapper {
+
+    private final BS geodesicMap = BS.newN(geodesicCount);
+    private final BS mapT = BS.newN(geodesicCount);
+    private final P3 pointT = new P3();
+    private final P3[] vertexTest = new P3[12];
+    final BS bsSurface = new BS();
+
+    private int indexI;
+    private P3 centerI;
+    private float radiusI;
+    private int[] neighbors;
+    private int nb0, nb1;
+
+    ConvexMapper() {
+      for (int i = 0; i < 12; i++)
+        vertexTest[i] = new P3();
+    }
+
+    void calcConvexMap(int indexI, int[] neighbors, int nb0, int nb1,
+                       boolean isSurface) {
+      this.indexI = indexI;
+      centerI = atomData.xyz[indexI];
+      radiusI = atomData.atomRadius[indexI];
+      this.neighbors = neighbors;
+      this.nb0 = nb0;
+      this.nb1 = nb1;
+      calcConvexBits();
+      BS map;
+      if (geodesicMap.isEmpty())
+        map = EMPTY_SET;
+      else {
+        bsSurface.set(indexI);
+        if (isSurface) {
+          addIncompleteFaces(geodesicMap);
+          addIncompleteFaces(geodesicMap);
+        }
+        map = BSUtil.copy(geodesicMap);
       }
-      map = BSUtil.copy(geodesicMap);
+      dotsConvexMaps[indexI] = map;
     }
-    dotsConvexMaps[indexI] = map;
-  }
 
-  private void addIncompleteFaces(BS points) {
-    mapT.clearAll();
-    short[] faces = Geodesic.getFaceVertexes(JC.ENV_CALC_MAX_LEVEL);
-    int len = faces.length;
-    int maxPt = -1;
-    for (int f = 0; f < len;) {
-      short p1 = faces[f++];
-      short p2 = faces[f++];
-      short p3 = faces[f++];
-      boolean ok1 = points.get(p1);
-      boolean ok2 = points.get(p2);
-      boolean ok3 = points.get(p3);
-      if (!(ok1 || ok2 || ok3) || ok1 && ok2 && ok3)
-        continue;
+    private void addIncompleteFaces(BS points) {
+      mapT.clearAll();
+      short[] faces = Geodesic.getFaceVertexes(JC.ENV_CALC_MAX_LEVEL);
+      int len = faces.length;
+      int maxPt = -1;
+      for (int f = 0; f < len;) {
+        short p1 = faces[f++];
+        short p2 = faces[f++];
+        short p3 = faces[f++];
+        boolean ok1 = points.get(p1);
+        boolean ok2 = points.get(p2);
+        boolean ok3 = points.get(p3);
+        if (!(ok1 || ok2 || ok3) || ok1 && ok2 && ok3)
+          continue;
 
-      // trick: DO show faces if ANY ONE vertex is missing
-      if (!ok1) {
-        mapT.set(p1);
-        if (maxPt < p1)
-          maxPt = p1;
-      }
-      if (!ok2) {
-        mapT.set(p2);
-        if (maxPt < p2)
-          maxPt = p2;
+        // trick: DO show faces if ANY ONE vertex is missing
+        if (!ok1) {
+          mapT.set(p1);
+          if (maxPt < p1)
+            maxPt = p1;
+        }
+        if (!ok2) {
+          mapT.set(p2);
+          if (maxPt < p2)
+            maxPt = p2;
+        }
+        if (!ok3) {
+          mapT.set(p3);
+          if (maxPt < p3)
+            maxPt = p3;
+        }
       }
-      if (!ok3) {
-        mapT.set(p3);
-        if (maxPt < p3)
-          maxPt = p3;
+      for (int i = 0; i <= maxPt; i++) {
+        if (mapT.get(i))
+          points.set(i);
       }
     }
-    for (int i = 0; i <= maxPt; i++) {
-      if (mapT.get(i))
-        points.set(i);
-    }
-  }
-
-  private P3 centerT;
-
-  //level = 3 for both
-  private final P3[] vertexTest = new P3[12];
-  {
-    for (int i = 0; i < 12; i++)
-      vertexTest[i] = new P3();
-  }
 
-  private static int[] power4 = { 1, 4, 16, 64, 256 };
+    //level = 3 for both
 
-  private void calcConvexBits() {
-    geodesicMap.setBits(0, geodesicCount);
-    float combinedRadii = radiusI + radiusP;
-    if (neighborCount == 0)
-      return;
-    int faceTest;
-    int p1, p2, p3;
-    short[] faces = Geodesic.getFaceVertexes(JC.ENV_CALC_MAX_LEVEL);
-    int p4 = power4[JC.ENV_CALC_MAX_LEVEL - 1];
-    boolean ok1, ok2, ok3;
-    mapT.clearAll();
-    for (int i = 0; i < 12; i++) {
-      vertexTest[i].scaleAdd2(combinedRadii, Geodesic.getVertexVector(i),
-          centerI);
-    }
-    for (int f = 0; f < 20; f++) {
-      faceTest = 0;
-      p1 = faces[3 * p4 * (4 * f + 0)];
-      p2 = faces[3 * p4 * (4 * f + 1)];
-      p3 = faces[3 * p4 * (4 * f + 2)];
-      for (int j = 0; j < neighborCount; j++) {
-        float maxDist = neighborPlusProbeRadii2[j];
-        centerT = neighborCenters[j];
-        ok1 = vertexTest[p1].distanceSquared(centerT) >= maxDist;
-        ok2 = vertexTest[p2].distanceSquared(centerT) >= maxDist;
-        ok3 = vertexTest[p3].distanceSquared(centerT) >= maxDist;
-        if (!ok1)
-          geodesicMap.clear(p1);
-        if (!ok2)
-          geodesicMap.clear(p2);
-        if (!ok3)
-          geodesicMap.clear(p3);
-        if (!ok1 && !ok2 && !ok3) {
-          faceTest = -1;
-          break;
-        }
+    private void calcConvexBits() {
+      geodesicMap.setBits(0, geodesicCount);
+      float combinedRadii = radiusI + radiusP;
+      if (nb0 == nb1)
+        return;
+      int faceTest;
+      int p1, p2, p3;
+      short[] faces = Geodesic.getFaceVertexes(JC.ENV_CALC_MAX_LEVEL);
+      int p4 = power4[JC.ENV_CALC_MAX_LEVEL - 1];
+      boolean ok1, ok2, ok3;
+      P3[] xyz = atomData.xyz;
+      float[] radii = atomData.atomRadius;
+      P3 centerT;
+      mapT.clearAll();
+      for (int i = 0; i < 12; i++) {
+        vertexTest[i].scaleAdd2(combinedRadii, Geodesic.getVertexVector(i),
+            centerI);
       }
-      int kFirst = f * 12 * p4;
-      int kLast = kFirst + 12 * p4;
-      for (int k = kFirst; k < kLast; k++) {
-        int vect = faces[k];
-        if (mapT.get(vect) || !geodesicMap.get(vect))
-          continue;
-        switch (faceTest) {
-        case -1:
-          //face full occluded
-          geodesicMap.clear(vect);
-          break;
-        case 0:
-          //face partially occluded
-          for (int j = 0; j < neighborCount; j++) {
-            float maxDist = neighborPlusProbeRadii2[j];
-            centerT = neighborCenters[j];
-            pointT.scaleAdd2(combinedRadii, Geodesic.getVertexVector(vect),
-                centerI);
-            if (pointT.distanceSquared(centerT) < maxDist)
-              geodesicMap.clear(vect);
+      for (int f = 0; f < 20; f++) {
+        faceTest = 0;
+        p1 = faces[3 * p4 * (4 * f + 0)];
+        p2 = faces[3 * p4 * (4 * f + 1)];
+        p3 = faces[3 * p4 * (4 * f + 2)];
+        for (int j = nb0; j < nb1; j++) {
+          int iN = neighbors[j];
+          float maxDist = radii[iN] + radiusP;
+          maxDist *= maxDist;
+          centerT = xyz[iN];
+          ok1 = vertexTest[p1].distanceSquared(centerT) >= maxDist;
+          ok2 = vertexTest[p2].distanceSquared(centerT) >= maxDist;
+          ok3 = vertexTest[p3].distanceSquared(centerT) >= maxDist;
+          if (!ok1)
+            geodesicMap.clear(p1);
+          if (!ok2)
+            geodesicMap.clear(p2);
+          if (!ok3)
+            geodesicMap.clear(p3);
+          if (!ok1 && !ok2 && !ok3) {
+            faceTest = -1;
+            break;
           }
-          break;
-        case 1:
-          //face is fully surface
         }
-        mapT.set(vect);
+        int kFirst = f * 12 * p4;
+        int kLast = kFirst + 12 * p4;
+        for (int k = kFirst; k < kLast; k++) {
+          int vect = faces[k];
+          if (mapT.get(vect) || !geodesicMap.get(vect))
+            continue;
+          switch (faceTest) {
+          case -1:
+            //face full occluded
+            geodesicMap.clear(vect);
+            break;
+          case 0:
+            //face partially occluded
+            for (int j = nb0; j < nb1; j++) {
+              int iN = neighbors[j];
+              float maxDist = radii[iN] + radiusP;
+              maxDist *= maxDist;
+              centerT = xyz[iN];
+              pointT.scaleAdd2(combinedRadii, Geodesic.getVertexVector(vect),
+                  centerI);
+              if (pointT.distanceSquared(centerT) < maxDist)
+                geodesicMap.clear(vect);
+            }
+            break;
+          case 1:
+            //face is fully surface
+          }
+          mapT.set(vect);
+        }
       }
     }
   }
@@ -565,9 +643,6 @@ public final class EnvelopeCalculation implements JmolEnvCalc {
 
   private int neighborCount;
   private int[] neighborIndices = new int[16];
-  private P3[] neighborCenters = new P3[16];
-  private float[] neighborPlusProbeRadii2 = new float[16];
-  private float[] neighborRadii2 = new float[16];
 
   private AtomIndexIterator getNeighbors(AtomIndexIterator iter) {
     neighborCount = 0;
@@ -580,18 +655,9 @@ public final class EnvelopeCalculation implements JmolEnvCalc {
       if (centerI.distance(atomData.xyz[indexN]) > radiusI + radiusP
           + radiusP + neighborRadius)
         continue;
-      if (neighborCount == neighborIndices.length) {
+      if (neighborCount == neighborIndices.length)
         neighborIndices = AU.doubleLengthI(neighborIndices);
-        neighborCenters = (P3[]) AU.doubleLength(neighborCenters);
-        neighborPlusProbeRadii2 = AU.doubleLengthF(neighborPlusProbeRadii2);
-        neighborRadii2 = AU.doubleLengthF(neighborRadii2);
-      }
-      neighborCenters[neighborCount] = atomData.xyz[indexN];
-      neighborIndices[neighborCount] = indexN;
-      float r = neighborRadius + radiusP;
-      neighborPlusProbeRadii2[neighborCount] = r * r;
-      neighborRadii2[neighborCount] = neighborRadius * neighborRadius;
-      ++neighborCount;
+      neighborIndices[neighborCount++] = indexN;
     }
     return iter;
   }
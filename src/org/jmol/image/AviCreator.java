@@ -24,30 +24,34 @@
 
 package org.jmol.image;
 
-//import java.io.File;
-//import java.io.FileOutputStream;
-//import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javajs.img.JpgEncoder;
+import javajs.util.AU;
+import javajs.util.OC;
 
 import org.jmol.api.JmolMovieCreatorInterface;
-//import org.jmol.util.Logger;
+import org.jmol.thread.ParallelLoop;
+import org.jmol.util.Logger;
 import org.jmol.viewer.Viewer;
 
 /*
  * by Bob Hanson, hansonr@stolaf.edu  9/26/2008
  * 
- * status: useless, not well tested. Experimental. Probably to be removed.
- * 
- * Create a movie from a set of JPG images.
- * http://msdn.microsoft.com/en-us/library/ms779631(VS.85).aspx
-
- * unfortunately, I think the JPEGs that Jmol creates are
- * not appropriate for AVI insertion. Still, this class
- * does appear to creat genuine AVI files.
- * 
- * What we could do is use the pixelGrabber to get the pixels from 
- * the JPG or other image source (see ImageJ http://rsbweb.nih.gov/ij/
- * and AviReader http://rsbweb.nih.gov/ij/plugins/avi-reader.html)
+ * Streaming MJPEG AVI writer for CAPTURE "xxx.avi".
  * 
+ * Frames arrive as pixel arrays straight from the screen buffer. With
+ * SET multiProcessor, they are JPEG-encoded on the viewer's executor, at most
+ * MAX_PENDING frames at a time; the rendering thread blocks when that many are
+ * pending (a bounded queue) and writes finished frames to the file in order.
+ * No temporary image files are written. The header sizes are filled in, and
+ * the index appended, when the movie ends.
  * 
  * (http://www.digitalpreservation.gov/formats/fdd/fdd000063.shtml)
  *  <quote>
@@ -55,17 +59,15 @@ import org.jmol.viewer.Viewer;
  *  newsgroup in 2001, commented that "MJPEG, or at 
  *  least the MJPEG in AVIs having the MJPG fourcc, 
  *  is restricted JPEG with a fixed -- and *omitted* 
- *  -- Huffman table. The JPEG must be YCbCr 
- *  colorspace, it must be 4:2:2, and it must use 
- *  basic Huffman encoding, not arithmetic or 
- *  progressive. . . . You can indeed extract the 
+ *  -- Huffman table. ... You can indeed extract the 
  *  MJPEG frames and decode them with a regular 
  *  JPEG decoder, but you have to prepend the DHT 
- *  segment to them, or else the decoder won't have 
- *  any idea how to decompress the data. The exact 
- *  table necessary is given in the OpenDML spec."
+ *  segment to them ..."
  *  </quote>
-
+ *  
+ * Our frames are full JPEG files (DHT included) with the APP0 tag changed to
+ * AVI1, which current players and decoders accept.
+ * 
  RIFF ('AVI '
       LIST ('hdrl'
             'avih'(<Main AVI Header>)
@@ -94,431 +96,303 @@ import org.jmol.viewer.Viewer;
  */
 
 public class AviCreator implements JmolMovieCreatorInterface {
-/*
-  final int AVIF_HASINDEX = 0x10;
-  final int AVIF_MUSTUSEINDEX = 0x20;
-  final int AVIF_ISINTERLEAVED = 0x100;
-  final int AVIF_TRUSTCKTYPE = 0x800;
-  final int AVIF_WASCAPTUREFILE = 0x10000;
-  final int AVIF_COPYRIGHTED = 0x20000;
-  final int AVIIF_KEYFRAME = 0x10;
-  FileOutputStream os;
-*/
-  String errorMsg;
-
- 
-  @Override
-  public String createMovie(Viewer vwr, String[] files, int width,
-                            int height, int fps, String fileName) {
-    /*
-    this.vwr = vwr;
-    int frames = files.length;
-    JpgData[] jpgData = new JpgData[frames];
-    int nBytesJpg = setJpgData(files, jpgData);
-    AviHeader avih = new AviHeader(width, height, frames, fps, nBytesJpg);
-    AviStrh strh = new AviStrh(frames, fps);
-    AviStrf strf = new AviStrf(width, height);
-    ListStrl strl = new ListStrl(strh, strf, frames);
-    ListHdrl hdrl = new ListHdrl(avih, strl);
-    ListMovi movi = new ListMovi(jpgData, nBytesJpg);
-    RiffFile rf = new RiffFile(hdrl, movi);
-    errorMsg = null;
-    try {
-      os = new FileOutputStream(fileName);
-      rf.write();
-      os.flush();
-    } catch (Exception exc) {
-      if (exc != null) {
-        Logger.error("IO Exception", exc);
-        errorMsg = exc.toString();
-      }
-    } finally {
-      try {
-        os.close();
-      } catch (IOException e) {
-      }
-    }
-    */
-    return errorMsg;
-  }
 
-/*  void putInt(int i) throws IOException {
-    putByte((byte)(i % 0x100));  i /= 0x100;
-    putByte((byte)(i % 0x100));  i /= 0x100;
-    putByte((byte)(i % 0x100));  i /= 0x100;
-    putByte((byte)(i % 0x100));
-  }
-
-  void putByte(byte b) throws IOException {
-    os.write(b);
-  }
-
-  void putBytes(byte[] bytes) throws IOException {
-    os.write(bytes);
-  }
+  private final static int AVIF_HASINDEX = 0x10;
+  private final static int AVIIF_KEYFRAME = 0x10;
 
-  static int toInt(String s) {
-    return 0 + s.charAt(0) 
-        + (((int) s.charAt(1)) << 8)
-        + (((int) s.charAt(2)) << 16) 
-        + (((int) s.charAt(3)) << 24);
-  }
+  private final static int MAX_PENDING = 8;
 
-  private class JpgData {
-    File file;
-    int length;
-    int offset;
-    int paddedLength;
-    int nExtra;
-    
-    JpgData(File file) {
-      this.file = file;
-      length = (int) file.length();
-      nExtra =  (4 - (length % 4)) % 4;
-      paddedLength = length + nExtra;
-    } 
-    
-    int getLength() {
-      return length;
-    }
-    
-    void setOffset(int offset) {
-      this.offset = offset;
-    }
-  }
+  // offsets of values filled in at the end
+  private final static int PT_RIFF_SIZE = 4;
+  private final static int PT_AVIH_MAX_BYTES_PER_SEC = 36;
+  private final static int PT_AVIH_TOTAL_FRAMES = 48;
+  private final static int PT_AVIH_BUFFER_SIZE = 60;
+  private final static int PT_STRH_LENGTH = 140;
+  private final static int PT_STRH_BUFFER_SIZE = 144;
+  private final static int PT_MOVI_SIZE = 216;
+  private final static int PT_MOVI = 220;
+  private final static int HEADER_SIZE = 224;
 
-  private int setJpgData(String[] files, JpgData[] jpgData) {
-    int nBytes = 0;
-    for (int i = 0; i < files.length; i++) {
-      jpgData[i] = new JpgData(new File(files[i]));
-      nBytes += jpgData[i].paddedLength;
-    }
-    return nBytes;
-  }
-  
-  static int HDR_SIZE = 8;
-  private class Hdr {
-    
-    int type;
-    int size;
+  private String fileName;
+  private int fps;
+  private int quality;
+  private int width, height;
 
-    Hdr(String type, int size) {
-      this.type = toInt(type);
-      this.size = size;
-    }
+  private RandomAccessFile raf;
+  private long filePos;
+  private Executor executor;
 
-    void write()  throws IOException {
-      putInt(type);
-      putInt(size);
-    }
-  }
+  private int nFrames; // submitted
+  private int nWritten;
+  private byte[][] pending = new byte[MAX_PENDING][];
+  private String errorMsg;
 
-  static int LIST_HDR_SIZE = HDR_SIZE + 4;
-  private class ListHdr {
-    
-    Hdr hdr;
-    int type;
+  private int[] frameOffsets = new int[256];
+  private int[] frameLengths = new int[256];
+  private int maxFrameLength;
 
-    ListHdr(String type, int size) {
-      hdr = new Hdr("LIST", size + 4);
-      this.type = toInt(type);
-    }
+  private long t0;
 
-    void write()  throws IOException {
-      hdr.write();
-      putInt(type);
+  @Override
+  public String startMovie(Viewer vwr, String fileName, int fps, int quality) {
+    this.fileName = fileName;
+    this.fps = (fps <= 0 ? 10 : fps);
+    this.quality = quality;
+    executor = (ParallelLoop.getChunkCount(vwr, MAX_PENDING, 1) > 1 ? (Executor) vwr
+        .getExecutor()
+        : null);
+    try {
+      raf = new RandomAccessFile(fileName, "rw");
+      raf.setLength(0);
+    } catch (IOException e) {
+      return errorMsg = "ERROR: " + e;
     }
+    return null;
   }
 
-  private class ListMovi {
-    
-    JpgData[] jpgData;
-    int nBytesJpg;
-    int frames;
-    
-    ListMovi(JpgData[] jpgData, int nBytesJpg) {
-      this.jpgData = jpgData;
-      this.nBytesJpg = nBytesJpg;
-      frames = jpgData.length;
-      listHdr = new ListHdr("movi", getLength(false) - LIST_HDR_SIZE);
-    }
-    
-    int getLength(boolean addIndex) {
-      return LIST_HDR_SIZE + 8 * frames + nBytesJpg + 
-        (addIndex ? HDR_SIZE + 16 * frames : 0);
-    }
-    
-    ListHdr listHdr;
-
-    boolean write()  throws IOException {
-      listHdr.write();
-      int offset = HDR_SIZE + LIST_HDRL_SIZE + HDR_SIZE + HDR_SIZE;
-      for (int i = 0; i < frames; i++) {
-        putInt(toInt("00db"));
-        JpgData d = jpgData[i];
-        d.offset = offset;
-        offset += d.paddedLength;
-        putInt(d.paddedLength);
-        Object ret = vwr.getFileAsBytes(d.file.getAbsolutePath());
-        if (ret instanceof String) {
-          errorMsg = (String) ret;
-          return false;
+  @Override
+  public String addFrame(final int[] pixels, int width, int height) {
+    if (errorMsg != null)
+      return errorMsg;
+    try {
+      if (nFrames == 0) {
+        this.width = width;
+        this.height = height;
+        t0 = System.currentTimeMillis();
+        writeHeader();
+      } else if (width != this.width || height != this.height) {
+        return "ERROR: AVI frame size cannot change from " + this.width + "x"
+            + this.height;
+      }
+      final int iFrame = nFrames++;
+      if (executor == null) {
+        byte[] jpg = getJpeg(pixels);
+        synchronized (this) {
+          pending[iFrame % MAX_PENDING] = jpg;
+          writeReady();
         }
-        byte[] bytes = (byte[]) ret;
-        if (bytes.length > 10) {
-          bytes[6] = (byte) 'a';
-          bytes[7] = (byte) 'v';
-          bytes[8] = (byte) 'i';
-          bytes[9] = (byte) '1';
+      } else {
+        synchronized (this) {
+          // the bounded queue: wait for the oldest pending frame if need be
+          while (writeReady() && iFrame - nWritten >= MAX_PENDING)
+            wait();
+        }
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            byte[] jpg = null;
+            try {
+              jpg = getJpeg(pixels);
+            } catch (Throwable e) {
+              errorMsg = "ERROR: " + e;
+            }
+            synchronized (AviCreator.this) {
+              pending[iFrame % MAX_PENDING] = (jpg == null ? new byte[0] : jpg);
+              AviCreator.this.notifyAll();
+            }
+          }
+        });
+        synchronized (this) {
+          writeReady();
         }
-        putBytes(bytes);
-        for (int j = 0; j < d.nExtra; j++)
-          putByte((byte) 0);
-      }
-      (new Hdr("idx1", 16 * frames)).write();
-      for (int i = 0; i < jpgData.length; i++) {
-        (new Hdr("00db", AVIIF_KEYFRAME)).write();
-        JpgData d = jpgData[i];
-        putInt(d.offset);
-        putInt(d.length);
       }
-      return true;
-    }
-  }
-  
-  private class RiffFile {
-    
-    RiffFile(ListHdrl hdrl, ListMovi movi) {
-      int fileSize = 4 + LIST_HDRL_SIZE + movi.getLength(true);
-      hdr = new Hdr("RIFF", fileSize);
-      this.hdrl = hdrl;
-      this.movi = movi;
-    }
-
-    Hdr hdr;
-    int fileType = toInt("AVI ");
-    ListHdrl hdrl;
-    ListMovi movi;
-
-    void write()  throws IOException {
-      hdr.write();
-      putInt(fileType);
-      hdrl.write();
-      movi.write();
+    } catch (Exception e) {
+      errorMsg = "ERROR: " + e;
     }
+    return (errorMsg != null ? errorMsg : nFrames + " frames " + getRate());
   }
 
-  final int AVI_HEADER_SIZE = HDR_SIZE + 14 * 4;
-  private class AviHeader {
-
-    AviHeader(int width, int height, int frames, int fps, int nBytes) {
-      dwWidth = width;
-      dwHeight = height;
-      dwTotalFrames = frames;
-      dwMicroSecPerFrame = 1000000 / fps;
-      dwMaxBytesPerSec = nBytes / frames  * fps;
+  @Override
+  public String endMovie(boolean isCancel) {
+    try {
+      if (!isCancel && errorMsg == null && nFrames > 0) {
+        synchronized (this) {
+          while (writeReady() && nWritten < nFrames)
+            wait();
+        }
+        if (errorMsg == null)
+          writeIndex();
+      }
+      raf.close();
+    } catch (Exception e) {
+      if (errorMsg == null)
+        errorMsg = "ERROR: " + e;
     }
-    
-    Hdr hdr = new Hdr("avih", AVI_HEADER_SIZE - HDR_SIZE);
-
-    int dwMicroSecPerFrame;
-    int dwMaxBytesPerSec;
-    int dwPaddingGranularity = 0;
-    int dwFlags = 0;//AVIF_HASINDEX;
-    int dwTotalFrames;
-    int dwInitialFrames = 0;
-    int dwStreams = 1;
-    int dwSuggestedBufferSize = 0;
-    int dwWidth;
-    int dwHeight;
-    int dwReserved1 = 0;
-    int dwReserved2 = 0;
-    int dwReserved3 = 0;
-    int dwReserved4 = 0;
-
-    void write()  throws IOException {
-      hdr.write();
-      putInt(dwMicroSecPerFrame);
-      putInt(dwMaxBytesPerSec);
-      putInt(dwPaddingGranularity);
-      putInt(dwFlags);
-      putInt(dwTotalFrames);
-      putInt(dwInitialFrames);
-      putInt(dwStreams);
-      putInt(dwSuggestedBufferSize);
-      putInt(dwWidth);
-      putInt(dwHeight);
-      putInt(dwReserved1);
-      putInt(dwReserved2);
-      putInt(dwReserved3);
-      putInt(dwReserved4);
+    if (isCancel || errorMsg != null || nFrames == 0) {
+      new File(fileName).delete();
+      return (errorMsg != null ? errorMsg : isCancel ? "canceled" : "ERROR: no frames");
     }
+    String msg = nFrames + " frames " + width + "x" + height + " " + filePos
+        + " bytes " + getRate();
+    Logger.info("AviCreator " + fileName + " " + msg);
+    return msg;
   }
 
-  final int AVI_STRH_SIZE = HDR_SIZE + 14 * 4;
-  private class AviStrh {
-
-    AviStrh(int frames, int fps) {
-      length = frames;
-      this.rate = fps * scale;
-    }
-    
-    Hdr hdr = new Hdr("strh", AVI_STRH_SIZE - HDR_SIZE); 
-    int type = toInt("vids");
-    int handler = toInt("MJPG");
-    int flags = 0;
-    int priorityLanguage = 0;
-    int init_frames = 0;
-    int scale = 1000000;
-    int rate;
-    int start = 0;
-    int length;
-    int buff_sz = 0;
-    int quality = 0;
-    int sample_sz = 0;
-    int leftTop = 0;
-    int rightBottom = 0;
-
-    void write()  throws IOException {
-      hdr.write();
-      putInt(type);
-      putInt(handler);
-      putInt(flags);
-      putInt(priorityLanguage);
-      putInt(init_frames);
-      putInt(scale);
-      putInt(rate);
-      putInt(start);
-      putInt(length);
-      putInt(buff_sz);
-      putInt(quality);
-      putInt(sample_sz);
-      putInt(leftTop);
-      putInt(rightBottom);
-    }
-
+  private String getRate() {
+    long dt = System.currentTimeMillis() - t0;
+    return "(" + (dt == 0 ? "-" : "" + Math.round(nFrames * 10000f / dt) / 10f)
+        + " frames/sec)";
   }
 
-  final int AVI_STRF_SIZE = HDR_SIZE + 16 * 4;
-  private class AviStrf {
-
-    AviStrf(int width, int height) {
-      this.width = width;
-      this.height = height;
-      image_sz = width * height * 6; // maybe twice this?
-    }
-
-    int size = AVI_STRF_SIZE - HDR_SIZE;
-    Hdr hdr = new Hdr("strf", size);
-    int width;
-    int height;
-    int planes_bit_cnt = 1 + 24 * 256 * 256; // 0x  
-    int compression = toInt("MJPG");
-    int image_sz;
-    int xpels_meter;
-    int ypels_meter;
-    int num_colors;
-    int imp_colors;
-    int x1 = 18;
-    int x2 = 0;
-    int x3 = 2;
-    int x4 = 8;
-    int x5 = 2;
-    int x6 = 2;
-    
-    void write()  throws IOException {
-      hdr.write();
-      putInt(size);
-      putInt(width);
-      putInt(height);
-      putInt(planes_bit_cnt);
-      putInt(compression);
-      putInt(image_sz);
-      putInt(xpels_meter);
-      putInt(ypels_meter);
-      putInt(num_colors);
-      putInt(imp_colors);
-      putInt(x1);
-      putInt(x2);
-      putInt(x3);
-      putInt(x4);
-      putInt(x5);
-      putInt(x6);
+  /**
+   * Write finished frames in order. Called with this locked.
+   * 
+   * @return true (for use in wait loops)
+   * @throws IOException
+   */
+  private boolean writeReady() throws IOException {
+    byte[] jpg;
+    while (nWritten < nFrames
+        && (jpg = pending[nWritten % MAX_PENDING]) != null) {
+      pending[nWritten % MAX_PENDING] = null;
+      if (errorMsg == null)
+        writeFrame(jpg);
+      nWritten++;
+      notifyAll();
     }
+    return true;
   }
 
-  final int LIST_ODML_SIZE = LIST_HDR_SIZE + HDR_SIZE + 4;
-  private class ListOdml {
-
-    ListOdml(int frames) {
-      this.frames = frames;
-    }
-    
-    ListHdr listHdr = new ListHdr("odml", LIST_ODML_SIZE - LIST_HDR_SIZE);
-    Hdr hdr = new Hdr("dmlh", 4);
-    int frames;
-    
-    void write()  throws IOException {
-      listHdr.write();
-      hdr.write();
-      putInt(frames);
+  protected byte[] getJpeg(int[] pixels) throws Exception {
+    Map<String, Object> params = new Hashtable<String, Object>();
+    params.put("imageWidth", Integer.valueOf(width));
+    params.put("imageHeight", Integer.valueOf(height));
+    params.put("imagePixels", pixels);
+    params.put("quality", Integer.valueOf(quality));
+    params.put("comment", "");
+    OC out = new OC().setParams(null, null, false,
+        new ByteArrayOutputStream(width * height / 4));
+    new JpgEncoder().createImage("jpg", out, params);
+    byte[] jpg = out.toByteArray();
+    if (jpg.length > 10 && jpg[6] == 'J') {
+      // JFIF -> AVI1
+      jpg[6] = 'A';
+      jpg[7] = 'V';
+      jpg[8] = 'I';
+      jpg[9] = '1';
     }
+    return jpg;
   }
 
-  final int LIST_STRL_SIZE = LIST_HDR_SIZE + AVI_STRH_SIZE + AVI_STRF_SIZE + LIST_ODML_SIZE;  
-  private class ListStrl {
+  private void writeHeader() throws IOException {
+    byte[] b = new byte[HEADER_SIZE];
+    int pt = 0;
+    pt = putFourCC(b, pt, "RIFF");
+    pt = putInt(b, pt, 0); // file size - 8
+    pt = putFourCC(b, pt, "AVI ");
+    pt = putFourCC(b, pt, "LIST");
+    pt = putInt(b, pt, 192); // through strf
+    pt = putFourCC(b, pt, "hdrl");
+    pt = putFourCC(b, pt, "avih");
+    pt = putInt(b, pt, 56);
+    pt = putInt(b, pt, 1000000 / fps);
+    pt = putInt(b, pt, 0); // max bytes per second
+    pt = putInt(b, pt, 0); // padding granularity
+    pt = putInt(b, pt, AVIF_HASINDEX);
+    pt = putInt(b, pt, 0); // total frames
+    pt = putInt(b, pt, 0); // initial frames
+    pt = putInt(b, pt, 1); // streams
+    pt = putInt(b, pt, 0); // suggested buffer size
+    pt = putInt(b, pt, width);
+    pt = putInt(b, pt, height);
+    pt += 16; // reserved
+    pt = putFourCC(b, pt, "LIST");
+    pt = putInt(b, pt, 116);
+    pt = putFourCC(b, pt, "strl");
+    pt = putFourCC(b, pt, "strh");
+    pt = putInt(b, pt, 56);
+    pt = putFourCC(b, pt, "vids");
+    pt = putFourCC(b, pt, "MJPG");
+    pt = putInt(b, pt, 0); // flags
+    pt = putInt(b, pt, 0); // priority, language
+    pt = putInt(b, pt, 0); // initial frames
+    pt = putInt(b, pt, 1); // scale
+    pt = putInt(b, pt, fps); // rate
+    pt = putInt(b, pt, 0); // start
+    pt = putInt(b, pt, 0); // length
+    pt = putInt(b, pt, 0); // suggested buffer size
+    pt = putInt(b, pt, -1); // quality
+    pt = putInt(b, pt, 0); // sample size
+    pt = putInt(b, pt, 0); // frame left, top
+    pt = putInt(b, pt, (height << 16) | width); // frame right, bottom
+    pt = putFourCC(b, pt, "strf");
+    pt = putInt(b, pt, 40);
+    pt = putInt(b, pt, 40); // BITMAPINFOHEADER size
+    pt = putInt(b, pt, width);
+    pt = putInt(b, pt, height);
+    pt = putInt(b, pt, 1 | (24 << 16)); // planes, bit count
+    pt = putFourCC(b, pt, "MJPG");
+    pt = putInt(b, pt, width * height * 3);
+    pt += 16; // pixels per meter, colors used, colors important
+    pt = putFourCC(b, pt, "LIST");
+    pt = putInt(b, pt, 4); // movi size
+    pt = putFourCC(b, pt, "movi");
+    raf.write(b, 0, pt);
+    filePos = pt;
+  }
 
-    ListStrl(AviStrh strh, AviStrf strf, int frames) {
-      this.strh = strh;
-      this.strf = strf;
-      listOdml = new ListOdml(frames);
+  private void writeFrame(byte[] jpg) throws IOException {
+    int n = jpg.length;
+    int padding = n % 2;
+    byte[] b = new byte[8];
+    putFourCC(b, 0, "00dc");
+    putInt(b, 4, n + padding);
+    raf.write(b);
+    raf.write(jpg);
+    if (padding > 0)
+      raf.write(0);
+    if (nWritten == frameOffsets.length) {
+      frameOffsets = AU.doubleLengthI(frameOffsets);
+      frameLengths = AU.doubleLengthI(frameLengths);
     }
-    
-    ListHdr listHdr = new ListHdr("strl", LIST_STRL_SIZE);
-    AviStrh strh;
-    AviStrf strf;
-    ListOdml listOdml;
+    frameOffsets[nWritten] = (int) (filePos - PT_MOVI);
+    frameLengths[nWritten] = n + padding;
+    if (n + padding > maxFrameLength)
+      maxFrameLength = n + padding;
+    filePos += 8 + n + padding;
+  }
 
-    void write()  throws IOException {
-      listHdr.write();
-      strh.write();
-      strf.write();
-      listOdml.write();
+  private void writeIndex() throws IOException {
+    int moviSize = (int) (filePos - PT_MOVI);
+    byte[] b = new byte[8 + 16 * nFrames];
+    int pt = putFourCC(b, 0, "idx1");
+    pt = putInt(b, pt, 16 * nFrames);
+    for (int i = 0; i < nFrames; i++) {
+      pt = putFourCC(b, pt, "00dc");
+      pt = putInt(b, pt, AVIIF_KEYFRAME);
+      pt = putInt(b, pt, frameOffsets[i]);
+      pt = putInt(b, pt, frameLengths[i]);
     }
+    raf.write(b);
+    filePos += b.length;
+    patchInt(PT_RIFF_SIZE, (int) (filePos - 8));
+    patchInt(PT_MOVI_SIZE, moviSize);
+    patchInt(PT_AVIH_TOTAL_FRAMES, nFrames);
+    patchInt(PT_STRH_LENGTH, nFrames);
+    patchInt(PT_AVIH_BUFFER_SIZE, maxFrameLength);
+    patchInt(PT_STRH_BUFFER_SIZE, maxFrameLength);
+    patchInt(PT_AVIH_MAX_BYTES_PER_SEC, maxFrameLength * fps);
   }
 
-  
-  LIST ('hdrl'
-      'avih'(<Main AVI Header>)
-      LIST ('strl'
-            'strh'(<Stream header>)
-            'strf'(<Stream format>)
-            [ 'strd'(<Additional header data>) ]
-            [ 'strn'(<Stream name>) ]
-            ...
-           )
-       ...
-     )
-  
-  final int LIST_HDRL_SIZE = LIST_HDR_SIZE + AVI_HEADER_SIZE + LIST_STRL_SIZE;
-  private class ListHdrl {
-    
-    
-    ListHdrl(AviHeader avih, ListStrl strl) {
-      this.avih = avih;
-      this.strl = strl;
-    }
+  private void patchInt(int pt, int i) throws IOException {
+    byte[] b = new byte[4];
+    putInt(b, 0, i);
+    raf.seek(pt);
+    raf.write(b);
+  }
 
-    ListHdr listHdr = new ListHdr("hdrl", LIST_HDRL_SIZE - LIST_HDR_SIZE);
-    AviHeader avih;
-    ListStrl strl;
+  private static int putFourCC(byte[] b, int pt, String s) {
+    for (int i = 0; i < 4; i++)
+      b[pt++] = (byte) s.charAt(i);
+    return pt;
+  }
 
-    void write()  throws IOException {
-      System.out.println(LIST_HDR_SIZE + " " + AVI_HEADER_SIZE + " " + LIST_STRL_SIZE);
-      listHdr.write();
-      avih.write();
-      strl.write();
-    }
+  private static int putInt(byte[] b, int pt, int i) {
+    b[pt++] = (byte) i;
+    b[pt++] = (byte) (i >> 8);
+    b[pt++] = (byte) (i >> 16);
+    b[pt++] = (byte) (i >> 24);
+    return pt;
   }
-*/
+
 }
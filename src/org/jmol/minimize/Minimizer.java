@@ -70,6 +70,7 @@ public class Minimizer {
   
   private int steps = 50;
   private double crit = 1e-3;
+  private String method = "SD";
 
   public String units = "kJ/mol";
   
@@ -216,6 +217,8 @@ public class Minimizer {
         crit = ((Float) val).floatValue();
     }
     this.crit = Math.max(crit, 0.0001);
+    val = vwr.getP("minimizationMethod");
+    method = (val instanceof String ? (String) val : "SD");
 
     if (minimizationOn)
       return false;
@@ -277,6 +280,7 @@ public class Minimizer {
     }
 
     pFF.setConstraints(this);
+    pFF.setMethod(method);
 
     // minimize and store values
 
@@ -586,7 +590,7 @@ public class Minimizer {
       return false;
     boolean doRefresh = (!isSilent && vwr.getBooleanProperty("minimizationRefresh"));
     vwr.setStringProperty("_minimizationStatus", "running");
-    boolean going = pFF.steepestDescentTakeNSteps(1);
+    boolean going = pFF.minimizeTakeNSteps(1);
     int currentStep = pFF.getCurrentStep();
     vwr.setIntProperty("_minimizationStep", currentStep);
     reportEnergy();
@@ -81,6 +81,9 @@ abstract public class ForceField {
   int currentStep;
   private int stepMax;
   private double[][] coordSaved;  
+  private int method = Optimizer.SD;
+  private Optimizer optimizer;
+  private long startTime;
 
   int minAtomCount; 
   int minBondCount;
@@ -108,6 +111,13 @@ abstract public class ForceField {
     minBondCount = minBonds.length;
   }
   
+  /**
+   * @param method SD (steepest descent, the default), CG, or LBFGS
+   */
+  public void setMethod(String method) {
+    this.method = Optimizer.getMethod(method);
+  }
+
   public void setConstraints(Minimizer m) {
     this.bsFixed = m.bsMinFixed;
     calc.setConstraints(m.constraints);
@@ -129,6 +139,8 @@ abstract public class ForceField {
     // 
     this.criterion = criterion / toUserUnits(1); //1e-3
     currentStep = 0;
+    startTime = System.currentTimeMillis();
+    optimizer = (stepMax == 0 || method == Optimizer.SD ? null : new Optimizer(this, method));
     clearForces();
     calc.setLoggingEnabled(true);
     calc.setLoggingEnabled(stepMax == 0 || Logger.isActiveLevel(Logger.LEVEL_DEBUGHIGH));
@@ -137,11 +149,19 @@ abstract public class ForceField {
     Logger.info(s);
     calc.getConstraintList();
     if (calc.loggingEnabled)
-      calc.appendLogData(calc.getAtomList("S T E E P E S T   D E S C E N T"));
+      calc.appendLogData(calc.getAtomList(optimizer == null ? "S T E E P E S T   D E S C E N T" 
+          : method == Optimizer.CG ? "C O N J U G A T E   G R A D I E N T" : "L - B F G S"));
     dE = 0;
-    calc.setPreliminary(stepMax > 0);
+    // the preliminary (softened) terms would change the surface under an L-BFGS or CG history
+    calc.setPreliminary(stepMax > 0 && optimizer == null);
     e0 = energyFull(false, false);
-    s = PT.sprintf(" Initial " + name + " E = %10.3f " + minimizer.units + " criterion = %8.6f max steps = " + stepMax, 
+    if (optimizer != null) {
+      calc.setSilent(true);
+      optimizer.init();
+      calc.setSilent(false);
+    }
+    s = PT.sprintf(" Initial " + name + " E = %10.3f " + minimizer.units + " criterion = %8.6f max steps = " + stepMax
+        + (stepMax == 0 ? "" : " method = " + Optimizer.getMethodName(method)), 
         "ff", new Object[] {Float.valueOf(toUserUnits(e0)), Float.valueOf(toUserUnits(criterion)) });
     minimizer.report(s, false);
     calc.appendLogData(s);
@@ -152,6 +172,17 @@ abstract public class ForceField {
       minAtoms[i].force[0] = minAtoms[i].force[1] = minAtoms[i].force[2] = 0; 
   }
   
+  /**
+   * Take n steps using whichever method was set at initialization.
+   * 
+   * @param n
+   * @return true to continue
+   */
+  public boolean minimizeTakeNSteps(int n) {
+    return (optimizer == null ? steepestDescentTakeNSteps(n)
+        : optimizerTakeNSteps(n));
+  }
+
   //Vector3d dir = new Vector3d();
   public boolean steepestDescentTakeNSteps(int n) {
     if (stepMax == 0)
@@ -185,12 +216,7 @@ abstract public class ForceField {
         if (calc.loggingEnabled)
           calc.appendLogData(calc.getAtomList("F I N A L  G E O M E T R Y"));
         if (done) {
-          String s = PT.formatStringF(
-              "\n    " + name + " STEEPEST DESCENT HAS CONVERGED: E = %8.5f " + minimizer.units + " after " + currentStep + " steps", "f",
-              toUserUnits(e1));
-          calc.appendLogData(s);
-          minimizer.report(s, true);
-          Logger.info(s);
+          reportDone("STEEPEST DESCENT", "HAS CONVERGED", e1, -1);
         }
         return false;
       }
@@ -207,6 +233,55 @@ abstract public class ForceField {
     return true; // continue
   }
 
+  private boolean optimizerTakeNSteps(int n) {
+    if (stepMax == 0)
+      return false;
+    for (int iStep = 1; iStep <= n; iStep++) {
+      currentStep++;
+      calc.setSilent(true);
+      boolean ok = optimizer.step();
+      calc.setSilent(false);
+
+      if (calc.loggingEnabled)
+        calc.appendLogData(calc.getAtomList("S T E P    " + currentStep));
+
+      double e1 = optimizer.e;
+      dE = e1 - e0;
+      // a failed line search leaves dE = 0, but that is not convergence
+      boolean done = ok && Util.isNear3(e1, e0, criterion);
+
+      if (!ok || done || currentStep % 10 == 0 || stepMax <= currentStep) {
+        String s = PT.sprintf(name + " Step %-4d E = %10.6f    dE = %8.6f ",
+            "Fi", new Object[] {new float[] { (float) e1, (float) (dE), (float) criterion },
+            Integer.valueOf(currentStep) });
+        minimizer.report(s, false);
+        calc.appendLogData(s);
+      }
+      e0 = e1;
+      if (!ok || done || stepMax <= currentStep) {
+        if (calc.loggingEnabled)
+          calc.appendLogData(calc.getAtomList("F I N A L  G E O M E T R Y"));
+        if (!ok || done)
+          reportDone(method == Optimizer.CG ? "CONJUGATE GRADIENT" : "L-BFGS",
+              ok ? "HAS CONVERGED" : "LINE SEARCH FAILED", e1,
+              optimizer.nEval);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void reportDone(String type, String status, double e, int nEval) {
+    String s = PT.formatStringF(
+        "\n    " + name + " " + type + " " + status + ": E = %8.5f " + minimizer.units + " after " + currentStep + " steps"
+        + (nEval < 0 ? "" : ", " + nEval + " energy evaluations,") 
+        + " " + (System.currentTimeMillis() - startTime) + " ms", "f",
+        toUserUnits(e));
+    calc.appendLogData(s);
+    minimizer.report(s, true);
+    Logger.info(s);
+  }
+
   private double getEnergies(int terms, boolean gradients) {
     if ((terms & ENERGY) != 0)
       return energyFull(gradients, true);
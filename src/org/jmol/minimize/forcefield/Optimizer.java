@@ -0,0 +1,344 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2003-2005  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jmol.minimize.forcefield;
+
+import org.jmol.minimize.MinAtom;
+import org.jmol.minimize.Util;
+
+/**
+ * Limited-memory BFGS and nonlinear conjugate-gradient (Polak-Ribiere+)
+ * minimizers for ForceField.
+ *
+ * Both work on flat double[] vectors holding x, y, z of the atoms that are
+ * not fixed, so no per-atom objects are touched during the line search
+ * except to hand coordinates to the energy calculations. Gradients are
+ * obtained numerically, exactly as for steepest descent.
+ *
+ * Selected with SET minimizationMethod "LBFGS" or "CG". The default, "SD",
+ * is the original steepest-descent line search in ForceField.
+ *
+ */
+class Optimizer {
+
+  final static int SD = 0;
+  final static int CG = 1;
+  final static int LBFGS = 2;
+
+  private final static String[] methodNames = { "SD", "CG", "LBFGS" };
+
+  private final static int HISTORY = 7;        // L-BFGS correction pairs
+  private final static double DELTA = 1.0e-5;  // numerical derivative step
+  private final static double TRUST = 0.3;     // max move per atom per step
+  private final static double ARMIJO = 1.0e-4; // sufficient decrease
+  private final static int MAX_BACKTRACK = 10;
+
+  static int getMethod(String name) {
+    for (int i = methodNames.length; --i >= 0;)
+      if (methodNames[i].equalsIgnoreCase(name))
+        return i;
+    return SD;
+  }
+
+  static String getMethodName(int method) {
+    return methodNames[method];
+  }
+
+  private ForceField ff;
+  private int method;
+  private MinAtom[] minAtoms;
+  private int[] map; // variable atom --> minAtoms index
+  private int n;
+
+  double[] x, g, d;
+  private double[] xNew, gNew;
+
+  // L-BFGS history, stored as a ring of HISTORY vectors
+  private double[][] s, y;
+  private double[] rho, alpha;
+  private int nHist, iHist;
+
+  private double gdPrev, stepPrev;
+  private int nSinceRestart;
+
+  /**
+   * energy at x
+   */
+  double e;
+
+  /**
+   * number of energy evaluations, including those for the gradient
+   */
+  int nEval;
+
+  Optimizer(ForceField ff, int method) {
+    this.ff = ff;
+    this.method = method;
+  }
+
+  /**
+   * Gather the free coordinates and evaluate energy and gradient at the
+   * starting point.
+   */
+  void init() {
+    minAtoms = ff.minAtoms;
+    int ac = ff.minAtomCount;
+    int nFree = 0;
+    map = new int[ac];
+    for (int i = 0; i < ac; i++)
+      if (ff.bsFixed == null || !ff.bsFixed.get(i))
+        map[nFree++] = i;
+    n = nFree * 3;
+    x = new double[n];
+    g = new double[n];
+    d = new double[n];
+    xNew = new double[n];
+    gNew = new double[n];
+    if (method == LBFGS) {
+      s = new double[HISTORY][n];
+      y = new double[HISTORY][n];
+      rho = new double[HISTORY];
+      alpha = new double[HISTORY];
+    }
+    for (int i = 0, pt = 0; i < nFree; i++) {
+      double[] coord = minAtoms[map[i]].coord;
+      x[pt++] = coord[0];
+      x[pt++] = coord[1];
+      x[pt++] = coord[2];
+    }
+    nEval = 0;
+    e = energy(x);
+    gradient(x, e, g);
+    restart();
+  }
+
+  /**
+   * Take one iteration: a search direction and a backtracking line search
+   * along it.
+   *
+   * @return false if no lower energy could be found along the search
+   *         direction, even after resetting to steepest descent; true if
+   *         all atoms are fixed
+   */
+  boolean step() {
+    if (n == 0)
+      return true;
+    if (method == LBFGS)
+      getDirectionLBFGS();
+    double gd = dot(g, d);
+    if (gd >= 0 || !Util.isFinite(gd)) {
+      restart();
+      gd = dot(g, d);
+    }
+    while (true) {
+      if (lineSearch(gd))
+        break;
+      if (nSinceRestart == 0)
+        return false;
+      restart();
+      gd = dot(g, d);
+    }
+    gradient(xNew, e, gNew);
+    if (method == LBFGS)
+      updateHistory();
+    else
+      getDirectionCG();
+    double[] t = x;
+    x = xNew;
+    xNew = t;
+    t = g;
+    g = gNew;
+    gNew = t;
+    nSinceRestart++;
+    return true;
+  }
+
+  /**
+   * Armijo backtracking with quadratic interpolation. On success, xNew and e
+   * hold the accepted point and coordinates are left there.
+   *
+   * @param gd
+   *        directional derivative g.d, negative
+   * @return true if the energy was lowered
+   */
+  private boolean lineSearch(double gd) {
+    double step;
+    if (method == LBFGS && nHist > 0)
+      step = 1;
+    else if (nSinceRestart == 0)
+      step = 0.1 / Math.sqrt(maxAtomMove2(d));
+    else
+      step = stepPrev * gdPrev / gd; // Nocedal & Wright 3.60
+    double dmax = Math.sqrt(maxAtomMove2(d));
+    if (step * dmax > TRUST)
+      step = TRUST / dmax;
+    if (!Util.isFinite(step) || step <= 0)
+      return false;
+    for (int i = 0; i < MAX_BACKTRACK; i++) {
+      for (int j = n; --j >= 0;)
+        xNew[j] = x[j] + step * d[j];
+      double e1 = energy(xNew);
+      if (Util.isFinite(e1) && e1 <= e + ARMIJO * step * gd) {
+        e = e1;
+        gdPrev = gd;
+        stepPrev = step;
+        return true;
+      }
+      double t = -gd * step * step / (2 * (e1 - e - gd * step));
+      step = (Util.isFinite(t) && t > 0.1 * step && t < 0.5 * step ? t
+          : step * (Util.isFinite(t) && t <= 0.1 * step ? 0.1 : 0.5));
+    }
+    energy(x);
+    return false;
+  }
+
+  private void restart() {
+    nHist = iHist = 0;
+    nSinceRestart = 0;
+    for (int i = n; --i >= 0;)
+      d[i] = -g[i];
+  }
+
+  /**
+   * Polak-Ribiere+ update of d, restarting every n iterations.
+   */
+  private void getDirectionCG() {
+    double gg = dot(g, g);
+    double beta = 0;
+    if (gg > 0 && nSinceRestart + 1 < n) {
+      for (int i = n; --i >= 0;)
+        beta += gNew[i] * (gNew[i] - g[i]);
+      beta = Math.max(0, beta / gg);
+    }
+    for (int i = n; --i >= 0;)
+      d[i] = -gNew[i] + beta * d[i];
+    if (beta == 0)
+      nSinceRestart = -1;
+  }
+
+  private void updateHistory() {
+    double sy = 0;
+    for (int i = n; --i >= 0;)
+      sy += (xNew[i] - x[i]) * (gNew[i] - g[i]);
+    // skip pairs that would make the inverse Hessian indefinite,
+    // leaving the oldest pair in place
+    if (sy <= 1e-10)
+      return;
+    double[] si = s[iHist];
+    double[] yi = y[iHist];
+    for (int i = n; --i >= 0;) {
+      si[i] = xNew[i] - x[i];
+      yi[i] = gNew[i] - g[i];
+    }
+    rho[iHist] = 1 / sy;
+    iHist = (iHist + 1) % HISTORY;
+    if (nHist < HISTORY)
+      nHist++;
+  }
+
+  /**
+   * L-BFGS two-loop recursion: d = -H g
+   */
+  private void getDirectionLBFGS() {
+    for (int i = n; --i >= 0;)
+      d[i] = -g[i];
+    if (nHist == 0)
+      return;
+    int k = iHist;
+    for (int h = 0; h < nHist; h++) {
+      k = (k + HISTORY - 1) % HISTORY;
+      double a = alpha[k] = rho[k] * dot(s[k], d);
+      double[] yk = y[k];
+      for (int i = n; --i >= 0;)
+        d[i] -= a * yk[i];
+    }
+    double[] yk = y[k = (iHist + HISTORY - 1) % HISTORY];
+    double gamma = 1 / (rho[k] * dot(yk, yk));
+    for (int i = n; --i >= 0;)
+      d[i] *= gamma;
+    k = (iHist + HISTORY - nHist) % HISTORY;
+    for (int h = 0; h < nHist; h++, k = (k + 1) % HISTORY) {
+      double b = alpha[k] - rho[k] * dot(y[k], d);
+      double[] sk = s[k];
+      for (int i = n; --i >= 0;)
+        d[i] += b * sk[i];
+    }
+  }
+
+  /**
+   * Forward-difference gradient; also sets MinAtom.force for logging.
+   *
+   * @param x
+   * @param e0
+   *        energy at x
+   * @param g
+   */
+  private void gradient(double[] x, double e0, double[] g) {
+    setCoords(x);
+    for (int i = 0, pt = 0; pt < n; i++) {
+      MinAtom atom = minAtoms[map[i]];
+      double[] coord = atom.coord;
+      for (int j = 0; j < 3; j++, pt++) {
+        coord[j] = x[pt] + DELTA;
+        g[pt] = (ff.energyFull(false, true) - e0) / DELTA;
+        coord[j] = x[pt];
+        atom.force[j] = -g[pt];
+      }
+    }
+    nEval += n;
+  }
+
+  private double energy(double[] x) {
+    setCoords(x);
+    nEval++;
+    return ff.energyFull(false, true);
+  }
+
+  private void setCoords(double[] x) {
+    for (int i = 0, pt = 0; pt < n; i++) {
+      double[] coord = minAtoms[map[i]].coord;
+      coord[0] = x[pt++];
+      coord[1] = x[pt++];
+      coord[2] = x[pt++];
+    }
+  }
+
+  private double maxAtomMove2(double[] v) {
+    double max = 0;
+    for (int i = 0; i < n; i += 3) {
+      double d2 = v[i] * v[i] + v[i + 1] * v[i + 1] + v[i + 2] * v[i + 2];
+      if (d2 > max)
+        max = d2;
+    }
+    return max;
+  }
+
+  private static double dot(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = a.length; --i >= 0;)
+      sum += a[i] * b[i];
+    return sum;
+  }
+
+}
@@ -164,6 +164,13 @@ abstract public class AtomCollection {
   private final static V3 vRef = V3.new3(3.14159f, 2.71828f, 1.41421f);
 
   public BS[] tainted;
+
+  /**
+   * incremented whenever atoms are tainted or untainted, even if the state is
+   * not being preserved; cached atom expressions check it
+   */
+  public int taintVersion;
+
   private BS bsHidden;
   public BS bsVisible, bsClickable, bsModulated;
 
@@ -1036,6 +1043,7 @@ abstract public class AtomCollection {
   
   public void taintAtoms(BS bsAtoms, byte type) {
     canSkipLoad = false;
+    taintVersion++;
     if (!preserveState)
       return;
     for (int i = bsAtoms.nextSetBit(0); i >= 0; i = bsAtoms.nextSetBit(i + 1))
@@ -1043,6 +1051,7 @@ abstract public class AtomCollection {
   }
 
   protected void taintAtom(int atomIndex, byte type) {
+    taintVersion++;
     if (!preserveState)
       return;
     if (tainted == null)
@@ -1055,6 +1064,7 @@ abstract public class AtomCollection {
   }
 
   private void untaint(int atomIndex, byte type) {
+    taintVersion++;
     if (!preserveState)
       return;
     if (tainted == null || tainted[type] == null)
@@ -1063,6 +1073,7 @@ abstract public class AtomCollection {
   }
 
   public void setTaintedAtoms(BS bs, byte type) {
+    taintVersion++;
     if (!preserveState)
       return;
     if (bs == null) {
@@ -1079,6 +1090,7 @@ abstract public class AtomCollection {
   }
 
   public void unTaintAtoms(BS bs, byte type) {
+    taintVersion++;
     if (tainted == null || tainted[type] == null)
       return;
     for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i+1))
@@ -0,0 +1,554 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2003-2005  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jmol.modelset;
+
+import javajs.util.AU;
+import javajs.util.V3;
+
+import org.jmol.java.BS;
+import org.jmol.thread.ParallelLoop;
+import org.jmol.util.Edge;
+
+/**
+ * The pair search for ModelSet.autoHbond (CALCULATE HBONDS {from} {to}).
+ *
+ * Candidate "to" atoms are binned into one grid of cells shared by all models
+ * and searched in parallel for each "from" atom. Coordinates and the vectors
+ * from each atom to its covalently bound atoms, used for the angle check, are
+ * gathered into primitive arrays first, so no Atom is touched during the
+ * search. Found pairs are kept in order of "from" atom and then "to" atom and
+ * are added as HBonds by addHBonds().
+ *
+ * Set up with the current coordinates; for trajectory occupancy, create one
+ * per frame.
+ *
+ */
+class HBondCalculator {
+
+  private ModelSet ms;
+  private Atom[] at;
+  private boolean haveHAtoms;
+  private BS bsCO;
+  private float minAttachedAngle;
+  private float hbondMin2, hbondMax2, hxbondMin2, hxbondMax2, hxbondMax,
+      maxXYDistance;
+  private boolean covalentOnly;
+
+  // atoms in the search, "from" or "to"
+
+  private int[] slotOf; // atom index to slot, or -1
+  private int[] atomOf; // slot to atom index
+  private float[] xyz;
+  private int[] baseModel;
+  private int[] bondStart; // into bondVec and bondAtom
+  private boolean[] hasNoBonds; // not even H bonds
+  private float[] bondVec;
+  private int[] bondAtom;
+
+  // results: from, to, bond order, energy, and a flag that one end had no
+  // bonds at all, which is only OK if that is still true when the bond is added
+
+  int pairCount;
+  int[] pairs; // 2 per pair
+  int[] orders;
+  float[] energies;
+  private boolean[] isUnbonded;
+
+  /**
+   * @param ms
+   * @param haveHAtoms
+   * @param bsCO
+   * @param maxXYDistance
+   * @param minAttachedAngle
+   *        in radians
+   * @param covalentOnly
+   *        ignore existing H bonds; no bonds are to be added
+   */
+  HBondCalculator(ModelSet ms, boolean haveHAtoms, BS bsCO,
+      float maxXYDistance, float minAttachedAngle, boolean covalentOnly) {
+    this.ms = ms;
+    at = ms.at;
+    this.haveHAtoms = haveHAtoms;
+    this.bsCO = bsCO;
+    this.maxXYDistance = maxXYDistance;
+    this.minAttachedAngle = minAttachedAngle;
+    this.covalentOnly = covalentOnly;
+    float hbondMin = ModelSet.hbondMin;
+    hbondMax2 = maxXYDistance * maxXYDistance;
+    hbondMin2 = hbondMin * hbondMin;
+    hxbondMin2 = 1;
+    hxbondMax2 = (maxXYDistance > hbondMin ? hbondMin2 : hbondMax2);
+    hxbondMax = (maxXYDistance > hbondMin ? hbondMin : maxXYDistance);
+  }
+
+  /**
+   * Find all pairs, as for autoHbond, from atoms in bsA to atoms in bsB.
+   *
+   * @param bsA
+   * @param bsB
+   */
+  void calculate(BS bsA, BS bsB) {
+    int ac = ms.ac;
+    slotOf = new int[ac];
+    for (int i = ac; --i >= 0;)
+      slotOf[i] = -1;
+    int nFrom = 0;
+    int nTo = 0;
+    int n = 0;
+    for (int i = bsA.nextSetBit(0); i >= 0 && i < ac; i = bsA.nextSetBit(i + 1))
+      if (isFrom(at[i])) {
+        slotOf[i] = n++;
+        nFrom++;
+      }
+    final int[] from = new int[nFrom];
+    for (int i = bsA.nextSetBit(0), pt = 0; i >= 0 && i < ac; i = bsA
+        .nextSetBit(i + 1))
+      if (slotOf[i] >= 0)
+        from[pt++] = i;
+    for (int i = bsB.nextSetBit(0); i >= 0 && i < ac; i = bsB.nextSetBit(i + 1))
+      if (isTo(at[i])) {
+        if (slotOf[i] < 0)
+          slotOf[i] = n++;
+        nTo++;
+      }
+    final int[] to = new int[nTo];
+    for (int i = bsB.nextSetBit(0), pt = 0; i >= 0 && i < ac; i = bsB
+        .nextSetBit(i + 1))
+      if (isTo(at[i]))
+        to[pt++] = i;
+    setAtomData(n);
+
+    // the grid; cells are a bit larger than the search distance
+
+    final float cellSize = maxXYDistance + 0.5f;
+    int nCells = 16;
+    while (nCells < nTo)
+      nCells <<= 1;
+    final int mask = nCells - 1;
+    final int[] gridHead = new int[nCells];
+    final int[] gridNext = new int[nTo];
+    for (int i = nCells; --i >= 0;)
+      gridHead[i] = -1;
+    for (int i = nTo; --i >= 0;) {
+      int s = slotOf[to[i]] * 3;
+      int h = hashCell(getCell(xyz[s], cellSize), getCell(xyz[s + 1], cellSize),
+          getCell(xyz[s + 2], cellSize), baseModel[slotOf[to[i]]]) & mask;
+      gridNext[i] = gridHead[h];
+      gridHead[h] = i;
+    }
+
+    int nChunks = ParallelLoop.getChunkCount(ms.vwr, nFrom, 500);
+    final HBondCalculator[] results = new HBondCalculator[nChunks];
+    new ParallelLoop() {
+      @Override
+      protected void runChunk(int iChunk, int i0, int i1) {
+        HBondCalculator r = results[iChunk] = new HBondCalculator(ms,
+            haveHAtoms, bsCO, maxXYDistance, minAttachedAngle, covalentOnly);
+        int[] visited = new int[27];
+        V3 v1 = new V3();
+        V3 v2 = new V3();
+        for (int i = i0; i < i1; i++) {
+          int a = from[i];
+          int sa = slotOf[a];
+          int pt0 = r.pairCount;
+          float x = xyz[sa * 3], y = xyz[sa * 3 + 1], z = xyz[sa * 3 + 2];
+          int cx = getCell(x, cellSize);
+          int cy = getCell(y, cellSize);
+          int cz = getCell(z, cellSize);
+          int nVisited = 0;
+          for (int dx = -1; dx <= 1; dx++)
+            for (int dy = -1; dy <= 1; dy++)
+              for (int dz = -1; dz <= 1; dz++) {
+                int h = hashCell(cx + dx, cy + dy, cz + dz, baseModel[sa])
+                    & mask;
+                boolean isDone = false;
+                for (int v = nVisited; --v >= 0 && !isDone;)
+                  isDone = (visited[v] == h);
+                if (isDone)
+                  continue;
+                visited[nVisited++] = h;
+                for (int t = gridHead[h]; t >= 0; t = gridNext[t])
+                  checkPair(a, to[t], v1, v2, r);
+              }
+          r.sortLast(pt0);
+        }
+      }
+    }.run(ms.vwr, nFrom, nChunks);
+
+    // concatenate the chunks, which are in "from" order already
+
+    pairCount = 0;
+    for (int i = 0; i < nChunks; i++)
+      pairCount += results[i].pairCount;
+    pairs = new int[pairCount * 2];
+    orders = new int[pairCount];
+    energies = new float[pairCount];
+    isUnbonded = new boolean[pairCount];
+    for (int i = 0, pt = 0; i < nChunks; i++) {
+      HBondCalculator r = results[i];
+      if (r.pairCount == 0)
+        continue;
+      System.arraycopy(r.pairs, 0, pairs, pt * 2, r.pairCount * 2);
+      System.arraycopy(r.orders, 0, orders, pt, r.pairCount);
+      System.arraycopy(r.energies, 0, energies, pt, r.pairCount);
+      System.arraycopy(r.isUnbonded, 0, isUnbonded, pt, r.pairCount);
+      pt += r.pairCount;
+    }
+  }
+
+  /**
+   * Add the pairs found as HBonds, skipping any that are bonded already,
+   * including by a bond just added for the same pair in the other direction.
+   *
+   * @param bsHBonds
+   *        to receive the bond indices
+   * @return number of bonds added
+   */
+  int addHBonds(BS bsHBonds) {
+    int nNew = 0;
+    for (int i = 0; i < pairCount; i++) {
+      Atom atom = at[pairs[i * 2]];
+      Atom atomNear = at[pairs[i * 2 + 1]];
+      if (atom.isBonded(atomNear) || isUnbonded[i]
+          && (hasBonds(atom) || hasBonds(atomNear)))
+        continue;
+      bsHBonds.set(ms.addHBond(atom, atomNear, orders[i], energies[i]));
+      nNew++;
+    }
+    return nNew;
+  }
+
+  private static boolean hasBonds(Atom atom) {
+    return (atom.bonds != null && atom.bonds.length > 0);
+  }
+
+  /**
+   * Add this frame's H bonds to the tally for CALCULATE HBONDS ... TRAJECTORY,
+   * ignoring direction.
+   *
+   * @param occupancy
+   *        per lower atom index: [nFrames, nPartners, (partner, count,
+   *        lastFrame)...], sorted by partner
+   * @param frame
+   * @return number of distinct H bonds in this frame
+   */
+  int addOccupancy(int[][] occupancy, int frame) {
+    int n = 0;
+    for (int i = 0; i < pairCount; i++) {
+      int a = pairs[i * 2];
+      int b = pairs[i * 2 + 1];
+      if (a > b) {
+        a = b;
+        b = pairs[i * 2];
+      }
+      int[] occ = occupancy[a];
+      if (occ == null)
+        occ = occupancy[a] = new int[2 + 3 * 4];
+      int np = occ[1];
+      int j = 0;
+      while (j < np && occ[2 + j * 3] < b)
+        j++;
+      int pt = 2 + j * 3;
+      if (j < np && occ[pt] == b) {
+        if (occ[pt + 2] == frame)
+          continue;
+      } else {
+        if (occ.length < 2 + (np + 1) * 3)
+          occ = occupancy[a] = AU.arrayCopyI(occ, 2 + np * 6);
+        for (int k = 2 + np * 3; --k >= pt;)
+          occ[k + 3] = occ[k];
+        occ[pt] = b;
+        occ[pt + 1] = 0;
+        occ[1]++;
+      }
+      occ[pt + 1]++;
+      occ[pt + 2] = frame;
+      n++;
+    }
+    return n;
+  }
+
+  private boolean isBonded(Atom atom, Atom atomNear) {
+    if (!covalentOnly)
+      return atom.isBonded(atomNear);
+    Bond[] bonds = atom.bonds;
+    if (bonds != null)
+      for (int i = bonds.length; --i >= 0;)
+        if (bonds[i].isCovalent() && bonds[i].getOtherAtom(atom) == atomNear)
+          return true;
+    return false;
+  }
+
+  private Bond[] getBonds(Atom atom) {
+    Bond[] bonds = atom.bonds;
+    if (!covalentOnly || bonds == null)
+      return bonds;
+    int n = 0;
+    for (int i = bonds.length; --i >= 0;)
+      if (bonds[i].isCovalent())
+        n++;
+    if (n == bonds.length)
+      return bonds;
+    Bond[] b = new Bond[n];
+    for (int i = 0, pt = 0; i < bonds.length; i++)
+      if (bonds[i].isCovalent())
+        b[pt++] = bonds[i];
+    return b;
+  }
+
+  private boolean isFrom(Atom atom) {
+    if (atom.isDeleted())
+      return false;
+    int elementNumber = atom.getElementNumber();
+    if (elementNumber != 1)
+      return (!haveHAtoms && (elementNumber == 7 || elementNumber == 8));
+    Bond[] b = getBonds(atom);
+    if (!haveHAtoms || b == null)
+      return false;
+    for (int j = 0; j < b.length; j++) {
+      int element = b[j].getOtherAtom(atom).getElementNumber();
+      if (element == 7 || element == 8)
+        return true;
+    }
+    return false;
+  }
+
+  private boolean isTo(Atom atom) {
+    if (atom.isDeleted())
+      return false;
+    int elementNumber = atom.getElementNumber();
+    return (haveHAtoms ? elementNumber != 1 : elementNumber == 7
+        || elementNumber == 8);
+  }
+
+  /**
+   * Gather coordinates, model, and vectors to covalently bound atoms for the
+   * angle check.
+   *
+   * @param n
+   */
+  private void setAtomData(int n) {
+    atomOf = new int[n];
+    xyz = new float[n * 3];
+    baseModel = new int[n];
+    bondStart = new int[n + 1];
+    hasNoBonds = new boolean[n];
+    int nBonds = 0;
+    for (int i = slotOf.length; --i >= 0;)
+      if (slotOf[i] >= 0) {
+        atomOf[slotOf[i]] = i;
+        Bond[] bonds = getBonds(at[i]);
+        if (bonds != null)
+          nBonds += bonds.length;
+      }
+    bondVec = new float[nBonds * 3];
+    bondAtom = new int[nBonds];
+    Model[] am = ms.am;
+    int pt = 0;
+    for (int s = 0; s < n; s++) {
+      Atom atom = at[atomOf[s]];
+      xyz[s * 3] = atom.x;
+      xyz[s * 3 + 1] = atom.y;
+      xyz[s * 3 + 2] = atom.z;
+      baseModel[s] = am[atom.mi].trajectoryBaseIndex;
+      Bond[] bonds = getBonds(atom);
+      bondStart[s] = pt;
+      if (bonds == null || bonds.length == 0) {
+        hasNoBonds[s] = true;
+        continue;
+      }
+      for (int i = bonds.length; --i >= 0;)
+        if (bonds[i].isCovalent()) {
+          Atom atomA = bonds[i].getOtherAtom(atom);
+          if (!haveHAtoms && atomA.getElementNumber() == 1)
+            continue;
+          bondVec[pt * 3] = atom.x - atomA.x;
+          bondVec[pt * 3 + 1] = atom.y - atomA.y;
+          bondVec[pt * 3 + 2] = atom.z - atomA.z;
+          bondAtom[pt++] = atomA.i;
+        }
+    }
+    bondStart[n] = pt;
+  }
+
+  /**
+   * The test applied in autoHbond to each atom found near a "from" atom.
+   *
+   * @param a
+   * @param b
+   * @param v1
+   * @param v2
+   * @param r
+   *        receives the pair
+   */
+  void checkPair(int a, int b, V3 v1, V3 v2, HBondCalculator r) {
+    if (a == b)
+      return;
+    int sa = slotOf[a];
+    int sb = slotOf[b];
+    if (baseModel[sa] != baseModel[sb])
+      return;
+    Atom atom = at[a];
+    Atom atomNear = at[b];
+    boolean isH = (atom.getElementNumber() == 1);
+    float dmax, min2, max2;
+    if (isH) {
+      dmax = hxbondMax;
+      min2 = hxbondMin2;
+      max2 = hxbondMax2;
+    } else {
+      if (bsCO.get(a) && bsCO.get(b))
+        return;
+      dmax = maxXYDistance;
+      min2 = hbondMin2;
+      max2 = hbondMax2;
+    }
+    // same as the CubeIterator and its foundDistance2
+    float dx = Math.abs(xyz[sb * 3] - xyz[sa * 3]);
+    if (dx > dmax)
+      return;
+    float dy = Math.abs(xyz[sb * 3 + 1] - xyz[sa * 3 + 1]);
+    if (dy > dmax)
+      return;
+    float dz = Math.abs(xyz[sb * 3 + 2] - xyz[sa * 3 + 2]);
+    if (dz > dmax)
+      return;
+    float d2 = dx * dx + dy * dy + dz * dz;
+    if (d2 < min2 || d2 > max2 || isBonded(atom, atomNear))
+      return;
+    int D = -1, C = -1;
+    boolean checkAngles = (minAttachedAngle > 0 || isH);
+    if (checkAngles) {
+      v1.set(xyz[sa * 3] - xyz[sb * 3], xyz[sa * 3 + 1] - xyz[sb * 3 + 1],
+          xyz[sa * 3 + 2] - xyz[sb * 3 + 2]);
+      if ((D = getAttached(sa, v1, v2)) == -2)
+        return;
+      v1.scale(-1);
+      if ((C = getAttached(sb, v1, v2)) == -2)
+        return;
+    }
+    float energy = 0;
+    int bo;
+    if (isH && C >= 0 && D >= 0) {
+      /*
+       * A crude calculation based on simple distances. In the NH -- O=C
+       * case this reads DH -- A=C
+       *
+       * (+) H .......... A (-) | | | | (-) D C (+)
+       *
+       *
+       * E = Q/rAH - Q/rAD + Q/rCD - Q/rCH
+       */
+      bo = Edge.BOND_H_CALC;
+      Atom pC = at[C];
+      Atom pD = at[D];
+      energy = HBond.getEnergy((float) Math.sqrt(d2), pC.distance(atom),
+          pC.distance(pD), atomNear.distance(pD)) / 1000f;
+    } else {
+      bo = Edge.BOND_H_REGULAR;
+    }
+    r.addPair(a, b, bo, energy, checkAngles
+        && (hasNoBonds[sa] || hasNoBonds[sb]));
+  }
+
+  /**
+   * ModelSet.checkMinAttachedAngle using the stored bond vectors
+   *
+   * @param s
+   * @param v1
+   * @param v2
+   * @return index of the bonded atom with the smallest angle, -1 if the atom
+   *         has no bonds at all, or -2 if the angle is too small or there is no
+   *         such atom
+   */
+  private int getAttached(int s, V3 v1, V3 v2) {
+    if (hasNoBonds[s])
+      return -1;
+    int X = -2;
+    float dMin = Float.MAX_VALUE;
+    for (int i = bondStart[s + 1]; --i >= bondStart[s];) {
+      v2.set(bondVec[i * 3], bondVec[i * 3 + 1], bondVec[i * 3 + 2]);
+      float d = v2.angle(v1);
+      if (d < minAttachedAngle)
+        return -2;
+      if (d < dMin) {
+        X = bondAtom[i];
+        dMin = d;
+      }
+    }
+    return X;
+  }
+
+  private void addPair(int a, int b, int bo, float energy, boolean unbonded) {
+    if (pairs == null || pairCount == orders.length) {
+      int n = (pairs == null ? 16 : pairCount * 2);
+      pairs = AU.arrayCopyI(pairs == null ? new int[0] : pairs, n * 2);
+      orders = AU.arrayCopyI(orders == null ? new int[0] : orders, n);
+      energies = AU.arrayCopyF(energies == null ? new float[0] : energies, n);
+      isUnbonded = AU.arrayCopyBool(isUnbonded == null ? new boolean[0]
+          : isUnbonded, n);
+    }
+    pairs[pairCount * 2] = a;
+    pairs[pairCount * 2 + 1] = b;
+    orders[pairCount] = bo;
+    energies[pairCount] = energy;
+    isUnbonded[pairCount++] = unbonded;
+  }
+
+  /**
+   * insertion sort by "to" atom of the pairs from pt0 on, all of which have
+   * the same "from" atom
+   *
+   * @param pt0
+   */
+  private void sortLast(int pt0) {
+    for (int i = pt0 + 1; i < pairCount; i++) {
+      int b = pairs[i * 2 + 1];
+      int bo = orders[i];
+      float e = energies[i];
+      boolean u = isUnbonded[i];
+      int j = i;
+      for (; j > pt0 && pairs[j * 2 - 1] > b; j--) {
+        pairs[j * 2 + 1] = pairs[j * 2 - 1];
+        orders[j] = orders[j - 1];
+        energies[j] = energies[j - 1];
+        isUnbonded[j] = isUnbonded[j - 1];
+      }
+      pairs[j * 2 + 1] = b;
+      orders[j] = bo;
+      energies[j] = e;
+      isUnbonded[j] = u;
+    }
+  }
+
+  private static int getCell(float x, float cellSize) {
+    return (int) Math.floor(x / cellSize);
+  }
+
+  private static int hashCell(int ix, int iy, int iz, int model) {
+    return ix * 73856093 ^ iy * 19349663 ^ iz * 83492791 ^ model * 50331653;
+  }
+
+}
@@ -38,8 +38,10 @@ import javajs.util.SB;
 import javajs.util.T3;
 
 import org.jmol.api.JmolDataManager;
+import org.jmol.java.BS;
 import org.jmol.script.SV;
 import org.jmol.script.T;
+import org.jmol.thread.ParallelLoop;
 import org.jmol.util.Edge;
 import org.jmol.viewer.JC;
 import org.jmol.viewer.Viewer;
@@ -275,6 +277,125 @@ public class LabelToken {
     return (strLabel == null ? null : strLabel.toString().intern());
   }
 
+  /**
+   * atoms per chunk below which formatting labels in parallel is not worth it
+   */
+  private final static int MIN_LABELS_PER_CHUNK = 2048;
+
+  /**
+   * Format the same compiled label for every atom of a set. The tokens are
+   * only read, so for large sets the atoms are split into chunks that run on
+   * the Viewer's executor, each with its own temporary point. Labels are
+   * formatted on this thread unless all their tokens are among those known to
+   * read only values that are already set (see isParallelSafe).
+   * 
+   * @param vwr
+   * @param bs
+   * @param tokens
+   * @param indices
+   *        for %D, or null
+   * @return labels in the order of bs; null for atoms not in the model set
+   */
+  public static String[] formatLabelAtoms(Viewer vwr, BS bs,
+                                          LabelToken[] tokens, int[] indices) {
+    int n = bs.cardinality();
+    int[] list = new int[n];
+    for (int i = bs.nextSetBit(0), pt = 0; i >= 0; i = bs.nextSetBit(i + 1))
+      list[pt++] = i;
+    String[] labels = new String[n];
+    new AtomLabeler(vwr, list, tokens, indices, labels).run(vwr, n,
+        isParallelSafe(tokens) ? ParallelLoop.getChunkCount(vwr, n,
+            MIN_LABELS_PER_CHUNK) : 1);
+    return labels;
+  }
+
+  /**
+   * @param tokens
+   * @return true if every atom token only reads fields of the atom, its group
+   *         and chain, or arrays that are already filled
+   */
+  private static boolean isParallelSafe(LabelToken[] tokens) {
+    if (tokens != null)
+      for (int i = 0; i < tokens.length && tokens[i] != null; i++) {
+        LabelToken t = tokens[i];
+        if (t.tok <= 0 || t.key != null)
+          continue;
+        switch (t.tok) {
+        case T.altloc:
+        case T.array:
+        case T.atomid:
+        case T.atomindex:
+        case T.atomname:
+        case T.atomno:
+        case T.atomtype:
+        case T.atomx:
+        case T.atomy:
+        case T.atomz:
+        case T.chain:
+        case T.chainno:
+        case T.data:
+        case T.element:
+        case T.elemno:
+        case T.formalcharge:
+        case T.group:
+        case T.group1:
+        case T.groupid:
+        case T.groupindex:
+        case T.identify:
+        case T.insertion:
+        case T.model:
+        case T.modelindex:
+        case T.occupancy:
+        case T.partialcharge:
+        case T.resno:
+        case T.seqcode:
+        case T.symbol:
+        case T.temperature:
+        case T.x:
+        case T.y:
+        case T.z:
+        case T.xyz:
+        case 81://'Q':
+          break;
+        default:
+          // molecules, group parameters, surface distance, and so on are
+          // calculated on demand
+          return false;
+        }
+      }
+    return true;
+  }
+
+  private static class AtomLabeler extends ParallelLoop {
+
+    private Viewer vwr;
+    private int[] list;
+    private LabelToken[] tokens;
+    private int[] indices;
+    private String[] labels;
+
+    AtomLabeler(Viewer vwr, int[] list, LabelToken[] tokens, int[] indices,
+        String[] labels) {
+      this.vwr = vwr;
+      this.list = list;
+      this.tokens = tokens;
+      this.indices = indices;
+      this.labels = labels;
+    }
+
+    @Override
+    protected void runChunk(int iChunk, int i0, int i1) {
+      Atom[] atoms = vwr.ms.at;
+      int ac = vwr.ms.ac;
+      P3 ptTemp = new P3();
+      for (int i = i0; i < i1; i++) {
+        int ia = list[i];
+        labels[i] = (ia < ac ? formatLabelAtomArray(vwr, atoms[ia], tokens,
+            '\0', indices, ptTemp) : null);
+      }
+    }
+  }
+
   public static Map<String, Object> getBondLabelValues() {
     Map<String, Object> htValues = new Hashtable<String, Object>();
     htValues.put("#", "");
@@ -652,6 +773,9 @@ public class LabelToken {
     } else if (strT != null) {
       return PT.formatS(strT, width, precision, alignLeft, zeroPad);
     } else if (ptT != null) {
+      // locals, since tokens may be shared by threads
+      int width = this.width;
+      int precision = this.precision;
       if (width == 0 && precision == Integer.MAX_VALUE) {
         width = 6;
         precision = 2;
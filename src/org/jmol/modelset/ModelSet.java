@@ -72,6 +72,7 @@ import org.jmol.c.PAL;
 import org.jmol.c.STR;
 import org.jmol.c.VDW;
 import org.jmol.shape.Shape;
+import org.jmol.thread.ParallelLoop;
 
 
 import java.util.Enumeration;
@@ -168,7 +169,7 @@ public class ModelSet extends BondCollection {
 
   public ShapeManager sm;
 
-  private static float hbondMin = 2.5f;
+  final static float hbondMin = 2.5f;
   public boolean proteinStructureTainted;
 
   public Hashtable<String, BS> htPeaks;
@@ -2255,11 +2256,11 @@ public class ModelSet extends BondCollection {
    */
   public BS getAtomsWithinRadius(float distance, BS bs,
                                  boolean withinAllModels, RadiusData rd) {
-    BS bsResult = new BS();
     BS bsCheck = getIterativeModels(false);
     bs = BSUtil.andNot(bs, vwr.slm.bsDeleted);
-    AtomIndexIterator iter = getSelectedAtomIterator(null, false, false, false,
-        false);
+    if (!(distance < 0)) // NaN for radius data
+      return getAtomsNear(distance, bs, (withinAllModels ? bsCheck : null), rd);
+    BS bsResult = new BS();
     if (withinAllModels) {
       boolean fixJavaFloat = !vwr.g.legacyJavaFloat;
       P3 ptTemp = new P3();
@@ -2267,27 +2268,87 @@ public class ModelSet extends BondCollection {
         for (int iModel = mc; --iModel >= 0;) {
           if (!bsCheck.get(iModel))
             continue;
-          if (distance < 0) {
-            getAtomsWithin(distance,
-                at[i].getFractionalUnitCoordPt(fixJavaFloat, true, ptTemp),
-                bsResult, -1);
-            continue;
-          }
-          setIteratorForAtom(iter, iModel, i, distance, rd);
-          iter.addAtoms(bsResult);
+          getAtomsWithin(distance,
+              at[i].getFractionalUnitCoordPt(fixJavaFloat, true, ptTemp),
+              bsResult, -1);
         }
     } else {
       bsResult.or(bs);
-      for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1)) {
-        if (distance < 0) {
-          getAtomsWithin(distance, at[i], bsResult, at[i].mi);
-          continue;
+      for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1))
+        getAtomsWithin(distance, at[i], bsResult, at[i].mi);
+    }
+    return bsResult;
+  }
+
+  private final static int MIN_CENTERS_PER_CHUNK = 64;
+
+  /**
+   * The atoms within distance of any of the center atoms, for WITHIN(),
+   * CONTACT(), and the SELECT, DISPLAY, and ISOSURFACE commands that use it.
+   * The spatial index of every model needed is built first, on this thread;
+   * the centers are then searched in parallel chunks, each with its own cube
+   * iterator and result, and the results are ORed together.
+   * 
+   * @param distance
+   * @param bsCenters
+   * @param bsModels
+   *        search these models for every center, or null for just the
+   *        center's own model, in which case the centers are included
+   * @param rd
+   * @return atoms found
+   */
+  private BS getAtomsNear(final float distance, BS bsCenters,
+                          final BS bsModels, final RadiusData rd) {
+    final int n = bsCenters.cardinality();
+    final int[] centers = new int[n];
+    for (int i = bsCenters.nextSetBit(0), pt = 0; i >= 0; i = bsCenters
+        .nextSetBit(i + 1))
+      centers[pt++] = i;
+    initializeBspf();
+    if (bsModels == null) {
+      for (int k = 0, mi = -1; k < n; k++)
+        if (at[centers[k]].mi != mi)
+          initializeBspt(am[mi = at[centers[k]].mi].trajectoryBaseIndex);
+    } else {
+      for (int i = bsModels.nextSetBit(0); i >= 0 && i < mc; i = bsModels
+          .nextSetBit(i + 1))
+        initializeBspt(am[i].trajectoryBaseIndex);
+    }
+    final int nChunks = ParallelLoop.getChunkCount(vwr, n,
+        MIN_CENTERS_PER_CHUNK);
+    final BS[] results = new BS[nChunks];
+    new ParallelLoop() {
+      @Override
+      protected void runChunk(int iChunk, int i0, int i1) {
+        BS bsResult = results[iChunk] = new BS();
+        AtomIndexIterator iter;
+        if (nChunks == 1) {
+          iter = getSelectedAtomIterator(null, false, false, false, false);
+        } else {
+          // not sharing the model set's cube iterators
+          AtomIteratorWithinModel it = new AtomIteratorWithinModel();
+          it.initialize(bspf, null, false, false, false, true);
+          iter = it;
+        }
+        if (bsModels == null) {
+          for (int k = i0; k < i1; k++) {
+            setIteratorForAtom(iter, -1, centers[k], distance, rd);
+            iter.addAtoms(bsResult);
+          }
+        } else {
+          for (int iModel = mc; --iModel >= 0;)
+            if (bsModels.get(iModel))
+              for (int k = i0; k < i1; k++) {
+                setIteratorForAtom(iter, iModel, centers[k], distance, rd);
+                iter.addAtoms(bsResult);
+              }
         }
-        setIteratorForAtom(iter, -1, i, distance, rd);
-        iter.addAtoms(bsResult);
+        iter.release();
       }
-    }
-    iter.release();
+    }.run(vwr, n, nChunks);
+    BS bsResult = (bsModels == null ? BSUtil.copy(bsCenters) : new BS());
+    for (int i = 0; i < nChunks; i++)
+      bsResult.or(results[i]);
     return bsResult;
   }
 
@@ -2704,12 +2765,7 @@ public class ModelSet extends BondCollection {
       if (onlyIfHaveCalculated)
         return 0;
     }
-    boolean haveHAtoms = false;
-    for (int i = bsA.nextSetBit(0); i >= 0; i = bsA.nextSetBit(i + 1))
-      if (at[i].getElementNumber() == 1) {
-        haveHAtoms = true;
-        break;
-      }
+    boolean haveHAtoms = haveHAtoms(bsA);
     BS bsHBonds = new BS();
     boolean useRasMol = vwr.getBoolean(T.hbondsrasmol);
     if (bsB == null || useRasMol && !haveHAtoms) {
@@ -2721,6 +2777,112 @@ public class ModelSet extends BondCollection {
     }
     Logger.info(haveHAtoms ? "Standard Hbond calculation"
         : "Jmol pseudo-hbond calculation");
+    if (showRebondTimes && Logger.debugging)
+      Logger.startTimer("hbond");
+    HBondCalculator hc = getHBondCalculator(bsA, haveHAtoms, false);
+    hc.calculate(bsA, bsB);
+    int nNew = hc.addHBonds(bsHBonds);
+    sm.setShapeSizeBs(JC.SHAPE_STICKS, Integer.MIN_VALUE, null, bsHBonds);
+    if (showRebondTimes)
+      Logger.checkTimer("hbond", false);
+    return (haveHAtoms ? nNew : -nNew);
+  }
+
+  /**
+   * CALCULATE HBONDS {atomsFrom} {atomsTo} TRAJECTORY
+   *
+   * Find the hydrogen bonds that autoHbond's standard or Jmol pseudo-hbond
+   * calculation would create for each frame of the trajectories containing
+   * atomsFrom, without creating any, and report how many there are per frame
+   * and the fraction of frames that have each one. Without a trajectory, the
+   * current coordinates are the only frame. The RasMol pseudo-hbond
+   * calculation that autoHbond uses with hbondsRasmol when atomsFrom has no H
+   * atoms is not applied; the distance and angle settings are used instead.
+   *
+   * @param bsA
+   * @param bsB
+   * @return report
+   */
+  public String calculateHbondOccupancy(BS bsA, BS bsB) {
+    boolean haveHAtoms = haveHAtoms(bsA);
+    SB sb = new SB();
+    SB sbFrames = new SB();
+    int[][] occupancy = AU.newInt2(ac);
+    BS bsBases = new BS();
+    BS bsModels = getModelBS(bsA, false);
+    for (int i = bsModels.nextSetBit(0); i >= 0; i = bsModels.nextSetBit(i + 1))
+      bsBases.set(am[i].trajectoryBaseIndex);
+    int nFramesMax = 0;
+    for (int base = bsBases.nextSetBit(0); base >= 0; base = bsBases
+        .nextSetBit(base + 1)) {
+      BS bsA1 = BSUtil.copy(bsA);
+      BS bsB1 = BSUtil.copy(bsB);
+      BS bsBase = getModelAtomBitSetIncludingDeleted(base, false);
+      bsA1.and(bsBase);
+      bsB1.and(bsBase);
+      int current = at[am[base].firstAtomIndex].mi;
+      int nFrames = 0;
+      for (int m = base; m < mc; m++) {
+        if (m != base && am[m].trajectoryBaseIndex != base)
+          continue;
+        if (isTrajectory(m))
+          setTrajectory(m);
+        else if (m != base)
+          continue;
+        HBondCalculator hc = getHBondCalculator(bsA1, haveHAtoms, true);
+        hc.calculate(bsA1, bsB1);
+        int n = hc.addOccupancy(occupancy, m);
+        sbFrames.append(getModelNumberDotted(m)).append("\t").appendI(n)
+            .append("\n");
+        nFrames++;
+      }
+      if (isTrajectory(base))
+        setTrajectory(current);
+      // all frames of a trajectory have the same atoms
+      for (int i = bsA1.nextSetBit(0); i >= 0; i = bsA1.nextSetBit(i + 1))
+        if (occupancy[i] != null)
+          occupancy[i][0] = nFrames;
+      for (int i = bsB1.nextSetBit(0); i >= 0; i = bsB1.nextSetBit(i + 1))
+        if (occupancy[i] != null)
+          occupancy[i][0] = nFrames;
+      nFramesMax = Math.max(nFrames, nFramesMax);
+    }
+    sb.append("hydrogen bonds per frame (").appendI(nFramesMax).append(
+        " frames)\nframe\tcount\n").appendSB(sbFrames);
+    sb.append("\noccupancy\natom1\tatom2\tframes\tfraction\n");
+    for (int i = 0; i < ac; i++) {
+      int[] occ = occupancy[i];
+      if (occ == null)
+        continue;
+      // [nFrames, nPartners, (partner, count, lastFrame)...] sorted by partner
+      for (int j = 0, n = occ[1]; j < n; j++) {
+        int pt = 2 + j * 3;
+        sb.append(at[i].getInfo()).append("\t")
+            .append(at[occ[pt]].getInfo()).append("\t").appendI(occ[pt + 1])
+            .append("\t").append(
+                PT.formatF(occ[pt + 1] * 1f / occ[0], 0, 3, false, false))
+            .append("\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  private boolean haveHAtoms(BS bsA) {
+    for (int i = bsA.nextSetBit(0); i >= 0; i = bsA.nextSetBit(i + 1))
+      if (at[i].getElementNumber() == 1)
+        return true;
+    return false;
+  }
+
+  /**
+   * @param bsA
+   * @param haveHAtoms
+   * @param covalentOnly
+   *        ignore existing H bonds, as for occupancy
+   * @return calculator with the current hbond settings
+   */
+  private HBondCalculator getHBondCalculator(BS bsA, boolean haveHAtoms,
+                                             boolean covalentOnly) {
     BS bsCO = null;
     if (!haveHAtoms) {
       bsCO = new BS();
@@ -2741,125 +2903,8 @@ public class ModelSet extends BondCollection {
     float maxXYDistance = vwr.getFloat(T.hbondsdistancemaximum);
     float minAttachedAngle = (float) (vwr.getFloat(T.hbondsangleminimum)
         * Math.PI / 180);
-    float hbondMax2 = maxXYDistance * maxXYDistance;
-    float hbondMin2 = hbondMin * hbondMin;
-    float hxbondMin2 = 1;
-    float hxbondMax2 = (maxXYDistance > hbondMin ? hbondMin2 : hbondMax2);
-    float hxbondMax = (maxXYDistance > hbondMin ? hbondMin : maxXYDistance);
-    int nNew = 0;
-    float d2 = 0;
-    V3 v1 = new V3();
-    V3 v2 = new V3();
-    if (showRebondTimes && Logger.debugging)
-      Logger.startTimer("hbond");
-    P3 C = null;
-    P3 D = null;
-    AtomIndexIterator iter = getSelectedAtomIterator(bsB, false, false, false,
-        false);
-
-    for (int i = bsA.nextSetBit(0); i >= 0; i = bsA.nextSetBit(i + 1)) {
-      Atom atom = at[i];
-      int elementNumber = atom.getElementNumber();
-      boolean isH = (elementNumber == 1);
-      if (!isH && (haveHAtoms || elementNumber != 7 && elementNumber != 8)
-          || isH && !haveHAtoms)
-        continue;
-      float min2, max2, dmax;
-      boolean firstIsCO;
-      if (isH) {
-        Bond[] b = atom.bonds;
-        if (b == null)
-          continue;
-        boolean isOK = false;
-        for (int j = 0; j < b.length && !isOK; j++) {
-          Atom a2 = b[j].getOtherAtom(atom);
-          int element = a2.getElementNumber();
-          isOK = (element == 7 || element == 8);
-        }
-        if (!isOK)
-          continue;
-        dmax = hxbondMax;
-        min2 = hxbondMin2;
-        max2 = hxbondMax2;
-        firstIsCO = false;
-      } else {
-        dmax = maxXYDistance;
-        min2 = hbondMin2;
-        max2 = hbondMax2;
-        firstIsCO = bsCO.get(i);
-      }
-      setIteratorForAtom(iter, -1, atom.i, dmax, null);
-      while (iter.hasNext()) {
-        Atom atomNear = at[iter.next()];
-        int elementNumberNear = atomNear.getElementNumber();
-        if (atomNear == atom || !isH && elementNumberNear != 7
-            && elementNumberNear != 8 || isH && elementNumberNear == 1
-            || (d2 = iter.foundDistance2()) < min2 || d2 > max2 || firstIsCO
-            && bsCO.get(atomNear.i) || atom.isBonded(atomNear)) {
-          continue;
-        }
-        if (minAttachedAngle > 0) {
-          v1.sub2(atom, atomNear);
-          if ((D = checkMinAttachedAngle(atom, minAttachedAngle, v1, v2,
-              haveHAtoms)) == null)
-            continue;
-          v1.scale(-1);
-          if ((C = checkMinAttachedAngle(atomNear, minAttachedAngle, v1, v2,
-              haveHAtoms)) == null)
-            continue;
-        }
-        float energy = 0;
-        short bo;
-        if (isH && !Float.isNaN(C.x) && !Float.isNaN(D.x)) {
-          /*
-           * A crude calculation based on simple distances. In the NH -- O=C
-           * case this reads DH -- A=C
-           * 
-           * (+) H .......... A (-) | | | | (-) D C (+)
-           * 
-           * 
-           * E = Q/rAH - Q/rAD + Q/rCD - Q/rCH
-           */
-
-          bo = Edge.BOND_H_CALC;
-          energy = HBond.getEnergy((float) Math.sqrt(d2), C.distance(atom),
-              C.distance(D), atomNear.distance(D)) / 1000f;
-        } else {
-          bo = Edge.BOND_H_REGULAR;
-        }
-        bsHBonds.set(addHBond(atom, atomNear, bo, energy));
-        nNew++;
-      }
-    }
-    iter.release();
-    sm.setShapeSizeBs(JC.SHAPE_STICKS, Integer.MIN_VALUE, null, bsHBonds);
-    if (showRebondTimes)
-      Logger.checkTimer("hbond", false);
-    return (haveHAtoms ? nNew : -nNew);
-  }
-
-  private static P3 checkMinAttachedAngle(Atom atom1, float minAngle, V3 v1,
-                                          V3 v2, boolean haveHAtoms) {
-    Bond[] bonds = atom1.bonds;
-    if (bonds == null || bonds.length == 0)
-      return P3.new3(Float.NaN, 0, 0);
-    Atom X = null;
-    float dMin = Float.MAX_VALUE;
-    for (int i = bonds.length; --i >= 0;)
-      if (bonds[i].isCovalent()) {
-        Atom atomA = bonds[i].getOtherAtom(atom1);
-        if (!haveHAtoms && atomA.getElementNumber() == 1)
-          continue;
-        v2.sub2(atom1, atomA);
-        float d = v2.angle(v1);
-        if (d < minAngle)
-          return null;
-        if (d < dMin) {
-          X = atomA;
-          dMin = d;
-        }
-      }
-    return X;
+    return new HBondCalculator(this, haveHAtoms, bsCO, maxXYDistance,
+        minAttachedAngle, covalentOnly);
   }
 
   //////////// state definition ///////////
@@ -89,6 +89,7 @@ public final class BioModel extends Model implements JmolBioModelSet, JmolBioMod
 
   private String defaultStructure;
   private Viewer vwr;
+  private DSSPInterface dssp; // kept so that DSSP can work incrementally
 
 
   //// effectively static methods, but called nonstatically because BioModel is hidden to JavaScript
@@ -993,10 +994,12 @@ public final class BioModel extends Model implements JmolBioModelSet, JmolBioMod
         haveProt = true;
     }
     String s = "";
-    if (haveProt)
-      s += ((DSSPInterface) Interface.getOption("dssx.DSSP", vwr, "ms"))
-        .calculateDssp(bioPolymers, bioPolymerCount, vHBonds, doReport,
-            dsspIgnoreHydrogen, setStructure);
+    if (haveProt) {
+      if (dssp == null)
+        dssp = (DSSPInterface) Interface.getOption("dssx.DSSP", vwr, "ms");
+      s += dssp.calculateDssp(bioPolymers, bioPolymerCount, vHBonds, doReport,
+          dsspIgnoreHydrogen, setStructure);
+    }
     if (haveNucl && auxiliaryInfo.containsKey("dssr") && vHBonds != null)
       s += vwr.getAnnotationParser(true).getHBonds(ms, modelIndex, vHBonds, doReport);
     return s;
@@ -28,32 +28,111 @@ package org.jmol.render;
 
 import org.jmol.java.BS;
 import org.jmol.modelset.Atom;
+import org.jmol.modelset.Chain;
+import org.jmol.modelset.Group;
 import org.jmol.script.T;
 import org.jmol.shape.Balls;
 import org.jmol.shape.Shape;
 
 public class BallsRenderer extends ShapeRenderer {
 
+  /**
+   * diameter of a residue stand-in at level of detail 1
+   */
+  private final static int RESIDUE_MAD = 6000;
+
+  private boolean needTranslucent;
+
+  // chain stand-in for level of detail 2: screen-coordinate sums
+  private Chain lodChain;
+  private short lodColix;
+  private int lodCount;
+  private double lodX, lodY, lodZ, lodR2;
+
   @Override
   protected boolean render() {
-    boolean needTranslucent = false;
+    needTranslucent = false;
     if (isExport || vwr.checkMotionRendering(T.atoms)) {
       Atom[] atoms = ms.at;
       short[] colixes = ((Balls) shape).colixes;
       BS bsOK = vwr.shm.bsRenderableAtoms;
+      int lod = (isExport ? 0 : vwr.getLodLevel());
+      Group lastGroup = null;
+      lodChain = null;
       for (int i = bsOK.nextSetBit(0); i >= 0; i = bsOK.nextSetBit(i + 1)) {
         Atom atom = atoms[i];
         if (atom.sD > 0
             && (atom.shapeVisibilityFlags & myVisibilityFlag) != 0) {
-          if (g3d.setC(colixes == null ? atom.colixAtom : Shape.getColix(colixes, i, atom))) {
+          short colix = (colixes == null ? atom.colixAtom : Shape.getColix(colixes, i, atom));
+          Atom lead;
+          if (lod > 0 && (lead = atom.group.getLeadAtom()) != null) {
+            // polymer atoms are replaced by coarse stand-ins while moving
+            if (lod == 1) {
+              if (atom.group != lastGroup) {
+                lastGroup = atom.group;
+                drawStandIn(colix, (int) vwr.tm.scaleToScreen(lead.sZ,
+                    RESIDUE_MAD), lead.sX, lead.sY, lead.sZ);
+              }
+            } else {
+              addToChain(atom, colix);
+            }
+            continue;
+          }
+          if (g3d.setC(colix)) {
             g3d.drawAtom(atom);
           } else {
             needTranslucent = true;
           }
         }
       }
+      if (lodChain != null)
+        drawChain();
     }
     return needTranslucent;
   }
 
+  private void drawStandIn(short colix, int diameter, int x, int y, int z) {
+    if (g3d.setC(colix))
+      g3d.fillSphereXYZ(diameter, x, y, z);
+    else
+      needTranslucent = true;
+  }
+
+  /**
+   * Accumulate the screen positions of a run of atoms of one chain; the
+   * stand-in is a sphere at their center with 1.3 times their radius of
+   * gyration, about the radius of a uniform sphere of the same gyration.
+   * 
+   * @param atom
+   * @param colix
+   */
+  private void addToChain(Atom atom, short colix) {
+    if (atom.group.chain != lodChain) {
+      if (lodChain != null)
+        drawChain();
+      lodChain = atom.group.chain;
+      lodColix = colix;
+      lodCount = 0;
+      lodX = lodY = lodZ = lodR2 = 0;
+    }
+    lodCount++;
+    lodX += atom.sX;
+    lodY += atom.sY;
+    lodZ += atom.sZ;
+    lodR2 += (double) atom.sX * atom.sX + (double) atom.sY * atom.sY
+        + (double) atom.sZ * atom.sZ;
+  }
+
+  private void drawChain() {
+    double x = lodX / lodCount;
+    double y = lodY / lodCount;
+    double z = lodZ / lodCount;
+    double r2 = lodR2 / lodCount - x * x - y * y - z * z;
+    int d = (int) (2.6 * Math.sqrt(Math.max(r2, 0)));
+    int zi = (int) z;
+    drawStandIn(lodColix, Math.max(d,
+        (int) vwr.tm.scaleToScreen(zi, RESIDUE_MAD)), (int) x, (int) y, zi);
+    lodChain = null;
+  }
+
 }
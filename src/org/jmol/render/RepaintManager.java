@@ -25,6 +25,8 @@ package org.jmol.render;
 
 import java.util.Map;
 
+import javajs.util.M4;
+
 import org.jmol.api.Interface;
 import org.jmol.api.JmolRendererInterface;
 import org.jmol.api.JmolRepaintManager;
@@ -79,6 +81,7 @@ public class RepaintManager implements JmolRepaintManager {
     if (holdRepaint <= 0) {
       holdRepaint = 0;
       if (andRepaint) {
+        overlaysOnly = false;
         repaintPending = true;
         //System.out.println("pophold repaintPending "+ why);
         repaintNow(why);
@@ -89,6 +92,7 @@ public class RepaintManager implements JmolRepaintManager {
   @SuppressWarnings({ "null", "unused" })
   @Override
   synchronized public void requestRepaintAndWait(String why) {
+    overlaysOnly = false;
     JmolToJSmolInterface jmol = null;
     /**
      * @j2sNative
@@ -125,6 +129,7 @@ public class RepaintManager implements JmolRepaintManager {
   @Override
   public boolean repaintIfReady(String why) {
     //System.out.println("ifready repaintPending " + why);
+    overlaysOnly = false;
     if (repaintPending)
       return false;
     repaintPending = true;
@@ -134,6 +139,16 @@ public class RepaintManager implements JmolRepaintManager {
     return true;
   }
 
+  @Override
+  public boolean repaintOverlaysIfReady(String why) {
+    if (repaintPending)
+      return repaintIfReady(why);
+    repaintPending = overlaysOnly = true;
+    if (holdRepaint == 0)
+      repaintNow(why);
+    return true;
+  }
+
   /**
    * @param why  
    */
@@ -189,6 +204,75 @@ public class RepaintManager implements JmolRepaintManager {
     return renderers[shapeID] = renderer;
   }
 
+  /////////// layer reuse ///////////
+
+  /**
+   * A frame renders the 3D shapes first and the overlays -- labels,
+   * measurements, echoes, hover text, and the frank -- after them. When the 3D
+   * layer of a still, opaque frame took at least MIN_LAYER_MS to render, it is
+   * saved, and a frame requested only to update overlays (a hover or a pending
+   * measurement) with the same view, window, and model set starts from that
+   * layer instead of rendering the 3D shapes again.
+   */
+  private final static int MIN_LAYER_MS = 10;
+
+  private boolean overlaysOnly, isStill, reuseLayer, haveLayer;
+  private final M4 layerMatrix = new M4();
+  private int layerWidth, layerHeight, layerBgcolor;
+  private boolean layerAntialias;
+  private ModelSet layerModelSet;
+
+  private static boolean isOverlay(int shapeID) {
+    switch (shapeID) {
+    case JC.SHAPE_LABELS:
+    case JC.SHAPE_MEASURES:
+    case JC.SHAPE_ECHO:
+    case JC.SHAPE_HOVER:
+    case JC.SHAPE_FRANK:
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean checkLayer(GData gdata, ModelSet modelSet, boolean isStill) {
+    this.isStill = isStill;
+    boolean isOverlayFrame = overlaysOnly;
+    overlaysOnly = false;
+    reuseLayer = false;
+    if (!isStill || !haveLayer) {
+      clearLayer(gdata);
+      return false;
+    }
+    if (!isOverlayFrame)
+      return false;
+    vwr.finalizeTransformParameters();
+    reuseLayer = (modelSet == layerModelSet
+        && vwr.tm.matrixTransform.equals(layerMatrix)
+        && gdata.width == layerWidth && gdata.height == layerHeight
+        && gdata.isAntialiased() == layerAntialias
+        && gdata.bgcolor == layerBgcolor);
+    return reuseLayer;
+  }
+
+  private void saveLayer(GData gdata, ModelSet modelSet) {
+    if (!(haveLayer = gdata.saveLayer()))
+      return;
+    layerModelSet = modelSet;
+    layerMatrix.setM4(vwr.tm.matrixTransform);
+    layerWidth = gdata.width;
+    layerHeight = gdata.height;
+    layerAntialias = gdata.isAntialiased();
+    layerBgcolor = gdata.bgcolor;
+  }
+
+  private void clearLayer(GData gdata) {
+    if (haveLayer)
+      gdata.clearLayer();
+    haveLayer = false;
+    layerModelSet = null;
+  }
+
   /////////// actual rendering ///////////
 
   @Override
@@ -201,6 +285,8 @@ public class RepaintManager implements JmolRepaintManager {
     try {
       boolean logTime = vwr.getBoolean(T.showtiming);
       g3d.renderBackground(null);
+      boolean isReused = false;
+      boolean canSave = false;
       if (isFirstPass) {
         bsTranslucent.clearAll();
         if (navMinMax != null)
@@ -211,23 +297,29 @@ public class RepaintManager implements JmolRepaintManager {
         if (band != null && g3d.setC(vwr.cm.colixRubberband))
           g3d.drawRect(band.x, band.y, 0, 0, band.width, band.height);
         vwr.noFrankEcho = true;
-      }
-      String msg = null;
-      for (int i = 0; i < JC.SHAPE_MAX && gdata.currentlyRendering; ++i) {
-        Shape shape = shapeManager.getShape(i);
-        if (shape == null)
-          continue;
-
-        if (logTime) {
-          msg = "rendering " + JC.getShapeClassName(i, false);
-          Logger.startTimer(msg);
+        if (navMinMax == null && band == null) {
+          if (reuseLayer) {
+            // the layer replaces the background as well
+            isReused = gdata.restoreLayer();
+            if (isReused && logTime)
+              Logger.info("reused 3D layer");
+          } else {
+            canSave = isStill;
+          }
         }
-        if ((isFirstPass || bsTranslucent.get(i))
-            && getRenderer(i).renderShape(g3d, modelSet, shape))
-          bsTranslucent.set(i);
-        if (logTime)
-          Logger.checkTimer(msg, false);
+        reuseLayer = false;
       }
+      long t0 = (canSave ? System.currentTimeMillis() : 0);
+      if (!isReused)
+        renderShapes(gdata, modelSet, isFirstPass, false, logTime);
+      if (canSave) {
+        if (gdata.currentlyRendering && bsTranslucent.isEmpty()
+            && System.currentTimeMillis() - t0 >= MIN_LAYER_MS)
+          saveLayer(gdata, modelSet);
+        else
+          clearLayer(gdata);
+      }
+      renderShapes(gdata, modelSet, isFirstPass, true, logTime);
       g3d.renderAllStrings(null);
     } catch (Exception e) {
       if (!vwr.isJS)
@@ -237,6 +329,27 @@ public class RepaintManager implements JmolRepaintManager {
       Logger.error("rendering error? " + e);
     }
   }
+
+  private void renderShapes(GData gdata, ModelSet modelSet,
+                            boolean isFirstPass, boolean isOverlays,
+                            boolean logTime) {
+    JmolRendererInterface g3d = (JmolRendererInterface) gdata;
+    String msg = null;
+    for (int i = 0; i < JC.SHAPE_MAX && gdata.currentlyRendering; ++i) {
+      Shape shape = shapeManager.getShape(i);
+      if (shape == null || isOverlay(i) != isOverlays)
+        continue;
+      if (logTime) {
+        msg = "rendering " + JC.getShapeClassName(i, false);
+        Logger.startTimer(msg);
+      }
+      if ((isFirstPass || bsTranslucent.get(i))
+          && getRenderer(i).renderShape(g3d, modelSet, shape))
+        bsTranslucent.set(i);
+      if (logTime)
+        Logger.checkTimer(msg, false);
+    }
+  }
   
   private void getAllRenderers() {
     boolean isOK = true;
@@ -66,6 +66,7 @@ public class SticksRenderer extends FontLineShapeRenderer {
   private int mag2d;
   private int bondOrder;
   private boolean wireframeOnly;
+  private int lod;
   private boolean isAntialiased;
   private boolean slabbing;
   private boolean slabByAtom;
@@ -92,7 +93,8 @@ public class SticksRenderer extends FontLineShapeRenderer {
     dashDots = (vwr.getBoolean(T.partialdots) ? sixdots : dashes);
     isCartesian = (exportType == GData.EXPORT_CARTESIAN);
     getMultipleBondSettings(false);
-    wireframeOnly = !vwr.checkMotionRendering(T.bonds);
+    lod = (isExport ? 0 : vwr.getLodLevel());
+    wireframeOnly = (lod > 0 || !vwr.checkMotionRendering(T.bonds));
     ssbondsBackbone = vwr.getBoolean(T.ssbondsbackbone);
     hbondsBackbone = vwr.getBoolean(T.hbondsbackbone);
     bondsBackbone = hbondsBackbone | ssbondsBackbone;
@@ -137,11 +139,24 @@ public class SticksRenderer extends FontLineShapeRenderer {
         && vwr.getBoolean(T.showmultiplebonds));
   }
 
+  /**
+   * @param atom
+   * @return true if this atom is covered by a residue or chain sphere from
+   *         BallsRenderer while moving with reduced level of detail
+   */
+  private static boolean isStandIn(Atom atom) {
+    return (atom.sD > 0
+        && (atom.shapeVisibilityFlags & JC.VIS_BALLS_FLAG) != 0 && atom.group
+        .getLeadAtom() != null);
+  }
+
   private boolean renderBond() {
     Atom atomA0, atomB0;
 
     a = atomA0 = bond.atom1;
     b = atomB0 = bond.atom2;
+    if (lod > 0 && isStandIn(a) && isStandIn(b))
+      return false;
 
     int order = bond.order & ~Edge.BOND_NEW;
     if (bondsBackbone) {
@@ -102,7 +102,9 @@ abstract class BioShapeRenderer extends ShapeRenderer {
     invalidateMesh = false;
     needTranslucent = false;
     g3d.addRenderer(T.hermitelevel);
-    boolean TF = (!isExport && !vwr.checkMotionRendering(T.cartoon));
+    // level of detail 2 while moving: line trace only
+    int lod = (isExport ? 0 : vwr.getLodLevel());
+    boolean TF = (lod > 1 || !isExport && !vwr.checkMotionRendering(T.cartoon));
     
     if (TF != wireframeOnly)
       invalidateMesh = true;
@@ -124,6 +126,8 @@ abstract class BioShapeRenderer extends ShapeRenderer {
       val1 = Math.max(val1, 3); // at least HermiteLevel 3 for "cartoonFancy" and 
     //else if (val1 == 0 && exportType == GData.EXPORT_CARTESIAN)
       //val1 = 5; // forces hermite for 3D exporters
+    if (lod > 0)
+      val1 = 0; // flat, unsmoothed cartoons while moving coarsely
     if (val1 != hermiteLevel)// && val1 != 0)
       invalidateMesh = true;
     hermiteLevel = Math.min(val1, 8);
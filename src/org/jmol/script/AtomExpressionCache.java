@@ -0,0 +1,386 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2005  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ *  02110-1301, USA.
+ */
+
+package org.jmol.script;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import javajs.util.Lst;
+import javajs.util.SB;
+
+import org.jmol.java.BS;
+import org.jmol.modelset.Atom;
+import org.jmol.modelset.ModelSet;
+import org.jmol.util.BSUtil;
+import org.jmol.viewer.Viewer;
+
+/**
+ * The atoms of recent atom expressions of one ModelSet, so that a script
+ * selecting "protein and within(5.0, ligand) and not water" over and over
+ * evaluates it only once.
+ *
+ * An expression is cached only if all of its tokens are in a subset whose
+ * result is determined by the ModelSet alone: structural keywords such as
+ * protein or hetero, residue and atom specifications, comparisons of stored
+ * atom properties with constants, names of groups and of (non-dynamic)
+ * defined sets, within(distance, ...) and within(group, ...), bitset
+ * literals, and the logical operators. Anything that depends on the
+ * selection, display, frame, bonding, or a script variable is evaluated as
+ * always.
+ *
+ * The result is kept before deleted atoms and the selection subset are
+ * excluded, which is done for every use. An entry is dropped when the
+ * ModelSet's atom or model count changes, when any atom is tainted or
+ * untainted (as every SET or {atoms}.property = assignment does), when a
+ * named set is redefined or a variable by that name appears, and, for
+ * expressions involving coordinates, when any atom has moved.
+ *
+ */
+final class AtomExpressionCache {
+
+  private final static int MAX_ENTRIES = 128;
+
+  final ModelSet ms;
+
+  private Map<String, Entry> htEntries = new Hashtable<String, Entry>();
+  private int hits, misses, invalidations;
+
+  /**
+   * atom coordinates as of the last check, and the number of times they have
+   * been found to differ
+   */
+  private float[] xyz;
+  private int coordinateVersion;
+
+  static class Entry {
+    String key;
+    int iTokenOffset;
+    private BS bs;
+    private boolean isCoordinateDependent;
+    private Lst<String> names;
+    private Object[] definitions;
+    private int ac, mc, taintVersion;
+    private int coordinateVersion;
+  }
+
+  AtomExpressionCache(ModelSet ms) {
+    this.ms = ms;
+  }
+
+  /**
+   * Follows the token walk of ScriptExpr.atomExpression.
+   *
+   * @param code
+   * @param pcStart
+   * @param pcStop
+   * @return a new entry with just its key set, or null if the expression is
+   *         not cacheable
+   */
+  Entry newEntry(T[] code, int pcStart, int pcStop) {
+    Entry entry = new Entry();
+    SB sb = new SB();
+    int nExpress = 0;
+    for (int pc = pcStart; pc < pcStop; pc++) {
+      T t = code[pc];
+      if (t == null)
+        break;
+      switch (t.tok) {
+      case T.expressionBegin:
+        pcStop = code.length;
+        nExpress++;
+        break;
+      case T.expressionEnd:
+        if (--nExpress <= 0)
+          pcStop = pc;
+        break;
+      case T.all:
+      case T.none:
+      case T.on:
+      case T.off:
+      case T.integer:
+      case T.decimal:
+      case T.point3f:
+      case T.bitset:
+      case T.opAnd:
+      case T.opAND:
+      case T.opOr:
+      case T.opXor:
+      case T.opToggle:
+      case T.opNot:
+      case T.leftparen:
+      case T.rightparen:
+      case T.comma:
+      case T.carbohydrate:
+      case T.dna:
+      case T.hetero:
+      case T.nucleic:
+      case T.leadatom:
+      case T.protein:
+      case T.purine:
+      case T.pyrimidine:
+      case T.rna:
+      case T.spec_name_pattern:
+      case T.spec_alternate:
+      case T.spec_model:
+      case T.spec_model2:
+      case T.spec_resid:
+      case T.spec_chain:
+      case T.spec_seqcode:
+      case T.spec_seqcode_range:
+        break;
+      case T.within:
+        entry.isCoordinateDependent = true;
+        break;
+      case T.spec_atom:
+        if (ms.mc == 1 && !ms.haveBioModels)
+          addName(entry, "_" + t.value);
+        break;
+      case T.string:
+        String s = (String) t.value;
+        if (s.indexOf("({") != 0 && s.indexOf("|") < 0
+            && !s.equals("group") && !s.equals("chain") && !s.equals("model")
+            && !s.equals("element") && !s.equals("site"))
+          return null;
+        break;
+      case T.opLT:
+      case T.opLE:
+      case T.opGE:
+      case T.opGT:
+      case T.opEQ:
+      case T.opNE:
+      case T.opLIKE:
+        switch (t.intValue) {
+        case T.x:
+        case T.y:
+        case T.z:
+        case T.xyz:
+          entry.isCoordinateDependent = true;
+          break;
+        case T.atomno:
+        case T.atomindex:
+        case T.atomid:
+        case T.atomname:
+        case T.atomtype:
+        case T.element:
+        case T.elemno:
+        case T.resno:
+        case T.seqcode:
+        case T.chain:
+        case T.chainno:
+        case T.group:
+        case T.group1:
+        case T.groupid:
+        case T.groupindex:
+        case T.model:
+        case T.modelindex:
+        case T.file:
+        case T.altloc:
+        case T.insertion:
+        case T.occupancy:
+        case T.temperature:
+        case T.formalcharge:
+        case T.partialcharge:
+          break;
+        default:
+          return null;
+        }
+        if (++pc == code.length)
+          return null;
+        // a comparison with a constant only
+        appendKey(sb, t);
+        t = code[pc];
+        if (t.tok != T.integer && t.tok != T.decimal && t.tok != T.string)
+          return null;
+        break;
+      case T.hydrogen:
+      case T.amino:
+      case T.backbone:
+      case T.solvent:
+      case T.helix:
+      case T.helixalpha:
+      case T.helix310:
+      case T.helixpi:
+      case T.sidechain:
+      case T.surface:
+        addName(entry, (String) t.value);
+        break;
+      case T.identifier:
+        // a group name or a defined set, unless it is a variable
+        addName(entry, (String) t.value);
+        break;
+      default:
+        return null;
+      }
+      appendKey(sb, t);
+    }
+    entry.key = sb.toString();
+    return entry;
+  }
+
+  private static void addName(Entry entry, String name) {
+    if (entry.names == null)
+      entry.names = new Lst<String>();
+    entry.names.addLast(name);
+  }
+
+  private static void appendKey(SB sb, T t) {
+    sb.appendI(t.tok).appendC(',').appendI(t.intValue).appendC(',')
+        .appendO(t.value).appendC('\1');
+  }
+
+  /**
+   * @param query
+   *        from newEntry
+   * @param e
+   * @return a copy of the cached atoms, or null if there are none or they are
+   *         out of date; query.iTokenOffset is set if found
+   */
+  BS get(Entry query, ScriptExpr e) {
+    Entry entry = htEntries.get(query.key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (entry.ac != ms.ac || entry.mc != ms.mc
+        || entry.taintVersion != ms.taintVersion
+        || entry.isCoordinateDependent
+        && entry.coordinateVersion != getCoordinateVersion()
+        || entry.names != null && !checkNames(entry, e, false)) {
+      htEntries.remove(query.key);
+      invalidations++;
+      misses++;
+      return null;
+    }
+    hits++;
+    query.iTokenOffset = entry.iTokenOffset;
+    return BSUtil.copy(entry.bs);
+  }
+
+  /**
+   * @param entry
+   *        from newEntry
+   * @param bs
+   *        the atoms before deleted atoms and the subset are excluded
+   * @param iTokenOffset
+   *        iToken after evaluation, relative to pcStart
+   * @param e
+   */
+  void put(Entry entry, BS bs, int iTokenOffset, ScriptExpr e) {
+    if (entry.names != null && !checkNames(entry, e, true))
+      return;
+    if (htEntries.size() >= MAX_ENTRIES)
+      htEntries.clear();
+    entry.bs = BSUtil.copy(bs);
+    entry.iTokenOffset = iTokenOffset;
+    entry.ac = ms.ac;
+    entry.mc = ms.mc;
+    entry.taintVersion = ms.taintVersion;
+    if (entry.isCoordinateDependent)
+      entry.coordinateVersion = getCoordinateVersion();
+    htEntries.put(entry.key, entry);
+  }
+
+  /**
+   * Names must not be variables, and their definitions must be the ones
+   * evaluated when the entry was made. Dynamic sets and plurals, which
+   * ScriptEval.lookupValue resolves to other names, are not cached.
+   *
+   * @param entry
+   * @param e
+   * @param isNew
+   * @return true if the names resolve just as they did
+   */
+  private boolean checkNames(Entry entry, ScriptExpr e, boolean isNew) {
+    Viewer vwr = e.vwr;
+    Map<String, Object> sets = vwr.definedAtomSets;
+    if (!sets.containsKey("# static") || !sets.containsKey("# variable"))
+      return false;
+    int n = entry.names.size();
+    if (isNew)
+      entry.definitions = new Object[n];
+    for (int i = 0; i < n; i++) {
+      String name = entry.names.get(i);
+      if (e.getContextVariableAsVariable(name, false) != null
+          || vwr.getPOrNull(name) != null)
+        return false;
+      String lcName = name.toLowerCase();
+      Object def = sets.get(lcName);
+      if (isNew) {
+        if (def == null ? sets.containsKey("!" + lcName) || lcName.length() >= 5
+            && lcName.endsWith("s") : !(def instanceof BS))
+          return false;
+        entry.definitions[i] = def;
+      } else if (def != entry.definitions[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int getCoordinateVersion() {
+    int n = ms.ac * 3;
+    boolean isSame = (xyz != null && xyz.length == n);
+    if (!isSame)
+      xyz = new float[n];
+    Atom[] at = ms.at;
+    for (int i = 0, pt = 0; pt < n; i++) {
+      Atom a = at[i];
+      if (a == null) {
+        pt += 3;
+        continue;
+      }
+      if (isSame && xyz[pt] == a.x && xyz[pt + 1] == a.y && xyz[pt + 2] == a.z) {
+        pt += 3;
+        continue;
+      }
+      isSame = false;
+      xyz[pt++] = a.x;
+      xyz[pt++] = a.y;
+      xyz[pt++] = a.z;
+    }
+    return (isSame ? coordinateVersion : ++coordinateVersion);
+  }
+
+  /**
+   * @return hits, misses, and invalidations of the cache, along with its
+   *         current number of expressions
+   */
+  Map<String, Object> getInfo() {
+    Map<String, Object> info = new Hashtable<String, Object>();
+    info.put("hits", Integer.valueOf(hits));
+    info.put("misses", Integer.valueOf(misses));
+    info.put("invalidations", Integer.valueOf(invalidations));
+    info.put("expressions", Integer.valueOf(htEntries.size()));
+    return info;
+  }
+
+  String getTimingMsg() {
+    return "atom expression cache: " + hits + " hits, " + misses + " misses ("
+        + invalidations + " out of date), " + htEntries.size()
+        + " expressions";
+  }
+
+}
@@ -49,6 +49,10 @@ public class CommandWatcherThread extends JmolThread {
 
   @Override
   public void run() {
+    if (isScheduled) {
+      super.run();
+      return;
+    }
     Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
     while (!stopped) {
       try {
@@ -76,9 +80,18 @@ public class CommandWatcherThread extends JmolThread {
     }
   }
   
+  /**
+   * scheduled only; an exception ends the watch, as in run()
+   */
   @Override
   protected void run1(int mode) throws InterruptedException {
-    // N/A
+    while (!stopped) {
+      if (mode == CHECK1)
+        scriptManager.runScriptNow();
+      if (stopped || !runSleep(commandDelay, CHECK1))
+        return;
+      mode = CHECK1;
+    }
   }
 
 }
\ No newline at end of file
@@ -147,6 +147,8 @@ public class SV extends T implements JSONEncodable {
       return -64;
     case barray:
       return ((BArray) x.value).data.length;
+    case listf:
+      return AU.getLength(x.value);
     case string:
       return ((String) x.value).length();
     case varray:
@@ -231,9 +233,8 @@ public class SV extends T implements JSONEncodable {
 
     // the eight basic types are:
     // boolean, integer, decimal, string, point3f, point4f, bitset, and list
-    // listf is a special temporary type for storing results
-    // of .all in preparation for .bin in the case of xxx.all.bin
-    // but with some work, this could be developed into a storage class
+    // listf is a special temporary type for packed numeric results
+    // such as xxx.all that only lives on the ScriptMathProcessor stack
 
     if (x instanceof Boolean)
       return getBoolean(((Boolean) x).booleanValue());
@@ -443,6 +444,50 @@ public class SV extends T implements JSONEncodable {
     return newV(varray, objects);
   }
 
+  /**
+   * A packed list of numbers -- float[], int[], or Float[] -- is used for
+   * element-wise math on the ScriptMathProcessor stack, so that xxx.all.mul(2)
+   * does not create a variable for each element. Anywhere else a standard list
+   * is needed, so this is applied when the value leaves the stack.
+   * 
+   * @param x
+   * @return x, or x as a standard list if it is packed
+   */
+  public static SV unpackList(SV x) {
+    if (x == null || x.tok != listf)
+      return x;
+    Object data = x.value;
+    if (AU.isAI(data))
+      return getVariableAI((int[]) data);
+    if (AU.isAF(data))
+      return getVariableAF((float[]) data);
+    Float[] f = (Float[]) data;
+    Lst<SV> objects = new  Lst<SV>();
+    for (int i = 0; i < f.length; i++)
+      objects.addLast(newV(decimal, f[i]));
+    return newV(varray, objects);
+  }
+
+  /**
+   * @param x
+   *        a packed list
+   * @return its values as floats
+   */
+  public static float[] listfValue(SV x) {
+    Object data = x.value;
+    if (AU.isAF(data))
+      return (float[]) data;
+    int n = AU.getLength(data);
+    float[] f = new float[n];
+    if (AU.isAI(data))
+      for (int i = n; --i >= 0;)
+        f[i] = ((int[]) data)[i];
+    else
+      for (int i = n; --i >= 0;)
+        f[i] = ((Float[]) data)[i].floatValue();
+    return f;
+  }
+
   static SV getVariableAB(byte[] ix) {
     Lst<SV> objects = new  Lst<SV>();
     for (int i = 0; i < ix.length; i++)
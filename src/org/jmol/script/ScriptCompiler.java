@@ -154,6 +154,15 @@ public class ScriptCompiler extends ScriptTokenParser {
     this.script = script;
     logMessages = (!isSilent && !isPredefining && debugScript);
     preDefining = (filename == "#predefine");
+    boolean isCacheable = (!isCheckOnly && !logMessages && !preDefining
+        && script.length() >= MIN_CACHE_CHARS);
+    if (isCacheable) {
+      ScriptContext sc = getCachedScript(script);
+      if (sc != null)
+        return sc;
+    }
+    String script0 = script;
+    int version = tokenTableVersion;
     boolean doFull = true;
     boolean isOK = compile0(doFull);
     atokenInfix = null;
@@ -179,9 +188,132 @@ public class ScriptCompiler extends ScriptTokenParser {
     sc.lineIndices = lineIndices;
     sc.lineNumbers = lineNumbers;
     sc.vars = contextVariables;
+    if (isCacheable && isOK && errorType == null && version == tokenTableVersion)
+      cacheScript(script0, sc);
     return sc;
   }
 
+  ////////////////// compiled-script cache ////////////////////
+
+  /*
+   * Pages and server jobs that replay the same setup scripts get the
+   * compilation from the previous run instead of tokenizing again. A
+   * compilation is reused only if the viewer still answers the compiler's
+   * questions the same way -- the same names are user functions and the same
+   * chain IDs map to the same numbers -- and no DEFINE has redefined a command
+   * word since. The tokens are shared with the earlier run just as a
+   * function's tokens are shared by its calls: restoreTokens resets the
+   * command pointers, and declared variables are re-created.
+   * 
+   */
+
+  private final static int MIN_CACHE_CHARS = 512;
+  private final static int MAX_CACHE_SCRIPTS = 32;
+  private final static int MAX_CACHE_CHARS = 1 << 21;
+
+  /**
+   * incremented when DEFINE changes the token table for all compilers
+   */
+  private static int tokenTableVersion;
+
+  private Map<Integer, CompiledScript> htCache;
+  private int cacheChars, cacheClock;
+  private int cacheHits, cacheMisses, cacheInvalidations, cacheEvictions;
+
+  private static class CompiledScript {
+    String script;
+    ScriptContext sc;
+    boolean isStateScript;
+    String stateVersion;
+    Map<String, Boolean> htFunctionChecks;
+    Lst<Object[]> chainChecks;
+    int version;
+    int lastUsed;
+  }
+
+  private ScriptContext getCachedScript(String script) {
+    if (htCache == null)
+      htCache = new Hashtable<Integer, CompiledScript>();
+    Integer key = Integer.valueOf(script.hashCode());
+    CompiledScript cs = htCache.get(key);
+    if (cs == null || !cs.script.equals(script)) {
+      cacheMisses++;
+      return null;
+    }
+    if (cs.version != tokenTableVersion || !isCacheCurrent(cs)) {
+      htCache.remove(key);
+      cacheChars -= script.length();
+      cacheInvalidations++;
+      cacheMisses++;
+      return null;
+    }
+    cacheHits++;
+    cs.lastUsed = ++cacheClock;
+    isStateScript = cs.isStateScript;
+    if (cs.stateVersion != null)
+      ScriptManager.setStateScriptVersion(vwr, cs.stateVersion);
+    return cs.sc.copyCompiled();
+  }
+
+  private boolean isCacheCurrent(CompiledScript cs) {
+    if (!cs.isStateScript)
+      for (Map.Entry<String, Boolean> e : cs.htFunctionChecks.entrySet())
+        if (vwr.isFunction(e.getKey()) != e.getValue().booleanValue())
+          return false;
+    // replayed in order, since assigning an ID can change those that follow
+    for (int i = 0, n = cs.chainChecks.size(); i < n; i++) {
+      Object[] c = cs.chainChecks.get(i);
+      if (vwr.getChainID((String) c[0], ((Boolean) c[1]).booleanValue()) != ((Integer) c[2])
+          .intValue())
+        return false;
+    }
+    return true;
+  }
+
+  private void cacheScript(String script, ScriptContext sc) {
+    if (haveSideEffects || script.length() > MAX_CACHE_CHARS / 4)
+      return;
+    CompiledScript cs = new CompiledScript();
+    cs.script = script;
+    cs.sc = sc.copyCompiled();
+    cs.isStateScript = isStateScript;
+    cs.stateVersion = stateVersion;
+    cs.htFunctionChecks = htFunctionChecks;
+    cs.chainChecks = chainChecks;
+    cs.version = tokenTableVersion;
+    cs.lastUsed = ++cacheClock;
+    CompiledScript old = htCache.put(Integer.valueOf(script.hashCode()), cs);
+    if (old != null)
+      cacheChars -= old.script.length();
+    cacheChars += script.length();
+    while (htCache.size() > MAX_CACHE_SCRIPTS || cacheChars > MAX_CACHE_CHARS) {
+      Integer oldest = null;
+      int t = Integer.MAX_VALUE;
+      for (Map.Entry<Integer, CompiledScript> e : htCache.entrySet())
+        if (e.getValue().lastUsed < t) {
+          t = e.getValue().lastUsed;
+          oldest = e.getKey();
+        }
+      cacheChars -= htCache.remove(oldest).script.length();
+      cacheEvictions++;
+    }
+  }
+
+  /**
+   * @return hits, misses, invalidations, and evictions of the compiled-script
+   *         cache, along with its current number of scripts and characters
+   */
+  public Map<String, Object> getCacheInfo() {
+    Map<String, Object> info = new Hashtable<String, Object>();
+    info.put("hits", Integer.valueOf(cacheHits));
+    info.put("misses", Integer.valueOf(cacheMisses));
+    info.put("invalidations", Integer.valueOf(cacheInvalidations));
+    info.put("evictions", Integer.valueOf(cacheEvictions));
+    info.put("scripts", Integer.valueOf(htCache == null ? 0 : htCache.size()));
+    info.put("chars", Integer.valueOf(cacheChars));
+    return info;
+  }
+
   private void newContextVariable(String ident) {
     theToken = T.o(T.identifier, ident);
     if (pushCount > 0) {
@@ -261,9 +393,13 @@ public class ScriptCompiler extends ScriptTokenParser {
   }
 
   private boolean haveENDIF;
+  private boolean haveSideEffects;
+  private String stateVersion;
   
   private boolean compile0(boolean isFull) {
     haveENDIF = false;
+    haveSideEffects = false;
+    stateVersion = null;
     script = cleanScriptComments(script);
     ichToken = script.indexOf(JC.STATE_VERSION_STAMP);
     isStateScript = (ichToken >= 0);
@@ -271,7 +407,7 @@ public class ScriptCompiler extends ScriptTokenParser {
       ptSemi = script.indexOf(";", ichToken);
       if (ptSemi >= ichToken)
         ScriptManager.setStateScriptVersion(vwr,
-            script
+            stateVersion = script
                 .substring(ichToken + JC.STATE_VERSION_STAMP.length(), ptSemi)
                 .trim());
     }
@@ -280,6 +416,8 @@ public class ScriptCompiler extends ScriptTokenParser {
     main: while (true) {
       vFunctionStack = new Lst<ScriptFunction>();
       htUserFunctions = new Hashtable<String, Boolean>();
+      htFunctionChecks = new Hashtable<String, Boolean>();
+      chainChecks = new Lst<Object[]>();
       // these four will be returned:
       contextVariables = null;
       lineNumbers = null;
@@ -2061,6 +2199,8 @@ public class ScriptCompiler extends ScriptTokenParser {
                     + "not all commands may continue to be functional for the life of the applet!");
             theTok = theToken.tok = T.identifier;
             T.addToken(ident, theToken);
+            haveSideEffects = true;
+            tokenTableVersion++;
           }
         }
         addTokenToPrefix(theToken);
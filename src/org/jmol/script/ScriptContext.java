@@ -155,6 +155,30 @@ public class ScriptContext {
     return aatoken;
   }
 
+  /**
+   * A context for another run of a cached compilation: the tokens are shared,
+   * with the if/then pointers as they were when compiled, and the script's
+   * declared variables are new.
+   * 
+   * @return new context
+   */
+  ScriptContext copyCompiled() {
+    ScriptContext sc = new ScriptContext();
+    sc.aatoken = aatoken;
+    sc.pointers = pointers;
+    sc.isComplete = isComplete;
+    sc.script = script;
+    sc.scriptExtensions = scriptExtensions;
+    sc.lineIndices = lineIndices;
+    sc.lineNumbers = lineNumbers;
+    if (vars != null) {
+      sc.vars = new Hashtable<String, SV>();
+      for (String key : vars.keySet())
+        ScriptCompiler.addContextVariable(sc.vars, key);
+    }
+    return sc;
+  }
+
   public int getTokenCount() {
     return (aatoken == null ? -1 : aatoken.length);
   }
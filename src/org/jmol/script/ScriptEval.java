@@ -221,7 +221,7 @@ public class ScriptEval extends ScriptExpr {
   /////////////////// global fields ///////////////////
   
   private final static String saveList = 
-      "bonds? context? coordinates? orientation? rotation? selection? state? structure?";
+      "bonds? context? coordinates? orientation? rotation? selection? snapshot? state? structure?";
   
   private static int iProcess;
 
@@ -6257,6 +6257,10 @@ public class ScriptEval extends ScriptExpr {
         if (!chk)
           vwr.stm.restoreSelection(saveName);
         return;
+      case T.snapshot:
+        if (!chk && !vwr.stm.restoreSnapshot(saveName))
+          invArg();
+        return;
       case T.state:
         if (chk)
           return;
@@ -6305,6 +6309,10 @@ public class ScriptEval extends ScriptExpr {
           vwr.stm.restoreSelection(saveName); // just to register the # of
         }
         return;
+      case T.snapshot:
+        if (!chk)
+          vwr.stm.saveSnapshot(saveName);
+        return;
       case T.state:
         if (!chk)
           vwr.stm.saveState(saveName);
@@ -6476,8 +6484,10 @@ public class ScriptEval extends ScriptExpr {
       dispatchCommands(false, false, false);
       if (isStateScript)
         ScriptManager.setStateScriptVersion(vwr, null);
-      if (timeMsg)
+      if (timeMsg) {
         showString(Logger.getTimerMsg("script", 0));
+        showString(getAtomExpressionCache().getTimingMsg());
+      }
       isCmdLine_C_Option = saveLoadCheck;
       popContext(false, false);
     } else {
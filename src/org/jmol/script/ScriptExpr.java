@@ -3,6 +3,7 @@ package org.jmol.script;
 import java.util.Hashtable;
 import java.util.Map;
 
+import javajs.util.AU;
 import javajs.util.BArray;
 import javajs.util.CU;
 import javajs.util.Lst;
@@ -178,6 +179,20 @@ abstract class ScriptExpr extends ScriptParam {
     boolean allContext = (localVars == null || ptMax != Integer.MIN_VALUE);
     if (ptMax < pt)
       ptMax = slen;
+    if (!chk && !debugHigh && !vwr.isJS && localVars == null && !isArrayItem
+        && !isSpecialAssignment && !isOneExpressionOnly) {
+      ScriptMathCode code = getMathCode(pt, ptMax);
+      SV result = (code.isEnabled() ? code.run(this) : null);
+      if (result != null) {
+        getToken(code.iTokenEnd);
+        if (asVector) {
+          Lst<SV> rv = new Lst<SV>();
+          rv.addLast(result);
+          return rv;
+        }
+        return getExpressionValue(result, returnBoolean, returnString);
+      }
+    }
     int ptEq = (isSpecialAssignment ? 0 : 1);
     int ptWithin = -1;
     ScriptMathProcessor rpn = new ScriptMathProcessor(this,
@@ -642,6 +657,11 @@ abstract class ScriptExpr extends ScriptParam {
       }
       return result.value;
     }
+    return getExpressionValue(result, returnBoolean, returnString);
+  }
+
+  private Object getExpressionValue(SV result, boolean returnBoolean,
+                                    boolean returnString) {
     if (chk) {
       if (returnBoolean)
         return Boolean.TRUE;
@@ -673,6 +693,44 @@ abstract class ScriptExpr extends ScriptParam {
 
   protected T[] tempStatement;
 
+  /**
+   * expressions lowered by ScriptMathCode, by statement
+   */
+  private Map<T[], ScriptMathCode> htMathCode;
+
+  private final static int MAX_MATH_CODE = 1024;
+
+  private ScriptMathCode getMathCode(int pt, int ptMax) {
+    if (htMathCode == null || htMathCode.size() > MAX_MATH_CODE)
+      htMathCode = new Hashtable<T[], ScriptMathCode>();
+    ScriptMathCode code0 = htMathCode.get(st);
+    for (ScriptMathCode code = code0; code != null; code = code.next)
+      if (code.pt == pt && code.ptMax == ptMax)
+        return code;
+    ScriptMathCode code = ScriptMathCode.lower(st, slen, pt, ptMax);
+    code.next = code0;
+    htMathCode.put(st, code);
+    return code;
+  }
+
+  /**
+   * results of recent atom expressions of the current ModelSet
+   */
+  private AtomExpressionCache atomExpressionCache;
+
+  AtomExpressionCache getAtomExpressionCache() {
+    if (atomExpressionCache == null || atomExpressionCache.ms != vwr.ms)
+      atomExpressionCache = new AtomExpressionCache(vwr.ms);
+    return atomExpressionCache;
+  }
+
+  /**
+   * @return hits, misses, and invalidations of the atom expression cache
+   */
+  public Map<String, Object> getAtomExpressionCacheInfo() {
+    return getAtomExpressionCache().getInfo();
+  }
+
   @Override
   public BS atomExpressionAt(int index) throws ScriptException {
     if (!checkToken(index)) {
@@ -725,6 +783,22 @@ abstract class ScriptExpr extends ScriptParam {
     ignoreSubset |= chk;
     if (pcStop == 0 && code.length > pcStart)
       pcStop = pcStart + 1;
+    int pc0 = pcStart;
+    AtomExpressionCache.Entry cached = (ret == null && !chk ? getAtomExpressionCache()
+        .newEntry(code, pcStart, pcStop) : null);
+    if (cached != null) {
+      BS bs = atomExpressionCache.get(cached, this);
+      if (bs != null) {
+        iToken = pc0 + cached.iTokenOffset;
+        if (tempStatement != null) {
+          st = tempStatement;
+          tempStatement = null;
+        }
+        if ((bs = vwr.slm.excludeAtoms(bs, ignoreSubset)).length() > vwr.ms.ac)
+          bs.clearAll();
+        return bs;
+      }
+    }
     // if (logMessages)
     // vwr.scriptStatus("start to evaluate expression");
     expression_loop: for (int pc = pcStart; pc < pcStop; ++pc) {
@@ -1047,6 +1121,8 @@ abstract class ScriptExpr extends ScriptParam {
     }
     BS bs = (exp instanceof BS ? (BS) exp : new BS());
     isBondSet = (exp instanceof BondSet);
+    if (cached != null && !isBondSet && exp == expressionResult.value)
+      atomExpressionCache.put(cached, bs, iToken - pc0, this);
     if (!isBondSet
         && (bs = vwr.slm.excludeAtoms(bs, ignoreSubset)).length() > vwr.ms.ac)
       bs.clearAll();
@@ -1604,7 +1680,21 @@ abstract class ScriptExpr extends ScriptParam {
     if (isExplicitlyAll || isString && !haveIndex && minmaxtype != T.allfloat
         && minmaxtype != T.min)
       minmaxtype = T.all;
-    Lst<Object> vout = (minmaxtype == T.all ? new Lst<Object>() : null);
+    // for math, xxx.all of a numeric atom property is packed as float[] or int[]
+    boolean isPacked = (minmaxtype == T.all && asVectorIfAll && isAtoms
+        && !selectedFloat && !isPt && !isHash && !isString);
+    Lst<Object> vout = (minmaxtype == T.all && !isPacked ? new Lst<Object>()
+        : null);
+    float[] fall = null;
+    int[] iall = null;
+    int nall = 0;
+    if (isPacked) {
+      int nmax = (haveIndex ? 1 : bs == null ? ac : bs.cardinality());
+      if (isInt)
+        iall = new int[nmax];
+      else
+        fall = new float[nmax];
+    }
     BS bsNew = null;
     String userFunction = null;
     Lst<SV> params = null;
@@ -1744,7 +1834,10 @@ abstract class ScriptExpr extends ScriptParam {
             fout[i] = fv;
             break;
           case T.all:
-            vout.addLast(Float.valueOf(fv));
+            if (isPacked)
+              fall[nall++] = fv;
+            else
+              vout.addLast(Float.valueOf(fv));
             break;
           case T.sum2:
           case T.stddev:
@@ -1778,7 +1871,10 @@ abstract class ScriptExpr extends ScriptParam {
             fout[i] = iv;
             break;
           case T.all:
-            vout.addLast(Integer.valueOf(iv));
+            if (isPacked)
+              iall[nall++] = iv;
+            else
+              vout.addLast(Integer.valueOf(iv));
             break;
           case T.sum2:
           case T.stddev:
@@ -1895,6 +1991,9 @@ abstract class ScriptExpr extends ScriptParam {
     }
     if (minmaxtype == T.allfloat)
       return fout;
+    if (isPacked)
+      return (isInt ? (nall == iall.length ? iall : AU.arrayCopyI(iall, nall))
+          : nall == fall.length ? fall : AU.arrayCopyF(fall, nall));
     if (minmaxtype == T.all) {
       if (asVectorIfAll)
         return vout;
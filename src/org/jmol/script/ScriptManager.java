@@ -25,6 +25,8 @@ package org.jmol.script;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.util.Hashtable;
+import java.util.Map;
 
 import javajs.api.ZInputStream;
 import javajs.util.AU;
@@ -134,6 +136,7 @@ public class ScriptManager implements JmolScriptManager {
 //    scriptItem.addLast(Boolean.FALSE);
     scriptItem.addLast(isQuiet ? Boolean.TRUE : Boolean.FALSE);
     scriptItem.addLast(Integer.valueOf(useCommandThread ? -1 : 1));
+    scriptItem.addLast(Long.valueOf(System.currentTimeMillis()));
     scriptQueue.addLast(scriptItem);
     //if (Logger.debugging)
     //  Logger.info("ScriptManager queue size=" + scriptQueue.size() + " scripts; added: " 
@@ -282,6 +285,38 @@ public class ScriptManager implements JmolScriptManager {
     commandWatcherThread = null;
   }
 
+  /**
+   * number of scripts taken from the queue, and their total, longest, and
+   * latest wait there, in milliseconds
+   */
+  private int queueWaitCount;
+  private long queueWaitTotal, queueWaitMax, queueWaitLast;
+
+  @Override
+  public synchronized void setQueueWait(Lst<Object> scriptItem) {
+    long t = System.currentTimeMillis()
+        - ((Long) scriptItem.get(5)).longValue();
+    queueWaitCount++;
+    queueWaitTotal += t;
+    queueWaitLast = t;
+    if (t > queueWaitMax)
+      queueWaitMax = t;
+  }
+
+  @Override
+  public synchronized Map<String, Object> getQueueWaitInfo() {
+    Map<String, Object> info = new Hashtable<String, Object>();
+    info.put("count", Integer.valueOf(queueWaitCount));
+    info.put("queued", Integer.valueOf(scriptQueue.size()));
+    info.put("waitMsLast", Long.valueOf(queueWaitLast));
+    info.put("waitMsMax", Long.valueOf(queueWaitMax));
+    info.put("waitMsAverage", Float.valueOf(queueWaitCount == 0 ? 0
+        : queueWaitTotal * 1f / queueWaitCount));
+    if (vwr.useScheduler)
+      info.put("scheduler", vwr.getThreadScheduler().getInfo());
+    return info;
+  }
+
   @Override
   public void queueThreadFinished(int pt) {
     queueThreads[pt].interrupt();
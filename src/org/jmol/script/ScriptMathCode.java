@@ -0,0 +1,640 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2005  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ *  02110-1301, USA.
+ */
+
+package org.jmol.script;
+
+import org.jmol.java.BS;
+import org.jmol.modelset.BondSet;
+
+/**
+ * A math expression of a compiled statement lowered to a compact postfix
+ * instruction array, so that the tight loops of user scripts need not walk
+ * the tokens through a new ScriptMathProcessor every time around.
+ *
+ * Only the common subset is lowered: integer, decimal, and boolean constants;
+ * user variables; .property of a variable holding atoms; unary - and !;
+ * parentheses; and the arithmetic, comparison, and logical operators. The
+ * operators are ordered just as ScriptMathProcessor.addOp orders them, and
+ * each operation follows ScriptMathProcessor.binaryOp for these types.
+ * Operations on constants alone are folded when lowered.
+ *
+ * Variable names are resolved when lowered to lower-case slots, each looked
+ * up once per evaluation. Anything else -- a statement outside the subset, or
+ * a variable that turns out to hold a string, a list, a NaN -- makes run()
+ * return null, and ScriptExpr.parameterExpression evaluates the tokens as
+ * always. None of the subset has side effects, so that can happen anywhere.
+ *
+ */
+final class ScriptMathCode {
+
+  private final static int CONST = 0;
+  private final static int VAR = 1;
+  private final static int PROP = 2;
+  private final static int UNARY = 3;
+  private final static int BINARY = 4;
+
+  /**
+   * deoptimizations after which we stop trying, if runs have not outnumbered
+   * them
+   */
+  private final static int MAX_DEOPT = 16;
+
+  /**
+   * where in the statement this expression starts and stops, and the value of
+   * iToken when the token walk would have finished
+   */
+  final int pt, ptMax, iTokenEnd;
+
+  /**
+   * the next expression lowered from the same statement
+   */
+  ScriptMathCode next;
+
+  private int[] ops, args;
+  private int nOps;
+
+  // constants: tok, intValue, float value
+  private int[] cToks, cInts;
+  private float[] cFloats;
+  private int nConst;
+
+  // variables, by slot
+  private String[] names;
+  private boolean[] isIdentifier;
+  private int nNames;
+
+  // .property selectors, by index
+  private int[] propToks;
+  private String[] propNames;
+  private int nProps;
+
+  private int maxDepth;
+  private boolean isOK;
+  private int nRun, nDeopt;
+
+  // evaluation stacks
+  private int[] toks, ints;
+  private float[] floats;
+  private SV[] vars;
+
+  private ScriptMathCode(int pt, int ptMax, int iTokenEnd) {
+    this.pt = pt;
+    this.ptMax = ptMax;
+    this.iTokenEnd = iTokenEnd;
+  }
+
+  boolean isEnabled() {
+    return isOK && (nDeopt < MAX_DEOPT || nRun > nDeopt);
+  }
+
+  ////////////// lowering //////////////
+
+  /**
+   * Lower st[pt] through st[ptMax - 1].
+   *
+   * @param st
+   * @param slen
+   * @param pt
+   * @param ptMax
+   * @return code, which is not enabled if the expression is outside the subset
+   */
+  static ScriptMathCode lower(T[] st, int slen, int pt, int ptMax) {
+    int end = ptMax;
+    for (int i = pt; i < ptMax; i++)
+      if (st[i] != null
+          && (st[i].tok == T.semicolon || st[i].tok == T.expressionEnd)) {
+        end = i;
+        break;
+      }
+    ScriptMathCode code = new ScriptMathCode(pt, ptMax, end < ptMax ? end
+        : ptMax - 1);
+    code.isOK = (end > pt && ptMax <= slen && code.lowerTokens(st, slen, pt,
+        end));
+    return code;
+  }
+
+  private boolean lowerTokens(T[] st, int slen, int pt, int end) {
+    int n = end - pt;
+    ops = new int[n * 2];
+    args = new int[n * 2];
+    cToks = new int[n];
+    cInts = new int[n];
+    cFloats = new float[n];
+    names = new String[n];
+    isIdentifier = new boolean[n];
+    propToks = new int[n];
+    propNames = new String[n];
+    int[] oStack = new int[n];
+    int oPt = -1;
+    int depth = 0;
+    boolean wasX = false;
+    for (int i = pt; i < end; i++) {
+      T t = st[i];
+      if (t == null)
+        return false;
+      int tok = t.tok;
+      switch (tok) {
+      case T.integer:
+      case T.decimal:
+        if (wasX) {
+          // x -3 is x - 3, as in ScriptMathProcessor.addXNum
+          if (t instanceof SV || !isNegative(t))
+            return false;
+          while (oPt >= 0 && mustOperate(oStack[oPt], T.minus))
+            if ((depth = addOp(oStack[oPt--], depth)) < 0)
+              return false;
+          oStack[++oPt] = T.minus;
+          if (!addConst(t, !(t instanceof SV)))
+            return false;
+        } else if (!addConst(t, false)) {
+          return false;
+        }
+        wasX = true;
+        depth++;
+        break;
+      case T.on:
+      case T.off:
+        if (wasX)
+          return false;
+        addConstant(tok, tok == T.on ? 1 : 0, tok == T.on ? 1 : 0);
+        wasX = true;
+        depth++;
+        break;
+      case T.identifier:
+        if (wasX || !(t.value instanceof String))
+          return false;
+        String name = ((String) t.value).toLowerCase();
+        if (name.startsWith("_") || tokAt(st, slen, i + 1) == T.leftparen)
+          return false;
+        add(VAR, addName(name, true));
+        wasX = true;
+        depth++;
+        if (tokAt(st, slen, i + 1) != T.per)
+          break;
+        if (i + 2 >= end || !isNumericProperty(st[i + 2].tok)
+            || tokAt(st, slen, i + 3) == T.per
+            || tokAt(st, slen, i + 3) == T.leftparen
+            || !(st[i + 2].value instanceof String))
+          return false;
+        propToks[nProps] = st[i + 2].tok;
+        propNames[nProps] = (String) st[i + 2].value;
+        add(PROP, nProps++);
+        i += 2;
+        break;
+      case T.leftparen:
+      case T.opNot:
+        if (wasX)
+          return false;
+        oStack[++oPt] = tok;
+        break;
+      case T.rightparen:
+        if (!wasX)
+          return false;
+        while (oPt >= 0 && oStack[oPt] != T.leftparen)
+          if ((depth = addOp(oStack[oPt--], depth)) < 0)
+            return false;
+        if (oPt < 0)
+          return false;
+        oPt--;
+        break;
+      case T.minus:
+        if (!wasX)
+          tok = T.unaryMinus;
+        //$FALL-THROUGH$
+      default:
+        if (!isOperator(tok) || wasX == (tok == T.unaryMinus))
+          return false;
+        while (oPt >= 0 && mustOperate(oStack[oPt], tok))
+          if ((depth = addOp(oStack[oPt--], depth)) < 0)
+            return false;
+        oStack[++oPt] = tok;
+        wasX = false;
+        break;
+      }
+      if (depth > maxDepth)
+        maxDepth = depth;
+    }
+    if (!wasX)
+      return false;
+    while (oPt >= 0)
+      if (oStack[oPt] == T.leftparen
+          || (depth = addOp(oStack[oPt--], depth)) < 0)
+        return false;
+    if (depth != 1)
+      return false;
+    toks = new int[maxDepth];
+    ints = new int[maxDepth];
+    floats = new float[maxDepth];
+    vars = new SV[nNames];
+    return true;
+  }
+
+  private static int tokAt(T[] st, int slen, int i) {
+    return (i < slen && st[i] != null ? st[i].tok : T.nada);
+  }
+
+  private static boolean isNegative(T t) {
+    if (t.tok == T.integer)
+      return t.intValue < 0;
+    if (!(t.value instanceof Float))
+      return false;
+    float f = ((Float) t.value).floatValue();
+    return (f < 0 || f == 0 && 1 / f == Float.NEGATIVE_INFINITY);
+  }
+
+  private static boolean isOperator(int tok) {
+    switch (tok) {
+    case T.unaryMinus:
+    case T.plus:
+    case T.minus:
+    case T.times:
+    case T.divide:
+    case T.leftdivide:
+    case T.percent:
+    case T.timestimes:
+    case T.opLT:
+    case T.opLE:
+    case T.opGT:
+    case T.opGE:
+    case T.opEQ:
+    case T.opNE:
+    case T.opAnd:
+    case T.opOr:
+    case T.opXor:
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean isNumericProperty(int tok) {
+    switch (tok) {
+    case T.array:
+    case T.identifier:
+    case T.type:
+    case T.keys:
+    case T.length:
+    case T.count:
+    case T.size:
+    case T.lines:
+    case T.color:
+    case T.boundbox:
+    case T.bonds:
+      return false;
+    }
+    return (T.tokAttr(tok, T.intproperty) || T.tokAttr(tok, T.floatproperty))
+        && !T.tokAttr(tok, T.strproperty);
+  }
+
+  /**
+   * the condition of the operating loop of ScriptMathProcessor.addOp
+   *
+   * @param tok0
+   *        operator on the stack
+   * @param tok
+   *        incoming operator
+   * @return true if tok0 must operate first
+   */
+  private static boolean mustOperate(int tok0, int tok) {
+    return tok0 != T.leftparen && T.getPrecedence(tok0) >= T.getPrecedence(tok)
+        && (tok0 != T.unaryMinus || tok != T.unaryMinus);
+  }
+
+  private int addOp(int tok, int depth) {
+    boolean isUnary = (tok == T.unaryMinus || tok == T.opNot);
+    if (depth < (isUnary ? 1 : 2))
+      return -1;
+    add(isUnary ? UNARY : BINARY, tok);
+    if (isUnary)
+      foldUnary();
+    else
+      foldBinary();
+    return (isUnary ? depth : depth - 1);
+  }
+
+  private void add(int op, int arg) {
+    ops[nOps] = op;
+    args[nOps++] = arg;
+  }
+
+  private boolean addConst(T t, boolean negate) {
+    if (t.tok == T.integer) {
+      int i = (negate ? -t.intValue : t.intValue);
+      addConstant(T.integer, i, i);
+      return true;
+    }
+    if (!(t.value instanceof Float))
+      return false;
+    float f = ((Float) t.value).floatValue();
+    if (negate)
+      f = -f;
+    addConstant(T.decimal, (int) f, f);
+    return true;
+  }
+
+  private void addConstant(int tok, int i, float f) {
+    cToks[nConst] = tok;
+    cInts[nConst] = i;
+    cFloats[nConst] = f;
+    add(CONST, nConst++);
+  }
+
+  private int addName(String name, boolean isId) {
+    for (int i = nNames; --i >= 0;)
+      if (names[i].equals(name))
+        return i;
+    names[nNames] = name;
+    isIdentifier[nNames] = isId;
+    return nNames++;
+  }
+
+  private void foldUnary() {
+    if (nOps < 2 || ops[nOps - 2] != CONST)
+      return;
+    int c = args[nOps - 2];
+    toks = new int[1];
+    ints = new int[1];
+    floats = new float[1];
+    toks[0] = cToks[c];
+    ints[0] = cInts[c];
+    floats[0] = cFloats[c];
+    if (!unary(args[nOps - 1], 0))
+      return;
+    nOps -= 2;
+    addConstant(toks[0], ints[0], floats[0]);
+  }
+
+  private void foldBinary() {
+    if (nOps < 3 || ops[nOps - 2] != CONST || ops[nOps - 3] != CONST)
+      return;
+    toks = new int[2];
+    ints = new int[2];
+    floats = new float[2];
+    for (int j = 0; j < 2; j++) {
+      int c = args[nOps - 3 + j];
+      toks[j] = cToks[c];
+      ints[j] = cInts[c];
+      floats[j] = cFloats[c];
+    }
+    if (!binary(args[nOps - 1], 0))
+      return;
+    nOps -= 3;
+    addConstant(toks[0], ints[0], floats[0]);
+  }
+
+  ////////////// evaluation //////////////
+
+  /**
+   * @param e
+   * @return the value, or null to evaluate the tokens instead
+   * @throws ScriptException
+   */
+  SV run(ScriptExpr e) throws ScriptException {
+    for (int i = nNames; --i >= 0;)
+      vars[i] = null;
+    int xPt = -1;
+    for (int i = 0; i < nOps; i++) {
+      int arg = args[i];
+      switch (ops[i]) {
+      case CONST:
+        xPt++;
+        toks[xPt] = cToks[arg];
+        ints[xPt] = cInts[arg];
+        floats[xPt] = cFloats[arg];
+        break;
+      case VAR:
+        SV v = vars[arg];
+        if (v == null && (v = vars[arg] = getVariable(e, arg)) == null)
+          return deopt();
+        xPt++;
+        switch (toks[xPt] = v.tok) {
+        case T.integer:
+          ints[xPt] = v.intValue;
+          floats[xPt] = v.intValue;
+          break;
+        case T.decimal:
+          if (!(v.value instanceof Float))
+            return deopt();
+          floats[xPt] = ((Float) v.value).floatValue();
+          ints[xPt] = (int) floats[xPt];
+          break;
+        case T.on:
+        case T.off:
+          floats[xPt] = ints[xPt] = (v.tok == T.on ? 1 : 0);
+          break;
+        case T.bitset:
+          // only as the atoms of a property
+          if (i + 1 == nOps || ops[i + 1] != PROP)
+            return deopt();
+          break;
+        default:
+          return deopt();
+        }
+        break;
+      case PROP:
+        if (!getProperty(e, vars[args[i - 1]], arg, xPt))
+          return deopt();
+        break;
+      case UNARY:
+        if (!unary(arg, xPt))
+          return deopt();
+        break;
+      case BINARY:
+        if (!binary(arg, --xPt))
+          return deopt();
+        break;
+      }
+    }
+    nRun++;
+    switch (toks[0]) {
+    case T.integer:
+      return SV.newI(ints[0]);
+    case T.decimal:
+      return SV.newF(floats[0]);
+    default:
+      return SV.getBoolean(toks[0] == T.on);
+    }
+  }
+
+  private SV deopt() {
+    nDeopt++;
+    return null;
+  }
+
+  /**
+   * as ScriptExpr.parameterExpression finds a variable that is not local to
+   * a for() or select() function
+   *
+   * @param e
+   * @param slot
+   * @return variable, or null if not a plain variable
+   */
+  private SV getVariable(ScriptExpr e, int slot) {
+    String name = names[slot];
+    SV v = (e.contextVariables != null ? e.contextVariables.get(name) : null);
+    if (v == null && e.thisContext != null)
+      v = e.thisContext.getVariable(name);
+    if (v != null)
+      return v;
+    if (isIdentifier[slot] && e.vwr.isFunction(name))
+      return null;
+    return e.vwr.g.getAndSetNewVariable(name, false);
+  }
+
+  /**
+   * as ScriptMathProcessor.getPointOrBitsetOperation for atoms
+   *
+   * @param e
+   * @param v
+   * @param iProp
+   * @param xPt
+   * @return false if not a single number
+   * @throws ScriptException
+   */
+  private boolean getProperty(ScriptExpr e, SV v, int iProp, int xPt)
+      throws ScriptException {
+    if (v.tok != T.bitset)
+      return false;
+    v = SV.selectItemVar(v);
+    if (v.tok != T.bitset || v.value instanceof BondSet)
+      return false;
+    BS bs = (BS) v.value;
+    int tok = propToks[iProp];
+    if (bs.cardinality() == 1)
+      tok |= T.min;
+    Object val = e.getBitsetProperty(bs, tok, null, null, v.value,
+        propNames[iProp], false, v.index, true);
+    if (val instanceof Integer) {
+      toks[xPt] = T.integer;
+      floats[xPt] = ints[xPt] = ((Integer) val).intValue();
+      return true;
+    }
+    if (!(val instanceof Float) || Float.isNaN(((Float) val).floatValue()))
+      return false;
+    return setFloat(xPt, ((Float) val).floatValue());
+  }
+
+  private boolean unary(int tok, int xPt) {
+    switch (tok) {
+    case T.unaryMinus:
+      return (toks[xPt] == T.integer ? setInt(xPt, -ints[xPt]) : setFloat(
+          xPt, -floats[xPt]));
+    case T.opNot:
+      return setBoolean(xPt, !asBoolean(xPt));
+    }
+    return false;
+  }
+
+  /**
+   * x1 op x2, with x1 at xPt and x2 above it, as in
+   * ScriptMathProcessor.binaryOp
+   *
+   * @param tok
+   * @param xPt
+   * @return false if the result is not a number or boolean
+   */
+  private boolean binary(int tok, int xPt) {
+    int x2 = xPt + 1;
+    boolean isInt1 = (toks[xPt] == T.integer);
+    boolean isDecimal2 = (toks[x2] == T.decimal);
+    float f1 = floats[xPt], f2 = floats[x2];
+    switch (tok) {
+    case T.opAnd:
+      return setBoolean(xPt, asBoolean(xPt) && asBoolean(x2));
+    case T.opOr:
+      return setBoolean(xPt, asBoolean(xPt) || asBoolean(x2));
+    case T.opXor:
+      boolean a = asBoolean(xPt);
+      boolean b = asBoolean(x2);
+      return setBoolean(xPt, a && !b || b && !a);
+    case T.opLE:
+      return setBoolean(xPt, f1 <= f2);
+    case T.opGE:
+      return setBoolean(xPt, f1 >= f2);
+    case T.opGT:
+      return setBoolean(xPt, f1 > f2);
+    case T.opLT:
+      return setBoolean(xPt, f1 < f2);
+    case T.opEQ:
+      return setBoolean(xPt, Math.abs(f1 - f2) < 0.000001);
+    case T.opNE:
+      return setBoolean(xPt, !(Math.abs(f1 - f2) < 0.000001));
+    case T.plus:
+      return (isInt1 && !isDecimal2 ? setInt(xPt, ints[xPt] + ints[x2])
+          : setFloat(xPt, f1 + f2));
+    case T.minus:
+      return (isInt1 && !isDecimal2 ? setInt(xPt, ints[xPt] - ints[x2])
+          : setFloat(xPt, f1 - f2));
+    case T.times:
+      return (!isInt1 ? setFloat(xPt, f1 * f2) : isDecimal2 ? setFloat(xPt,
+          ints[xPt] * f2) : setInt(xPt, ints[xPt] * ints[x2]));
+    case T.divide:
+      if (isInt1) {
+        int n = (isDecimal2 ? 0 : ints[x2]);
+        if (n != 0)
+          return setInt(xPt, ints[xPt] / n);
+      }
+      return setFloat(xPt, f1 / f2);
+    case T.leftdivide:
+      return setInt(xPt, f2 == 0 ? 0 : (int) Math.floor(f1 / f2));
+    case T.timestimes:
+      float f = (float) Math.pow(f1, f2);
+      return (isInt1 && toks[x2] == T.integer ? setInt(xPt, (int) f)
+          : setFloat(xPt, f));
+    case T.percent:
+      int n = ints[x2];
+      if (toks[xPt] == T.decimal)
+        return (n == 0 && setInt(xPt, Math.round(f1)));
+      return setInt(xPt, n == 0 ? ints[xPt] : ints[xPt] % n);
+    }
+    return false;
+  }
+
+  private boolean asBoolean(int xPt) {
+    return (toks[xPt] == T.integer ? ints[xPt] != 0 : floats[xPt] != 0);
+  }
+
+  private boolean setInt(int xPt, int i) {
+    toks[xPt] = T.integer;
+    ints[xPt] = i;
+    floats[xPt] = i;
+    return true;
+  }
+
+  private boolean setFloat(int xPt, float f) {
+    if (Float.isNaN(f))
+      return false;
+    toks[xPt] = T.decimal;
+    floats[xPt] = f;
+    ints[xPt] = (int) f;
+    return true;
+  }
+
+  private boolean setBoolean(int xPt, boolean b) {
+    toks[xPt] = (b ? T.on : T.off);
+    floats[xPt] = ints[xPt] = (b ? 1 : 0);
+    return true;
+  }
+
+}
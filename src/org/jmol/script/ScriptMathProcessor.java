@@ -23,6 +23,7 @@
  */
 package org.jmol.script;
 
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Map;
 
@@ -141,7 +142,8 @@ public class ScriptMathProcessor {
           eval.invArg();
         Lst<SV> result = new Lst<SV>();
         for (int i = 0; i <= xPt; i++)
-          result.addLast(isSpecialAssignment ? xStack[i] : SV.selectItemVar(xStack[i]));
+          result.addLast(isSpecialAssignment ? SV.unpackList(xStack[i]) : SV
+              .selectItemVar(SV.unpackList(xStack[i])));
         if (lastAssignedString != null) {
           result.remove(0);
           result.add(0, lastAssignedString);
@@ -150,7 +152,7 @@ public class ScriptMathProcessor {
         return SV.newV(T.vector, result);
       }
       if (xPt == 0) {
-        SV x = xStack[0];
+        SV x = SV.unpackList(xStack[0]);
         if (chk) {
           if (asBitSet)
             return SV.newV(T.bitset, new BS());
@@ -663,7 +665,7 @@ public class ScriptMathProcessor {
       if (!wasSyntaxCheck && xPt < 0)
         return false;
       if (!wasSyntaxCheck && xStack[xPt].tok != T.bitset
-          && xStack[xPt].tok != T.varray) {
+          && xStack[xPt].tok != T.varray && xStack[xPt].tok != T.listf) {
         // check to see if we need to evaluate the second operand or not
         // if not, then set this to syntax check in order to skip :)
         // Jmol 12.0.4, Jmol 12.1.2
@@ -750,7 +752,7 @@ public class ScriptMathProcessor {
       return false;
     }
     SV var1 = xStack[xPt--];
-    SV var = xStack[xPt];
+    SV var = xStack[xPt] = SV.unpackList(xStack[xPt]);
     if ((var.tok == T.varray || var.tok == T.barray) && var.intValue != Integer.MAX_VALUE)
 
       if (var1.tok == T.string || assignLeft && squareCount == 1) {
@@ -811,6 +813,17 @@ public class ScriptMathProcessor {
   }
 
   public SV getX() throws ScriptException {
+    return SV.unpackList(getXPacked());
+  }
+
+  /**
+   * As getX(), but leaving a packed list as is, for the operations that can
+   * work with it directly.
+   * 
+   * @return the variable, possibly of type T.listf
+   * @throws ScriptException
+   */
+  public SV getXPacked() throws ScriptException {
     if (xPt < 0)
       eval.error(ScriptError.ERROR_endOfStatementUnexpected);
     SV v = SV.selectItemVar(xStack[xPt]);
@@ -839,8 +852,9 @@ public class ScriptMathProcessor {
     if (nParamMax > 0 && nParam > nParamMax)
       return false;
     SV[] args = new SV[nParam];
+    boolean allowPacked = isListfOp(tok);
     for (int i = nParam; --i >= 0;)
-      args[i] = getX();
+      args[i] = (allowPacked ? getXPacked() : getX());
     xPt--;
     // no script checking of functions because
     // we cannot know what variables are real
@@ -894,7 +908,9 @@ public class ScriptMathProcessor {
       }
       //$FALL-THROUGH$
     default:
-      x2 = getX();
+      x2 = (op.tok == T.propselector
+          && isListfSelector(op.intValue & ~T.minmaxmask) ? getXPacked()
+          : getX());
       break;
     }
     if (x2 == T.tokenArrayOpen)
@@ -1679,7 +1695,7 @@ public class ScriptMathProcessor {
         if (!(v instanceof SV)
             || !getPointOrBitsetOperation(op, (SV) v))
           return false;
-        list2[i] = xStack[xPt--];
+        list2[i] = SV.unpackList(xStack[xPt--]);
       }
       return addXAV(list2);
     case T.point3f:
@@ -1752,11 +1768,208 @@ public class ScriptMathProcessor {
         op.intValue |= T.min;
       Object val = eval.getBitsetProperty(bs, op.intValue, null, null,
           x2.value, op.value, false, x2.index, true);
+      if (isAtoms && (AU.isAF(val) || AU.isAI(val)))
+        return addX(SV.newV(T.listf, val));
       return (isAtoms ? addXObj(val) : addX(SV.newV(T.bitset, BondSet.newBS(
           (BS) val, vwr.ms.getAtomIndices(bs)))));
+    case T.listf:
+      switch (op.intValue) {
+      case T.min:
+      case T.max:
+      case T.average:
+      case T.stddev:
+      case T.sum:
+      case T.sum2:
+        return addXObj(eval.getMathExt().getMinMax(
+            AU.isAI(x2.value) ? x2.value : SV.listfValue(x2), op.intValue));
+      case T.size:
+      case T.length:
+      case T.count:
+        return addXInt(SV.sizeOf(x2));
+      case T.sort:
+      case T.reverse:
+        if (sortOrReverseListf(x2, op.intValue == T.reverse))
+          return addX(x2);
+        break;
+      }
+      return getPointOrBitsetOperation(op, SV.unpackList(x2));
     }
     return false;
   }
 
+  //////////// packed lists ////////////
+
+  /**
+   * @param tok
+   * @return true for .add(), .sub(), .mul(), and .div(), which can be applied
+   *         to packed lists directly
+   */
+  private static boolean isListfOp(int tok) {
+    switch (tok) {
+    case T.add:
+    case T.sub:
+    case T.mul:
+    case T.div:
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean isListfSelector(int tok) {
+    switch (tok) {
+    case T.min:
+    case T.max:
+    case T.average:
+    case T.stddev:
+    case T.sum:
+    case T.sum2:
+    case T.size:
+    case T.length:
+    case T.count:
+    case T.sort:
+    case T.reverse:
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Sort or reverse a packed list in place, as SV.sortOrReverse would sort its
+   * standard list, unless it has NaN or -0, which that sort handles
+   * differently.
+   * 
+   * @param x
+   * @param isReverse
+   * @return false if it must be done as a standard list
+   */
+  private static boolean sortOrReverseListf(SV x, boolean isReverse) {
+    if (AU.isAI(x.value)) {
+      int[] a = (int[]) x.value;
+      if (!isReverse) {
+        Arrays.sort(a);
+        return true;
+      }
+      for (int i = 0, n = a.length; i < --n; i++) {
+        int v = a[i];
+        a[i] = a[n];
+        a[n] = v;
+      }
+      return true;
+    }
+    if (!AU.isAF(x.value))
+      return false;
+    float[] a = (float[]) x.value;
+    if (isReverse) {
+      for (int i = 0, n = a.length; i < --n; i++) {
+        float v = a[i];
+        a[i] = a[n];
+        a[n] = v;
+      }
+      return true;
+    }
+    for (int i = a.length; --i >= 0;)
+      if (Float.isNaN(a[i]) || a[i] == 0 && 1 / a[i] < 0)
+        return false;
+    Arrays.sort(a);
+    return true;
+  }
+
+  /**
+   * x1.add(x2), x1.sub(x2), x1.mul(x2), or x1.div(x2) for a packed list x1 and
+   * either a number or a second packed list x2, element by element, each
+   * element following binaryOp. The result is packed as well; nothing is added
+   * if any element would not be a plain number.
+   * 
+   * @param tok
+   * @param x1
+   * @param x2
+   * @return false if this must be done as a standard list
+   */
+  public boolean addXListfOp(int tok, SV x1, SV x2) {
+    if (x1.tok != T.listf || !isListfOp(tok))
+      return false;
+    boolean isInt2 = false;
+    int i2 = 0;
+    float f2 = 0;
+    int[] ilist2 = null;
+    float[] flist2 = null;
+    int len = SV.sizeOf(x1);
+    switch (x2.tok) {
+    case T.integer:
+      isInt2 = true;
+      f2 = i2 = x2.intValue;
+      break;
+    case T.decimal:
+      f2 = x2.asFloat();
+      break;
+    case T.listf:
+      len = Math.min(len, SV.sizeOf(x2));
+      if (AU.isAI(x2.value))
+        ilist2 = (int[]) x2.value;
+      else
+        flist2 = SV.listfValue(x2);
+      isInt2 = (ilist2 != null);
+      break;
+    default:
+      return false;
+    }
+    if (AU.isAI(x1.value)) {
+      int[] ilist1 = (int[]) x1.value;
+      if (isInt2) {
+        // integer results, unless division by 0
+        int[] iout = new int[len];
+        for (int i = 0; i < len; i++) {
+          int a = ilist1[i];
+          if (ilist2 != null)
+            i2 = ilist2[i];
+          switch (tok) {
+          case T.add:
+            iout[i] = a + i2;
+            break;
+          case T.sub:
+            iout[i] = a - i2;
+            break;
+          case T.mul:
+            iout[i] = a * i2;
+            break;
+          case T.div:
+            if (i2 == 0)
+              return false;
+            iout[i] = a / i2;
+            break;
+          }
+        }
+        return addX(SV.newV(T.listf, iout));
+      }
+      // int and decimal give decimal
+      float[] fout = new float[len];
+      for (int i = 0; i < len; i++)
+        if (Float.isNaN(fout[i] = listfOp(tok, ilist1[i], flist2 == null ? f2
+            : flist2[i])))
+          return false;
+      return addX(SV.newV(T.listf, fout));
+    }
+    float[] flist1 = SV.listfValue(x1);
+    float[] fout = new float[len];
+    for (int i = 0; i < len; i++)
+      if (Float.isNaN(fout[i] = listfOp(tok, flist1[i],
+          ilist2 != null ? ilist2[i] : flist2 != null ? flist2[i] : f2)))
+        return false;
+    return addX(SV.newV(T.listf, fout));
+  }
+
+  private static float listfOp(int tok, float a, float b) {
+    switch (tok) {
+    case T.add:
+      return a + b;
+    case T.sub:
+      return a - b;
+    case T.mul:
+      return a * b;
+    default:
+      return a / b;
+    }
+  }
+
   
 }
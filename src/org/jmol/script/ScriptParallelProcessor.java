@@ -152,18 +152,7 @@ public class ScriptParallelProcessor extends ScriptFunction implements JmolParal
 
   private Executor getMyExecutor() {
     // a Java 1.5 function
-    if (vwr.executor != null || Viewer.nProcessors < 2)
-      return (Executor) vwr.executor; // note -- a Java 1.5 function
-    try {
-      vwr.executor = getExecutor();
-    } catch (Exception e) {
-      vwr.executor = null;
-    } catch (Error er) {
-      vwr.executor = null;
-    }
-    if (vwr.executor == null)
-      Logger.error("parallel processing is not available");
-    return (Executor) vwr.executor;
+    return (Executor) vwr.getExecutor();
   }
 
   
@@ -99,10 +99,13 @@ public class ScriptQueueThread extends JmolThread {
     boolean isQuiet = ((Boolean) scriptItem.get(3)).booleanValue();
     if (Logger.debugging) {
       Logger.debug("Queue[" + pt + "][" + queue.size()
-          + "] scripts; running: " + script);
+          + "] scripts; waited "
+          + (System.currentTimeMillis() - ((Long) scriptItem.get(5)).longValue())
+          + " ms; running: " + script);
     }
     //System.out.println("removing: " + scriptItem + " " + script);
     queue.remove(0);
+    scriptManager.setQueueWait(scriptItem);
     //System.out.println("removed: " + scriptItem);
 //    if (isScriptFile) {
 //      script = "script " + PT.esc(script);
@@ -269,7 +269,29 @@ abstract class ScriptTokenParser {
   protected Map<String, Boolean> htUserFunctions;
   protected boolean isUserFunction(String name) {
     name = name.toLowerCase();
-    return (!isStateScript && (vwr.isFunction(name) || htUserFunctions.containsKey(name)));
+    return (!isStateScript && (isViewerFunction(name) || htUserFunctions.containsKey(name)));
+  }
+
+  /**
+   * The answers the viewer gave this compilation -- which names were
+   * functions, which chain IDs were assigned -- so that a cached compilation
+   * can be checked against the viewer as it is now.
+   */
+  protected Map<String, Boolean> htFunctionChecks;
+  protected Lst<Object[]> chainChecks;
+
+  private boolean isViewerFunction(String name) {
+    Boolean b = htFunctionChecks.get(name);
+    if (b == null)
+      htFunctionChecks.put(name, b = Boolean.valueOf(vwr.isFunction(name)));
+    return b.booleanValue();
+  }
+
+  private int getChainID(String id, boolean isAssign) {
+    int chain = vwr.getChainID(id, isAssign);
+    chainChecks.addLast(new Object[] { id, Boolean.valueOf(isAssign),
+        Integer.valueOf(chain) });
+    return chain;
   }
 
   private boolean isExpressionNext() {
@@ -1314,7 +1336,7 @@ abstract class ScriptTokenParser {
         strChain = "" + val;
         break;
       case T.string:
-        vwr.getChainID("a", true); // forces chain case
+        getChainID("a", true); // forces chain case
         //$FALL-THROUGH$
       default:
         strChain = "" + getToken().value;
@@ -1325,7 +1347,7 @@ abstract class ScriptTokenParser {
       else if (strChain.equals("?"))
         return true;
     }
-    int chain = vwr.getChainID(strChain, false);
+    int chain = getChainID(strChain, false);
     return generateResidueSpecCode(T.tv(T.spec_chain, chain, "spec_chain"));
   }
 
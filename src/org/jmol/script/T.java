@@ -95,8 +95,8 @@ public class T {
   
   public final static int matrix3f   = 11;  
   public final static int matrix4f   = 12;  
-  // listf "list-float" is specifically for xxx.all.bin, 
-  // but it could be developed further
+  // listf "list-float" is a packed float[] or int[] list, as from xxx.all,
+  // used only on the ScriptMathProcessor stack; see SV.unpackList
   public final static int listf      = 13;     
   public final static int context    = 14;
   public final static int barray     = 15; // byte array
@@ -833,6 +833,7 @@ public class T {
   public final static int loadligandformat               = strparam | 46;
   public final static int logfile                        = strparam | 47;
   public final static int measurementunits               = strparam | 48; 
+  public final static int minimizationmethod             = strparam | 68;
   public final static int nmrpredictformat               = strparam | 49;
   public final static int nihresolverformat              = strparam | 50;
   public final static int nmrurlformat                   = strparam | 51;
@@ -846,6 +847,7 @@ public class T {
   public final static int smiles2dimageformat            = strparam | 64;
   public final static int unitcellcolor                  = strparam | 66;
   
+  public final static int ambientocclusionradius         = floatparam | 3;
   public final static int axesoffset                     = floatparam | 1;
   public final static int axesscale                      = floatparam | 2;
   public final static int bondtolerance                  = floatparam | 4;
@@ -896,6 +898,7 @@ public class T {
   public final static int visualrange                    = floatparam | 72;
 
   public final static int ambientocclusion               = intparam | 1;               
+  public final static int ambientocclusionsamples        = intparam | 3;
   public final static int ambientpercent                 = intparam | 2;               
   public final static int animationfps                   = intparam | 4;
   public final static int axesmode                       = intparam | 6;
@@ -911,6 +914,7 @@ public class T {
   public final static int hermitelevel                   = intparam | 19;
   public final static int historylevel                   = intparam | 20;
   public final static int isosurfacepropertysmoothingpower=intparam | 21;
+  public final static int levelofdetailms                = intparam | 33;
   public final static int loglevel                       = intparam | 22;
   public final static int meshscale                      = intparam | 23;
   public final static int minimizationsteps              = intparam | 24;
@@ -1305,6 +1309,7 @@ public class T {
   public final static int sigma          = misc  | 322;
   public final static int sign           = misc  | 323;
   public final static int silent         = misc  | 324;
+  public final static int snapshot       = misc  | 325;
   public final static int solid          = misc  | 326;
   public final static int spacegroup     = misc  | 328;
   public final static int sphere         = misc  | 330;
@@ -2304,6 +2309,7 @@ public class T {
        "sigma",
        "sign",
        "silent",
+       "snapshot",
        "sphere",
        "squared",
        "stdInChI",
@@ -2378,6 +2384,7 @@ public class T {
        "loadLigandFormat",
        "logFile",
        "measurementUnits",
+       "minimizationMethod",
        "nihResolverFormat",
        "nmrPredictFormat",
        "nmrUrlFormat",
@@ -2394,6 +2401,7 @@ public class T {
   
        // float
        
+       "ambientOcclusionRadius",
        "axesOffset",
        "axisOffset",
        "axesScale",
@@ -2447,6 +2455,7 @@ public class T {
   
        // int
   
+       "ambientOcclusionSamples",
        "ambientPercent",
        "ambient",
        "animationFps",
@@ -2462,6 +2471,7 @@ public class T {
        "helixStep",
        "hermiteLevel",
        "historyLevel",
+       "levelOfDetailMs",
        "lighting",
        "logLevel",
        "meshScale",
@@ -3343,6 +3353,7 @@ public class T {
         sigma,                              //        "sigma"
         sign,                               //        "sign"
         silent,                             //        "silent"
+        snapshot,                           //        "snapshot"
         sphere,                             //        "sphere"
         squared,                            //        "squared"
         stdinchi,                           //        "stdInChI"
@@ -3417,6 +3428,7 @@ public class T {
         loadligandformat,                   //        "loadLigandFormat"
         logfile,                            //        "logFile"
         measurementunits,                   //        "measurementUnits"
+        minimizationmethod,                 //        "minimizationMethod"
         nihresolverformat,                  //        "nihResolverFormat"
         nmrpredictformat,                   //        "nmrPredictFormat"
         nmrurlformat,                       //        "nmrUrlFormat"
@@ -3433,6 +3445,7 @@ public class T {
 
                 // float
                 
+        ambientocclusionradius,             //        "ambientOcclusionRadius"
         axesoffset,                          //       "axesOffset"
         -1,                                 //        "axisOffset"
         axesscale,                          //        "axesScale"
@@ -3486,6 +3499,7 @@ public class T {
 
                 // int
 
+        ambientocclusionsamples,            //        "ambientOcclusionSamples"
         ambientpercent,                     //        "ambientPercent"
         -1,                                 //        "ambient"
         animationfps,                       //        "animationFps"
@@ -3501,6 +3515,7 @@ public class T {
         helixstep,                          //        "helixStep"
         hermitelevel,                       //        "hermiteLevel"
         historylevel,                       //        "historyLevel"
+        levelofdetailms,                    //        "levelOfDetailMs"
         lighting,                           //        "lighting"
         loglevel,                           //        "logLevel"
         meshscale,                          //        "meshScale"
@@ -279,11 +279,15 @@ public class CmdExt extends ScriptExt {
         htValues));
     int nmax = (haveIndex ? 1 : bs.cardinality());
     String[] sout = new String[nmax];
+    String[] labels = (isAtoms && !asIdentity && !haveIndex ? LabelToken
+        .formatLabelAtoms(vwr, bs, tokens, indices) : null);
     P3 ptTemp = new P3();
     for (int j = (haveIndex ? index : bs.nextSetBit(0)); j >= 0; j = bs
         .nextSetBit(j + 1)) {
       String str;
-      if (isAtoms) {
+      if (labels != null) {
+        str = labels[n];
+      } else if (isAtoms) {
         if (asIdentity)
           str = modelSet.at[j].getInfo();
         else
@@ -627,18 +631,30 @@ public class CmdExt extends ScriptExt {
           vwr.ms.assignAromaticBondsBs(true, null);
         return;
       case T.hbond:
-        if (eval.slen != 2) {
+        // calculate hbonds {from} {to} TRAJECTORY -- occupancy over all frames
+        boolean isTrajectory = (tokAt(slen - 1) == T.trajectory);
+        if (slen != (isTrajectory ? 3 : 2)) {
           // calculate hbonds STRUCTURE -- only the DSSP/DSSR structurally-defining H bonds
           asDSSP = (tokAt(++eval.iToken) == T.structure);
           if (asDSSP)
             bs1 = vwr.bsA();
           else
             bs1 = atomExpressionAt(eval.iToken);
-          if (!asDSSP && !(asDSSP = (tokAt(++eval.iToken) == T.structure)))
+          if (!asDSSP && !(asDSSP = (tokAt(++eval.iToken) == T.structure))
+              && (!isTrajectory || eval.iToken < slen - 1))
             bs2 = atomExpressionAt(eval.iToken);
+          if (isTrajectory && asDSSP)
+            invArg();
         }
         if (chk)
           return;
+        if (isTrajectory) {
+          if (bs1 == null)
+            bs1 = vwr.bsA();
+          showString(vwr.ms.calculateHbondOccupancy(bs1, bs2 == null ? bs1
+              : bs2));
+          return;
+        }
         n = vwr.autoHbond(bs1, bs2, false);
         if (n != Integer.MIN_VALUE)
           eval.report(GT.i(GT._("{0} hydrogen bonds"), Math.abs(n)), false);
@@ -771,6 +787,8 @@ public class CmdExt extends ScriptExt {
 
   private void capture() throws ScriptException {
     // capture "filename"
+    // capture "filename" LOOP FIXED // GIF only; one palette for all frames
+    // capture "filename.avi" // MJPEG AVI; n seconds and ON/OFF/END/CANCEL as for GIF
     // capture "filename" ROTATE axis degrees // y 5 assumed; axis and degrees optional
     // capture "filename" SPIN axis  // y assumed; axis optional
     // capture off/on
@@ -803,17 +821,21 @@ public class CmdExt extends ScriptExt {
         isTransparent = true;
         fileName = fileName.substring(0, fileName.length() - 1);
         lc = fileName.toLowerCase();
-      } else if (!lc.endsWith(".gif") && !lc.contains(".png")) {
+      } else if (!lc.endsWith(".gif") && !lc.contains(".png")
+          && !lc.endsWith(".avi")) {
         fileName += ".gif";
       }
-      if (lc.endsWith(".png")) {
+      if (lc.endsWith(".avi")) {
+        // MJPEG AVI, streamed; see OutputManager.captureAvi
+        type = "AVI";
+      } else if (lc.endsWith(".png")) {
         if (!lc.endsWith("0.png"))
           fileName = fileName.substring(0, fileName.length() - 4) + "0000.png";
         type = "PNG";
       } else {
         type = "GIF";
       }
-      if (isTransparent)
+      if (isTransparent && !type.equals("AVI"))
         type += "T";
       int pt = fileName.indexOf("0000.");
       boolean streaming = (pt < 0 || pt != fileName.lastIndexOf(".") - 4);    
@@ -822,6 +844,9 @@ public class CmdExt extends ScriptExt {
         looping = true;
         tok = tokAt(++i);
       }
+      boolean isFixed = (tokAt(i) == T.fixed);
+      if (isFixed)
+        i++;
       switch (tokAt(i)) {
       case T.rock:
         isRock = true;
@@ -849,7 +874,7 @@ public class CmdExt extends ScriptExt {
         boolean wf = vwr.g.waitForMoveTo;
         s = "set waitformoveto true;" + PT.rep(s, "Y", axis)
             + ";set waitformoveto " + wf;
-        s = "capture " + (isTransparent ? "transparent " : "") + PT.esc(fileName) + " LOOP;"
+        s = "capture " + (isTransparent ? "transparent " : "") + PT.esc(fileName) + " LOOP" + (isFixed ? " FIXED;" : ";")
              + s + ";capture end;";
         e.cmdScript(0, null, s);
         return;
@@ -862,6 +887,8 @@ public class CmdExt extends ScriptExt {
         return;
       mode = T.movie;
       params = new Hashtable<String, Object>();
+      if (isFixed)
+        params.put("captureFixedPalette", Boolean.TRUE);
       int fps = vwr.getInt(T.animationfps);
       if (streaming) {
         params.put("streaming", Boolean.TRUE);
@@ -3645,7 +3672,7 @@ public class CmdExt extends ScriptExt {
           if (isCommand)
             fileName = "Jmol." + type.toLowerCase();
           break;
-        } else if (PT.isOneOf(type, ";ZIP;ZIPALL;SPT;STATE;")) {
+        } else if (PT.isOneOf(type, ";ZIP;ZIPALL;SPT;STATE;COLUMNS;")) {
           pt++;
           break;
         } else {
@@ -3804,12 +3831,12 @@ public class CmdExt extends ScriptExt {
         && !PT
             .isOneOf(
                 type,
-                ";SCENE;JMOL;ZIP;ZIPALL;SPT;HISTORY;MO;NBO;ISOSURFACE;MESH;PMESH;VAR;FILE;FUNCTION;CML;JSON;XYZ;XYZRN;XYZVIB;MENU;MOL;MOL67;PDB;PGRP;PQR;QUAT;RAMA;SDF;V2000;V3000;INLINE;"))
+                ";SCENE;JMOL;ZIP;ZIPALL;SPT;HISTORY;MO;NBO;ISOSURFACE;MESH;PMESH;VAR;FILE;FUNCTION;CML;COLUMNS;JSON;XYZ;XYZRN;XYZVIB;MENU;MOL;MOL67;PDB;PGRP;PQR;QUAT;RAMA;SDF;V2000;V3000;INLINE;"))
       eval.errorStr2(
           ScriptError.ERROR_writeWhat,
           "COORDS|FILE|FUNCTIONS|HISTORY|IMAGE|INLINE|ISOSURFACE|JMOL|MENU|MO|NBO|POINTGROUP|QUATERNION [w,x,y,z] [derivative]"
               + "|RAMACHANDRAN|SPT|STATE|VAR x|ZIP|ZIPALL  CLIPBOARD",
-          "CML|GIF|GIFT|JPG|JPG64|JMOL|JVXL|MESH|MOL|PDB|PMESH|PNG|PNGJ|PNGT|PPM|PQR|SDF|CD|JSON|V2000|V3000|SPT|XJVXL|XYZ|XYZRN|XYZVIB|ZIP"
+          "CML|COLUMNS|GIF|GIFT|JPG|JPG64|JMOL|JVXL|MESH|MOL|PDB|PMESH|PNG|PNGJ|PNGT|PPM|PQR|SDF|CD|JSON|V2000|V3000|SPT|XJVXL|XYZ|XYZRN|XYZVIB|ZIP"
               + driverList.toUpperCase().replace(';', '|'));
     if (chk)
       return "";
@@ -3881,6 +3908,13 @@ public class CmdExt extends ScriptExt {
           writeFileData = true;
           type = "PDB_" + data + "-coord " + isCoord;
         }
+      } else if (data == "COLUMNS") {
+        if (showOnly) {
+          byte[] b = vwr.getAtomColumnData(vwr.bsA(), null);
+          data = (b == null ? "" : Base64.getBase64(b).toString());
+        } else {
+          writeFileData = true;
+        }
       } else if (data == "FILE") {
         if ("?".equals(fileName))
           fileName = "?Jmol." + vwr.getP("_fileType");
@@ -446,19 +446,21 @@ public class MathExt {
     int n = args.length;
     if (n < 3 || n > 5)
       return false;
-    SV x1 = mp.getX();
-    boolean isListf = (x1.tok == T.listf);
-    if (!isListf && x1.tok != T.varray)
-      return mp.addX(x1);
+    SV x1 = mp.getXPacked();
     float f0 = SV.fValue(args[0]);
     float f1 = SV.fValue(args[1]);
     float df = SV.fValue(args[2]);
     boolean addBins = (n >= 4 && args[n-1].tok == T.on);
     String key = ((n == 5 || n == 4 && !addBins) && args[3].tok != T.off ? SV.sValue(args[3]) : null);
+    boolean isListf = (x1.tok == T.listf && key == null);
+    if (!isListf)
+      x1 = SV.unpackList(x1);
+    if (!isListf && x1.tok != T.varray)
+      return mp.addX(x1);
     float[] data;
     Map<String, SV>[] maps = null;
     if (isListf) {
-      data = (float[]) x1.value;
+      data = SV.listfValue(x1);
     } else {
       Lst<SV> list = x1.getList();
       data = new float[list.size()];
@@ -1824,7 +1826,15 @@ public class MathExt {
     // array.split("",true) (CSV)
 
     int len = args.length;
-    SV x1 = mp.getX();
+    SV x1 = mp.getXPacked();
+    if (x1.tok == T.listf || len == 1 && args[0].tok == T.listf) {
+      // packed lists, as from {*}.x.all
+      if (len == 1 && mp.addXListfOp(tok, x1, args[0]))
+        return true;
+      x1 = SV.unpackList(x1);
+      for (int i = len; --i >= 0;)
+        args[i] = SV.unpackList(args[i]);
+    }
     boolean isArray1 = (x1.tok == T.varray);
     SV x2;
     switch (tok) {
@@ -3495,6 +3505,7 @@ public class MathExt {
   @SuppressWarnings("unchecked")
   public Object getMinMax(Object floatOrSVArray, int tok) {
     float[] data = null;
+    int[] idata = null;
     Lst<SV> sv = null;
     int ndata = 0;
     Map<String, Integer> htPivot = null;
@@ -3506,6 +3517,13 @@ public class MathExt {
         ndata = data.length;
         if (ndata == 0)
           break;
+      } else if (AU.isAI(floatOrSVArray)) {
+        if (tok == T.pivot)
+          return "NaN";
+        idata = (int[]) floatOrSVArray;
+        ndata = idata.length;
+        if (ndata == 0)
+          break;
       } else if (floatOrSVArray instanceof Lst<?>) {
         sv = (Lst<SV>) floatOrSVArray;
         ndata = sv.size();
@@ -3554,7 +3572,8 @@ public class MathExt {
       boolean isPivot = (tok == T.pivot);
       for (int i = ndata; --i >= 0;) {
         SV svi = (sv == null ? SV.vF : sv.get(i));
-        float v = (isPivot ? 1 : data == null ? SV.fValue(svi) : data[i]);
+        float v = (isPivot ? 1 : data != null ? data[i] : idata != null ? idata[i]
+            : SV.fValue(svi));
         if (Float.isNaN(v))
           continue;
         n++;
@@ -3576,11 +3595,11 @@ public class MathExt {
           break;
         case T.min:
         case T.max:
-          isInt &= (svi.tok == T.integer);
+          isInt &= (idata != null || svi.tok == T.integer);
           if (isMin == (v < sum)) {
             sum = v;
             if (isInt)
-              minMax = svi.intValue;
+              minMax = (idata == null ? svi.intValue : idata[i]);
           }
           break;
         }
@@ -159,11 +159,13 @@ public class Labels extends AtomShape {
         }
       } else {
         String strLabel = (String) value;
-        tokens = (strLabel == null || strLabel.length() == 0 ? nullToken
-            : new LabelToken[][] { null });
-        for (int i = bsSelected.nextSetBit(0); i >= 0 && i < ac; i = bsSelected
-            .nextSetBit(i + 1))
-          setLabel(tokens, strLabel, i, true);
+        LabelToken[] t = (strLabel == null || strLabel.length() == 0 ? null
+            : LabelToken.compile(vwr, strLabel, '\0', null));
+        String[] labels = (t == null ? null : LabelToken.formatLabelAtoms(vwr,
+            bsSelected, t, null));
+        for (int pt = 0, i = bsSelected.nextSetBit(0); i >= 0 && i < ac; i = bsSelected
+            .nextSetBit(i + 1), pt++)
+          setLabelText(strLabel, labels == null ? null : labels[pt], i, true);
       }
       return;
     }
@@ -472,6 +474,11 @@ public class Labels extends AtomShape {
       tokens = temp[0] = LabelToken.compile(vwr, strLabel, '\0', null);
     String label = (tokens == null ? null : LabelToken.formatLabelAtomArray(
         vwr, atom, tokens, '\0', null, ptTemp ));
+    setLabelText(strLabel, label, i, doAll);
+  }
+
+  private void setLabelText(String strLabel, String label, int i, boolean doAll) {
+    Atom atom = atoms[i];
     boolean isNew = addString(atom, i, label, strLabel); 
     doAll |= isNew || label == null;
     Text text = getLabel(i);
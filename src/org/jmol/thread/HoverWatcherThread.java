@@ -60,7 +60,7 @@ public class HoverWatcherThread extends JmolThread {
     while (true)
       switch (mode) {
       case INIT:
-        if (!isJS)
+        if (!isJS && !isScheduled)
           Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
         mode = MAIN;
         break;
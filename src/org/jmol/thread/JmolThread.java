@@ -1,6 +1,7 @@
 package org.jmol.thread;
 
 import org.jmol.api.JmolScriptEvaluator;
+import org.jmol.api.JmolThreadScheduler;
 import org.jmol.script.ScriptContext;
 import org.jmol.util.Logger;
 import org.jmol.viewer.Viewer;
@@ -37,6 +38,22 @@ abstract public class JmolThread extends Thread {
 
   private boolean useTimeout = true;
 
+  /**
+   * started with the useScheduler option: run1() steps are run by
+   * ThreadScheduler, and runSleep() returns false as in JavaScript
+   */
+  protected boolean isScheduled;
+  private JmolThreadScheduler scheduler;
+  private Object pending;
+  private int pendingMode;
+  private Runnable resumer;
+
+  /**
+   * the worker running a step, so that interrupt() can wake it if it is
+   * waiting -- in RepaintManager.requestRepaintAndWait(), for example
+   */
+  private Thread runner;
+
   /**
    * @param manager  
    * @param vwr 
@@ -93,6 +110,9 @@ abstract public class JmolThread extends Thread {
     if (isJS) {
       //Logger.info("starting " + name);
       run();
+    } else if ((scheduler = vwr.getThreadScheduler()) != null) {
+      isScheduled = true;
+      scheduler.execute(this);
     } else {
       super.start();
     }
@@ -101,15 +121,28 @@ abstract public class JmolThread extends Thread {
   @Override
   public void run() {
     startTime = System.currentTimeMillis();
+    run2(INIT);
+  }
+
+  private void run2(int mode) {
+    if (isScheduled)
+      setRunner(Thread.currentThread());
     try {
-      run1(INIT);
+      run1(mode);
     } catch (InterruptedException e) {
       if (Logger.debugging  && !(this instanceof HoverWatcherThread))
         oops(e);
     } catch (Exception e) {
       oops(e);
+    } finally {
+      if (isScheduled)
+        setRunner(null);
     }
   }
+
+  private synchronized void setRunner(Thread t) {
+    runner = t;
+  }
   
   protected void oops(Exception e) {
     Logger.debug(name + " exception " + e);
@@ -130,6 +163,26 @@ abstract public class JmolThread extends Thread {
    */
   
   protected boolean runSleep(int millis, int runPtr) throws InterruptedException {
+    if (isScheduled) {
+      synchronized (this) {
+        pendingMode = runPtr;
+        if (resumer == null)
+          resumer = new Runnable() {
+            @Override
+            public void run() {
+              synchronized (JmolThread.this) {
+                pending = null;
+              }
+              run2(pendingMode);
+            }
+          };
+        pending = (stopped ? null : scheduler.schedule(resumer,
+            Math.max(millis, 0)));
+        if (pending == null)
+          scheduler.execute(resumer);
+      }
+      return false;
+    }
     if (isJS && !useTimeout) {
       //...but nothing will be shown anyway until the thread is finished.
       //long targetTime = System.currentTimeMillis() + millis; 
@@ -164,8 +217,20 @@ abstract public class JmolThread extends Thread {
   public void interrupt() {
     stopped = true;
     vwr.startHoverWatcher(true);
-    if (!isJS)
+    if (isScheduled) {
+      // wake a sleeping step now, or a running one that is waiting, as
+      // Thread.interrupt() would
+      synchronized (this) {
+        if (pending != null && scheduler.cancel(pending)) {
+          pending = null;
+          scheduler.execute(resumer);
+        } else if (runner != null && runner != Thread.currentThread()) {
+          runner.interrupt();
+        }
+      }
+    } else if (!isJS) {
       super.interrupt();
+    }
   }
   
   protected boolean checkInterrupted(JmolThread ref) {
@@ -177,7 +242,7 @@ abstract public class JmolThread extends Thread {
      *            return this.stopped;
      */
     {
-      return super.isInterrupted();
+      return (isScheduled ? stopped : super.isInterrupted());
     }
   }
   
@@ -0,0 +1,148 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2011  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jmol.thread;
+
+import java.util.concurrent.Executor;
+
+import org.jmol.viewer.Viewer;
+
+/**
+ * A loop over [0, n) split into contiguous chunks that are run on the
+ * Viewer's executor (see Viewer.getExecutor()). With only one chunk, with
+ * SET multiProcessor FALSE, and always in JavaScript, the chunks are simply
+ * run in order on the calling thread, so results must not depend on which
+ * thread ran a chunk.
+ *
+ * Typical use:
+ *
+ * <pre>
+ * int nChunks = ParallelLoop.getChunkCount(vwr, n, 1000);
+ * final BS[] results = new BS[nChunks];
+ * new ParallelLoop() {
+ *   protected void runChunk(int iChunk, int i0, int i1) {
+ *     BS bs = results[iChunk] = new BS();
+ *     ...
+ *   }
+ * }.run(vwr, n, nChunks);
+ * </pre>
+ *
+ */
+public abstract class ParallelLoop {
+
+  /**
+   * Process items i0 through i1 - 1. Implementations must only write to data
+   * owned by this chunk.
+   *
+   * @param iChunk
+   * @param i0
+   * @param i1
+   */
+  protected abstract void runChunk(int iChunk, int i0, int i1);
+
+  private int counter;
+  private Throwable error;
+
+  /**
+   * @param vwr
+   * @param n
+   *        number of items
+   * @param minPerChunk
+   *        below this many items per chunk, threading is not worth it
+   * @return number of chunks to use, at least 1
+   */
+  public static int getChunkCount(Viewer vwr, int n, int minPerChunk) {
+    int nChunks = Math.min(Viewer.nProcessors, n / Math.max(1, minPerChunk));
+    return (nChunks < 2 || vwr.getExecutor() == null ? 1 : nChunks);
+  }
+
+  /**
+   * Run all chunks and wait for them to finish. Any exception or error thrown
+   * by a chunk is rethrown here.
+   *
+   * @param vwr
+   * @param n
+   * @param nChunks
+   *        from getChunkCount
+   */
+  public void run(Viewer vwr, int n, int nChunks) {
+    Executor executor = (nChunks < 2 ? null : (Executor) vwr.getExecutor());
+    if (executor == null) {
+      for (int i = 0; i < nChunks; i++)
+        runChunk(i, getStart(i, n, nChunks), getStart(i + 1, n, nChunks));
+      return;
+    }
+    error = null;
+    counter = nChunks;
+    for (int i = 1; i < nChunks; i++)
+      executor.execute(new Chunk(i, getStart(i, n, nChunks), getStart(i + 1,
+          n, nChunks)));
+    new Chunk(0, 0, getStart(1, n, nChunks)).run();
+    synchronized (this) {
+      while (counter > 0)
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // keep waiting; the chunks cannot be abandoned
+        }
+    }
+    if (error instanceof RuntimeException)
+      throw (RuntimeException) error;
+    if (error instanceof Error)
+      throw (Error) error;
+  }
+
+  private static int getStart(int i, int n, int nChunks) {
+    return (int) ((long) n * i / nChunks);
+  }
+
+  private class Chunk implements Runnable {
+
+    private int iChunk, i0, i1;
+
+    Chunk(int iChunk, int i0, int i1) {
+      this.iChunk = iChunk;
+      this.i0 = i0;
+      this.i1 = i1;
+    }
+
+    @Override
+    public void run() {
+      try {
+        runChunk(iChunk, i0, i1);
+      } catch (Throwable e) {
+        synchronized (ParallelLoop.this) {
+          if (error == null)
+            error = e;
+        }
+      } finally {
+        synchronized (ParallelLoop.this) {
+          --counter;
+          ParallelLoop.this.notifyAll();
+        }
+      }
+    }
+  }
+
+}
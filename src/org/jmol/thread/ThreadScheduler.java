@@ -0,0 +1,140 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2011  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ *  02110-1301, USA.
+ */
+
+package org.jmol.thread;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jmol.api.JmolThreadScheduler;
+import org.jmol.util.Logger;
+
+/**
+ * The workers and timer shared by all JmolThreads of all viewers started with
+ * the useScheduler option (-scheduler). Instead of each thread sleeping on a
+ * platform thread of its own, a JmolThread runs the steps of its run1() state
+ * machine on a worker and, between steps, holds no thread at all -- just as
+ * JSmol does with setTimeout.
+ *
+ * Workers are virtual threads if the JVM has them (Java 21) and otherwise a
+ * cached pool of daemon threads. One daemon timer thread hands each delayed
+ * step to a worker when it is due; it never runs Jmol code itself.
+ * 
+ * Loaded by Viewer.getThreadScheduler() through Interface, so that JmolThread
+ * does not depend on java.util.concurrent; every instance shares the same
+ * workers and timer.
+ *
+ */
+public final class ThreadScheduler implements JmolThreadScheduler {
+
+  private static ExecutorService workers;
+  private static ScheduledExecutorService timer;
+  private static boolean isVirtual;
+
+  /**
+   * steps run, and how late timed steps started, in total and at most
+   */
+  private static int nSteps;
+  private static long lateTotal, lateMax;
+
+  public ThreadScheduler() {
+    // for Interface; all state is static
+  }
+
+  private static synchronized void init() {
+    if (workers != null)
+      return;
+    ThreadFactory factory = new ThreadFactory() {
+      private int n;
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "JmolScheduler_" + (++n));
+        t.setDaemon(true);
+        return t;
+      }
+    };
+    try {
+      workers = (ExecutorService) Executors.class.getMethod(
+          "newVirtualThreadPerTaskExecutor").invoke(null);
+      isVirtual = true;
+    } catch (Exception e) {
+      workers = Executors.newCachedThreadPool(factory);
+    }
+    timer = Executors.newSingleThreadScheduledExecutor(factory);
+    Logger.info("JmolThreads scheduled on "
+        + (isVirtual ? "virtual threads" : "a shared thread pool"));
+  }
+
+  @Override
+  public void execute(Runnable r) {
+    init();
+    workers.execute(r);
+  }
+
+  @Override
+  public Object schedule(final Runnable r, int millis) {
+    init();
+    final long due = System.currentTimeMillis() + millis;
+    return timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        long late = System.currentTimeMillis() - due;
+        synchronized (ThreadScheduler.class) {
+          nSteps++;
+          lateTotal += late;
+          if (late > lateMax)
+            lateMax = late;
+        }
+        workers.execute(r);
+      }
+    }, millis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public boolean cancel(Object pending) {
+    return ((Future<?>) pending).cancel(false);
+  }
+
+  @Override
+  public Map<String, Object> getInfo() {
+    Map<String, Object> info = new Hashtable<String, Object>();
+    synchronized (ThreadScheduler.class) {
+      info.put("virtualThreads", Boolean.valueOf(isVirtual));
+      info.put("timedSteps", Integer.valueOf(nSteps));
+      info.put("lateMsMax", Long.valueOf(lateMax));
+      info.put("lateMsAverage", Float.valueOf(nSteps == 0 ? 0 : lateTotal
+          * 1f / nSteps));
+    }
+    return info;
+  }
+
+}
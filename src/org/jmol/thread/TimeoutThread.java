@@ -68,7 +68,7 @@ public class TimeoutThread extends JmolThread {
       //System.out.println("timeoutthread run1 " + name + " " + mode + " " + System.currentTimeMillis() + " " + targetTime);
       switch (mode) {
       case INIT:
-        if (!isJS)
+        if (!isJS && !isScheduled)
           Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
         targetTime = System.currentTimeMillis() + Math.abs(sleepTime);
         mode = MAIN;
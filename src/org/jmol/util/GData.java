@@ -41,6 +41,19 @@ public class GData implements JmolGraphicsInterface {
   public int slab, depth;
   public int width, height;
   public int ambientOcclusion;
+  public float ambientOcclusionRadius = 2;
+  public int ambientOcclusionSamples = 8;
+
+  /**
+   * When set, endRendering saves in zTiles the farthest opaque z of each
+   * square of ZTILE_SHIFT-by-ZTILE_SHIFT window pixels, for the occlusion test
+   * of the next frame; a tile showing any background is Integer.MAX_VALUE.
+   * zTiles is null if the frame was antialiased.
+   */
+  public boolean saveZTiles;
+  public int[] zTiles;
+  public int zTilesWidth;
+  public final static int ZTILE_SHIFT = 4;
 
   protected short colixCurrent;
   public int argbCurrent;
@@ -348,6 +361,20 @@ public class GData implements JmolGraphicsInterface {
     return (x >= displayMinX && x < displayMaxX && y >= displayMinY && y < displayMaxY);
   }
 
+  /**
+   * @param minX
+   * @param minY
+   * @param maxX
+   * @param maxY
+   * @return -1 if no point of this screen rectangle is in the display range,
+   *         1 if all of it is, and 0 otherwise
+   */
+  public int checkDisplayRange(int minX, int minY, int maxX, int maxY) {
+    return (maxX < displayMinX || minX >= displayMaxX || maxY < displayMinY
+        || minY >= displayMaxY ? -1 : minX >= displayMinX && maxX < displayMaxX
+        && minY >= displayMinY && maxY < displayMaxY ? 1 : 0);
+  }
+
   @Override
   public boolean isClippedXY(int diameter, int x, int y) {
     int r = (diameter + 1) >> 1;
@@ -505,6 +532,31 @@ public class GData implements JmolGraphicsInterface {
   public void snapshotAnaglyphChannelBytes() {
   }
 
+  /**
+   * Save the pixels, Z, and pending strings rendered so far in this pass as a
+   * layer that a later frame of the same view can start from.
+   * 
+   * @return false if layers are not supported
+   */
+  public boolean saveLayer() {
+    // only in Graphics3D
+    return false;
+  }
+
+  /**
+   * Replace this frame's buffers with the saved layer.
+   * 
+   * @return false if there is no layer that fits this frame
+   */
+  public boolean restoreLayer() {
+    // only in Graphics3D
+    return false;
+  }
+
+  public void clearLayer() {
+    // only in Graphics3D
+  }
+
   /**
    * @param isImageWrite  
    * @return image object
@@ -137,6 +137,7 @@ public class Shader {
     calcSphereShading();
     for (int i =  maxSphereCache; --i >= 0;)
       sphereShapeCache[i] = null;
+    sphereSpriteCache = null;
     ellipsoidShades = null;
   }
   
@@ -480,6 +481,10 @@ public class Shader {
   private final static int SDIM = SLIM * 2;
   public final static int maxSphereCache = 128;
   public int[][] sphereShapeCache = AU.newInt2(maxSphereCache);
+  /**
+   * larger spheres, by diameter; managed by SphereRenderer
+   */
+  public int[][] sphereSpriteCache;
   public byte[][][] ellipsoidShades;
   public int nOut;
   public int nIn;
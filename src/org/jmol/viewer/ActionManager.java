@@ -1372,7 +1372,7 @@ public class ActionManager implements EventManager {
         mp.addPoint(nearestAtomIndex, nearestPoint, false);
       if (mp.haveModified)
         vwr.setPendingMeasurement(mp);
-      vwr.refresh(3, "measurementPending");
+      vwr.refreshOverlays("measurementPending");
       return;
     }
     setMouseMode();
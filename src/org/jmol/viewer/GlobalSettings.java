@@ -60,6 +60,7 @@ public class GlobalSettings {
       legacyJavaFloat = g.legacyJavaFloat;
       bondingVersion = g.bondingVersion;
       platformSpeed = g.platformSpeed;
+      levelOfDetailMs = g.levelOfDetailMs;
       useScriptQueue = g.useScriptQueue;
       //useArcBall = g.useArcBall;
       databases = g.databases;
@@ -284,6 +285,7 @@ public class GlobalSettings {
     setB("legacyAutoBonding", legacyAutoBonding);
     setB("legacyHAddition", legacyHAddition);
     setB("legacyJavaFloat", legacyJavaFloat);
+    setI("levelOfDetailMs", levelOfDetailMs);
     setF("loadAtomDataTolerance", loadAtomDataTolerance);
     setO("loadFormat", loadFormat);
     setO("loadLigandFormat", pdbLoadLigandFormat);
@@ -300,6 +302,7 @@ public class GlobalSettings {
     setB("minimizationRefresh", minimizationRefresh);
     setB("minimizationSilent", minimizationSilent);
     setF("minimizationCriterion", minimizationCriterion);
+    setO("minimizationMethod", minimizationMethod);
     setB("modelKitMode", modelKitMode);
     setF("modulationScale", modulationScale);
     setB("monitorEnergy", monitorEnergy);
@@ -489,6 +492,7 @@ public class GlobalSettings {
   boolean minimizationRefresh = true;
   boolean minimizationSilent = false;
   float minimizationCriterion = 0.001f;
+  String minimizationMethod = "SD"; // SD, CG, or LBFGS
 
   //rendering
 
@@ -507,6 +511,7 @@ public class GlobalSettings {
   boolean isosurfacePropertySmoothing = true;
   int isosurfacePropertySmoothingPower = 7;
   int platformSpeed = 10; // 1 (slow) to 10 (fast)
+  int levelOfDetailMs = 0; // 0 (off) or target ms per frame while moving
   public int repaintWaitMs = 1000;
   boolean showHiddenSelectionHalos = false;
   boolean showKeyStrokes = true;
@@ -1057,6 +1062,7 @@ public class GlobalSettings {
     // these next two might be part of a 2D->3D operation
     app(str, "set minimizationCriterion  " + minimizationCriterion);
     app(str, "set minimizationSteps  " + minimizationSteps);
+    app(str, "set minimizationMethod  " + PT.esc(minimizationMethod));
     // Jmol 14.3.15 introduces bananas, but this setting should not carry through from one model to the next
     app(str, "set multipleBondBananas false");
     app(str,
@@ -48,6 +48,8 @@ public abstract class JmolStateCreator {
 
   abstract String getAtomicPropertyState(byte taintCoord, BS bsSelected);
 
+  abstract void clearStateFragments();
+
   abstract void getAtomicPropertyStateBuffer(SB commands, byte type,
                                     BS bs, String name, float[] data);
 
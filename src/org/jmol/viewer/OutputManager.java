@@ -16,6 +16,7 @@ import javajs.util.PT;
 import javajs.util.SB;
 
 import org.jmol.api.Interface;
+import org.jmol.api.JmolMovieCreatorInterface;
 import org.jmol.i18n.GT;
 import org.jmol.java.BS;
 import org.jmol.util.Logger;
@@ -180,6 +181,11 @@ abstract class OutputManager {
           params.put("pngAppData", stateData);
           params.put("pngAppPrefix", "Jmol Type");
         }
+        Object executor = vwr.getExecutor();
+        if (executor != null) {
+          params.put("pngExecutor", executor);
+          params.put("pngThreads", Integer.valueOf(Viewer.nProcessors));
+        }
       }
       if (type.equals("PNGT") || type.equals("GIFT"))
         params
@@ -362,6 +368,89 @@ abstract class OutputManager {
   }
 
 
+  /**
+   * CAPTURE "xxx.avi": frames go from the screen buffer straight to
+   * org.jmol.image.AviCreator, which encodes and writes them as they come.
+   * 
+   * @param params
+   * @param captureMode
+   * @param localName
+   * @return message
+   */
+  private String captureAvi(Map<String, Object> params, String captureMode,
+                            String localName) {
+    Map<String, Object> cparams = vwr.captureParams;
+    JmolMovieCreatorInterface movie = (cparams == null ? null
+        : (JmolMovieCreatorInterface) cparams.get("captureMovie"));
+    String msg;
+    int imode = "ad on of en ca mo ".indexOf(captureMode.substring(0, 2));
+    //           0  3  6  9  12 15
+    if (movie == null && imode != 15) {
+      msg = "ERROR: capture not active";
+    } else {
+      switch (imode) {
+      case 15: // movie
+        if (movie != null)
+          movie.endMovie(false);
+        vwr.captureParams = null;
+        if (localName == null) {
+          msg = "ERROR: AVI capture requires a local file";
+          break;
+        }
+        movie = (JmolMovieCreatorInterface) Interface.getInterface(
+            "org.jmol.image.AviCreator", vwr, "file");
+        if (movie == null) {
+          msg = "ERROR: AVI capture is not available";
+          break;
+        }
+        msg = movie.startMovie(vwr, localName, getInt(params, "captureFps", 10),
+            getInt(params, "quality", -1));
+        if (msg != null)
+          break;
+        params.put("captureMovie", movie);
+        params.put("captureFileName", localName);
+        params.put("captureMode", "add");
+        vwr.captureParams = params;
+        msg = "AVI_STREAM_OPEN " + localName;
+        break;
+      case 0: // add
+        if (Boolean.FALSE == cparams.get("captureEnabled")) {
+          msg = "capturing OFF; use CAPTURE ON/END/CANCEL to continue";
+          break;
+        }
+        Object image = vwr.getScreenImageBuffer(null, true);
+        try {
+          int w = vwr.apiPlatform.getImageWidth(image);
+          int h = vwr.apiPlatform.getImageHeight(image);
+          msg = "AVI_STREAM_ADD " + movie.addFrame(encodeImage(w, h, image), w, h);
+        } catch (Exception e) {
+          msg = "ERROR: " + e;
+        } finally {
+          vwr.releaseScreenImage();
+        }
+        break;
+      case 3: // on
+      case 6: // off
+        cparams.put("captureEnabled", Boolean.valueOf(imode == 3));
+        msg = "AVI_STREAM_" + (imode == 3 ? "ON" : "OFF");
+        break;
+      case 9: // end
+      case 12: // cancel
+        vwr.captureParams = null;
+        msg = "AVI_STREAM_" + (imode == 9 ? "CLOSE " : "CANCEL ")
+            + cparams.get("captureFileName") + " "
+            + movie.endMovie(imode == 12);
+        break;
+      default:
+        msg = "ERROR: CAPTURE MODE=" + captureMode + "?";
+      }
+    }
+    if (msg.startsWith("ERROR"))
+      Logger.error(msg);
+    vwr.showString(msg, false);
+    return msg;
+  }
+
   /////////////////////// general output including logging //////////////////////
 
   String outputToFile(Map<String, Object> params) {
@@ -580,6 +669,8 @@ abstract class OutputManager {
     String msg = (
         type.startsWith("PDB") ?  
             vwr.getPdbAtomData(null, out, false, false) 
+        : type.equals("COLUMNS") ?
+            vwr.getAtomColumns(vwr.bsA(), null, out)
         : type.startsWith("PLOT") ? 
             vwr.getPdbData(modelIndex, type.substring(5), null, plotParameters, out, true) 
         : getCurrentFile ? 
@@ -635,9 +726,6 @@ abstract class OutputManager {
   protected String handleOutputToFile(Map<String, Object> params,
                                       boolean doCheck) {
 
-    // org.jmol.image.AviCreator does create AVI animations from JPEGs
-    //but these aren't read by standard readers, so that's pretty much useless.
-
     String sret = null;
     String fileName = (String) params.get("fileName");
     if (fileName == null)
@@ -668,6 +756,8 @@ abstract class OutputManager {
     // JSmol/HTML5 WILL produce a localName now
     if (OC.isLocal(fileName))
       localName = fileName;
+    if (captureMode != null && "AVI".equals(type))
+      return captureAvi(params, captureMode, localName);
     int saveWidth = vwr.dimScreen.width;
     int saveHeight = vwr.dimScreen.height;
     System.out.println("OutputManager saveWidth/Height are " + saveWidth + " " +  saveHeight + " " + width + " " + height);
@@ -36,6 +36,7 @@ import javajs.util.P3;
 import javajs.util.PT;
 import javajs.util.Quat;
 import javajs.util.SB;
+import javajs.util.T3;
 import javajs.util.V3;
 import javajs.util.XmlUtil;
 
@@ -61,6 +62,8 @@ import org.jmol.modelset.JmolBioModel;
 import org.jmol.modelset.LabelToken;
 import org.jmol.modelset.Model;
 import org.jmol.modelset.ModelSet;
+import org.jmol.script.ScriptCompiler;
+import org.jmol.script.ScriptEval;
 import org.jmol.script.SV;
 import org.jmol.script.T;
 import org.jmol.shape.Shape;
@@ -173,6 +176,9 @@ public class PropertyManager implements JmolPropertyManager {
     "domainInfo"  , atomExpression, "{visible}",
     "validationInfo"  , atomExpression, "{visible}",
     "service"    , "<hashTable>", "",
+    "scriptCacheInfo" , "", "",
+    "atomExpressionCacheInfo" , "", "",
+    "scriptQueueWaitInfo" , "", "",
 
   };
 
@@ -227,7 +233,10 @@ public class PropertyManager implements JmolPropertyManager {
   private final static int PROP_DOM_INFO = 42;
   private final static int PROP_VAL_INFO = 43;
   private final static int PROP_SERVICE = 44;
-  private final static int PROP_COUNT = 45;
+  private final static int PROP_SCRIPT_CACHE_INFO = 45;
+  private final static int PROP_ATOM_EXPRESSION_CACHE_INFO = 46;
+  private final static int PROP_SCRIPT_QUEUE_WAIT_INFO = 47;
+  private final static int PROP_COUNT = 48;
 
   //// static methods used by Eval and Viewer ////
 
@@ -243,6 +252,17 @@ public class PropertyManager implements JmolPropertyManager {
           getPropertyAsObject(args[0].asString(), paramInfo, null), args, 1,
           null, false);
     } else {
+      if (returnType != null) {
+        switch (getPropertyNumber(infoType)) {
+        case PROP_ATOM_INFO:
+        case PROP_BOND_INFO:
+        case PROP_CHAIN_INFO:
+          // stream these rather than building the whole list first
+          boolean asJSON = returnType.equalsIgnoreCase("JSON");
+          if (asJSON || returnType.equalsIgnoreCase("readable"))
+            return writeInfo(null, infoType, paramInfo, null, asJSON);
+        }
+      }
       info = getPropertyAsObject(infoType, paramInfo, returnType);
     }
     if (returnType == null)
@@ -259,6 +279,205 @@ public class PropertyManager implements JmolPropertyManager {
     return info;
   }
 
+  /**
+   * Write a property as JSON or in the Jmol-readable form directly to an
+   * output channel. atomInfo, bondInfo, and chainInfo are written one atom,
+   * bond, or residue at a time, never building the full list, and only the
+   * record keys listed in fields are written for them; other properties are
+   * written whole.
+   * 
+   * @param out
+   *        or null to return a string
+   * @param infoType
+   * @param paramInfo
+   *        as for getProperty
+   * @param fields
+   *        comma- or space-separated keys, such as "xyz,element,resno", or
+   *        null for all; "xyz" is taken as "coord"
+   * @param asJSON
+   * @return out.toString()
+   */
+  /**
+   * The viewer's output channel is not available in restricted mode
+   * (ACCESS.ALL), but returning a string needs no file access.
+   * 
+   * @return an output channel with no file
+   */
+  private OC getMemoryChannel() {
+    OC out = vwr.getOutputChannel(null, null);
+    return (out == null ? new OC().setParams(null, null, true, null) : out);
+  }
+
+  @Override
+  public String writeInfo(OC out, String infoType, Object paramInfo,
+                          String fields, boolean asJSON) {
+    if (out == null)
+      out = getMemoryChannel();
+    int id = getPropertyNumber(infoType);
+    Object myParam = (paramInfo != null && paramInfo.toString().length() > 0 ? paramInfo
+        : getDefaultPropertyParam(id));
+    String[] keys = null;
+    if (fields != null && fields.trim().length() > 0) {
+      keys = PT.getTokens(fields.replace(',', ' '));
+      for (int i = keys.length; --i >= 0;)
+        if (keys[i].equalsIgnoreCase("xyz"))
+          keys[i] = "coord";
+    }
+    P3 ptTemp = new P3();
+    switch (id) {
+    case PROP_ATOM_INFO:
+      BS bs = vwr.getAtomBitSet(myParam);
+      if (asJSON)
+        out.append("{");
+      writeListStart(out, infoType, bs.cardinality(), asJSON);
+      for (int i = bs.nextSetBit(0), n = 0; i >= 0; i = bs.nextSetBit(i + 1))
+        writeRecord(out, infoType, n++, getAtomInfoLong(i, ptTemp), keys,
+            asJSON);
+      writeListEnd(out, asJSON);
+      if (asJSON)
+        out.append("}");
+      break;
+    case PROP_BOND_INFO:
+      BS bsBonds = getBondIndices(myParam);
+      if (asJSON)
+        out.append("{");
+      writeListStart(out, infoType, bsBonds.cardinality(), asJSON);
+      for (int i = bsBonds.nextSetBit(0), n = 0; i >= 0; i = bsBonds
+          .nextSetBit(i + 1))
+        writeRecord(out, infoType, n++, getBondInfo(i, ptTemp), keys, asJSON);
+      writeListEnd(out, asJSON);
+      if (asJSON)
+        out.append("}");
+      break;
+    case PROP_CHAIN_INFO:
+      writeChainInfo(out, infoType, vwr.getAtomBitSet(myParam), keys, asJSON);
+      break;
+    default:
+      Object info = getPropertyAsObject(infoType, paramInfo, null);
+      out.append(asJSON ? (String) SV.safeJSON(infoType, info) : Escape
+          .toReadable(infoType, info));
+    }
+    return out.toString();
+  }
+
+  /**
+   * Matches getAllChainInfo, a map with just "models", each model a map of
+   * "modelIndex" and "chains", each chain a map with just "residues".
+   * 
+   * @param out
+   * @param infoType
+   * @param bs
+   * @param keys
+   * @param asJSON
+   */
+  private void writeChainInfo(OC out, String infoType, BS bs, String[] keys,
+                              boolean asJSON) {
+    ModelSet ms = vwr.ms;
+    int[][] groupCounts = new int[ms.mc][];
+    int nModels = 0;
+    for (int i = 0; i < ms.mc; i++) {
+      Model model = ms.am[i];
+      int nChains = model.getChainCount(true);
+      int[] counts = new int[nChains + 1];
+      for (int j = 0; j < nChains; j++) {
+        Chain chain = model.getChainAt(j);
+        for (int igroup = chain.groupCount; --igroup >= 0;)
+          if (bs.get(chain.groups[igroup].firstAtomIndex))
+            counts[j]++;
+        if (counts[j] > 0)
+          counts[nChains]++;
+      }
+      if (counts[nChains] > 0) {
+        groupCounts[i] = counts;
+        nModels++;
+      }
+    }
+    String name = infoType + ".models";
+    if (asJSON)
+      out.append("{").append(PT.packageJSON(infoType, "{ "));
+    writeListStart(out, name, nModels, asJSON);
+    // the key order of getAllChainInfo's model maps
+    Map<String, Object> modelKeys = new Hashtable<String, Object>();
+    modelKeys.put("modelIndex", Boolean.TRUE);
+    modelKeys.put("chains", Boolean.TRUE);
+    P3 ptTemp = new P3();
+    for (int i = 0, im = 0; i < ms.mc; i++) {
+      int[] counts = groupCounts[i];
+      if (counts == null)
+        continue;
+      String mname = name + "[" + (++im) + "]";
+      if (asJSON)
+        out.append(im > 1 ? ",{ " : "{ ");
+      String sep = "";
+      for (String key : modelKeys.keySet()) {
+        if (asJSON)
+          out.append(sep);
+        sep = ",";
+        if (key.equals("modelIndex")) {
+          out.append(asJSON ? PT.packageJSON(key, "" + i) : Escape.toReadable(
+              mname + "." + key, Integer.valueOf(i)));
+          continue;
+        }
+        Model model = ms.am[i];
+        int nChains = counts.length - 1;
+        String cname = mname + "." + key;
+        writeListStart(out, cname, counts[nChains], asJSON);
+        for (int j = 0, ic = 0; j < nChains; j++) {
+          if (counts[j] == 0)
+            continue;
+          String rname = cname + "[" + (++ic) + "].residues";
+          if (asJSON)
+            out.append(ic > 1 ? ",{ " : "{ ");
+          writeListStart(out, rname, counts[j], asJSON);
+          Chain chain = model.getChainAt(j);
+          for (int igroup = 0, n = 0; igroup < chain.groupCount; igroup++) {
+            Group group = chain.groups[igroup];
+            if (bs.get(group.firstAtomIndex))
+              writeRecord(out, rname, n++, group.getGroupInfo(igroup, ptTemp),
+                  keys, asJSON);
+          }
+          writeListEnd(out, asJSON);
+          if (asJSON)
+            out.append(" }");
+        }
+        writeListEnd(out, asJSON);
+      }
+      if (asJSON)
+        out.append(" }");
+    }
+    writeListEnd(out, asJSON);
+    if (asJSON)
+      out.append(" }}");
+  }
+
+  private static void writeListStart(OC out, String name, int n, boolean asJSON) {
+    out.append(asJSON ? PT.packageJSON(name.substring(name.lastIndexOf('.') + 1), "[ ")
+        : "\n" + name + "\t*List[" + n + "]\t");
+  }
+
+  private static void writeListEnd(OC out, boolean asJSON) {
+    if (asJSON)
+      out.append(" ]");
+  }
+
+  private static void writeRecord(OC out, String name, int i,
+                                  Map<String, Object> info, String[] keys,
+                                  boolean asJSON) {
+    if (keys != null) {
+      Map<String, Object> map = new Hashtable<String, Object>();
+      for (int j = keys.length; --j >= 0;) {
+        Object v = info.get(keys[j]);
+        if (v != null)
+          map.put(keys[j], v);
+      }
+      info = map;
+    }
+    if (asJSON)
+      out.append(i > 0 ? "," : "").append(PT.toJSON(null, info));
+    else
+      out.append(Escape.toReadable(name + "[" + (i + 1) + "]", info));
+  }
+
   private SV[] getArguments(String propertyName) {
     String lc = propertyName.toLowerCase();
     int pt = -1;
@@ -786,6 +1005,14 @@ public class PropertyManager implements JmolPropertyManager {
       return vwr.getNMRCalculation().getInfo(myParam.toString());
     case PROP_VAR_INFO:
       return getVariables(myParam.toString());
+    case PROP_SCRIPT_CACHE_INFO:
+      return (vwr.compiler == null ? null : ((ScriptCompiler) vwr.compiler)
+          .getCacheInfo());
+    case PROP_ATOM_EXPRESSION_CACHE_INFO:
+      return (vwr.eval == null ? null : ((ScriptEval) vwr.eval)
+          .getAtomExpressionCacheInfo());
+    case PROP_SCRIPT_QUEUE_WAIT_INFO:
+      return vwr.getScriptQueueWaitInfo();
     case PROP_JMOL_STATUS:
       return vwr.getStatusChanged(myParam.toString());
     case PROP_JMOL_VIEWER:
@@ -1246,10 +1473,14 @@ public class PropertyManager implements JmolPropertyManager {
         }
         mol.appendC('\n');
         Object[] o = new Object[] { ptTemp };
-        for (int j = bsTemp.nextSetBit(0); j >= 0; j = bsTemp.nextSetBit(j + 1)) {
-          String s = LabelToken.formatLabelAtomArray(vwr, atoms[j], (asXYZVIB
-              && ms.getVibration(j, false) != null ? tokensVib : tokensXYZ),
-              '\0', null, ptTemp);
+        String[] labels = (asXYZVIB ? null : LabelToken.formatLabelAtoms(vwr,
+            bsTemp, tokensXYZ, null));
+        for (int j = bsTemp.nextSetBit(0), pt = 0; j >= 0; j = bsTemp
+            .nextSetBit(j + 1), pt++) {
+          String s = (labels != null ? labels[pt] : LabelToken
+              .formatLabelAtomArray(vwr, atoms[j], (asXYZVIB
+                  && ms.getVibration(j, false) != null ? tokensVib
+                  : tokensXYZ), '\0', null, ptTemp));
           getPointTransf(i, ms, atoms[j], q, ptTemp);
           s = PT.rep(s, "_XYZ_", PT.sprintf("%12.5p %12.5p %12.5p", "p", o));
           mol.append(s);
@@ -1651,6 +1882,15 @@ public class PropertyManager implements JmolPropertyManager {
 
   public Lst<Map<String, Object>> getAllBondInfo(Object bsOrArray) {
     Lst<Map<String, Object>> v = new Lst<Map<String, Object>>();
+    BS bs = getBondIndices(bsOrArray);
+    P3 ptTemp = new P3();
+    for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1))
+      v.addLast(getBondInfo(i, ptTemp));
+    return v;
+  }
+
+  private BS getBondIndices(Object bsOrArray) {
+    BS bs = new BS();
     ModelSet ms = vwr.ms;
     int bondCount = ms.bondCount;
     Bond[] bonds = ms.bo;
@@ -1658,7 +1898,6 @@ public class PropertyManager implements JmolPropertyManager {
     if (bsOrArray instanceof String) {
       bsOrArray = vwr.getAtomBitSet(bsOrArray);
     }
-    P3 ptTemp = new P3();
     if (bsOrArray instanceof BS[]) {
       bs1 = ((BS[]) bsOrArray)[0];
       BS bs2 = ((BS[]) bsOrArray)[1];
@@ -1666,23 +1905,23 @@ public class PropertyManager implements JmolPropertyManager {
         int ia = bonds[i].atom1.i;
         int ib = bonds[i].atom2.i;
         if (bs1.get(ia) && bs2.get(ib) || bs2.get(ia) && bs1.get(ib))
-          v.addLast(getBondInfo(i, ptTemp));
+          bs.set(i);
       }
     } else if (bsOrArray instanceof BondSet) {
       bs1 = (BS) bsOrArray;
       for (int i = bs1.nextSetBit(0); i >= 0 && i < bondCount; i = bs1
           .nextSetBit(i + 1))
-        v.addLast(getBondInfo(i, ptTemp));
+        bs.set(i);
     } else if (bsOrArray instanceof BS) {
       bs1 = (BS) bsOrArray;
       int thisAtom = (bs1.cardinality() == 1 ? bs1.nextSetBit(0) : -1);
       for (int i = 0; i < bondCount; i++) {
         if (thisAtom >= 0 ? (bonds[i].atom1.i == thisAtom || bonds[i].atom2.i == thisAtom)
             : bs1.get(bonds[i].atom1.i) && bs1.get(bonds[i].atom2.i))
-          v.addLast(getBondInfo(i, ptTemp));
+          bs.set(i);
       }
     }
-    return v;
+    return bs;
   }
 
   private Map<String, Object> getBondInfo(int i, P3 ptTemp) {
@@ -1899,6 +2138,194 @@ public class PropertyManager implements JmolPropertyManager {
     return info;
   }
 
+  private final static String DEFAULT_COLUMNS = "atomIndex xyz element atomName"
+      + " group resno chain temperature occupancy partialCharge";
+
+  /**
+   * Atom properties as little-endian binary columns, read directly from the
+   * atoms without creating a map for each, for programs that would otherwise
+   * parse getProperty("atomInfo"):
+   * 
+   * <pre>
+   * "JCOL" int32 version (1) int32 atomCount int32 columnCount
+   * for each column:
+   *   int32 nameLength, name (UTF-8)
+   *   byte type: 'f' float32, 'i' int32, or 's' string
+   *   int32 width: 3 for point properties such as xyz, otherwise 1
+   *   for 's', int32 stringCount, each as int32 length and UTF-8 bytes, 
+   *     the values then being int32 indexes into these strings
+   *   atomCount * width values
+   * </pre>
+   * 
+   * @param bs
+   *        or null for all atoms
+   * @param fields
+   *        atom property names, such as "xyz element resno property_x", or
+   *        null for DEFAULT_COLUMNS and all property_ data
+   * @param out
+   *        or null to return a string
+   * @return out.toString()
+   */
+  @Override
+  public String getAtomColumns(BS bs, String fields, OC out) {
+    if (out == null)
+      out = getMemoryChannel();
+    if (bs == null)
+      bs = vwr.getAllAtoms();
+    if (fields == null || fields.trim().length() == 0)
+      fields = DEFAULT_COLUMNS + getUserDataNames();
+    String[] names = PT.getTokens(fields.replace(',', ' '));
+    Lst<String> columns = new Lst<String>();
+    Lst<Object> columnData = new Lst<Object>();
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i];
+      Object data;
+      if (name.toLowerCase().startsWith("property_")) {
+        data = vwr.getDataObj(name, null, JmolDataManager.DATA_TYPE_AF);
+      } else {
+        int tok = T.getTokFromName(name);
+        data = (tok == T.nada || !T.tokAttr(tok, T.atomproperty) ? null : Integer.valueOf(tok));
+      }
+      if (data == null) {
+        Logger.warn("getAtomColumns: " + name + " is not an atom property");
+        continue;
+      }
+      columns.addLast(name);
+      columnData.addLast(data);
+    }
+    int n = bs.cardinality();
+    byte[] buf = new byte[Math.max(n * 12, 16)];
+    buf[0] = 'J';
+    buf[1] = 'C';
+    buf[2] = 'O';
+    buf[3] = 'L';
+    setIntLE(buf, 4, 1);
+    setIntLE(buf, 8, n);
+    setIntLE(buf, 12, columns.size());
+    out.write(buf, 0, 16);
+    Atom[] atoms = vwr.ms.at;
+    P3 ptTemp = new P3();
+    for (int c = 0; c < columns.size(); c++) {
+      writeStringLE(out, buf, columns.get(c));
+      Object data = columnData.get(c);
+      int pt = 0;
+      if (data instanceof float[]) {
+        float[] f = (float[]) data;
+        writeColumnType(out, 'f', 1);
+        for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1))
+          pt = setIntLE(buf, pt, floatToIntBits(i < f.length ? f[i] : Float.NaN));
+        out.write(buf, 0, pt);
+        continue;
+      }
+      int tok = ((Integer) data).intValue();
+      switch (tok) {
+      case T.coord:
+      case T.fracxyz:
+      case T.fuxyz:
+      case T.unitxyz:
+      case T.screenxyz:
+      case T.vibxyz:
+      case T.modxyz:
+      case T.xyz:
+      case T.color:
+        writeColumnType(out, 'f', 3);
+        for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1)) {
+          T3 p = atoms[i].atomPropertyTuple(vwr, tok, ptTemp);
+          pt = setIntLE(buf, pt, floatToIntBits(p == null ? Float.NaN : p.x));
+          pt = setIntLE(buf, pt, floatToIntBits(p == null ? Float.NaN : p.y));
+          pt = setIntLE(buf, pt, floatToIntBits(p == null ? Float.NaN : p.z));
+        }
+        break;
+      default:
+        if (T.tokAttr(tok, T.floatproperty)) {
+          writeColumnType(out, 'f', 1);
+          for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1))
+            pt = setIntLE(buf, pt,
+                floatToIntBits(atoms[i].atomPropertyFloat(vwr, tok, ptTemp)));
+        } else if (T.tokAttr(tok, T.intproperty)) {
+          writeColumnType(out, 'i', 1);
+          for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1))
+            pt = setIntLE(buf, pt, atoms[i].atomPropertyInt(tok));
+        } else {
+          // strings, each written just once
+          Map<String, Integer> htStrings = new Hashtable<String, Integer>();
+          Lst<String> strings = new Lst<String>();
+          for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1)) {
+            String v = atoms[i].atomPropertyString(vwr, tok);
+            if (v == null)
+              v = "";
+            Integer index = htStrings.get(v);
+            if (index == null) {
+              htStrings.put(v, index = Integer.valueOf(strings.size()));
+              strings.addLast(v);
+            }
+            pt = setIntLE(buf, pt, index.intValue());
+          }
+          writeColumnType(out, 's', 1);
+          byte[] b = new byte[4];
+          setIntLE(b, 0, strings.size());
+          out.write(b, 0, 4);
+          for (int i = 0; i < strings.size(); i++)
+            writeStringLE(out, b, strings.get(i));
+        }
+      }
+      out.write(buf, 0, pt);
+    }
+    return out.toString();
+  }
+
+  private String getUserDataNames() {
+    String[] info = (String[]) vwr.getDataObj("types", null,
+        JmolDataManager.DATA_TYPE_UNKNOWN);
+    if (info == null)
+      return "";
+    String[] types = PT.split(info[JmolDataManager.DATA_VALUE], "\n");
+    String s = "";
+    for (int i = 0; i < types.length; i++)
+      if (types[i].startsWith("property_")
+          && vwr.getDataObj(types[i], null, JmolDataManager.DATA_TYPE_AF) != null)
+        s += " " + types[i];
+    return s;
+  }
+
+  private static void writeColumnType(OC out, char type, int width) {
+    byte[] t = new byte[5];
+    t[0] = (byte) type;
+    setIntLE(t, 1, width);
+    out.write(t, 0, 5);
+  }
+
+  private static void writeStringLE(OC out, byte[] b, String s) {
+    byte[] bytes;
+    try {
+      bytes = s.getBytes("UTF-8");
+    } catch (Exception e) {
+      bytes = s.getBytes();
+    }
+    setIntLE(b, 0, bytes.length);
+    out.write(b, 0, 4);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static int setIntLE(byte[] b, int pt, int i) {
+    b[pt++] = (byte) i;
+    b[pt++] = (byte) (i >> 8);
+    b[pt++] = (byte) (i >> 16);
+    b[pt++] = (byte) (i >> 24);
+    return pt;
+  }
+
+  private static int floatToIntBits(float f) {
+    /**
+     * @j2sNative
+     * 
+     *            return new Int32Array(new Float32Array([f]).buffer)[0];
+     */
+    {
+      return Float.floatToRawIntBits(f);
+    }
+  }
+
   /**
    * PDB or PQR only
    * 
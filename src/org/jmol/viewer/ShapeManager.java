@@ -42,6 +42,7 @@ import org.jmol.util.GData;
 import org.jmol.util.Edge;
 
 import org.jmol.util.JmolMolecule;
+import org.jmol.util.Logger;
 
 import javajs.util.M4;
 import javajs.util.P3;
@@ -54,6 +55,13 @@ public class ShapeManager {
   public Shape[] shapes;
   public Viewer vwr;
 
+  /**
+   * incremented for a shape each time its size or any of its properties is
+   * set, so that StateCreator can tell whether that shape's state may have
+   * changed
+   */
+  final int[] stateVersions = new int[JC.SHAPE_MAX];
+
   public ShapeManager(Viewer vwr) {
     this.vwr = vwr;
     bsRenderableAtoms = new BS();
@@ -116,8 +124,10 @@ public class ShapeManager {
     ms = newModelSet;
     if (shapes != null)
       for (int i = 0; i < shapes.length; ++i)
-        if (shapes[i] != null)
+        if (shapes[i] != null) {
+          stateVersions[i]++;
           shapes[i].setModelSet(newModelSet);
+        }
     loadShape(JC.SHAPE_BALLS);
     loadShape(JC.SHAPE_STICKS);
   }
@@ -135,6 +145,7 @@ public class ShapeManager {
     if ((shape = (Shape) Interface.getInterface(className, vwr, "shape")) == null)
       return null;
     vwr.setShapeErrorState(shapeID, "allocate");
+    stateVersions[shapeID]++;
     shape.initializeShape(vwr, ms, shapeID);
     vwr.setShapeErrorState(-1, null);
     return shapes[shapeID] = shape;
@@ -176,6 +187,9 @@ public class ShapeManager {
     if (rd == null ? size != 0 : rd.value != 0)
       loadShape(shapeID);
     if (shapes[shapeID] != null) {
+      // just setting the selected bonds does not change the state
+      if (shapeID != JC.SHAPE_STICKS || size != Integer.MAX_VALUE)
+        stateVersions[shapeID]++;
       shapes[shapeID].setShapeSizeRD(size, rd, bsSelected);
     }
     vwr.setShapeErrorState(-1, null);
@@ -199,6 +213,7 @@ public class ShapeManager {
     if (bsSelected == null)
       bsSelected = vwr.bsA();
     vwr.setShapeErrorState(shapeID, "set " + propertyName);
+    stateVersions[shapeID]++;
     shapes[shapeID].setProperty(propertyName.intern(), value, bsSelected);
     vwr.setShapeErrorState(-1, null);
   }
@@ -271,10 +286,14 @@ public class ShapeManager {
   void deleteVdwDependentShapes(BS bs) {
     if (bs == null)
       bs = vwr.bsA();
-    if (shapes[JC.SHAPE_ISOSURFACE] != null)
+    if (shapes[JC.SHAPE_ISOSURFACE] != null) {
+      stateVersions[JC.SHAPE_ISOSURFACE]++;
       shapes[JC.SHAPE_ISOSURFACE].setProperty("deleteVdw", null, bs);
-    if (shapes[JC.SHAPE_CONTACT] != null)
+    }
+    if (shapes[JC.SHAPE_CONTACT] != null) {
+      stateVersions[JC.SHAPE_CONTACT]++;
       shapes[JC.SHAPE_CONTACT].setProperty("deleteVdw", null, bs);
+    }
   }
   
   public float getAtomShapeValue(int tok, Group group, int atomIndex) {
@@ -294,8 +313,10 @@ public class ShapeManager {
     if (shapes == null)
       return;
     for (int i = JC.SHAPE_MIN_SECONDARY; i < JC.SHAPE_MAX_SECONDARY; i++)
-      if (shapes[i] != null)
+      if (shapes[i] != null) {
+        stateVersions[i]++;
         shapes[i].replaceGroup(g0, g1);
+      }
   }
 
   void getObjectMap(Map<String, ?> map, boolean withDollar) {
@@ -325,6 +346,7 @@ public class ShapeManager {
       return;
     for (int i = 0; i < shapes.length; ++i)
       if (shapes[i] != null && shapes[i].isBioShape) {
+        stateVersions[i]++;
         shapes[i].setModelSet(ms);
         shapes[i].setShapeSizeRD(0, null, bsAllAtoms);
         shapes[i].setProperty("color", PAL.NONE, bsAllAtoms);
@@ -332,8 +354,10 @@ public class ShapeManager {
   }
 
   public void setAtomLabel(String strLabel, int i) {
-    if (shapes != null)
+    if (shapes != null) {
+      stateVersions[JC.SHAPE_LABELS]++;
       shapes[JC.SHAPE_LABELS].setProperty("label:"+strLabel, Integer.valueOf(i), null);
+    }
   }
   
   /**
@@ -403,9 +427,36 @@ public class ShapeManager {
 
   private final int[] navMinMax = new int[4];
 
+  /**
+   * Undo the hiding of culled atoms for the frame just rendered.
+   */
+  public void restoreCulledAtoms() {
+    if (culler != null && ms != null)
+      culler.restore(ms);
+  }
+
+  private ViewCuller culler;
+
   public int[] finalizeAtoms(BS bsTranslateSelected, boolean finalizeParams) {
+    return finalizeAtomsCulled(bsTranslateSelected, finalizeParams, false);
+  }
+
+  /**
+   * Transform atoms in frame to the screen.
+   * 
+   * @param bsTranslateSelected
+   * @param finalizeParams
+   * @param doCull
+   *        for the display only: skip atoms that cannot show up in the window
+   *        (see ViewCuller); restoreCulledAtoms() must be called after
+   *        rendering
+   * @return navigation min/max or null
+   */
+  public int[] finalizeAtomsCulled(BS bsTranslateSelected,
+                                   boolean finalizeParams, boolean doCull) {
     Viewer vwr = this.vwr;
     TransformManager tm = vwr.tm;
+    restoreCulledAtoms();
     if (finalizeParams)
       vwr.finalizeTransformParameters();
     if (bsTranslateSelected != null) {
@@ -426,6 +477,20 @@ public class ShapeManager {
     boolean vibs = (vibrationVectors != null && tm.vibrationOn);
     boolean checkOccupancy = (ms.bsModulated != null && ms.occupancies != null);
     Atom[] atoms = ms.at;
+    GData gdata = vwr.gdata;
+    if (doCull && !vibs && !checkOccupancy && !tm.internalSlab
+        && !vwr.getBoolean(T.slabbymolecule) && vwr.getMeasurementCount() == 0
+        && bsOK.cardinality() >= ViewCuller.MIN_ATOMS) {
+      if (culler == null)
+        culler = new ViewCuller(vwr);
+      boolean lod = (vwr.g.levelOfDetailMs > 0);
+      culler.cull(bsOK, atoms, gdata, lod && vwr.getInMotion(false));
+      gdata.saveZTiles = lod;
+      if (vwr.getBoolean(T.showtiming))
+        Logger.info(culler.getInfo());
+    } else {
+      gdata.saveZTiles = false;
+    }
     int occ;
     boolean haveMods = false;
     BS bsSlabbed = bsSlabbedInternal;
@@ -464,7 +529,6 @@ public class ShapeManager {
     }
     if (haveMods)
       setShapeVis();
-    GData gdata = vwr.gdata;
     if (tm.slabEnabled) {
       boolean slabByMolecule = vwr.getBoolean(T.slabbymolecule);
       boolean slabByAtom = vwr.getBoolean(T.slabbyatom);
@@ -0,0 +1,340 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2005  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ *  02110-1301, USA.
+ */
+
+package org.jmol.viewer;
+
+import org.jmol.java.BS;
+import org.jmol.modelset.Atom;
+import org.jmol.modelset.AtomCollection;
+import org.jmol.modelset.Bond;
+import org.jmol.modelset.ModelSet;
+import org.jmol.modelset.Orientation;
+import org.jmol.shape.Shape;
+import org.jmol.util.BSUtil;
+
+/**
+ * The atom coordinates of the current model set, held in packed arrays so
+ * that they can be put back directly instead of by running a state script.
+ * A full snapshot also holds the colors, sizes, and visibility flags of atoms
+ * and bonds, the size and color settings of balls and sticks, the hidden
+ * atoms, and the orientation; isosurfaces, labels, cartoons, and other shapes
+ * are not included.
+ *
+ * A snapshot is taken relative to the last one that holds all coordinates.
+ * If only a few atoms have moved since then, just those atoms are kept, and
+ * arrays that are unchanged are shared rather than copied, so a series of
+ * undo steps costs little more than the atoms that actually moved.
+ *
+ * A snapshot can be restored only to the model set it was taken from.
+ *
+ */
+final class Snapshot {
+
+  /**
+   * only the moved atoms are kept if they are fewer than 1/DELTA_FRACTION
+   * of all atoms
+   */
+  private final static int DELTA_FRACTION = 4;
+
+  /**
+   * for undo, the taint type and atom for undoMoveActionClear
+   */
+  int type, taintedAtom;
+
+  private ModelSet ms;
+  private int ac;
+
+  /**
+   * all coordinates, or null if this snapshot holds only the atoms that
+   * moved relative to base
+   */
+  private float[] xyz;
+  private Snapshot base;
+  private int[] moved;
+  private float[] movedXyz;
+  private BS bsTainted;
+
+  private boolean isAll;
+  private short[] colixes, mads;
+  private byte[] paletteIDs;
+  private int[] atomFlags;
+
+  /**
+   * bsSizeSet and bsColixSet of balls and of sticks
+   */
+  private BS[] shapeSets;
+  private BS bsHidden;
+
+  private int bondCount;
+  private int[] bondAtoms, bondOrders, bondFlags;
+  private short[] bondMads, bondColixes;
+  private float[] bondEnergies;
+
+  private Orientation orientation;
+
+  /**
+   * @param vwr
+   * @param prev
+   *        the last snapshot taken, or null
+   * @param isAll
+   *        false for coordinates only
+   * @param type
+   * @param taintedAtom
+   */
+  Snapshot(Viewer vwr, Snapshot prev, boolean isAll, int type, int taintedAtom) {
+    this.isAll = isAll;
+    this.type = type;
+    this.taintedAtom = taintedAtom;
+    ModelSet ms = this.ms = vwr.ms;
+    ac = ms.ac;
+    Snapshot key = (prev == null ? null : prev.base == null ? prev : prev.base);
+    if (key != null && (key.ms != ms || key.ac != ac))
+      key = null;
+    bsTainted = BSUtil.copy(ms.getTaintedAtoms(AtomCollection.TAINT_COORD));
+    Atom[] at = ms.at;
+    if (key != null)
+      setMoved(at, key);
+    if (base == null) {
+      xyz = new float[ac * 3];
+      for (int i = 0, pt = 0; i < ac; i++, pt += 3) {
+        Atom a = at[i];
+        if (a == null)
+          continue;
+        xyz[pt] = a.x;
+        xyz[pt + 1] = a.y;
+        xyz[pt + 2] = a.z;
+      }
+    }
+    if (!isAll)
+      return;
+    if (key != null && !key.isAll)
+      key = null;
+    colixes = new short[ac];
+    mads = new short[ac];
+    paletteIDs = new byte[ac];
+    atomFlags = new int[ac];
+    for (int i = ac; --i >= 0;) {
+      Atom a = at[i];
+      if (a == null)
+        continue;
+      colixes[i] = a.colixAtom;
+      mads[i] = a.madAtom;
+      paletteIDs[i] = a.paletteID;
+      atomFlags[i] = a.shapeVisibilityFlags;
+    }
+    bondCount = ms.bondCount;
+    bondAtoms = new int[bondCount * 2];
+    bondOrders = new int[bondCount];
+    bondFlags = new int[bondCount];
+    bondMads = new short[bondCount];
+    bondColixes = new short[bondCount];
+    bondEnergies = new float[bondCount];
+    Bond[] bo = ms.bo;
+    for (int i = bondCount; --i >= 0;) {
+      Bond b = bo[i];
+      bondAtoms[i * 2] = b.atom1.i;
+      bondAtoms[i * 2 + 1] = b.atom2.i;
+      bondOrders[i] = b.order;
+      bondFlags[i] = b.shapeVisibilityFlags;
+      bondMads[i] = b.mad;
+      bondColixes[i] = b.colix;
+      bondEnergies[i] = b.getEnergy();
+    }
+    if (key != null) {
+      colixes = sameS(colixes, key.colixes);
+      mads = sameS(mads, key.mads);
+      paletteIDs = sameB(paletteIDs, key.paletteIDs);
+      atomFlags = sameI(atomFlags, key.atomFlags);
+      bondAtoms = sameI(bondAtoms, key.bondAtoms);
+      bondOrders = sameI(bondOrders, key.bondOrders);
+      bondFlags = sameI(bondFlags, key.bondFlags);
+      bondMads = sameS(bondMads, key.bondMads);
+      bondColixes = sameS(bondColixes, key.bondColixes);
+      bondEnergies = sameF(bondEnergies, key.bondEnergies);
+    }
+    shapeSets = new BS[4];
+    for (int i = 0; i < 2; i++) {
+      Shape shape = vwr.shm.getShape(i == 0 ? JC.SHAPE_BALLS : JC.SHAPE_STICKS);
+      if (shape == null)
+        continue;
+      shapeSets[i * 2] = BSUtil.copy(shape.bsSizeSet);
+      shapeSets[i * 2 + 1] = BSUtil.copy(shape.bsColixSet);
+    }
+    bsHidden = BSUtil.copy(vwr.slm.bsHidden);
+    orientation = new Orientation(vwr, false, null);
+  }
+
+  /**
+   * Keep just the atoms that differ from key, unless there are too many.
+   *
+   * @param at
+   * @param key
+   */
+  private void setMoved(Atom[] at, Snapshot key) {
+    float[] xyz0 = key.xyz;
+    int[] list = new int[ac / DELTA_FRACTION];
+    int n = 0;
+    for (int i = 0, pt = 0; i < ac; i++, pt += 3) {
+      Atom a = at[i];
+      if (a == null || a.x == xyz0[pt] && a.y == xyz0[pt + 1]
+          && a.z == xyz0[pt + 2])
+        continue;
+      if (n == list.length)
+        return;
+      list[n++] = i;
+    }
+    moved = new int[n];
+    movedXyz = new float[n * 3];
+    for (int i = 0, pt = 0; i < n; i++) {
+      Atom a = at[moved[i] = list[i]];
+      movedXyz[pt++] = a.x;
+      movedXyz[pt++] = a.y;
+      movedXyz[pt++] = a.z;
+    }
+    base = key;
+  }
+
+  /**
+   * @param vwr
+   * @return false if the model set has been replaced or its atoms added or
+   *         deleted since this snapshot was taken
+   */
+  boolean restore(Viewer vwr) {
+    ModelSet ms = vwr.ms;
+    if (ms != this.ms || ms.ac != ac)
+      return false;
+    Atom[] at = ms.at;
+    float[] xyz = (base == null ? this.xyz : base.xyz);
+    BS bsMoved = new BS();
+    for (int i = 0, j = 0, pt = 0; i < ac; i++, pt += 3) {
+      Atom a = at[i];
+      float[] f = xyz;
+      int p = pt;
+      if (moved != null && j < moved.length && moved[j] == i) {
+        f = movedXyz;
+        p = 3 * j++;
+      }
+      if (a == null || a.x == f[p] && a.y == f[p + 1] && a.z == f[p + 2])
+        continue;
+      ms.setAtomCoord(i, f[p], f[p + 1], f[p + 2]);
+      bsMoved.set(i);
+    }
+    ms.setTaintedAtoms(BSUtil.copy(bsTainted), AtomCollection.TAINT_COORD);
+    if (!bsMoved.isEmpty())
+      vwr.checkCoordinatesChanged();
+    if (isAll)
+      restoreAll(vwr, ms);
+    vwr.refresh(3, "restore snapshot");
+    return true;
+  }
+
+  private void restoreAll(Viewer vwr, ModelSet ms) {
+    Atom[] at = ms.at;
+    for (int i = ac; --i >= 0;) {
+      Atom a = at[i];
+      if (a == null)
+        continue;
+      a.colixAtom = colixes[i];
+      a.madAtom = mads[i];
+      a.paletteID = paletteIDs[i];
+      a.shapeVisibilityFlags = atomFlags[i];
+    }
+    Bond[] bo = ms.bo;
+    boolean isSameBonds = (ms.bondCount == bondCount);
+    for (int i = bondCount; isSameBonds && --i >= 0;)
+      isSameBonds = (bo[i].atom1.i == bondAtoms[i * 2] && bo[i].atom2.i == bondAtoms[i * 2 + 1]);
+    if (isSameBonds) {
+      for (int i = bondCount; --i >= 0;) {
+        Bond b = bo[i];
+        b.order = bondOrders[i];
+        b.mad = bondMads[i];
+        b.colix = bondColixes[i];
+        b.shapeVisibilityFlags = bondFlags[i];
+      }
+    } else {
+      // as for RESTORE BONDS
+      vwr.clearModelDependentObjects();
+      ms.deleteAllBonds();
+      for (int i = 0; i < bondCount; i++) {
+        Bond b = ms.bondAtoms(at[bondAtoms[i * 2]], at[bondAtoms[i * 2 + 1]],
+            bondOrders[i], bondMads[i], null, bondEnergies[i], false, true);
+        b.colix = bondColixes[i];
+        b.shapeVisibilityFlags = bondFlags[i];
+      }
+      for (int i = ms.bondCount; --i >= 0;)
+        ms.bo[i].index = i;
+    }
+    for (int i = 0; i < 2; i++) {
+      int iShape = (i == 0 ? JC.SHAPE_BALLS : JC.SHAPE_STICKS);
+      Shape shape = vwr.shm.getShape(iShape);
+      if (shape == null)
+        continue;
+      shape.bsSizeSet = BSUtil.copy(shapeSets[i * 2]);
+      shape.bsColixSet = BSUtil.copy(shapeSets[i * 2 + 1]);
+      vwr.shm.stateVersions[iShape]++;
+    }
+    if (!isSameBonds)
+      vwr.setShapeProperty(JC.SHAPE_STICKS, "reportAll", null);
+    vwr.slm.hide(ms, bsHidden, 0, true);
+    orientation.restore(0, true);
+  }
+
+  private static short[] sameS(short[] a, short[] b) {
+    if (b == null || a.length != b.length)
+      return a;
+    for (int i = a.length; --i >= 0;)
+      if (a[i] != b[i])
+        return a;
+    return b;
+  }
+
+  private static byte[] sameB(byte[] a, byte[] b) {
+    if (b == null || a.length != b.length)
+      return a;
+    for (int i = a.length; --i >= 0;)
+      if (a[i] != b[i])
+        return a;
+    return b;
+  }
+
+  private static int[] sameI(int[] a, int[] b) {
+    if (b == null || a.length != b.length)
+      return a;
+    for (int i = a.length; --i >= 0;)
+      if (a[i] != b[i])
+        return a;
+    return b;
+  }
+
+  private static float[] sameF(float[] a, float[] b) {
+    if (b == null || a.length != b.length)
+      return a;
+    for (int i = a.length; --i >= 0;)
+      if (a[i] != b[i])
+        return a;
+    return b;
+  }
+
+}
@@ -175,7 +175,7 @@ public class StateCreator extends JmolStateCreator {
   private String getDataState(SB sfunc) {
     SB commands = new SB();
     boolean haveData = false;
-    String atomProps = getAtomicPropertyState((byte) -1, null);
+    String atomProps = getAtomicPropertyStateFragment();
     if (atomProps.length() > 0) {
       haveData = true;
       commands.append(atomProps);
@@ -405,7 +405,7 @@ public class StateCreator extends JmolStateCreator {
     for (; i < imax; ++i)
       if ((shape = shapes[i]) != null && (isAll || 
           i >= JC.SHAPE_MIN_SECONDARY && i < JC.SHAPE_MAX_SECONDARY)
-          && (cmd = shape.getShapeState()) != null && cmd.length() > 1)
+          && (cmd = getShapeStateFragment(i, shape)) != null && cmd.length() > 1)
         commands.append(cmd);
     commands.append("  select *;\n");
   }
@@ -457,6 +457,11 @@ public class StateCreator extends JmolStateCreator {
     app(str, (Math.pow(2, se) == pe ? "set specularExponent " + se :  "set phongExponent " + pe));
     app(str, "set celShading " + g.getCel());
     app(str, "set celShadingPower " + g.getCelPower());
+    if (g.ambientOcclusion != 0) {
+      app(str, "set ambientOcclusionRadius " + g.ambientOcclusionRadius);
+      app(str, "set ambientOcclusionSamples " + g.ambientOcclusionSamples);
+      app(str, "set ambientOcclusion " + g.ambientOcclusion);
+    }
     app(str, "set zShadePower " + vwr.g.zShadePower);    
     if (isAll)
       getZshadeState(str, vwr.tm, true);
@@ -1101,6 +1106,158 @@ public class StateCreator extends JmolStateCreator {
     temp2.clear();
   }
 
+  /////////////////// reusing unchanged parts of the state ////////////////////
+
+  /**
+   * A part of the state that is expensive to create, along with what it was
+   * created from: its owner, the version number recorded for that owner by
+   * the manager changing it, and a copy of any atom or bond values it was
+   * written from that other code may change without that manager knowing.
+   * All fragments are cleared when the ModelSet is replaced.
+   */
+  private static class StateFragment {
+    Object owner;
+    int version;
+    int[] iData;
+    float[] fData;
+    String state;
+  }
+
+  private final Map<String, StateFragment> fragments = new Hashtable<String, StateFragment>();
+
+  @Override
+  void clearStateFragments() {
+    fragments.clear();
+  }
+
+  /**
+   * @param key
+   * @param owner
+   * @param version
+   * @param iData
+   * @param fData
+   * @return the fragment for key if made from the same data, or a new
+   *         fragment with null state
+   */
+  private StateFragment getFragment(String key, Object owner, int version,
+                                    int[] iData, float[] fData) {
+    StateFragment f = fragments.get(key);
+    if (f != null && f.owner == owner && f.version == version
+        && isSameAI(f.iData, iData) && isSameAF(f.fData, fData))
+      return f;
+    f = new StateFragment();
+    f.owner = owner;
+    f.version = version;
+    f.iData = iData;
+    f.fData = fData;
+    fragments.put(key, f);
+    return f;
+  }
+
+  private static boolean isSameAI(int[] a, int[] b) {
+    if (a == null || b == null)
+      return (a == b);
+    if (a.length != b.length)
+      return false;
+    for (int i = a.length; --i >= 0;)
+      if (a[i] != b[i])
+        return false;
+    return true;
+  }
+
+  private static boolean isSameAF(float[] a, float[] b) {
+    if (a == null || b == null)
+      return (a == b);
+    if (a.length != b.length)
+      return false;
+    for (int i = a.length; --i >= 0;)
+      if (a[i] != b[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Balls and sticks, with a command for nearly every atom or bond, are
+   * recreated only if ShapeManager has set something for them or an atom's
+   * or bond's size, color, or order has changed; other shapes are quick to
+   * write or depend on settings elsewhere.
+   * 
+   * @param iShape
+   * @param shape
+   * @return shape state
+   */
+  private String getShapeStateFragment(int iShape, Shape shape) {
+    ModelSet ms = vwr.ms;
+    int[] iData;
+    int pt = 0;
+    switch (iShape) {
+    case JC.SHAPE_BALLS:
+      Atom[] atoms = ms.at;
+      iData = new int[ms.ac * 2];
+      for (int i = 0; i < ms.ac; i++) {
+        Atom a = atoms[i];
+        iData[pt++] = (a.madAtom & 0xFFFF) | (a.paletteID & 0xFF) << 16;
+        iData[pt++] = a.colixAtom;
+      }
+      break;
+    case JC.SHAPE_STICKS:
+      Bond[] bonds = ms.bo;
+      iData = new int[ms.bondCount * 2];
+      for (int i = 0; i < ms.bondCount; i++) {
+        Bond b = bonds[i];
+        iData[pt++] = (b.mad & 0xFFFF) | b.colix << 16;
+        iData[pt++] = b.order;
+      }
+      break;
+    default:
+      return shape.getShapeState();
+    }
+    StateFragment f = getFragment("shape" + iShape, shape,
+        vwr.shm.stateVersions[iShape], iData, null);
+    if (f.state == null)
+      f.state = shape.getShapeState();
+    return f.state;
+  }
+
+  /**
+   * Atom properties set by the user are recreated only if atoms have been
+   * tainted or untainted since, as for every SET or {atoms}.property
+   * assignment, or if tainted atoms have moved or been deleted.
+   * 
+   * @return atomic property state
+   */
+  private String getAtomicPropertyStateFragment() {
+    if (!vwr.g.preserveState)
+      return "";
+    ModelSet ms = vwr.ms;
+    Atom[] atoms = ms.at;
+    BS[] tainted = ms.tainted;
+    BS bs = new BS();
+    if (tainted != null)
+      for (int i = tainted.length; --i >= 0;)
+        if (tainted[i] != null)
+          bs.or(tainted[i]);
+    int[] iData = new int[bs.cardinality()];
+    for (int i = bs.nextSetBit(0), pt = 0; i >= 0; i = bs.nextSetBit(i + 1))
+      iData[pt++] = (atoms[i].isDeleted() ? 1 : 0);
+    float[] fData = null;
+    BS bsCoord = ms.getTaintedAtoms(AtomCollection.TAINT_COORD);
+    if (bsCoord != null) {
+      fData = new float[bsCoord.cardinality() * 3];
+      for (int i = bsCoord.nextSetBit(0), pt = 0; i >= 0; i = bsCoord
+          .nextSetBit(i + 1)) {
+        fData[pt++] = atoms[i].x;
+        fData[pt++] = atoms[i].y;
+        fData[pt++] = atoms[i].z;
+      }
+    }
+    StateFragment f = getFragment("atomicProperties", ms, ms.taintVersion,
+        iData, fData);
+    if (f.state == null)
+      f.state = getAtomicPropertyState((byte) -1, null);
+    return f.state;
+  }
+
   @Override
   String getShapeState(Shape shape) {
     String s;
@@ -1611,9 +1768,8 @@ public class StateCreator extends JmolStateCreator {
       // CTRL-Z: type = 1 UNDO
       // CTRL-Y: type = -1 REDO
       vwr.stopMinimization();
-      String s = "";
-      Lst<String> list1;
-      Lst<String> list2;
+      Lst<Object> list1;
+      Lst<Object> list2;
       switch (type) {
       default:
       case T.undomove:
@@ -1631,18 +1787,27 @@ public class StateCreator extends JmolStateCreator {
         return;
       undoWorking = true;
       list2.add(0, list1.remove(0));
-      s = vwr.actionStatesRedo.get(0);
+      Object o = vwr.actionStatesRedo.get(0);
+      Snapshot snapshot = (o instanceof Snapshot ? (Snapshot) o : null);
+      String s = (snapshot == null ? (String) o : "");
       if (type == T.undomove && list2.size() == 1) {
         // must save current state, coord, etc.
         // but this destroys actionStatesRedo
-        int[] pt = new int[] { 1 };
-        type = PT.parseIntNext(s, pt);
-        taintedAtom = PT.parseIntNext(s, pt);
+        if (snapshot == null) {
+          int[] pt = new int[] { 1 };
+          type = PT.parseIntNext(s, pt);
+          taintedAtom = PT.parseIntNext(s, pt);
+        } else {
+          type = snapshot.type;
+          taintedAtom = snapshot.taintedAtom;
+        }
         undoMoveActionClear(taintedAtom, type, false);
       }
       //System.out.println("redo type = " + type + " size=" + actionStates.size()
       //    + " " + +actionStatesRedo.size());
-      if (vwr.ms.am[modelIndex].isModelKit
+      if (snapshot != null) {
+        snapshot.restore(vwr);
+      } else if (vwr.ms.am[modelIndex].isModelKit
           || s.indexOf("zap ") < 0) {
         if (Logger.debugging)
           vwr.log(s);
@@ -1657,15 +1822,22 @@ public class StateCreator extends JmolStateCreator {
       if (undoWorking && clearRedo)
         return;
       undoWorking = true;
-      BS bs;
-      SB sb = new SB();
-      sb.append("#" + type + " " + taintedAtom + " " + (new Date()) + "\n");
-      if (taintedAtom >= 0) {
-        bs = vwr.getModelUndeletedAtomsBitSet(modelIndex);
+      BS bs = vwr.getModelUndeletedAtomsBitSet(modelIndex);
+      Object state;
+      if (taintedAtom >= 0 && type == AtomCollection.TAINT_COORD
+          && isCoordinateTaintOnly()) {
+        // a coordinate change only
+        vwr.ms.taintAtoms(bs, (byte) type);
+        state = vwr.stm.getSnapshot(false, type, taintedAtom);
+      } else if (taintedAtom >= 0) {
+        // formal charge, for example, or coordinates after such a change,
+        // which redo must also put back
         vwr.ms.taintAtoms(bs, (byte) type);
-        sb.append(getAtomicPropertyState((byte) -1, null));
+        state = "#" + type + " " + taintedAtom + " " + (new Date()) + "\n"
+            + getAtomicPropertyState((byte) -1, null);
       } else {
-        bs = vwr.getModelUndeletedAtomsBitSet(modelIndex);
+        SB sb = new SB();
+        sb.append("#" + type + " " + taintedAtom + " " + (new Date()) + "\n");
         sb.append("zap ");
         sb.append(Escape.eBS(bs)).append(";");
         getInlineData(sb, vwr.getModelExtract(bs, false, true,
@@ -1674,13 +1846,13 @@ public class StateCreator extends JmolStateCreator {
             vwr.acm.getPickingState()).append(
             vwr.tm.getMoveToText(0, false)).append(
             "set refreshing true;");
-
+        state = sb.toString();
       }
       if (clearRedo) {
-        vwr.actionStates.add(0, sb.toString());
+        vwr.actionStates.add(0, state);
         vwr.actionStatesRedo.clear();
       } else {
-        vwr.actionStatesRedo.add(1, sb.toString());
+        vwr.actionStatesRedo.add(1, state);
       }
       if (vwr.actionStates.size() == MAX_ACTION_UNDO) {
         vwr.actionStates.remove(MAX_ACTION_UNDO - 1);
@@ -1689,6 +1861,22 @@ public class StateCreator extends JmolStateCreator {
     undoWorking = !clearRedo;
   }
 
+  /**
+   * A coordinate Snapshot holds nothing else, so it can stand for an undo
+   * state only while no other atom property has been changed.
+   * 
+   * @return true if only coordinates are tainted
+   */
+  private boolean isCoordinateTaintOnly() {
+    BS[] tainted = vwr.ms.tainted;
+    if (tainted != null)
+      for (int i = tainted.length; --i >= 0;)
+        if (i != AtomCollection.TAINT_COORD && tainted[i] != null
+            && !tainted[i].isEmpty())
+          return false;
+    return true;
+  }
+
   private boolean undoWorking = false;
   private final static int MAX_ACTION_UNDO = 100;
   
@@ -120,6 +120,8 @@ public class StateManager {
   private String lastState = "";
   private String lastShape = "";
   private String lastCoordinates = "";
+  private String lastSnapshot = "";
+  private Snapshot snapshotBase;
 
   StateManager(Viewer vwr) {
     this.vwr = vwr;
@@ -309,6 +311,46 @@ public class StateManager {
     return (script == null ? "" : script);
   }
 
+  public void saveSnapshot(String saveName) {
+    if (saveName.equalsIgnoreCase("DELETE")) {
+      deleteSavedType("Snapshot_");
+      return;
+    }
+    saved.put(lastSnapshot = "Snapshot_" + saveName, getSnapshot(true, 0, -1));
+  }
+
+  /**
+   * Snapshots cannot be restored to another model set, so they are dropped
+   * when the model set is replaced.
+   */
+  void clearSnapshots() {
+    deleteSavedType("Snapshot_");
+    lastSnapshot = "";
+    snapshotBase = null;
+  }
+
+  public boolean restoreSnapshot(String saveName) {
+    String name = (saveName.length() > 0 ? "Snapshot_" + saveName
+        : lastSnapshot);
+    Snapshot s = (Snapshot) getNoCase(saved, name);
+    return (s != null && s.restore(vwr));
+  }
+
+  /**
+   * Snapshots for SAVE SNAPSHOT and for undo are all taken relative to the
+   * previous one, so that only what has changed since then is copied.
+   * 
+   * @param isAll
+   *        false for coordinates only
+   * @param type
+   * @param taintedAtom
+   * @return a new snapshot
+   */
+  Snapshot getSnapshot(boolean isAll, int type, int taintedAtom) {
+    return snapshotBase = new Snapshot(vwr, snapshotBase, isAll, type,
+        taintedAtom);
+  }
+
   Orientation getOrientation() {
     return new Orientation(vwr, false, null);
   }
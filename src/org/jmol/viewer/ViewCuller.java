@@ -0,0 +1,347 @@
+/* $RCSfile$
+ * $Author$
+ * $Date$
+ * $Revision$
+ *
+ * Copyright (C) 2011  The Jmol Development Team
+ *
+ * Contact: jmol-developers@lists.sf.net
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jmol.viewer;
+
+import org.jmol.java.BS;
+import org.jmol.modelset.Atom;
+import org.jmol.modelset.Chain;
+import org.jmol.modelset.Group;
+import org.jmol.modelset.ModelSet;
+import org.jmol.script.T;
+import org.jmol.util.GData;
+
+import javajs.util.AU;
+import javajs.util.P3;
+import javajs.util.P3i;
+
+/**
+ * Hierarchical culling of atoms for ShapeManager.finalizeAtoms, before they
+ * are transformed to the screen. Each run of atoms of one chain is divided
+ * into blocks of whole groups of at least BLOCK_ATOMS atoms, and the bounding
+ * box of each chain run and block is found. A chain run whose box projects
+ * entirely outside the display range or, with slabbing, beyond the slab or
+ * depth plane, is culled as a whole; otherwise its blocks are tested the same
+ * way. The boxes are enlarged by the largest atom radius plus MARGIN
+ * angstroms, so that anything drawn between a culled atom and one that is not
+ * -- a bond, a backbone segment -- would have been rejected by its renderer
+ * for being out of the display range anyway.
+ *
+ * Optionally, a box can also be culled if it is behind the farthest opaque z
+ * of every tile it covers in the previous frame (GData.zTiles). Since the
+ * previous frame was drawn from a slightly different view, this is only used
+ * for frames drawn while the user is moving the model with SET
+ * levelOfDetailMs, which are followed by a full rendering when motion stops.
+ *
+ * Culled atoms are removed from bsRenderableAtoms, marked hidden for just this
+ * frame, and given an out-of-range screen position, so they cannot be picked.
+ * Their cached ATOM_VISSET/ATOM_VISIBLE bits are cleared both when they are
+ * culled and when they are restored, so that Atom.checkVisible() never
+ * carries a culled frame's answer over to the next one, or the reverse.
+ * restore() must be called when the frame is done.
+ *
+ */
+final class ViewCuller {
+
+  /**
+   * minimum number of atoms in frame for culling to be worth its overhead
+   */
+  final static int MIN_ATOMS = 4096;
+
+  private final static int BLOCK_ATOMS = 32;
+  private final static int MARGIN = 10;
+
+  private final static int OUTSIDE = -1;
+  private final static int PARTIAL = 0;
+  private final static int INSIDE = 1;
+
+  private final Viewer vwr;
+  private final BS bsCulled = new BS();
+  private final P3 ptTemp = new P3();
+
+  private int[] blockStart = new int[64];
+  private int[] blockEnd = new int[64];
+  private float[] blockBox = new float[64 * 6];
+  private int[] runStart = new int[16];
+  private float[] runBox = new float[16 * 6];
+
+  private int nBlocks, nRuns;
+  private int marginMad;
+  private float marginZ;
+  private boolean slabbing;
+  private int[] zTiles;
+  private int zTilesWidth, zTilesHeight;
+  private GData gdata;
+  private int minX, minY, minZ, maxX, maxY, maxZ;
+
+  int nRunsCulled, nBlocksCulled, nOccluded, nAtomsCulled;
+
+  ViewCuller(Viewer vwr) {
+    this.vwr = vwr;
+  }
+
+  /**
+   * Remove atoms from bsOK that cannot show up in this frame.
+   *
+   * @param bsOK
+   *        atoms in frame, not yet transformed
+   * @param atoms
+   * @param gdata
+   * @param testOcclusion
+   *        also cull atoms hidden in the previous frame
+   * @return number of atoms culled
+   */
+  int cull(BS bsOK, Atom[] atoms, GData gdata, boolean testOcclusion) {
+    this.gdata = gdata;
+    getBoxes(bsOK, atoms);
+    TransformManager tm = vwr.tm;
+    slabbing = tm.slabEnabled;
+    marginZ = marginMad / 1000f * vwr.getScalePixelsPerAngstrom(true);
+    zTilesWidth = ((gdata.width - 1) >> GData.ZTILE_SHIFT) + 1;
+    zTiles = (testOcclusion && gdata.zTilesWidth == zTilesWidth ? gdata.zTiles
+        : null);
+    if (zTiles != null)
+      zTilesHeight = zTiles.length / zTilesWidth;
+    nRunsCulled = nBlocksCulled = nOccluded = nAtomsCulled = 0;
+    for (int r = 0; r < nRuns; r++) {
+      int b1 = runStart[r + 1];
+      int state = classify(runBox, r);
+      if (state == OUTSIDE || isOccluded()) {
+        nRunsCulled++;
+        for (int b = runStart[r]; b < b1; b++)
+          cullBlock(b, bsOK, atoms);
+        continue;
+      }
+      if (state == INSIDE && zTiles == null)
+        continue;
+      for (int b = runStart[r]; b < b1; b++)
+        if (classify(blockBox, b) == OUTSIDE || isOccluded())
+          cullBlock(b, bsOK, atoms);
+    }
+    return nAtomsCulled;
+  }
+
+  /**
+   * Give culled atoms back their NOTHIDDEN flag, unless they have since been
+   * hidden, and drop any visibility cached while they were culled.
+   *
+   * @param ms
+   */
+  void restore(ModelSet ms) {
+    if (bsCulled.isEmpty())
+      return;
+    Atom[] atoms = ms.at;
+    for (int i = bsCulled.nextSetBit(0); i >= 0 && i < ms.ac; i = bsCulled
+        .nextSetBit(i + 1)) {
+      Atom atom = atoms[i];
+      atom.setShapeVisibility(Atom.ATOM_VISSET | Atom.ATOM_VISIBLE, false);
+      if (!ms.isAtomHidden(i))
+        atom.setShapeVisibility(Atom.ATOM_NOTHIDDEN, true);
+    }
+    bsCulled.clearAll();
+    ms.clearVisibleSets();
+  }
+
+  String getInfo() {
+    return "culled " + nAtomsCulled + " atoms: " + nRunsCulled + " of "
+        + nRuns + " chains, " + nBlocksCulled + " of " + nBlocks + " blocks ("
+        + nOccluded + " occluded)";
+  }
+
+  private void cullBlock(int b, BS bsOK, Atom[] atoms) {
+    nBlocksCulled++;
+    for (int i = bsOK.nextSetBit(blockStart[b]), i1 = blockEnd[b]; i >= 0
+        && i < i1; i = bsOK.nextSetBit(i + 1)) {
+      Atom atom = atoms[i];
+      bsOK.clear(i);
+      atom.setShapeVisibility(Atom.ATOM_VISSET | Atom.ATOM_VISIBLE, false);
+      if (atom.isVisible(Atom.ATOM_NOTHIDDEN)) {
+        atom.setShapeVisibility(Atom.ATOM_NOTHIDDEN, false);
+        bsCulled.set(i);
+      }
+      atom.sX = atom.sY = Integer.MIN_VALUE >> 2;
+      atom.sZ = 0;
+      atom.sD = 0;
+      nAtomsCulled++;
+    }
+  }
+
+  /**
+   * Find the bounding boxes of blocks of whole groups and of runs of atoms
+   * of one chain, and the largest atom diameter.
+   *
+   * @param bsOK
+   * @param atoms
+   */
+  private void getBoxes(BS bsOK, Atom[] atoms) {
+    nBlocks = nRuns = 0;
+    int madGlobal = (int) (vwr.getFloat(T.atoms) * 2000);
+    int maxMad = 0;
+    Group group = null;
+    Chain chain = null;
+    int n = 0;
+    float[] box = null;
+    int pt = 0;
+    for (int i = bsOK.nextSetBit(0); i >= 0; i = bsOK.nextSetBit(i + 1)) {
+      Atom atom = atoms[i];
+      if (atom.group != group) {
+        group = atom.group;
+        boolean newRun = (group.chain != chain || nRuns == 0);
+        if (newRun || n >= BLOCK_ATOMS) {
+          if (nBlocks > 0)
+            blockEnd[nBlocks - 1] = i;
+          if (newRun) {
+            chain = group.chain;
+            if (nRuns + 1 >= runStart.length) {
+              runStart = AU.doubleLengthI(runStart);
+              runBox = AU.doubleLengthF(runBox);
+            }
+            runStart[nRuns++] = nBlocks;
+            initBox(runBox, (nRuns - 1) * 6, atom);
+          }
+          if (nBlocks == blockStart.length) {
+            blockStart = AU.doubleLengthI(blockStart);
+            blockEnd = AU.doubleLengthI(blockEnd);
+            blockBox = AU.doubleLengthF(blockBox);
+          }
+          blockStart[nBlocks] = i;
+          pt = nBlocks++ * 6;
+          box = blockBox;
+          initBox(box, pt, atom);
+          n = 0;
+        }
+      }
+      n++;
+      float x = atom.x, y = atom.y, z = atom.z;
+      if (x < box[pt])
+        box[pt] = x;
+      else if (x > box[pt + 3])
+        box[pt + 3] = x;
+      if (y < box[pt + 1])
+        box[pt + 1] = y;
+      else if (y > box[pt + 4])
+        box[pt + 4] = y;
+      if (z < box[pt + 2])
+        box[pt + 2] = z;
+      else if (z > box[pt + 5])
+        box[pt + 5] = z;
+      int mad = Math.abs(atom.madAtom);
+      if (mad == Atom.MAD_GLOBAL)
+        mad = madGlobal;
+      if (mad > maxMad)
+        maxMad = mad;
+    }
+    if (nBlocks > 0)
+      blockEnd[nBlocks - 1] = bsOK.length();
+    runStart[nRuns] = nBlocks;
+    for (int r = 0; r < nRuns; r++) {
+      int rpt = r * 6;
+      for (int b = runStart[r], b1 = runStart[r + 1]; b < b1; b++)
+        for (int k = 0, bpt = b * 6; k < 3; k++) {
+          runBox[rpt + k] = Math.min(runBox[rpt + k], blockBox[bpt + k]);
+          runBox[rpt + k + 3] = Math.max(runBox[rpt + k + 3], blockBox[bpt + k
+              + 3]);
+        }
+    }
+    marginMad = MARGIN * 1000 + (maxMad >> 1);
+  }
+
+  private static void initBox(float[] box, int pt, Atom atom) {
+    box[pt] = box[pt + 3] = atom.x;
+    box[pt + 1] = box[pt + 4] = atom.y;
+    box[pt + 2] = box[pt + 5] = atom.z;
+  }
+
+  /**
+   * Project the eight corners of a box, leaving the margin-enlarged screen
+   * rectangle and z range for isOccluded().
+   *
+   * @param boxes
+   * @param index
+   * @return OUTSIDE, INSIDE, or PARTIAL
+   */
+  private int classify(float[] boxes, int index) {
+    TransformManager tm = vwr.tm;
+    int pt = index * 6;
+    minX = minY = minZ = Integer.MAX_VALUE;
+    maxX = maxY = maxZ = Integer.MIN_VALUE;
+    for (int k = 0; k < 8; k++) {
+      ptTemp.set(boxes[pt + ((k & 1) == 0 ? 0 : 3)], boxes[pt
+          + ((k & 2) == 0 ? 1 : 4)], boxes[pt + ((k & 4) == 0 ? 2 : 5)]);
+      P3i s = tm.transformPt(ptTemp);
+      if (s.z <= 1) {
+        // at or behind the camera -- projection is not reliable
+        minZ = Integer.MIN_VALUE;
+        return PARTIAL;
+      }
+      if (s.x < minX)
+        minX = s.x;
+      if (s.x > maxX)
+        maxX = s.x;
+      if (s.y < minY)
+        minY = s.y;
+      if (s.y > maxY)
+        maxY = s.y;
+      if (s.z < minZ)
+        minZ = s.z;
+      if (s.z > maxZ)
+        maxZ = s.z;
+    }
+    int m = (int) tm.scaleToScreen(minZ, marginMad) + 1;
+    minX -= m;
+    minY -= m;
+    maxX += m;
+    maxY += m;
+    minZ -= marginZ;
+    maxZ += marginZ;
+    int state = gdata.checkDisplayRange(minX, minY, maxX, maxY);
+    if (state == OUTSIDE || !slabbing)
+      return state;
+    if (maxZ < gdata.slab || minZ > gdata.depth)
+      return OUTSIDE;
+    return (minZ >= gdata.slab && maxZ <= gdata.depth ? state : PARTIAL);
+  }
+
+  /**
+   * @return true if the last classified box is behind the previous frame's
+   *         opaque pixels in every tile it covers
+   */
+  private boolean isOccluded() {
+    if (zTiles == null || minZ == Integer.MIN_VALUE)
+      return false;
+    int shift = GData.ZTILE_SHIFT;
+    int tx0 = Math.max(0, minX >> shift);
+    int ty0 = Math.max(0, minY >> shift);
+    int tx1 = Math.min(zTilesWidth - 1, maxX >> shift);
+    int ty1 = Math.min(zTilesHeight - 1, maxY >> shift);
+    if (tx0 > tx1 || ty0 > ty1)
+      return false;
+    for (int ty = ty0; ty <= ty1; ty++)
+      for (int tx = tx0, pt = ty * zTilesWidth + tx0; tx <= tx1; tx++, pt++)
+        if (zTiles[pt] >= minZ)
+          return false;
+    nOccluded++;
+    return true;
+  }
+
+}
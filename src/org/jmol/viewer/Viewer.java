@@ -73,6 +73,7 @@ import org.jmol.api.JmolCallbackListener;
 import org.jmol.api.JmolDataManager;
 import org.jmol.api.JmolJSpecView;
 import org.jmol.api.JmolNMRInterface;
+import org.jmol.api.JmolParallelProcessor;
 import org.jmol.api.JmolPropertyManager;
 import org.jmol.api.JmolRendererInterface;
 import org.jmol.api.JmolRepaintManager;
@@ -82,6 +83,7 @@ import org.jmol.api.JmolScriptFunction;
 import org.jmol.api.JmolScriptManager;
 import org.jmol.api.JmolSelectionListener;
 import org.jmol.api.JmolStatusListener;
+import org.jmol.api.JmolThreadScheduler;
 import org.jmol.api.JmolViewer;
 import org.jmol.api.SmilesMatcherInterface;
 import org.jmol.api.SymmetryInterface;
@@ -272,6 +274,12 @@ public class Viewer extends JmolViewer implements AtomDataServer,
   public boolean noGraphicsAllowed;
   private boolean useCommandThread = false;
 
+  /**
+   * -scheduler: started JmolThreads share ThreadScheduler's workers rather
+   * than each holding a thread of its own
+   */
+  public boolean useScheduler;
+
   private String commandOptions;
   public Map<String, Object> vwrOptions;
   public Object display;
@@ -329,8 +337,8 @@ public class Viewer extends JmolViewer implements AtomDataServer,
   }
 
   final Dimension dimScreen;
-  final Lst<String> actionStates;
-  final Lst<String> actionStatesRedo;
+  final Lst<Object> actionStates;
+  final Lst<Object> actionStatesRedo;
   VDW defaultVdw;
 
   public RadiusData rd;
@@ -352,6 +360,7 @@ public class Viewer extends JmolViewer implements AtomDataServer,
    *        "backgroundTransparent" "exit" "listCommands" "check" "checkLoad"
    *        "silent" "access:READSPT" "access:NONE" "menuFile"
    *        "headlessMaxTimeMs" "headlessImage" "isDataOnly" "async"
+   *        "useScheduler"
    **/
 
   public Viewer(Map<String, Object> info) {
@@ -361,8 +370,8 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     defaultVdw = VDW.JMOL;
     localFunctions = new Hashtable<String, JmolScriptFunction>();
     privateKey = Math.random();
-    actionStates = new Lst<String>();
-    actionStatesRedo = new Lst<String>();
+    actionStates = new Lst<Object>();
+    actionStatesRedo = new Lst<Object>();
     chainMap = new Hashtable<Object, Object>();
     chainList = new Lst<String>();
     setOptions(info);
@@ -600,6 +609,7 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     }
     useCommandThread = !headless
         && checkOption2("useCommandThread", "-threaded");
+    useScheduler = !isJS && checkOption2("useScheduler", "-scheduler");
     setStartupBooleans();
     setIntProperty("_nProcessors", nProcessors);
     /*
@@ -624,6 +634,7 @@ public class Viewer extends JmolViewer implements AtomDataServer,
           + nProcessors
           + "\nuseCommandThread: "
           + useCommandThread
+          + (useScheduler ? "\nuseScheduler: true" : "")
           + (!isApplet ? "" : "\nappletId:" + htmlName
               + (isSignedApplet ? " (signed)" : "")));
     }
@@ -698,6 +709,7 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     setBooleanProperty("_headless", headless);
     setStringProperty("_restrict", "\"" + access + "\"");
     setBooleanProperty("_useCommandThread", useCommandThread);
+    setBooleanProperty("_useScheduler", useScheduler);
   }
 
   public String getExportDriverList() {
@@ -3335,6 +3347,17 @@ public class Viewer extends JmolViewer implements AtomDataServer,
       sm.setSync(mode == 2 ? strWhy : null);
   }
 
+  /**
+   * refresh(3) for a change only to hover text or a pending measurement, which
+   * allows the 3D layer of the last frame to be reused
+   * 
+   * @param strWhy
+   */
+  void refreshOverlays(String strWhy) {
+    if (rm != null && refreshing && !isWebGL)
+      rm.repaintOverlaysIfReady("refresh 3 " + strWhy);
+  }
+
   public void requestRepaintAndWait(String why) {
     // called by moveUpdate from move, moveTo, navigate,
     // navTranslate
@@ -3623,8 +3646,14 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     if (mm.modelSet == null || !mustRender || !refreshing && !creatingImage
         || rm == null)
       return;
+    long t0 = (g.levelOfDetailMs > 0 && !creatingImage ? System
+        .currentTimeMillis() : 0);
     boolean antialias2 = antialiased && g.antialiasTranslucent;
-    int[] navMinMax = shm.finalizeAtoms(tm.bsSelectedAtoms, true);
+    boolean isStill = !isWebGL && !creatingImage && !getInMotion(true)
+        && !tm.spinOn && !tm.navOn && !tm.vibrationOn
+        && tm.stereoMode == STER.NONE && tm.bsSelectedAtoms == null;
+    int[] navMinMax = (rm.checkLayer(gdata, ms, isStill) ? null : shm
+        .finalizeAtomsCulled(tm.bsSelectedAtoms, true, !isWebGL));
     if (isWebGL) {
       rm.renderExport(gdata, ms, jsParams);
       notifyViewerRepaintDone();
@@ -3636,6 +3665,38 @@ public class Viewer extends JmolViewer implements AtomDataServer,
       rm.render(gdata, ms, false, null);
       tm.setAntialias(antialiased);
     }
+    shm.restoreCulledAtoms();
+    if (t0 != 0)
+      setLodLevel(System.currentTimeMillis() - t0);
+  }
+
+  /**
+   * SET levelOfDetailMs n: while the user is moving the model, render polymer
+   * atoms as one sphere per residue (level 1) or per chain (level 2), with
+   * trace-only cartoons, whenever full detail took longer than n ms. The last
+   * render time at each level is kept; the level used for the next frame is
+   * the lowest one that was last rendered within the budget. Full detail is
+   * always rendered once motion stops.
+   */
+  private int lodLevel;
+  private final long[] lodTimes = new long[3];
+
+  /**
+   * @return 0 for full detail; 1 or 2 for coarse rendering while in motion
+   */
+  public int getLodLevel() {
+    return (inMotion && g.levelOfDetailMs > 0 && !creatingImage ? lodLevel : 0);
+  }
+
+  private void setLodLevel(long ms) {
+    lodTimes[getLodLevel()] = ms;
+    int level = 0;
+    while (level < 2 && lodTimes[level] > g.levelOfDetailMs)
+      level++;
+    if (level != lodLevel && g.showTiming)
+      Logger.info("level of detail " + lodLevel + " -> " + level + " (" + ms
+          + " ms)");
+    lodLevel = level;
   }
 
   /**
@@ -4154,7 +4215,7 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     setShapeProperty(JC.SHAPE_HOVER, "target", Integer.valueOf(atomIndex));
     hoverText = null;
     hoverAtomIndex = atomIndex;
-    refresh(3, "hover on atom");
+    refreshOverlays("hover on atom");
   }
 
   public void hoverOnPt(int x, int y, String text, String id, T3 pt) {
@@ -4178,7 +4239,7 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     setShapeProperty(JC.SHAPE_HOVER, "text", text);
     hoverAtomIndex = -1;
     hoverText = text;
-    refresh(3, "hover on point");
+    refreshOverlays("hover on point");
   }
 
   void hoverOff() {
@@ -4197,8 +4258,12 @@ public class Viewer extends JmolViewer implements AtomDataServer,
         hoverText = null;
       }
       setShapeProperty(JC.SHAPE_HOVER, "specialLabel", null);
-      if (isHover)
-        refresh(3, "hover off");
+      if (isHover) {
+        if (g.modelKitMode)
+          refresh(3, "hover off");
+        else
+          refreshOverlays("hover off");
+      }
     } catch (Exception e) {
       // ignore
     }
@@ -5378,6 +5443,12 @@ public class Viewer extends JmolViewer implements AtomDataServer,
       // 12.3.26
       setUnits(value, false);
       return;
+    case T.minimizationmethod:
+      value = value.toUpperCase();
+      if (!PT.isOneOf(value, ";SD;CG;LBFGS;"))
+        value = "SD";
+      g.minimizationMethod = value;
+      break;
     case T.forcefield:
       // 12.3.25
       g.forceField = value = ("UFF".equalsIgnoreCase(value) ? "UFF" : "MMFF");
@@ -5647,6 +5718,9 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     case T.loadatomdatatolerance:
       g.loadAtomDataTolerance = value;
       break;
+    case T.ambientocclusionradius:
+      gdata.ambientOcclusionRadius = value = Math.max(0, Math.min(value, 10));
+      break;
     case T.hbondsangleminimum:
       // 11.7.9
       g.hbondsAngleMinimum = value;
@@ -5809,6 +5883,14 @@ public class Viewer extends JmolViewer implements AtomDataServer,
       // 13.3.9
       gdata.setAmbientOcclusion(value);
       break;
+    case T.ambientocclusionsamples:
+      gdata.ambientOcclusionSamples = value = Math.max(1, Math.min(value, 64));
+      break;
+    case T.levelofdetailms:
+      g.levelOfDetailMs = value = Math.max(value, 0);
+      lodLevel = 0;
+      lodTimes[0] = lodTimes[1] = lodTimes[2] = 0;
+      break;
     case T.platformspeed:
       // 13.3.4
       g.platformSpeed = Math.min(Math.max(value, 0), 10); // 0 could mean "adjust as needed"
@@ -7358,6 +7440,46 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     return getPropertyManager().getPdbAtomData(bs == null ? bsA() : bs, out, asPQR, doTransform, false);
   }
 
+  /**
+   * Stream a property such as atomInfo, bondInfo, or chainInfo as JSON or in
+   * readable form, optionally only certain fields of each record.
+   * 
+   * @param out
+   *        or null to return a string
+   * @param infoType
+   * @param paramInfo
+   * @param fields
+   *        for example, "xyz,element,resno", or null for all
+   * @param asJSON
+   * @return out.toString()
+   */
+  public String writePropertyInfo(OC out, String infoType, Object paramInfo,
+                                  String fields, boolean asJSON) {
+    return getPropertyManager().writeInfo(out, infoType, paramInfo, fields,
+        asJSON);
+  }
+
+  /**
+   * Atom properties as binary columns; see PropertyManager.getAtomColumns.
+   * 
+   * @param bs
+   *        or null for all atoms
+   * @param fields
+   *        for example, "xyz element resno chain", or null for the default set
+   * @return the bytes, or null if output is not allowed
+   */
+  public byte[] getAtomColumnData(BS bs, String fields) {
+    OC out = getOutputChannel(null, null);
+    if (out == null)
+      return null;
+    getPropertyManager().getAtomColumns(bs, fields, out);
+    return out.toByteArray();
+  }
+
+  public String getAtomColumns(BS bs, String fields, OC out) {
+    return getPropertyManager().getAtomColumns(bs, fields, out);
+  }
+
   public boolean isJmolDataFrame() {
     return ms.isJmolDataFrameForModel(am.cmi);
   }
@@ -8615,6 +8737,45 @@ public class Viewer extends JmolViewer implements AtomDataServer,
     return g.multiProcessor && isParallel;
   }
 
+  private JmolThreadScheduler threadScheduler;
+
+  /**
+   * Java only, with -scheduler; see org.jmol.thread.ThreadScheduler
+   *
+   * @return the scheduler for JmolThreads, or null
+   */
+  public JmolThreadScheduler getThreadScheduler() {
+    if (threadScheduler == null && useScheduler)
+      threadScheduler = (JmolThreadScheduler) Interface.getInterface(
+          "org.jmol.thread.ThreadScheduler", this, "script");
+    return threadScheduler;
+  }
+
+  /**
+   * The shared thread pool used by PARALLEL and by ParallelLoop; never
+   * available in JavaScript or with only one processor.
+   *
+   * @return java.util.concurrent.Executor or null
+   */
+  public Object getExecutor() {
+    if (!g.multiProcessor || nProcessors < 2)
+      return null;
+    if (executor == null) {
+      try {
+        executor = ((JmolParallelProcessor) Interface.getInterface(
+            "org.jmol.script.ScriptParallelProcessor", this, "script"))
+            .getExecutor();
+      } catch (Exception e) {
+        executor = null;
+      } catch (Error er) {
+        executor = null;
+      }
+      if (executor == null)
+        Logger.error("parallel processing is not available");
+    }
+    return executor;
+  }
+
   private void setAtomPickingOption(String option) {
     if (haveDisplay)
       acm.setAtomPickingOption(option);
@@ -9147,6 +9308,9 @@ public class Viewer extends JmolViewer implements AtomDataServer,
 
   public void setModelSet(ModelSet modelSet) {
     this.ms = mm.modelSet = modelSet;
+    stm.clearSnapshots();
+    if (jsc != null)
+      jsc.clearStateFragments();
   }
 
   public String setObjectProp(String id, int tokCommand) {
@@ -9220,6 +9384,10 @@ public class Viewer extends JmolViewer implements AtomDataServer,
         : Boolean.FALSE);
   }
 
+  public Map<String, Object> getScriptQueueWaitInfo() {
+    return (scm == null ? null : scm.getQueueWaitInfo());
+  }
+
   JmolNMRInterface nmrCalculation;
 
   public JmolNMRInterface getNMRCalculation() {